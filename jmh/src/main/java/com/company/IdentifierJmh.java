@@ -0,0 +1,50 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares SipIdentifiers with the Math.random() based tags and CSeq numbers
+ * it replaced. Both generators are shared by all benchmark threads, so run
+ * at several thread counts to see how each holds up under contention.
+ *
+ * <p>Usage: java -jar jmh/target/benchmarks.jar IdentifierJmh -t 4
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IdentifierJmh {
+    private final SipIdentifiers mIdentifiers = new SipIdentifiers();
+
+    @Benchmark
+    public String randomTag() {
+        return String.valueOf(Math.random() * 0x100000000L);
+    }
+
+    @Benchmark
+    public long randomSequence() {
+        return (long) (Math.random() * 10000);
+    }
+
+    @Benchmark
+    public String newTag() {
+        return mIdentifiers.newTag();
+    }
+
+    @Benchmark
+    public long newSequenceNumber() {
+        return mIdentifiers.newSequenceNumber();
+    }
+}
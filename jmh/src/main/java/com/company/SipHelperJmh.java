@@ -0,0 +1,138 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.sip.ClientTransaction;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipFactory;
+import javax.sip.address.SipURI;
+import javax.sip.header.CallIdHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Response;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of SipHelper message construction against a
+ * LoopbackSipProvider, so no network or peer is involved. Run with -prof gc
+ * to get the allocation rate per operation alongside the throughput.
+ *
+ * <p>Usage: java -jar jmh/target/benchmarks.jar SipHelperJmh -prof gc
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SipHelperJmh {
+    private LoopbackSipProvider mProvider;
+    private SipHelper mSipHelper;
+    private SipURI mCaller;
+    private SipURI mCallee;
+    private CallIdHeader mCallId;
+    private String mTag;
+    private RequestEvent mInviteEvent;
+    private RequestEvent mOptionsEvent;
+    private byte[] mSdp;
+    private SessionDescription mOffer;
+
+    @Setup
+    public void setUp() throws Exception {
+        mProvider = new LoopbackSipProvider("127.0.0.1", 14000,
+                ListeningPoint.UDP);
+        // sends never need the stack, only challenge handling does
+        mSipHelper = new SipHelper(null, mProvider);
+        mCaller = createProfile("1", 14000);
+        mCallee = createProfile("2", 5060);
+        mCallId = mSipHelper.newCallIdHeader();
+        mTag = mSipHelper.getIdentifiers().newTag();
+
+        MessageFactory messageFactory = SipFactory.getInstance()
+                .createMessageFactory();
+        mInviteEvent = new RequestEvent(mProvider, null, null,
+                messageFactory.createRequest(Harness.INVITE));
+        mOptionsEvent = new RequestEvent(mProvider, null, null,
+                messageFactory.createRequest(Harness.OPTIONS));
+        mSdp = Harness.SDP.getBytes(StandardCharsets.US_ASCII);
+        mOffer = SessionDescription.parse(mSdp, 0, mSdp.length);
+        mSipHelper.setOfferTemplate(mCaller, mOffer);
+    }
+
+    @Benchmark
+    public ClientTransaction createRegister() throws Exception {
+        return mSipHelper.sendRegister(mCaller, mTag, 3600, mCallId);
+    }
+
+    @Benchmark
+    public ClientTransaction createOptions() throws Exception {
+        return mSipHelper.sendOptions(mCaller, mCallee, mTag, mCallId);
+    }
+
+    @Benchmark
+    public ClientTransaction createInvite() throws Exception {
+        return mSipHelper.sendInvite(mCaller, mCallee, Harness.SDP,
+                mTag, null, null, mCallId);
+    }
+
+    @Benchmark
+    public ClientTransaction createInviteFromOffer() throws Exception {
+        SessionDescription sessionDescription = mSipHelper.newOffer(mCaller);
+        sessionDescription.setPort(0, 40002);
+        return mSipHelper.sendInvite(mCaller, mCallee, sessionDescription, mTag,
+                null, null, mCallId);
+    }
+
+    @Benchmark
+    public ServerTransaction sendInviteOk() throws Exception {
+        return mSipHelper.sendInviteOk(mInviteEvent, mCaller,
+                Harness.SDP, null);
+    }
+
+    @Benchmark
+    public Object sendResponse() throws Exception {
+        mSipHelper.sendResponse(mOptionsEvent, Response.OK);
+        return mProvider.getLastSent();
+    }
+
+    @Benchmark
+    public SessionDescription parseSessionDescription() throws Exception {
+        return SessionDescription.parse(mSdp, 0, mSdp.length);
+    }
+
+    @Benchmark
+    public byte[] encodeSessionDescription() {
+        return mOffer.encode();
+    }
+
+    @Benchmark
+    public String getCallId() {
+        return SipHelper.getCallId(mInviteEvent);
+    }
+
+    @Benchmark
+    public String getTo() {
+        return SipHelper.getTo(mInviteEvent);
+    }
+
+    private static SipURI createProfile(String user, int port)
+            throws java.text.ParseException {
+        SipURI profile = new SipUri();
+        profile.setUser(user);
+        profile.setHost("127.0.0.1");
+        profile.setPort(port);
+        return profile;
+    }
+}
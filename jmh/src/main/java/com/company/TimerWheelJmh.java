@@ -0,0 +1,100 @@
+package com.company;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of rescheduling one timer while a registration-scale number of long
+ * timers is pending, on HashedTimerWheel and on ScheduledThreadPoolExecutor.
+ * TimerWheelBenchmark covers bulk insertion, heap and lateness.
+ *
+ * <p>Usage: java -jar jmh/target/benchmarks.jar TimerWheelJmh -prof gc
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TimerWheelJmh {
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+    private static final long LONG_DELAY_MS = TimeUnit.HOURS.toMillis(1);
+
+    @State(Scope.Benchmark)
+    public static class Wheel {
+        @Param({"1000000"})
+        int pending;
+
+        HashedTimerWheel wheel;
+
+        @Setup
+        public void setUp() {
+            wheel = new HashedTimerWheel(10, 4096);
+            for (int i = 0; i < pending; i++) {
+                wheel.schedule(NOOP, longDelay(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @TearDown
+        public void tearDown() throws InterruptedException {
+            wheel.stop();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Executor {
+        @Param({"1000000"})
+        int pending;
+
+        ScheduledThreadPoolExecutor executor;
+
+        @Setup
+        public void setUp() {
+            executor = new ScheduledThreadPoolExecutor(1);
+            // otherwise cancelled tasks stay queued until their deadline
+            executor.setRemoveOnCancelPolicy(true);
+            for (int i = 0; i < pending; i++) {
+                executor.schedule(NOOP, longDelay(), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        @TearDown
+        public void tearDown() {
+            executor.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public boolean wheelScheduleCancel(Wheel state) {
+        return state.wheel.schedule(NOOP, longDelay(), TimeUnit.MILLISECONDS)
+                .cancel();
+    }
+
+    @Benchmark
+    public boolean executorScheduleCancel(Executor state) {
+        return state.executor.schedule(NOOP, longDelay(),
+                TimeUnit.MILLISECONDS).cancel(false);
+    }
+
+    private static long longDelay() {
+        return LONG_DELAY_MS
+                + ThreadLocalRandom.current().nextLong(LONG_DELAY_MS);
+    }
+}
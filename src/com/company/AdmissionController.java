@@ -0,0 +1,113 @@
+package com.company;
+
+import javax.sip.RequestEvent;
+import javax.sip.SipException;
+import javax.sip.header.ToHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Overload control in front of request handling. New out-of-dialog
+ * requests, the ones that start calls, subscriptions or registrations, are
+ * rejected with 503 Service Unavailable and a Retry-After as soon as the
+ * queue they would join is too deep or would keep them waiting too long.
+ * Requests within a dialog, and ACK and CANCEL, are always let in: they
+ * finish work that was already accepted.
+ *
+ * <p>Rejecting early is what keeps goodput up. A request queued for longer
+ * than the client's retransmission timer is retransmitted and queued again,
+ * so an unbounded backlog spends more and more of the capacity on requests
+ * whose clients have already given up.
+ *
+ * <p>The Retry-After is spread over up to twice its base value, so clients
+ * turned away together do not all come back together.
+ */
+public class AdmissionController {
+    private static final String TAG = AdmissionController.class.getSimpleName();
+    private static final boolean DBG = false;
+
+    private final SipHelper mSipHelper;
+    private final int mMaxQueueDepth;
+    private final long mMaxDelayNanos;
+    private final int mRetryAfter;
+
+    private final AtomicLong mAdmitted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mRejectFailures = new AtomicLong();
+
+    /**
+     * @param maxQueueDepth events queued ahead at which new requests are
+     *      rejected
+     * @param maxDelayMillis expected wait at which new requests are rejected;
+     *      keep it well below T1 so admitted requests are not retransmitted
+     * @param retryAfter base Retry-After of the 503, in seconds
+     */
+    public AdmissionController(SipHelper sipHelper, int maxQueueDepth,
+            long maxDelayMillis, int retryAfter) {
+        mSipHelper = sipHelper;
+        mMaxQueueDepth = maxQueueDepth;
+        mMaxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        mRetryAfter = retryAfter;
+    }
+
+    /**
+     * Decides on a request before it is queued, and answers it with 503 if
+     * it is turned away.
+     *
+     * @param queueDepth events already queued ahead of the request
+     * @param serviceNanos average time to handle one of them
+     * @return true if the request should be handled
+     */
+    public boolean admit(RequestEvent requestEvent, int queueDepth,
+            long serviceNanos) {
+        if (((queueDepth < mMaxQueueDepth)
+                && (queueDepth * serviceNanos < mMaxDelayNanos))
+                || isInDialog(requestEvent.getRequest())) {
+            mAdmitted.incrementAndGet();
+            return true;
+        }
+        mRejected.incrementAndGet();
+        try {
+            mSipHelper.sendResponse(requestEvent, Response.SERVICE_UNAVAILABLE,
+                    mRetryAfter + ThreadLocalRandom.current()
+                            .nextInt(mRetryAfter + 1));
+        } catch (SipException e) {
+            // the client retransmits and is decided on again
+            mRejectFailures.incrementAndGet();
+            if (DBG) log("503 failed: " + e);
+        }
+        return false;
+    }
+
+    public long getAdmittedCount() {
+        return mAdmitted.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * Returns how many rejections could not be sent.
+     */
+    public long getRejectFailureCount() {
+        return mRejectFailures.get();
+    }
+
+    private static boolean isInDialog(Request request) {
+        String method = request.getMethod();
+        if (Request.ACK.equals(method) || Request.CANCEL.equals(method)
+                || Request.BYE.equals(method)) {
+            return true;
+        }
+        ToHeader to = (ToHeader) request.getHeader(ToHeader.NAME);
+        return (to != null) && (to.getTag() != null);
+    }
+
+    private void log(String s) {
+
+    }
+}
@@ -0,0 +1,193 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+
+import javax.sip.*;
+import javax.sip.address.SipURI;
+import javax.sip.header.CallIdHeader;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Runs thousands of concurrent flows on the asynchronous SipHelper API
+ * against a StandInServer in this process. Each flow registers, pings the
+ * registrar with OPTIONS once the registration completes, and starts over
+ * when the ping does, chained on futures with no thread of its own. Reports
+ * flows completed per second, flow latency and the threads the process
+ * needed.
+ *
+ * <p>Flows are started spread over the warmup, as a burst of thousands
+ * would overflow the socket buffers and leave the first rounds to
+ * retransmissions. At the end every flow finishes its round in flight; a
+ * flow that does not within the transaction timeout is reported as
+ * unfinished, as its future never completed.
+ *
+ * <p>Usage: AsyncFlowBenchmark [flows] [seconds] [transport]
+ */
+public class AsyncFlowBenchmark implements SipListener {
+    private static final int SERVER_PORT = 19000;
+    private static final int CLIENT_PORT = 19001;
+    private static final long WARMUP_MS = 2000;
+    private static final long RETRY_MS = 100;
+    // longer than a non-INVITE transaction may take
+    private static final long DRAIN_MS = 40000;
+
+    private final SipHelper mSipHelper;
+    private final ScheduledExecutorService mSendExecutor =
+            Executors.newScheduledThreadPool(2);
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    // flows with a round in flight, or about to start one
+    private final AtomicInteger mActive = new AtomicInteger();
+    private volatile boolean mStopped;
+
+    private AsyncFlowBenchmark(String transport) throws Exception {
+        SipProvider sipProvider = Harness.createProvider("im.dlg.sip.async",
+                CLIENT_PORT, transport);
+        sipProvider.addSipListener(this);
+        mSipHelper = new SipHelper(sipProvider.getSipStack(), sipProvider);
+        mSipHelper.setSendExecutor(mSendExecutor);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int flows = (args.length > 0) ? Integer.parseInt(args[0]) : 5000;
+        long seconds = (args.length > 1) ? Long.parseLong(args[1]) : 30;
+        String transport = (args.length > 2) ? args[2] : ListeningPoint.UDP;
+
+        StandInServer server = Harness.startStandIn(SERVER_PORT, transport);
+
+        new AsyncFlowBenchmark(transport).run(flows, seconds, transport);
+        server.stop();
+        System.exit(0);
+    }
+
+    private void run(int flows, long seconds, String transport)
+            throws Exception {
+        mActive.set(flows);
+        long spacing = TimeUnit.MILLISECONDS.toNanos(WARMUP_MS) / 2 / flows;
+        for (int i = 0; i < flows; i++) {
+            final SipURI profile = new SipUri();
+            profile.setUser("flow" + i);
+            profile.setHost(Harness.HOST);
+            profile.setPort(SERVER_PORT);
+            profile.setTransportParam(transport.toLowerCase());
+            final CallIdHeader callIdHeader = mSipHelper.newCallIdHeader();
+            mSendExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flow(profile, callIdHeader);
+                }
+            }, i * spacing, TimeUnit.NANOSECONDS);
+        }
+        Thread.sleep(WARMUP_MS);
+        mLatency.reset();
+        long completed = mCompleted.get();
+        long failures = mFailures.get();
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        completed = mCompleted.get() - completed;
+        failures = mFailures.get() - failures;
+        String latency = mLatency.summary();
+        mStopped = true;
+
+        // let the rounds in flight finish, so a future that never completes
+        // shows as such
+        long deadline = System.currentTimeMillis() + DRAIN_MS;
+        while ((mActive.get() > 0) && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+        System.out.println(String.format(
+                "%d flows: %d completed, %.0f flows/s, %d failed, "
+                        + "%d unfinished, %d threads at most",
+                flows, completed, completed / elapsed, failures,
+                mActive.get(),
+                ManagementFactory.getThreadMXBean().getPeakThreadCount()));
+        System.out.println("flow " + latency);
+    }
+
+    /**
+     * Runs one REGISTER then OPTIONS round of a flow, and the next round
+     * when it completes.
+     */
+    private void flow(final SipURI profile, final CallIdHeader callIdHeader) {
+        if (mStopped) {
+            mActive.decrementAndGet();
+            return;
+        }
+        final long start = System.nanoTime();
+        final String tag = mSipHelper.getIdentifiers().newTag();
+        mSipHelper.sendRegisterAsync(profile, tag, 3600, callIdHeader, null)
+                .thenCompose(new Function<ResponseEvent,
+                        CompletableFuture<ResponseEvent>>() {
+                    @Override
+                    public CompletableFuture<ResponseEvent> apply(
+                            ResponseEvent response) {
+                        return mSipHelper.sendOptionsAsync(profile, profile,
+                                tag, callIdHeader, null);
+                    }
+                })
+                .whenComplete(new BiConsumer<ResponseEvent, Throwable>() {
+                    @Override
+                    public void accept(ResponseEvent response, Throwable e) {
+                        if (e == null) {
+                            mCompleted.incrementAndGet();
+                            mLatency.recordNanos(System.nanoTime() - start);
+                            flow(profile, callIdHeader);
+                            return;
+                        }
+                        // a send may fail right away; back off instead of
+                        // recursing
+                        mFailures.incrementAndGet();
+                        mSendExecutor.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                flow(profile, callIdHeader);
+                            }
+                        }, RETRY_MS, TimeUnit.MILLISECONDS);
+                    }
+                });
+    }
+
+    @Override
+    public void processRequest(RequestEvent requestEvent) {
+    }
+
+    @Override
+    public void processResponse(ResponseEvent responseEvent) {
+        mSipHelper.getConnectionCoalescer().onResponse(responseEvent);
+        mSipHelper.getResponseFutures().onResponse(responseEvent);
+    }
+
+    @Override
+    public void processTimeout(TimeoutEvent timeoutEvent) {
+        mSipHelper.getConnectionCoalescer().onTimeout(timeoutEvent);
+        mSipHelper.getResponseFutures().onTimeout(timeoutEvent);
+    }
+
+    @Override
+    public void processIOException(IOExceptionEvent ioExceptionEvent) {
+        mSipHelper.getConnectionCoalescer().onIOException(ioExceptionEvent);
+        mSipHelper.getResponseFutures().onIOException(ioExceptionEvent);
+    }
+
+    @Override
+    public void processTransactionTerminated(
+            TransactionTerminatedEvent transactionTerminatedEvent) {
+        mSipHelper.getResponseFutures()
+                .onTransactionTerminated(transactionTerminatedEvent);
+    }
+
+    @Override
+    public void processDialogTerminated(
+            DialogTerminatedEvent dialogTerminatedEvent) {
+    }
+}
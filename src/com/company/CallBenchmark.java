@@ -0,0 +1,257 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+
+import javax.sip.*;
+import javax.sip.address.SipURI;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives full calls between two CallEngines in this process, each on its
+ * own stack: the caller keeps a fixed number of calls up, the callee rings
+ * and answers every call at once, and the caller hangs up after the hold
+ * time and places the next call right away. Reports completed calls per
+ * second and setup latency. Before that it sets up the same number of
+ * calls and holds them with no churn, reporting the heap each established
+ * call holds.
+ *
+ * <p>Usage: CallBenchmark [concurrent-calls] [hold-millis] [seconds]
+ * [transport]
+ */
+public class CallBenchmark {
+    private static final int CALLER_PORT = 18000;
+    private static final int CALLEE_PORT = 18001;
+    private static final long WARMUP_MS = 5000;
+    // how long the held calls may take to establish, and to end
+    private static final long SETTLE_MS = 30000;
+
+    private final long mHoldMillis;
+    private final HashedTimerWheel mWheel = new HashedTimerWheel(10, 1024);
+    private final ScheduledExecutorService mExecutor =
+            Executors.newScheduledThreadPool(2);
+    private final LatencyHistogram mSetup = new LatencyHistogram();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final Queue<CallEngine.Call> mHeld =
+            new ConcurrentLinkedQueue<CallEngine.Call>();
+    // whether calls are hung up after the hold time and replaced
+    private volatile boolean mChurn;
+    private SipHelper mCallerHelper;
+    private CallEngine mCaller;
+    private CallEngine mCallee;
+    private SipURI mCallerProfile;
+    private SipURI mCalleeProfile;
+    private SessionDescription mAnswer;
+
+    private CallBenchmark(long holdMillis) {
+        mHoldMillis = holdMillis;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int concurrent = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        long hold = (args.length > 1) ? Long.parseLong(args[1]) : 1000;
+        long seconds = (args.length > 2) ? Long.parseLong(args[2]) : 30;
+        String transport = (args.length > 3) ? args[3] : ListeningPoint.UDP;
+        new CallBenchmark(hold).run(concurrent, seconds, transport);
+        System.exit(0);
+    }
+
+    private void run(int concurrent, long seconds, String transport)
+            throws Exception {
+        byte[] sdp = Harness.SDP.getBytes(StandardCharsets.US_ASCII);
+        SessionDescription offer = SessionDescription.parse(sdp, 0, sdp.length);
+        mAnswer = offer.copy();
+
+        mCallerProfile = createProfile("caller", CALLER_PORT, transport);
+        mCalleeProfile = createProfile("callee", CALLEE_PORT, transport);
+
+        final SipProvider callee = Harness.createProvider(
+                "im.dlg.sip.calls.callee", CALLEE_PORT, transport);
+        SipHelper calleeHelper = new SipHelper(callee.getSipStack(), callee);
+        mCallee = new CallEngine(calleeHelper, mWheel, mExecutor, 0, 0, null,
+                new Listener() {
+                    @Override
+                    public void onIncomingCall(CallEngine.Call call) {
+                        try {
+                            mCallee.ring(call);
+                            mCallee.answer(call, mAnswer);
+                        } catch (SipException e) {
+                            mFailures.incrementAndGet();
+                        }
+                    }
+                });
+        callee.addSipListener(new Dispatcher(mCallee));
+
+        final SipProvider caller = Harness.createProvider(
+                "im.dlg.sip.calls.caller", CALLER_PORT, transport);
+        mCallerHelper = new SipHelper(caller.getSipStack(), caller);
+        mCallerHelper.setOfferTemplate(mCallerProfile, offer);
+        mCaller = new CallEngine(mCallerHelper, mWheel, mExecutor, 0, 0, null,
+                new Listener() {
+                    @Override
+                    public void onEstablished(final CallEngine.Call call) {
+                        mSetup.recordNanos(System.nanoTime()
+                                - (Long) call.getAttachment());
+                        if (!mChurn) {
+                            mHeld.add(call);
+                            return;
+                        }
+                        mWheel.schedule(new Runnable() {
+                            @Override
+                            public void run() {
+                                mCaller.hangup(call);
+                            }
+                        }, mHoldMillis, TimeUnit.MILLISECONDS, mExecutor);
+                    }
+
+                    @Override
+                    public void onEnded(CallEngine.Call call, int reason) {
+                        if (reason == CallEngine.END_HANGUP) {
+                            mCompleted.incrementAndGet();
+                        } else {
+                            mFailures.incrementAndGet();
+                        }
+                        if (mChurn) place();
+                    }
+                });
+        caller.addSipListener(new Dispatcher(mCaller));
+        hold(concurrent);
+
+        mChurn = true;
+        for (int i = 0; i < concurrent; i++) place();
+        Thread.sleep(WARMUP_MS);
+        mSetup.reset();
+        long start = System.nanoTime();
+        long completed = mCompleted.get();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        completed = mCompleted.get() - completed;
+        double rate = completed * 1e9 / (System.nanoTime() - start);
+
+        System.out.println(String.format(
+                "%d concurrent, hold %d ms: %.0f calls/s, %d failed",
+                concurrent, mHoldMillis, rate, mFailures.get()));
+        System.out.println("setup " + mSetup.summary());
+    }
+
+    /**
+     * Sets up calls and keeps them up, with nothing else in flight, and
+     * reports the heap they hold on both sides; then hangs them all up.
+     */
+    private void hold(int calls) throws Exception {
+        // the stacks' own footprint is not part of the per-call cost
+        long heap = Harness.usedHeap();
+        for (int i = 0; i < calls; i++) place();
+        long deadline = System.currentTimeMillis() + SETTLE_MS;
+        while ((mCaller.getEstablishedCount() + mFailures.get() < calls)
+                && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+        // the INVITE transactions of the last calls complete
+        Thread.sleep(WARMUP_MS);
+        long established = mCaller.getEstablishedCount();
+        long held = Harness.usedHeap() - heap;
+        System.out.println(String.format(
+                "%d held calls, %.0f bytes heap each (both sides)", established,
+                (established > 0) ? (double) held / established : 0));
+
+        for (CallEngine.Call call : mHeld) mCaller.hangup(call);
+        mHeld.clear();
+        deadline = System.currentTimeMillis() + SETTLE_MS;
+        while ((mCaller.getActiveCount() + mCallee.getActiveCount() > 0)
+                && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+        mSetup.reset();
+        mFailures.set(0);
+    }
+
+    private void place() {
+        SessionDescription offer = mCallerHelper.newOffer(mCallerProfile);
+        long start = System.nanoTime();
+        try {
+            mCaller.call(mCallerProfile, mCalleeProfile, offer)
+                    .setAttachment(start);
+        } catch (SipException e) {
+            mFailures.incrementAndGet();
+        }
+    }
+
+    private static SipURI createProfile(String user, int port,
+            String transport) throws Exception {
+        SipURI profile = new SipUri();
+        profile.setUser(user);
+        profile.setHost(Harness.HOST);
+        profile.setPort(port);
+        profile.setTransportParam(transport.toLowerCase());
+        return profile;
+    }
+
+    /**
+     * Ignores the call events a side has no use for.
+     */
+    private static class Listener implements CallEngine.Listener {
+        @Override
+        public void onIncomingCall(CallEngine.Call call) {
+        }
+
+        @Override
+        public void onRinging(CallEngine.Call call) {
+        }
+
+        @Override
+        public void onEstablished(CallEngine.Call call) {
+        }
+
+        @Override
+        public void onEnded(CallEngine.Call call, int reason) {
+        }
+    }
+
+    /**
+     * Feeds the events of one provider into its engine.
+     */
+    private static class Dispatcher implements SipListener {
+        private final CallEngine mEngine;
+
+        private Dispatcher(CallEngine engine) {
+            mEngine = engine;
+        }
+
+        @Override
+        public void processRequest(RequestEvent requestEvent) {
+            mEngine.processRequest(requestEvent);
+        }
+
+        @Override
+        public void processResponse(ResponseEvent responseEvent) {
+            mEngine.processResponse(responseEvent);
+        }
+
+        @Override
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+            mEngine.processTimeout(timeoutEvent);
+        }
+
+        @Override
+        public void processIOException(IOExceptionEvent ioExceptionEvent) {
+        }
+
+        @Override
+        public void processTransactionTerminated(
+                TransactionTerminatedEvent transactionTerminatedEvent) {
+            mEngine.processTransactionTerminated(transactionTerminatedEvent);
+        }
+
+        @Override
+        public void processDialogTerminated(
+                DialogTerminatedEvent dialogTerminatedEvent) {
+            mEngine.processDialogTerminated(dialogTerminatedEvent);
+        }
+    }
+}
@@ -0,0 +1,894 @@
+package com.company;
+
+import gov.nist.javax.sip.clientauthutils.AccountManager;
+import gov.nist.javax.sip.stack.SIPTransaction;
+
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipException;
+import javax.sip.TimeoutEvent;
+import javax.sip.Transaction;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.SipURI;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.text.ParseException;
+import java.util.EventObject;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Event-driven call engine for both ends of a call: it sequences SipHelper's
+ * INVITE, 180, 200, ACK and BYE primitives, CANCEL and 487 included, from
+ * the listener events of the provider. No thread is held per call; a call
+ * is one small state object that lives as long as its dialog, and its
+ * timers are timeouts on a shared timer wheel.
+ *
+ * <p>Outgoing calls are cancelled when they ring for longer than the ring
+ * timeout; incoming calls the application does not answer in that time are
+ * rejected. With a session interval set, the caller refreshes established
+ * calls with a re-INVITE every half interval and the callee hangs up calls
+ * that go a whole interval without one, so a call whose peer vanished does
+ * not stay up forever. Re-INVITEs and UPDATEs from the peer are answered
+ * with the session as it is and count as refreshes too.
+ *
+ * <p>The SipListener of the provider must feed requests, responses,
+ * timeouts, transaction and dialog terminations into this engine, and must
+ * not deliver events of one Call-ID concurrently. Application calls may come
+ * from any thread. Listener callbacks run on the event or timer threads,
+ * outside of the call's lock.
+ */
+public class CallEngine {
+    private static final String TAG = CallEngine.class.getSimpleName();
+    private static final boolean DBG = false;
+
+    // 64*T1: how long a UAS waits for the ACK of its 200
+    private static final long ACK_TIMEOUT_MS = 64 * 500;
+
+    public static final int STATE_CALLING = 0;
+    public static final int STATE_INCOMING = 1;
+    public static final int STATE_RINGING = 2;
+    public static final int STATE_CONFIRMING = 3;
+    public static final int STATE_ESTABLISHED = 4;
+    public static final int STATE_CANCELLING = 5;
+    public static final int STATE_TERMINATING = 6;
+    public static final int STATE_TERMINATED = 7;
+
+    public static final int END_HANGUP = 0;
+    public static final int END_REMOTE_HANGUP = 1;
+    public static final int END_CANCELLED = 2;
+    public static final int END_REJECTED = 3;
+    public static final int END_NO_ANSWER = 4;
+    public static final int END_TIMEOUT = 5;
+    public static final int END_SESSION_EXPIRED = 6;
+    public static final int END_ERROR = 7;
+
+    private static final int EVENT_NONE = 0;
+    private static final int EVENT_INCOMING = 1;
+    private static final int EVENT_RINGING = 2;
+    private static final int EVENT_ESTABLISHED = 3;
+    private static final int EVENT_ENDED = 4;
+
+    private static final int TIMER_RING = 0;
+    private static final int TIMER_ACK = 1;
+    private static final int TIMER_REFRESH = 2;
+    private static final int TIMER_SESSION = 3;
+
+    /**
+     * Receives call progress. Callbacks may call back into the engine.
+     */
+    public interface Listener {
+        /**
+         * A new incoming call, to be rung, answered or rejected now or
+         * later.
+         */
+        void onIncomingCall(Call call);
+
+        void onRinging(Call call);
+
+        void onEstablished(Call call);
+
+        /**
+         * @param reason one of the END_ constants
+         */
+        void onEnded(Call call, int reason);
+    }
+
+    private final SipHelper mSipHelper;
+    private final HashedTimerWheel mWheel;
+    private final ScheduledExecutorService mExecutor;
+    private final long mRingTimeoutMillis;
+    private final long mSessionIntervalMillis;
+    private final AccountManager mAccountManager;
+    private final Listener mListener;
+    private final CorrelationIndex<Call> mIndex;
+
+    private final AtomicLong mOutgoing = new AtomicLong();
+    private final AtomicLong mIncoming = new AtomicLong();
+    private final AtomicLong mEstablished = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mCancelled = new AtomicLong();
+
+    /**
+     * @param wheel holds the ring, ACK and session timers
+     * @param executor runs timer actions and expires stale index entries
+     * @param ringTimeoutMillis how long a call may ring unanswered
+     * @param sessionIntervalMillis how often established calls are
+     *      refreshed, 0 for never
+     * @param accountManager answers 401 and 407 challenges, or null
+     */
+    public CallEngine(SipHelper sipHelper, HashedTimerWheel wheel,
+            ScheduledExecutorService executor, long ringTimeoutMillis,
+            long sessionIntervalMillis, AccountManager accountManager,
+            Listener listener) {
+        mSipHelper = sipHelper;
+        mWheel = wheel;
+        mExecutor = executor;
+        mRingTimeoutMillis = ringTimeoutMillis;
+        mSessionIntervalMillis = sessionIntervalMillis;
+        mAccountManager = accountManager;
+        mListener = listener;
+        // calls are removed when they end; the TTL only catches what was
+        // never cleaned up, and refreshes keep long calls alive
+        mIndex = new CorrelationIndex<Call>((sessionIntervalMillis > 0)
+                ? 4 * sessionIntervalMillis : TimeUnit.HOURS.toMillis(12),
+                ACK_TIMEOUT_MS);
+        mIndex.scheduleExpiry(executor, ACK_TIMEOUT_MS);
+    }
+
+    /**
+     * Places a call.
+     */
+    public Call call(SipURI caller, SipURI callee, SessionDescription offer)
+            throws SipException {
+        CallIdHeader callIdHeader = mSipHelper.newCallIdHeader();
+        Call call = new Call(callIdHeader.getCallId(), false, caller);
+        call.mLocalSdp = offer;
+        call.mSending = true;
+        mIndex.put(call.mCallId, call);
+        synchronized (call) {
+            schedule(call, TIMER_RING, mRingTimeoutMillis);
+        }
+        // the send may wait for a connect; events that beat it take the
+        // INVITE from their transaction, see isInvite()
+        ClientTransaction invite;
+        try {
+            invite = mSipHelper.sendInvite(caller, callee, offer,
+                    mSipHelper.getIdentifiers().newTag(), null, null,
+                    callIdHeader);
+        } catch (SipException e) {
+            synchronized (call) {
+                if (call.mState != STATE_TERMINATED) end(call, END_ERROR);
+            }
+            throw e;
+        }
+        synchronized (call) {
+            if (call.mSending) {
+                call.mSending = false;
+                if (call.mState != STATE_TERMINATED) {
+                    call.mInvite = invite;
+                    call.mDialog = invite.getDialog();
+                    mIndex.addTransaction(invite);
+                }
+            }
+        }
+        mOutgoing.incrementAndGet();
+        if (DBG) log("call " + call.mCallId + " to " + callee);
+        return call;
+    }
+
+    /**
+     * Sends 180 Ringing for an incoming call.
+     */
+    public void ring(Call call) throws SipException {
+        synchronized (call) {
+            if (call.mState != STATE_INCOMING) return;
+            mSipHelper.sendRinging(call.mRequestEvent, call.mServerTransaction,
+                    call.mTag);
+            call.mState = STATE_RINGING;
+        }
+    }
+
+    /**
+     * Accepts an incoming call with the given answer.
+     */
+    public void answer(Call call, SessionDescription answer)
+            throws SipException {
+        SipException failure = null;
+        synchronized (call) {
+            if ((call.mState != STATE_INCOMING)
+                    && (call.mState != STATE_RINGING)) {
+                return;
+            }
+            try {
+                mSipHelper.sendInviteOk(call.mRequestEvent, call.mLocalProfile,
+                        answer, call.mServerTransaction);
+                call.mLocalSdp = answer;
+                call.mDialog = call.mServerTransaction.getDialog();
+                // only the INVITE of an unanswered call needs to be kept
+                call.mRequestEvent = null;
+                call.mState = STATE_CONFIRMING;
+                // Timer H of the INVITE transaction, RFC 3261 section 17.2.1
+                schedule(call, TIMER_ACK,
+                        64L * getT1(call.mServerTransaction));
+            } catch (SipException e) {
+                failure = e;
+                end(call, END_ERROR);
+            }
+        }
+        if (failure != null) {
+            notify(call, EVENT_ENDED);
+            throw failure;
+        }
+    }
+
+    /**
+     * Rejects an incoming call with 486 Busy Here.
+     */
+    public void reject(Call call) throws SipException {
+        SipException failure = null;
+        synchronized (call) {
+            if ((call.mState != STATE_INCOMING)
+                    && (call.mState != STATE_RINGING)) {
+                return;
+            }
+            call.mStatus = Response.BUSY_HERE;
+            try {
+                mSipHelper.sendInviteBusyHere(call.mRequestEvent,
+                        call.mServerTransaction);
+            } catch (SipException e) {
+                failure = e;
+            }
+            end(call, END_REJECTED);
+        }
+        notify(call, EVENT_ENDED);
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Ends a call in whatever state it is: cancels or rejects it while it
+     * rings and sends BYE once it is answered.
+     */
+    public void hangup(Call call) {
+        int event = EVENT_NONE;
+        synchronized (call) {
+            switch (call.mState) {
+                case STATE_CALLING:
+                case STATE_RINGING:
+                    if (call.mIncoming) {
+                        event = decline(call, END_HANGUP);
+                    } else {
+                        cancel(call, END_HANGUP);
+                    }
+                    break;
+                case STATE_INCOMING:
+                    event = decline(call, END_HANGUP);
+                    break;
+                case STATE_CONFIRMING:
+                case STATE_ESTABLISHED:
+                    event = bye(call, END_HANGUP);
+                    break;
+                default:
+                    break;
+            }
+        }
+        notify(call, event);
+    }
+
+    /**
+     * @return true if the request belonged to a call of this engine
+     */
+    public boolean processRequest(RequestEvent requestEvent) {
+        Request request = requestEvent.getRequest();
+        String method = request.getMethod();
+        Call call = mIndex.get(SipHelper.getCallId(requestEvent));
+        if (call == null) {
+            if (!Request.INVITE.equals(method)
+                    || (((ToHeader) request.getHeader(ToHeader.NAME))
+                            .getTag() != null)) {
+                return false;
+            }
+            return incoming(requestEvent);
+        }
+
+        int event = EVENT_NONE;
+        synchronized (call) {
+            try {
+                if (Request.INVITE.equals(method)
+                        || Request.UPDATE.equals(method)) {
+                    // a session refresh or a re-INVITE from the peer,
+                    // answered with the session as it is
+                    if (call.mState == STATE_ESTABLISHED) {
+                        ServerTransaction transaction =
+                                mSipHelper.getServerTransaction(requestEvent);
+                        // keeps the call in the index for as long as
+                        // either end refreshes it
+                        mIndex.addTransaction(transaction);
+                        if (Request.INVITE.equals(method)
+                                || (request.getRawContent() != null)) {
+                            mSipHelper.sendInviteOk(requestEvent,
+                                    call.mLocalProfile, call.mLocalSdp,
+                                    transaction);
+                        } else {
+                            // an UPDATE without an offer, RFC 4028
+                            mSipHelper.sendResponse(requestEvent, transaction,
+                                    Response.OK);
+                        }
+                        if (call.mIncoming) {
+                            schedule(call, TIMER_SESSION,
+                                    mSessionIntervalMillis);
+                        }
+                    } else if (Request.UPDATE.equals(method)) {
+                        mSipHelper.sendResponse(requestEvent,
+                                Response.REQUEST_PENDING);
+                    }
+                } else if (Request.ACK.equals(method)) {
+                    if (call.mState == STATE_CONFIRMING) {
+                        call.mState = STATE_ESTABLISHED;
+                        mEstablished.incrementAndGet();
+                        schedule(call, TIMER_SESSION, mSessionIntervalMillis);
+                        event = EVENT_ESTABLISHED;
+                    }
+                } else if (Request.BYE.equals(method)) {
+                    mSipHelper.sendResponse(requestEvent, Response.OK);
+                    if (call.mState != STATE_TERMINATED) {
+                        event = end(call, END_REMOTE_HANGUP);
+                    }
+                } else if (Request.CANCEL.equals(method)) {
+                    mSipHelper.sendResponse(requestEvent, Response.OK);
+                    if (call.mIncoming && ((call.mState == STATE_INCOMING)
+                            || (call.mState == STATE_RINGING))) {
+                        mSipHelper.sendInviteRequestTerminated(
+                                call.mRequestEvent.getRequest(),
+                                call.mServerTransaction);
+                        event = end(call, END_CANCELLED);
+                    }
+                } else {
+                    return false;
+                }
+            } catch (SipException e) {
+                if (DBG) log(method + " of " + call.mCallId + ": " + e);
+            }
+        }
+        notify(call, event);
+        return true;
+    }
+
+    /**
+     * @return true if the response belonged to a call of this engine
+     */
+    public boolean processResponse(ResponseEvent responseEvent) {
+        Call call = mIndex.get(responseEvent);
+        if (call == null) return false;
+        Response response = responseEvent.getResponse();
+        String method = ((CSeqHeader) response.getHeader(CSeqHeader.NAME))
+                .getMethod();
+        int status = response.getStatusCode();
+
+        int event = EVENT_NONE;
+        synchronized (call) {
+            if (Request.INVITE.equals(method)) {
+                event = processInviteResponse(call, responseEvent, status);
+            } else if (Request.BYE.equals(method)) {
+                if ((status >= 200) && (call.mState == STATE_TERMINATING)) {
+                    event = end(call, call.mEndReason);
+                }
+            }
+        }
+        notify(call, event);
+        return true;
+    }
+
+    /**
+     * @return true if the timeout belonged to a call of this engine
+     */
+    public boolean processTimeout(TimeoutEvent timeoutEvent) {
+        if (timeoutEvent.isServerTransaction()) {
+            return mIndex.get(timeoutEvent) != null;
+        }
+        Call call = mIndex.get(timeoutEvent);
+        if (call == null) return false;
+        int event;
+        synchronized (call) {
+            event = abort(call, timeoutEvent.getClientTransaction(),
+                    END_TIMEOUT);
+        }
+        notify(call, event);
+        return true;
+    }
+
+    /**
+     * Ends calls whose INVITE or BYE transaction terminated without a final
+     * response, e.g. after a transport error.
+     */
+    public void processTransactionTerminated(
+            TransactionTerminatedEvent transactionTerminatedEvent) {
+        if (!transactionTerminatedEvent.isServerTransaction()) {
+            Call call = mIndex.get(transactionTerminatedEvent);
+            if (call != null) {
+                int event;
+                synchronized (call) {
+                    event = abort(call,
+                            transactionTerminatedEvent.getClientTransaction(),
+                            END_ERROR);
+                }
+                notify(call, event);
+            }
+        }
+        mIndex.onTransactionTerminated(transactionTerminatedEvent);
+    }
+
+    /**
+     * Ends calls whose dialog the stack gave up on.
+     */
+    public void processDialogTerminated(
+            DialogTerminatedEvent dialogTerminatedEvent) {
+        Call call = mIndex.get(SipHelper.getCallId(dialogTerminatedEvent));
+        if (call == null) return;
+        int event = EVENT_NONE;
+        synchronized (call) {
+            // an early dialog replaced by a challenged INVITE is not the end
+            if ((dialogTerminatedEvent.getDialog() == call.mDialog)
+                    && (call.mState != STATE_TERMINATED)) {
+                int reason = END_ERROR;
+                if (call.mState == STATE_TERMINATING) {
+                    reason = call.mEndReason;
+                } else if (call.mState == STATE_CONFIRMING) {
+                    // the stack gives up on the 200 at Timer H as well
+                    reason = END_TIMEOUT;
+                }
+                event = end(call, reason);
+            }
+        }
+        notify(call, event);
+    }
+
+    /**
+     * Returns the call an event belongs to, or null.
+     */
+    public Call getCall(EventObject event) {
+        return mIndex.get(event);
+    }
+
+    public int getActiveCount() {
+        return mIndex.getSessionCount();
+    }
+
+    public long getOutgoingCount() {
+        return mOutgoing.get();
+    }
+
+    public long getIncomingCount() {
+        return mIncoming.get();
+    }
+
+    public long getEstablishedCount() {
+        return mEstablished.get();
+    }
+
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    public long getCancelledCount() {
+        return mCancelled.get();
+    }
+
+    private boolean incoming(RequestEvent requestEvent) {
+        Request request = requestEvent.getRequest();
+        if (!(request.getRequestURI() instanceof SipURI)) return false;
+        ServerTransaction transaction;
+        try {
+            transaction = mSipHelper.getServerTransaction(requestEvent);
+        } catch (SipException e) {
+            // a retransmission racing its original
+            return true;
+        }
+        Call call = new Call(SipHelper.getCallId(requestEvent), true,
+                (SipURI) request.getRequestURI());
+        call.mState = STATE_INCOMING;
+        call.mRequestEvent = requestEvent;
+        call.mServerTransaction = transaction;
+        call.mDialog = transaction.getDialog();
+        call.mTag = mSipHelper.getIdentifiers().newTag();
+        call.mRemoteContent = request.getRawContent();
+        mIndex.put(call.mCallId, call);
+        mIndex.addTransaction(transaction);
+        mIncoming.incrementAndGet();
+        synchronized (call) {
+            schedule(call, TIMER_RING, mRingTimeoutMillis);
+        }
+        notify(call, EVENT_INCOMING);
+        return true;
+    }
+
+    // all of the following must hold the call's lock
+
+    private int processInviteResponse(Call call, ResponseEvent responseEvent,
+            int status) {
+        ClientTransaction transaction = responseEvent.getClientTransaction();
+        boolean invite = isInvite(call, transaction);
+        if (status < 200) {
+            if (!invite) return EVENT_NONE;
+            call.mProvisional = true;
+            if (call.mState == STATE_CANCELLING) {
+                // deferred until now, RFC 3261 section 9.1
+                sendCancel(call);
+            } else if ((call.mState == STATE_CALLING)
+                    && ((status == Response.RINGING)
+                            || (status == Response.SESSION_PROGRESS))) {
+                call.mState = STATE_RINGING;
+                return EVENT_RINGING;
+            }
+            return EVENT_NONE;
+        }
+
+        if (status / 100 == 2) {
+            Dialog dialog = responseEvent.getDialog();
+            if (dialog == null) dialog = call.mDialog;
+            try {
+                // retransmitted 200s are acknowledged again
+                mSipHelper.sendInviteAck(responseEvent, dialog);
+            } catch (SipException e) {
+                if (DBG) log("ACK of " + call.mCallId + ": " + e);
+            }
+            if (!invite) return EVENT_NONE;
+            call.mInvite = null;
+            switch (call.mState) {
+                case STATE_CALLING:
+                case STATE_RINGING:
+                    call.mDialog = dialog;
+                    call.mStatus = status;
+                    call.mRemoteContent = responseEvent.getResponse()
+                            .getRawContent();
+                    call.mState = STATE_ESTABLISHED;
+                    mEstablished.incrementAndGet();
+                    schedule(call, TIMER_REFRESH, mSessionIntervalMillis / 2);
+                    return EVENT_ESTABLISHED;
+                case STATE_ESTABLISHED:
+                    // a session refresh went through
+                    schedule(call, TIMER_REFRESH, mSessionIntervalMillis / 2);
+                    return EVENT_NONE;
+                case STATE_CANCELLING:
+                    // the 200 crossed our CANCEL
+                    call.mDialog = dialog;
+                    return bye(call, call.mEndReason);
+                default:
+                    return EVENT_NONE;
+            }
+        }
+
+        if (!invite) return EVENT_NONE;
+        call.mInvite = null;
+        if (call.mState == STATE_ESTABLISHED) {
+            // RFC 4028 section 10: only these say the session is gone
+            if ((status == Response.CALL_OR_TRANSACTION_DOES_NOT_EXIST)
+                    || (status == Response.REQUEST_TIMEOUT)) {
+                return bye(call, END_SESSION_EXPIRED);
+            }
+            schedule(call, TIMER_REFRESH, mSessionIntervalMillis / 2);
+            return EVENT_NONE;
+        }
+        if (((status == Response.UNAUTHORIZED)
+                || (status == Response.PROXY_AUTHENTICATION_REQUIRED))
+                && (mAccountManager != null) && !call.mChallenged
+                && (call.mState != STATE_CANCELLING)) {
+            call.mChallenged = true;
+            try {
+                call.mInvite = mSipHelper.handleChallenge(responseEvent,
+                        mAccountManager);
+                call.mDialog = call.mInvite.getDialog();
+                call.mProvisional = false;
+                mIndex.addTransaction(call.mInvite);
+                return EVENT_NONE;
+            } catch (SipException e) {
+                return end(call, END_ERROR);
+            }
+        }
+        call.mStatus = status;
+        if (call.mState == STATE_CANCELLING) {
+            return end(call, call.mEndReason);
+        }
+        return end(call, END_REJECTED);
+    }
+
+    private int abort(Call call, ClientTransaction transaction, int reason) {
+        if ((transaction == null) || (call.mState == STATE_TERMINATED)) {
+            return EVENT_NONE;
+        }
+        if (transaction == call.mBye) {
+            return end(call, call.mEndReason);
+        }
+        if (!isInvite(call, transaction)) return EVENT_NONE;
+        call.mInvite = null;
+        switch (call.mState) {
+            case STATE_ESTABLISHED:
+                return bye(call, END_SESSION_EXPIRED);
+            case STATE_CANCELLING:
+                return end(call, call.mEndReason);
+            default:
+                return end(call, reason);
+        }
+    }
+
+    /**
+     * Tells whether a transaction is the INVITE awaiting its final response.
+     * The initial INVITE is sent outside the call's lock, so its events may
+     * come before sendInvite() returned; the INVITE is then taken from them.
+     */
+    private boolean isInvite(Call call, ClientTransaction transaction) {
+        if (transaction == null) return false;
+        if (call.mSending && (call.mInvite == null) && Request.INVITE.equals(
+                transaction.getRequest().getMethod())) {
+            call.mSending = false;
+            call.mInvite = transaction;
+            call.mDialog = transaction.getDialog();
+            mIndex.addTransaction(transaction);
+        }
+        return transaction == call.mInvite;
+    }
+
+    private void cancel(Call call, int reason) {
+        call.mEndReason = reason;
+        call.mState = STATE_CANCELLING;
+        cancelTimer(call);
+        if (call.mProvisional) sendCancel(call);
+    }
+
+    private void sendCancel(Call call) {
+        if (call.mInvite == null) return;
+        try {
+            mSipHelper.sendCancel(call.mInvite);
+        } catch (SipException e) {
+            // the INVITE transaction still ends with a timeout
+            if (DBG) log("CANCEL of " + call.mCallId + ": " + e);
+        }
+    }
+
+    private int decline(Call call, int reason) {
+        call.mStatus = Response.BUSY_HERE;
+        try {
+            mSipHelper.sendInviteBusyHere(call.mRequestEvent,
+                    call.mServerTransaction);
+        } catch (SipException e) {
+            if (DBG) log("486 of " + call.mCallId + ": " + e);
+        }
+        return end(call, reason);
+    }
+
+    private int bye(Call call, int reason) {
+        call.mEndReason = reason;
+        cancelTimer(call);
+        try {
+            call.mBye = mSipHelper.sendBye(call.mDialog);
+            mIndex.addTransaction(call.mBye);
+            call.mState = STATE_TERMINATING;
+            return EVENT_NONE;
+        } catch (SipException e) {
+            return end(call, reason);
+        }
+    }
+
+    /**
+     * Returns the T1 a transaction runs on. The NIST stack keeps it apart
+     * from getRetransmitTimer(), which always answers the default.
+     */
+    private static int getT1(Transaction transaction) {
+        if (transaction instanceof SIPTransaction) {
+            return ((SIPTransaction) transaction).getBaseTimerInterval();
+        }
+        return transaction.getRetransmitTimer();
+    }
+
+    private int end(Call call, int reason) {
+        call.mState = STATE_TERMINATED;
+        call.mEndReason = reason;
+        cancelTimer(call);
+        call.mRequestEvent = null;
+        call.mInvite = null;
+        mIndex.remove(call.mCallId);
+        if (reason == END_CANCELLED) {
+            mCancelled.incrementAndGet();
+        } else if (reason >= END_REJECTED) {
+            mFailures.incrementAndGet();
+        }
+        return EVENT_ENDED;
+    }
+
+    private void schedule(final Call call, final int timer, long delayMillis) {
+        cancelTimer(call);
+        if (delayMillis <= 0) return;
+        final int generation = ++call.mTimerGeneration;
+        call.mTimer = mWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                onTimer(call, timer, generation);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS, mExecutor);
+    }
+
+    private void cancelTimer(Call call) {
+        if (call.mTimer != null) {
+            call.mTimer.cancel();
+            call.mTimer = null;
+        }
+    }
+
+    private void onTimer(Call call, int timer, int generation) {
+        int event = EVENT_NONE;
+        synchronized (call) {
+            // a timer that lost the race against its own cancellation
+            if (generation != call.mTimerGeneration) return;
+            call.mTimer = null;
+            switch (timer) {
+                case TIMER_RING:
+                    if (call.mIncoming) {
+                        if ((call.mState == STATE_INCOMING)
+                                || (call.mState == STATE_RINGING)) {
+                            event = decline(call, END_NO_ANSWER);
+                        }
+                    } else if ((call.mState == STATE_CALLING)
+                            || (call.mState == STATE_RINGING)) {
+                        cancel(call, END_NO_ANSWER);
+                    }
+                    break;
+                case TIMER_ACK:
+                    if (call.mState == STATE_CONFIRMING) {
+                        event = bye(call, END_TIMEOUT);
+                    }
+                    break;
+                case TIMER_REFRESH:
+                    if ((call.mState == STATE_ESTABLISHED)
+                            && (call.mInvite == null)) {
+                        refresh(call);
+                    }
+                    break;
+                case TIMER_SESSION:
+                    if (call.mState == STATE_ESTABLISHED) {
+                        event = bye(call, END_SESSION_EXPIRED);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        notify(call, event);
+    }
+
+    private void refresh(Call call) {
+        try {
+            call.mInvite = mSipHelper.sendReinvite(call.mDialog,
+                    call.mLocalSdp);
+            mIndex.addTransaction(call.mInvite);
+        } catch (SipException e) {
+            // try again next interval; the peer ends the call if it expires
+            schedule(call, TIMER_REFRESH, mSessionIntervalMillis / 2);
+        }
+    }
+
+    private void notify(Call call, int event) {
+        switch (event) {
+            case EVENT_INCOMING:
+                mListener.onIncomingCall(call);
+                break;
+            case EVENT_RINGING:
+                mListener.onRinging(call);
+                break;
+            case EVENT_ESTABLISHED:
+                mListener.onEstablished(call);
+                break;
+            case EVENT_ENDED:
+                mListener.onEnded(call, call.mEndReason);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void log(String s) {
+
+    }
+
+    /**
+     * State of one call, kept from its INVITE until it ends. Requests and
+     * transactions are only held while they can still be answered.
+     */
+    public static final class Call {
+        private final String mCallId;
+        private final boolean mIncoming;
+        private final SipURI mLocalProfile;
+        private volatile Object mAttachment;
+
+        // guarded by this
+        private volatile int mState = STATE_CALLING;
+        private int mStatus;
+        private int mEndReason;
+        private Dialog mDialog;
+        // outgoing: the INVITE awaiting its final response
+        private ClientTransaction mInvite;
+        // outgoing: the initial INVITE is being sent
+        private boolean mSending;
+        private ClientTransaction mBye;
+        // incoming: the INVITE until it is answered
+        private RequestEvent mRequestEvent;
+        private ServerTransaction mServerTransaction;
+        private String mTag;
+        private boolean mProvisional;
+        private boolean mChallenged;
+        private SessionDescription mLocalSdp;
+        private byte[] mRemoteContent;
+        private HashedTimerWheel.Timeout mTimer;
+        private int mTimerGeneration;
+
+        private Call(String callId, boolean incoming, SipURI localProfile) {
+            mCallId = callId;
+            mIncoming = incoming;
+            mLocalProfile = localProfile;
+        }
+
+        public String getCallId() {
+            return mCallId;
+        }
+
+        public boolean isIncoming() {
+            return mIncoming;
+        }
+
+        public SipURI getLocalProfile() {
+            return mLocalProfile;
+        }
+
+        /**
+         * @return one of the STATE_ constants
+         */
+        public int getState() {
+            return mState;
+        }
+
+        /**
+         * Returns the final status that answered the INVITE, 0 before that.
+         */
+        public synchronized int getStatus() {
+            return mStatus;
+        }
+
+        public synchronized Dialog getDialog() {
+            return mDialog;
+        }
+
+        /**
+         * Parses the offer or answer of the peer.
+         *
+         * @return null if it sent none
+         */
+        public SessionDescription getRemoteSessionDescription()
+                throws ParseException {
+            byte[] content;
+            synchronized (this) {
+                content = mRemoteContent;
+            }
+            return (content != null)
+                    ? SessionDescription.parse(content, 0, content.length)
+                    : null;
+        }
+
+        public Object getAttachment() {
+            return mAttachment;
+        }
+
+        /**
+         * Keeps application state with the call.
+         */
+        public void setAttachment(Object attachment) {
+            mAttachment = attachment;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+
+import javax.sip.*;
+import javax.sip.address.SipURI;
+import javax.sip.address.URI;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ExpiresHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.Header;
+import javax.sip.header.HeaderAddress;
+import javax.sip.header.ToHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a {@link MessageCapture} against a StandInServer in this process,
+ * at the captured pace or N times faster, to compare builds on production
+ * traffic.
+ *
+ * <p>The requests the capture shows as sent are sent again through
+ * SipHelper at their captured offsets divided by the speed: REGISTER,
+ * OPTIONS and INVITE open a new transaction with the users they were sent
+ * with, and BYE ends the call its INVITE set up. Every captured flow gets a
+ * Call-ID of its own, so refreshes stay on one registration. Other requests
+ * are skipped. The run reports throughput and latency and can save them as a
+ * report; two reports, from two builds, are compared with "compare".
+ *
+ * <p>Only the outgoing side of the capture is replayed. Captured incoming
+ * messages are not injected, and the stand-in answers in their place. The
+ * stand-in's answers reach this class's own listener, not Main's. So the
+ * replay measures SipHelper, the stack and the transport under the captured
+ * request mix, but not the dispatcher, admission control, duplicate
+ * filtering, CallEngine, RegistrationManager or KeepaliveEngine. A
+ * regression in those does not show up in the reports.
+ *
+ * <p>Every captured message that is not sent again is counted by why:
+ * incoming messages, outgoing responses, messages that do not parse,
+ * requests of other methods or within a dialog, and BYEs whose call was
+ * never set up by the replay. The report lists each count under
+ * "skipped.", and their sum as "skipped", so two reports only compare
+ * when they skipped the same.
+ *
+ * <p>Usage: CaptureReplay replay capture-dir [speed=1] [transport=udp]
+ * [report=file]
+ * <br>CaptureReplay compare report-a report-b
+ */
+public class CaptureReplay implements SipListener {
+    private static final int SERVER_PORT = 15060;
+    private static final int CLIENT_PORT = 15061;
+    // long enough for every transaction of the replay to finish
+    private static final long DRAIN_MS = TimeUnit.SECONDS.toMillis(35);
+
+    private final Options mOptions;
+    private final MessageFactory mMessageFactory;
+    private final SipHelper mSipHelper;
+    private final ExecutorService mSenders = Executors.newFixedThreadPool(4);
+    private final ConcurrentHashMap<Long, Flow> mFlows =
+            new ConcurrentHashMap<Long, Flow>();
+    // From or To user -> the profile requests for it are sent with
+    private final ConcurrentHashMap<String, SipURI> mProfiles =
+            new ConcurrentHashMap<String, SipURI>();
+    // branch -> the replayed request awaiting its final response
+    private final ConcurrentHashMap<String, Attempt> mPending =
+            new ConcurrentHashMap<String, Attempt>();
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    // captured messages not sent again, by why
+    private long mSkippedIncoming;
+    private long mSkippedResponses;
+    private long mSkippedUnparsed;
+    private long mSkippedMethods;
+    // counted by the senders
+    private final AtomicLong mSkippedByes = new AtomicLong();
+    private long mLateNanos;
+
+    private CaptureReplay(Options options) throws Exception {
+        mOptions = options;
+        mMessageFactory = SipFactory.getInstance().createMessageFactory();
+
+        SipProvider sipProvider = Harness.createProvider("im.dlg.sip.replay",
+                CLIENT_PORT, options.transport);
+        sipProvider.addSipListener(this);
+        mSipHelper = new SipHelper(sipProvider.getSipStack(), sipProvider);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if ((args.length == 3) && args[0].equals("compare")) {
+            compare(load(new File(args[1])), load(new File(args[2])));
+            return;
+        }
+        if ((args.length < 2) || !args[0].equals("replay")) {
+            System.err.println("usage: CaptureReplay replay capture-dir "
+                    + "[key=value...] | compare report-a report-b");
+            System.exit(2);
+        }
+        Options options = Options.parse(args);
+
+        StandInServer server = Harness.startStandIn(SERVER_PORT,
+                options.transport);
+
+        Properties report = new CaptureReplay(options).run();
+        System.out.println("stand-in: " + server.getStatistics());
+        server.stop();
+        if (options.report != null) {
+            OutputStream out = new FileOutputStream(options.report);
+            try {
+                report.store(out, "CaptureReplay " + options.capture);
+            } finally {
+                out.close();
+            }
+        }
+        System.exit(0);
+    }
+
+    private Properties run() throws Exception {
+        MessageCapture.Reader reader =
+                new MessageCapture.Reader(new File(mOptions.capture));
+        long first = -1;
+        long start = System.nanoTime();
+        try {
+            while (reader.next()) {
+                if (reader.isIncoming()) {
+                    mSkippedIncoming++;
+                    continue;
+                }
+                if (first < 0) first = reader.getTimestamp();
+                long due = start + (long) (TimeUnit.MICROSECONDS.toNanos(
+                        reader.getTimestamp() - first) / mOptions.speed);
+                long wait;
+                while ((wait = due - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+                mLateNanos = Math.max(mLateNanos, -wait);
+                replay(reader.getFlow(), reader.getMessage());
+            }
+        } finally {
+            reader.close();
+        }
+        long deadline = System.currentTimeMillis() + DRAIN_MS;
+        // everything read is sent, or counted as skipped, before the drain
+        mSenders.shutdown();
+        mSenders.awaitTermination(DRAIN_MS, TimeUnit.MILLISECONDS);
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        while (!mPending.isEmpty() && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(100);
+        }
+
+        Properties report = new Properties();
+        report.setProperty("sent", Long.toString(mSent.get()));
+        report.setProperty("completed", Long.toString(mCompleted.get()));
+        report.setProperty("failed", Long.toString(mFailures.get()
+                + mPending.size()));
+        report.setProperty("skipped.incoming",
+                Long.toString(mSkippedIncoming));
+        report.setProperty("skipped.responses",
+                Long.toString(mSkippedResponses));
+        report.setProperty("skipped.unparsed", Long.toString(mSkippedUnparsed));
+        report.setProperty("skipped.methods", Long.toString(mSkippedMethods));
+        report.setProperty("skipped.byes", Long.toString(mSkippedByes.get()));
+        report.setProperty("skipped", Long.toString(mSkippedIncoming
+                + mSkippedResponses + mSkippedUnparsed + mSkippedMethods
+                + mSkippedByes.get()));
+        report.setProperty("throughput", String.format("%.1f",
+                mCompleted.get() / elapsed));
+        report.setProperty("latency.mean", String.format("%.3f",
+                mLatency.getMean() / 1000));
+        report.setProperty("latency.p50", String.format("%.3f",
+                mLatency.getPercentile(50) / 1000.0));
+        report.setProperty("latency.p99", String.format("%.3f",
+                mLatency.getPercentile(99) / 1000.0));
+        report.setProperty("latency.max", String.format("%.3f",
+                mLatency.getMax() / 1000.0));
+        System.out.println(String.format(
+                "replayed at %.1fx in %.1f s, at most %.1f ms behind schedule",
+                mOptions.speed, elapsed, mLateNanos / 1e6));
+        for (String key : new TreeSet<String>(report.stringPropertyNames())) {
+            System.out.println(key + " = " + report.getProperty(key));
+        }
+        return report;
+    }
+
+    /**
+     * Sends the request of a captured message again, if it is one that can
+     * be replayed.
+     */
+    private void replay(long flowId, String message) {
+        final Request request;
+        if (message.startsWith("SIP/")) {
+            mSkippedResponses++;
+            return;
+        }
+        try {
+            request = mMessageFactory.createRequest(message);
+        } catch (ParseException e) {
+            mSkippedUnparsed++;
+            return;
+        }
+        String method = request.getMethod();
+        ToHeader to = (ToHeader) request.getHeader(ToHeader.NAME);
+        boolean inDialog = (to != null) && (to.getTag() != null);
+        // an INVITE without offer would need its answer in the ACK
+        if (!(Request.BYE.equals(method) || (!inDialog
+                && (Request.REGISTER.equals(method)
+                        || Request.OPTIONS.equals(method)
+                        || (Request.INVITE.equals(method)
+                                && (request.getRawContent() != null)))))) {
+            mSkippedMethods++;
+            return;
+        }
+
+        Flow flow = mFlows.get(flowId);
+        if (flow == null) {
+            try {
+                flow = new Flow(mSipHelper.newCallIdHeader(),
+                        mSipHelper.getIdentifiers().newTag());
+            } catch (SipException e) {
+                mFailures.incrementAndGet();
+                return;
+            }
+            mFlows.put(flowId, flow);
+        }
+        final Flow target = flow;
+        mSenders.execute(new Runnable() {
+            @Override
+            public void run() {
+                send(target, request);
+            }
+        });
+    }
+
+    private void send(Flow flow, Request request) {
+        String method = request.getMethod();
+        try {
+            SipURI caller = getProfile(request.getHeader(FromHeader.NAME));
+            ClientTransaction transaction;
+            if (Request.REGISTER.equals(method)) {
+                ExpiresHeader expires = request.getExpires();
+                transaction = mSipHelper.sendRegister(caller, flow.mTag,
+                        (expires != null) ? expires.getExpires() : 3600,
+                        flow.mCallId);
+            } else if (Request.OPTIONS.equals(method)) {
+                transaction = mSipHelper.sendOptions(caller,
+                        getProfile(request.getHeader(ToHeader.NAME)),
+                        flow.mTag, flow.mCallId);
+            } else if (Request.INVITE.equals(method)) {
+                transaction = mSipHelper.sendInvite(caller,
+                        getProfile(request.getHeader(ToHeader.NAME)),
+                        new String(request.getRawContent(),
+                                StandardCharsets.UTF_8),
+                        flow.mTag, null, null, flow.mCallId);
+            } else {
+                Dialog dialog = flow.mDialog;
+                if (dialog == null) {
+                    // its INVITE failed, is still pending or was not
+                    // captured
+                    mSkippedByes.incrementAndGet();
+                    return;
+                }
+                transaction = mSipHelper.sendBye(dialog);
+            }
+            mPending.put(transaction.getBranchId(),
+                    new Attempt(flow, System.nanoTime()));
+            mSent.incrementAndGet();
+        } catch (SipException | ParseException e) {
+            mFailures.incrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the profile of a captured user, on the stand-in.
+     */
+    private SipURI getProfile(Header header)
+            throws ParseException {
+        URI uri = ((HeaderAddress) header).getAddress().getURI();
+        String user = (uri instanceof SipURI) ? ((SipURI) uri).getUser()
+                : "replay";
+        // one instance per user, so SipHelper's templates are reused
+        SipURI profile = mProfiles.get(user);
+        if (profile != null) return profile;
+        profile = new SipUri();
+        profile.setUser(user);
+        profile.setHost(Harness.HOST);
+        profile.setPort(SERVER_PORT);
+        profile.setTransportParam(mOptions.transport.toLowerCase());
+        SipURI previous = mProfiles.putIfAbsent(user, profile);
+        return (previous != null) ? previous : profile;
+    }
+
+    @Override
+    public void processRequest(RequestEvent requestEvent) {
+        // nothing is addressed to the replay; answer so the stand-in's
+        // transaction ends
+        if (Request.ACK.equals(requestEvent.getRequest().getMethod())) return;
+        try {
+            mSipHelper.sendResponse(requestEvent, 200);
+        } catch (SipException e) {
+            mFailures.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void processResponse(ResponseEvent responseEvent) {
+        mSipHelper.getConnectionCoalescer().onResponse(responseEvent);
+        ClientTransaction transaction = responseEvent.getClientTransaction();
+        int status = responseEvent.getResponse().getStatusCode();
+        if ((transaction == null) || (status < 200)) return;
+        Attempt attempt = mPending.remove(transaction.getBranchId());
+        if (attempt == null) return;
+        if (status >= 300) {
+            mFailures.incrementAndGet();
+            return;
+        }
+        mCompleted.incrementAndGet();
+        mLatency.recordNanos(System.nanoTime() - attempt.mSent);
+
+        String method = ((CSeqHeader) responseEvent.getResponse()
+                .getHeader(CSeqHeader.NAME)).getMethod();
+        if (Request.INVITE.equals(method)) {
+            try {
+                mSipHelper.sendInviteAck(responseEvent,
+                        responseEvent.getDialog());
+            } catch (SipException e) {
+                mFailures.incrementAndGet();
+                return;
+            }
+            attempt.mFlow.mDialog = responseEvent.getDialog();
+        }
+    }
+
+    @Override
+    public void processTimeout(TimeoutEvent timeoutEvent) {
+        mSipHelper.getConnectionCoalescer().onTimeout(timeoutEvent);
+        if (timeoutEvent.isServerTransaction()) return;
+        if (mPending.remove(timeoutEvent.getClientTransaction()
+                .getBranchId()) != null) {
+            mFailures.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void processIOException(IOExceptionEvent ioExceptionEvent) {
+        mSipHelper.getConnectionCoalescer().onIOException(ioExceptionEvent);
+    }
+
+    @Override
+    public void processTransactionTerminated(
+            TransactionTerminatedEvent transactionTerminatedEvent) {
+    }
+
+    @Override
+    public void processDialogTerminated(
+            DialogTerminatedEvent dialogTerminatedEvent) {
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return properties;
+    }
+
+    /**
+     * Prints every value of two reports side by side with the change from
+     * the first to the second.
+     */
+    private static void compare(Properties a, Properties b) {
+        TreeSet<String> keys = new TreeSet<String>(a.stringPropertyNames());
+        keys.addAll(b.stringPropertyNames());
+        System.out.println(String.format("%-14s %12s %12s %9s", "", "a", "b",
+                "change"));
+        for (String key : keys) {
+            String valueA = a.getProperty(key, "-");
+            String valueB = b.getProperty(key, "-");
+            String change = "";
+            try {
+                double from = Double.parseDouble(valueA);
+                double to = Double.parseDouble(valueB);
+                if (from != 0) {
+                    change = String.format("%+.1f%%", (to - from) * 100 / from);
+                }
+            } catch (NumberFormatException e) {
+                // missing in one of the reports
+            }
+            System.out.println(String.format("%-14s %12s %12s %9s", key,
+                    valueA, valueB, change));
+        }
+    }
+
+    /**
+     * What the replay keeps of a captured flow.
+     */
+    private static class Flow {
+        private final CallIdHeader mCallId;
+        private final String mTag;
+        private volatile Dialog mDialog;
+
+        private Flow(CallIdHeader callId, String tag) {
+            mCallId = callId;
+            mTag = tag;
+        }
+    }
+
+    private static class Attempt {
+        private final Flow mFlow;
+        private final long mSent;
+
+        private Attempt(Flow flow, long sent) {
+            mFlow = flow;
+            mSent = sent;
+        }
+    }
+
+    private static class Options {
+        private String capture;
+        private double speed = 1;
+        private String transport = ListeningPoint.UDP;
+        private String report;
+
+        private static Options parse(String[] args) {
+            Harness.Arguments arguments = new Harness.Arguments(args, 2);
+            Options options = new Options();
+            options.capture = args[1];
+            options.speed = arguments.getDouble("speed", options.speed);
+            options.transport = arguments.getString("transport",
+                    options.transport);
+            options.report = arguments.getString("report", options.report);
+            arguments.checkAllRead();
+            return options;
+        }
+    }
+}
@@ -0,0 +1,517 @@
+package com.company;
+
+import gov.nist.javax.sip.stack.HopImpl;
+
+import javax.sip.ClientTransaction;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipException;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.address.Hop;
+import javax.sip.address.SipURI;
+import javax.sip.address.URI;
+import javax.sip.header.RouteHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.Request;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Coalesces connection establishment towards stream targets (TCP, TLS, WS,
+ * WSS). The first request sent to a target that is not connected yet opens
+ * the connection; requests sent concurrently to the same target wait for that
+ * pending connect and then go out over the same socket instead of racing the
+ * stack into opening several.
+ *
+ * <p>The stack opens the socket of a stream transport when the client
+ * transaction is created, and sends a WebSocket upgrade ahead of the first
+ * request over it, so waiting requests are held back before their
+ * transactions exist: the first request to a target is the only one on the
+ * wire until the target answers.
+ *
+ * <p>Targets are keyed by transport and the resolved address of the next
+ * hop of the request, picked as the stack picks it. A pending connect is
+ * resolved by the first response received from the target, and failed by an
+ * IOExceptionEvent towards that address, a timeout of the request that
+ * opened it, a failed send of that request, or the connect timeout passing.
+ * The listener owning the SipProvider must forward those events. A target
+ * that failed to connect is remembered for one connect timeout, and
+ * requests to it fail at once instead of each holding its caller for the
+ * timeout; the first request after that opens a new connection.
+ *
+ * <p>The stack closes a connection that carried no traffic for its idle
+ * time without raising an event. With {@link #setIdleTimeout} set to that
+ * time, a connection no request or response went over for as long is
+ * dropped here as well, and the next request towards its target opens it
+ * again. Host names are resolved once per {@link #RESOLVE_TTL_MS}, not on
+ * every request, and only by the threads creating transactions: events,
+ * which the stack may deliver on its own threads, look their target up by
+ * the address last resolved and never wait for a lookup.
+ *
+ * <p>The number of connects pending at the same time towards one host can
+ * be limited, so a restart that finds every target disconnected does not
+ * start thousands of handshakes at once. The time from opening a connection
+ * to its first response is recorded as handshake latency; it includes one
+ * request round trip on top of the TCP, TLS and WebSocket handshakes.
+ */
+public class ConnectionCoalescer {
+    private static final String TAG = ConnectionCoalescer.class.getSimpleName();
+    private static final boolean DBG = false;
+
+    private static final long DEFAULT_CONNECT_TIMEOUT_MS = 10000;
+    // as long as the JVM caches successful lookups by default
+    static final long RESOLVE_TTL_MS = 30000;
+
+    private final ConcurrentHashMap<String, Connection> mConnections =
+            new ConcurrentHashMap<String, Connection>();
+    // target -> System.nanoTime() until which connecting to it is not retried
+    private final ConcurrentHashMap<String, Long> mUnreachable =
+            new ConcurrentHashMap<String, Long>();
+    // host address -> permits for connects pending towards it
+    private final ConcurrentHashMap<String, Semaphore> mConnectPermits =
+            new ConcurrentHashMap<String, Semaphore>();
+    // host -> its resolved address
+    private final ConcurrentHashMap<String, Address> mAddresses =
+            new ConcurrentHashMap<String, Address>();
+    private final LatencyHistogram mHandshakeLatency = new LatencyHistogram();
+    private final long mConnectTimeoutMillis;
+    private volatile int mMaxConnectsPerHost;
+    private volatile long mIdleNanos;
+
+    public ConnectionCoalescer() {
+        this(DEFAULT_CONNECT_TIMEOUT_MS);
+    }
+
+    public ConnectionCoalescer(long connectTimeoutMillis) {
+        mConnectTimeoutMillis = connectTimeoutMillis;
+    }
+
+    /**
+     * Limits the connects pending at the same time towards one host; the
+     * requests opening more wait for one of them to resolve, for up to the
+     * connect timeout. Takes effect for hosts not connected to yet.
+     *
+     * @param maxConnectsPerHost the limit, or 0 for none
+     */
+    public void setMaxConnectsPerHost(int maxConnectsPerHost) {
+        mMaxConnectsPerHost = maxConnectsPerHost;
+    }
+
+    /**
+     * Drops established connections that carried no traffic for the given
+     * time, the idle time after which the stack closes them.
+     *
+     * @param idleMillis the idle time, or 0 to keep connections until they
+     *      fail
+     */
+    public void setIdleTimeout(long idleMillis) {
+        mIdleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+    }
+
+    /**
+     * Creates the client transaction of a request, waiting for a pending
+     * connect towards the same target to complete first. The stack opens
+     * the connection of a stream transport while it creates the transaction,
+     * so this, and not the send, is where concurrent requests must be held
+     * back. The request of the returned transaction must then be sent with
+     * {@link #sendRequest(ClientTransaction)}.
+     *
+     * @throws SipException if the target failed to connect within the last
+     *      connect timeout, or the pending connect did not complete in time
+     */
+    public ClientTransaction getNewClientTransaction(SipProvider provider,
+            Request request) throws SipException {
+        Hop hop = getNextHop(request);
+        if (hop == null) {
+            // datagram transports have no connection to set up
+            return provider.getNewClientTransaction(request);
+        }
+        hop = resolve(hop, true);
+        String target = getTarget(hop);
+
+        while (true) {
+            Connection connection = mConnections.get(target);
+            if ((connection != null) && isIdle(connection)) {
+                // closed by the stack by now; reopen it
+                mConnections.remove(target, connection);
+                connection = null;
+            }
+            if (connection == null) {
+                checkReachable(target);
+                connection = new Connection(hop.getHost(),
+                        System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                                mConnectTimeoutMillis));
+                Connection previous =
+                        mConnections.putIfAbsent(target, connection);
+                if (previous == null) {
+                    return openConnection(target, connection, provider,
+                            request);
+                }
+                connection = previous;
+            }
+
+            if (connection.await()) {
+                if (connection.isConnected()) {
+                    connection.touch();
+                    return provider.getNewClientTransaction(request);
+                }
+                // the connect failed and was removed; the target is now
+                // remembered as unreachable, or another opener took over
+                continue;
+            }
+
+            // nothing heard from the target within the connect timeout;
+            // the requests queued behind this one need not wait as well
+            fail(target, connection);
+            throw new SipException("connect to " + target + " timed out");
+        }
+    }
+
+    /**
+     * Sends the request of a transaction created by
+     * {@link #getNewClientTransaction}. If it opened its connection and the
+     * send fails, the requests waiting for that connection fail as well.
+     */
+    public void sendRequest(ClientTransaction transaction)
+            throws SipException {
+        try {
+            transaction.sendRequest();
+        } catch (SipException | RuntimeException e) {
+            String target = getCachedTarget(transaction.getRequest());
+            Connection connection =
+                    (target != null) ? mConnections.get(target) : null;
+            if ((connection != null) && !connection.isConnected()
+                    && transaction.getBranchId().equals(
+                            connection.mOpenerBranch)) {
+                fail(target, connection);
+            }
+            throw e;
+        }
+    }
+
+    private void checkReachable(String target) throws SipException {
+        Long until = mUnreachable.get(target);
+        if (until == null) return;
+        if (until - System.nanoTime() > 0) {
+            throw new SipException(target + " unreachable");
+        }
+        mUnreachable.remove(target, until);
+    }
+
+    private ClientTransaction openConnection(String target,
+            Connection connection, SipProvider provider, Request request)
+            throws SipException {
+        if (DBG) log("open connection to " + target);
+        try {
+            acquirePermit(connection);
+            connection.mStartTime = System.nanoTime();
+            ClientTransaction transaction =
+                    provider.getNewClientTransaction(request);
+            connection.mOpenerBranch = transaction.getBranchId();
+            return transaction;
+        } catch (SipException | RuntimeException e) {
+            fail(target, connection);
+            throw e;
+        }
+    }
+
+    public void onResponse(ResponseEvent event) {
+        ClientTransaction transaction = event.getClientTransaction();
+        if (transaction == null) return;
+        String target = getCachedTarget(transaction.getRequest());
+        if (target == null) return;
+        Connection connection = mConnections.get(target);
+        if (connection == null) return;
+        connection.touch();
+        if (connection.connect()) {
+            mUnreachable.remove(target);
+            if (DBG) log("connected to " + target);
+            mHandshakeLatency.recordNanos(System.nanoTime()
+                    - connection.mStartTime);
+        }
+    }
+
+    public void onTimeout(TimeoutEvent event) {
+        if (event.isServerTransaction()) return;
+        ClientTransaction transaction = event.getClientTransaction();
+        String target = getCachedTarget(transaction.getRequest());
+        if (target == null) return;
+        Connection connection = mConnections.get(target);
+        if ((connection != null) && !connection.isConnected()
+                && transaction.getBranchId().equals(
+                        connection.mOpenerBranch)) {
+            fail(target, connection);
+        }
+    }
+
+    public void onIOException(IOExceptionEvent event) {
+        String transport = event.getTransport();
+        if ((transport == null) || isDatagram(transport)) return;
+        String target = getTarget(transport, event.getHost(), event.getPort());
+        Connection connection = mConnections.get(target);
+        if (connection != null) fail(target, connection);
+    }
+
+    /**
+     * @return true if creating the transaction of the given request may
+     *      wait, for a pending connect or a connect permit, because its
+     *      target is not connected. Never resolves a host; a target not
+     *      resolved yet was never connected to.
+     */
+    public boolean mayWait(Request request) {
+        Hop hop = getNextHop(request);
+        if (hop == null) return false;
+        hop = resolve(hop, false);
+        if (hop == null) return true;
+        Connection connection = mConnections.get(getTarget(hop));
+        return (connection == null) || !connection.isConnected()
+                || isIdle(connection);
+    }
+
+    /**
+     * Returns the number of targets with a pending or established connection.
+     */
+    public int getConnectionCount() {
+        int count = 0;
+        for (Map.Entry<String, Connection> entry : mConnections.entrySet()) {
+            if (isIdle(entry.getValue())) {
+                mConnections.remove(entry.getKey(), entry.getValue());
+            } else {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the time from opening each connection to its first response.
+     */
+    public LatencyHistogram getHandshakeLatency() {
+        return mHandshakeLatency;
+    }
+
+    private boolean isIdle(Connection connection) {
+        long idle = mIdleNanos;
+        return (idle > 0) && connection.isConnected()
+                && (System.nanoTime() - connection.mLastUsed > idle);
+    }
+
+    private void acquirePermit(Connection connection) throws SipException {
+        int max = mMaxConnectsPerHost;
+        if (max <= 0) return;
+        Semaphore permits = mConnectPermits.get(connection.mHostAddress);
+        if (permits == null) {
+            Semaphore created = new Semaphore(max);
+            permits = mConnectPermits.putIfAbsent(connection.mHostAddress,
+                    created);
+            if (permits == null) permits = created;
+        }
+        try {
+            if (!permits.tryAcquire(connection.mDeadline - System.nanoTime(),
+                    TimeUnit.NANOSECONDS)) {
+                // rather go over the limit than fail a request that may
+                // well connect
+                if (DBG) log("no connect permit for " + connection.mHostAddress);
+                return;
+            }
+            connection.mPermit.set(permits);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SipException("interrupted waiting for connect permit", e);
+        }
+    }
+
+    private void fail(String target, Connection connection) {
+        if (DBG) log("connection to " + target + " failed");
+        // a connection that dropped after connecting may be reopened at once
+        if (mConnections.remove(target, connection)
+                && !connection.isConnected()) {
+            mUnreachable.put(target, System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(mConnectTimeoutMillis));
+        }
+        connection.fail();
+    }
+
+    /**
+     * Returns the connection key of the request's next hop, resolving its
+     * host if needed. Not for the event path.
+     *
+     * @return the key, or null if the request goes over a datagram transport
+     */
+    String getTarget(Request request) {
+        Hop hop = getNextHop(request);
+        return (hop != null) ? getTarget(resolve(hop, true)) : null;
+    }
+
+    /**
+     * Returns the connection key of the request's next hop from the address
+     * its host last resolved to, without looking it up.
+     *
+     * @return the key, or null if the request goes over a datagram transport
+     *      or its host was never resolved
+     */
+    private String getCachedTarget(Request request) {
+        Hop hop = getNextHop(request);
+        if (hop != null) hop = resolve(hop, false);
+        return (hop != null) ? getTarget(hop) : null;
+    }
+
+    private static String getTarget(Hop hop) {
+        return getTarget(hop.getTransport(), hop.getHost(), hop.getPort());
+    }
+
+    static String getTarget(String transport, String host, int port) {
+        return transport.toLowerCase() + ':' + host + ':' + port;
+    }
+
+    /**
+     * Picks the next hop of a request the way the stack's default router
+     * does.
+     *
+     * @return the hop, or null if the request goes over a datagram transport
+     */
+    private Hop getNextHop(Request request) {
+        RouteHeader route = (RouteHeader) request.getHeader(RouteHeader.NAME);
+        URI uri = (route != null) ? route.getAddress().getURI()
+                : request.getRequestURI();
+        if (!(uri instanceof SipURI)) return null;
+        SipURI sipUri = (SipURI) uri;
+
+        String transport = sipUri.isSecure() ? "tls" : sipUri.getTransportParam();
+        if (transport == null) {
+            ViaHeader via = (ViaHeader) request.getHeader(ViaHeader.NAME);
+            transport = (via != null) ? via.getTransport() : "udp";
+        }
+        if (isDatagram(transport)) return null;
+
+        String host = (sipUri.getMAddrParam() != null)
+                ? sipUri.getMAddrParam() : sipUri.getHost();
+        int port = sipUri.getPort();
+        if (port <= 0) port = "tls".equalsIgnoreCase(transport) ? 5061 : 5060;
+        return new HopImpl(host, port, transport);
+    }
+
+    /**
+     * Returns a hop with its host resolved to the address the stack reports
+     * in its IOExceptionEvents.
+     *
+     * @param lookup whether to look up a host not resolved yet, or resolved
+     *      longer than {@link #RESOLVE_TTL_MS} ago
+     * @return the hop, or null if its host was never resolved and lookup is
+     *      false
+     */
+    private Hop resolve(Hop hop, boolean lookup) {
+        String address = resolve(hop.getHost(), lookup);
+        return (address != null)
+                ? new HopImpl(address, hop.getPort(), hop.getTransport())
+                : null;
+    }
+
+    private String resolve(String host, boolean lookup) {
+        long now = System.nanoTime();
+        Address address = mAddresses.get(host);
+        if ((address != null) && (!lookup || (address.mExpiry - now > 0))) {
+            return address.mHostAddress;
+        }
+        if (!lookup) return null;
+        String hostAddress;
+        try {
+            hostAddress = InetAddress.getByName(host).getHostAddress();
+        } catch (UnknownHostException e) {
+            // the stack fails the request itself; its events are keyed by
+            // the name
+            hostAddress = host;
+        }
+        mAddresses.put(host, new Address(hostAddress, now
+                + TimeUnit.MILLISECONDS.toNanos(RESOLVE_TTL_MS)));
+        return hostAddress;
+    }
+
+    private static boolean isDatagram(String transport) {
+        return "udp".equalsIgnoreCase(transport)
+                || "sctp".equalsIgnoreCase(transport);
+    }
+
+    private void log(String s) {
+
+    }
+
+    private static class Connection {
+        private final CountDownLatch mLatch = new CountDownLatch(1);
+        private final String mHostAddress;
+        // System.nanoTime() by which the connect must have completed
+        private final long mDeadline;
+        private final AtomicBoolean mConnected = new AtomicBoolean();
+        private volatile String mOpenerBranch;
+        private volatile long mStartTime;
+        // System.nanoTime() of the last request or response over it
+        private volatile long mLastUsed = System.nanoTime();
+        // held while the connect is pending
+        private final AtomicReference<Semaphore> mPermit =
+                new AtomicReference<Semaphore>();
+
+        private Connection(String hostAddress, long deadline) {
+            mHostAddress = hostAddress;
+            mDeadline = deadline;
+        }
+
+        private boolean connect() {
+            // responses racing each other connect it once
+            if (!mConnected.compareAndSet(false, true)) return false;
+            releasePermit();
+            mLatch.countDown();
+            return true;
+        }
+
+        private void touch() {
+            mLastUsed = System.nanoTime();
+        }
+
+        private void fail() {
+            releasePermit();
+            mLatch.countDown();
+        }
+
+        private void releasePermit() {
+            Semaphore permit = mPermit.getAndSet(null);
+            if (permit != null) permit.release();
+        }
+
+        private boolean isConnected() {
+            return mConnected.get();
+        }
+
+        /**
+         * Waits for the connect to resolve, at most until its deadline, so
+         * requests queued behind it never wait longer than the opener.
+         */
+        private boolean await() throws SipException {
+            try {
+                return mLatch.await(mDeadline - System.nanoTime(),
+                        TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SipException("interrupted waiting for connection", e);
+            }
+        }
+    }
+
+    private static class Address {
+        private final String mHostAddress;
+        // System.nanoTime() after which the host is resolved again
+        private final long mExpiry;
+
+        private Address(String hostAddress, long expiry) {
+            mHostAddress = hostAddress;
+            mExpiry = expiry;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.company;
+
+import javax.sip.ClientTransaction;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipException;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.SipURI;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.Request;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manages the stream connections (TCP, TLS, WS, WSS) of a stack.
+ *
+ * <p>The stack keeps one connection per target and every request to the
+ * target goes over it, so all registrations towards a registrar share one
+ * connection. {@link #configure} sets the stack up for that: client
+ * connections are cached, kept open for longer than the keepalive interval,
+ * and capped in total. TLS sessions are resumed by the stack's own TLS
+ * engines; keeping connections open is what saves the handshakes, and after
+ * a restart there is no session left to resume anyway.
+ *
+ * <p>What a restart costs instead is bounded here: the connects pending
+ * towards one host are limited through the {@link ConnectionCoalescer}, and
+ * targets known at startup are pre-warmed with an OPTIONS so their
+ * connections are up before the first registration needs them. Handshake
+ * latency is reported by the coalescer.
+ */
+public class ConnectionManager {
+    private static final String TAG = ConnectionManager.class.getSimpleName();
+    private static final boolean DBG = false;
+
+    private final SipHelper mSipHelper;
+    // branch of a pre-warming OPTIONS -> its target, as the coalescer
+    // names it
+    private final ConcurrentHashMap<String, String> mPrewarms =
+            new ConcurrentHashMap<String, String>();
+
+    private final AtomicLong mPrewarmed = new AtomicLong();
+    private final AtomicLong mPrewarmFailures = new AtomicLong();
+
+    /**
+     * @param maxConnectsPerHost connects pending at the same time towards
+     *      one host, or 0 for no limit
+     */
+    public ConnectionManager(SipHelper sipHelper, int maxConnectsPerHost) {
+        this(sipHelper, maxConnectsPerHost, 0);
+    }
+
+    /**
+     * @param maxConnectsPerHost connects pending at the same time towards
+     *      one host, or 0 for no limit
+     * @param idleMillis the idle time the stack was configured with, after
+     *      which the coalescer drops a connection as well; 0 for none
+     */
+    public ConnectionManager(SipHelper sipHelper, int maxConnectsPerHost,
+            long idleMillis) {
+        mSipHelper = sipHelper;
+        ConnectionCoalescer coalescer = mSipHelper.getConnectionCoalescer();
+        coalescer.setMaxConnectsPerHost(maxConnectsPerHost);
+        coalescer.setIdleTimeout(idleMillis);
+    }
+
+    /**
+     * Sets the stack properties for stream connections. Must be applied to
+     * the properties the stack is created with.
+     *
+     * @param maxConnections connections the stack keeps open at most
+     * @param idleMillis time a connection without traffic stays open; keep
+     *      it above the keepalive interval
+     */
+    public static void configure(Properties properties, int maxConnections,
+            long idleMillis) {
+        properties.setProperty("gov.nist.javax.sip.CACHE_CLIENT_CONNECTIONS",
+                "true");
+        properties.setProperty("gov.nist.javax.sip.MAX_CONNECTIONS",
+                Integer.toString(maxConnections));
+        properties.setProperty("gov.nist.javax.sip.NIO_MAX_SOCKET_IDLE_TIME",
+                Long.toString(idleMillis));
+    }
+
+    /**
+     * Opens the connection towards the target of a profile ahead of its
+     * first request, by sending it an OPTIONS. Does nothing for datagram
+     * transports.
+     */
+    public void prewarm(SipURI profile) throws SipException {
+        String transport = profile.getTransportParam();
+        if ((transport == null) || "udp".equalsIgnoreCase(transport)) return;
+        Request request = mSipHelper.createOptions(profile, profile,
+                mSipHelper.getIdentifiers().newTag(),
+                mSipHelper.newCallIdHeader());
+        String target = mSipHelper.getConnectionCoalescer().getTarget(request);
+        if (target == null) return;
+        // recorded before it is sent, so none of its events can miss it
+        String branch = ((ViaHeader) request.getHeader(ViaHeader.NAME))
+                .getBranch();
+        mPrewarms.put(branch, target);
+        try {
+            mSipHelper.sendRequest(request);
+        } catch (SipException e) {
+            if (mPrewarms.remove(branch) != null) {
+                mPrewarmFailures.incrementAndGet();
+            }
+            throw e;
+        }
+        if (DBG) log("prewarm " + profile);
+    }
+
+    /**
+     * @return true if the response answered a pre-warming OPTIONS
+     */
+    public boolean processResponse(ResponseEvent responseEvent) {
+        ClientTransaction transaction = responseEvent.getClientTransaction();
+        if (transaction == null) return false;
+        if (responseEvent.getResponse().getStatusCode() < 200) {
+            return mPrewarms.containsKey(transaction.getBranchId());
+        }
+        String target = mPrewarms.remove(transaction.getBranchId());
+        if (target == null) return false;
+        // any final response means the connection is up
+        mPrewarmed.incrementAndGet();
+        if (DBG) log("connected to " + target);
+        return true;
+    }
+
+    /**
+     * @return true if a pre-warming OPTIONS timed out
+     */
+    public boolean processTimeout(TimeoutEvent timeoutEvent) {
+        if (timeoutEvent.isServerTransaction()) return false;
+        String target = mPrewarms.remove(
+                timeoutEvent.getClientTransaction().getBranchId());
+        if (target == null) return false;
+        // the first real request opens the connection again
+        mPrewarmFailures.incrementAndGet();
+        if (DBG) log("prewarm of " + target + " timed out");
+        return true;
+    }
+
+    /**
+     * Fails the pre-warming OPTIONS towards a target whose connection
+     * failed.
+     *
+     * @return true if one of them was pending
+     */
+    public boolean processIOException(IOExceptionEvent ioExceptionEvent) {
+        String transport = ioExceptionEvent.getTransport();
+        if (transport == null) return false;
+        String target = ConnectionCoalescer.getTarget(transport,
+                ioExceptionEvent.getHost(), ioExceptionEvent.getPort());
+        boolean found = false;
+        Iterator<Map.Entry<String, String>> prewarms =
+                mPrewarms.entrySet().iterator();
+        while (prewarms.hasNext()) {
+            Map.Entry<String, String> prewarm = prewarms.next();
+            if (target.equals(prewarm.getValue())
+                    && mPrewarms.remove(prewarm.getKey(), target)) {
+                mPrewarmFailures.incrementAndGet();
+                found = true;
+            }
+        }
+        if (found && DBG) log("prewarm of " + target + " failed");
+        return found;
+    }
+
+    /**
+     * Fails a pre-warming OPTIONS whose transaction terminated without a
+     * final response.
+     */
+    public void processTransactionTerminated(
+            TransactionTerminatedEvent transactionTerminatedEvent) {
+        if (transactionTerminatedEvent.isServerTransaction()) return;
+        String target = mPrewarms.remove(transactionTerminatedEvent
+                .getClientTransaction().getBranchId());
+        if (target == null) return;
+        mPrewarmFailures.incrementAndGet();
+        if (DBG) log("prewarm of " + target + " terminated");
+    }
+
+    public int getPendingPrewarmCount() {
+        return mPrewarms.size();
+    }
+
+    public long getPrewarmedCount() {
+        return mPrewarmed.get();
+    }
+
+    public long getPrewarmFailureCount() {
+        return mPrewarmFailures.get();
+    }
+
+    public String getStatistics() {
+        ConnectionCoalescer coalescer = mSipHelper.getConnectionCoalescer();
+        return String.format("connections=%d prewarmed=%d prewarmFailures=%d "
+                        + "handshake %s",
+                coalescer.getConnectionCount(), mPrewarmed.get(),
+                mPrewarmFailures.get(), coalescer.getHandshakeLatency().summary());
+    }
+
+    private void log(String s) {
+
+    }
+}
@@ -0,0 +1,200 @@
+package com.company;
+
+import javax.sip.ClientTransaction;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.TimeoutEvent;
+import javax.sip.Transaction;
+import javax.sip.TransactionTerminatedEvent;
+import java.util.EventObject;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps listener events back to per-registration or per-call state in O(1),
+ * by transaction branch first and by Call-ID otherwise.
+ *
+ * <p>Branch entries are dropped when their transaction terminates, sessions
+ * when their dialog terminates or they are removed. Anything the stack never
+ * reported the end of is evicted once it outlives its TTL, so the index stays
+ * bounded however many transactions pass through it.
+ *
+ * @param <T> the application state of a registration or call
+ */
+public class CorrelationIndex<T> {
+    private final ConcurrentHashMap<String, Session<T>> mByCallId =
+            new ConcurrentHashMap<String, Session<T>>();
+    private final ConcurrentHashMap<String, Branch<T>> mByBranch =
+            new ConcurrentHashMap<String, Branch<T>>();
+    private final long mSessionTtlMillis;
+    private final long mTransactionTtlMillis;
+
+    /**
+     * @param sessionTtlMillis how long a session may go without a new
+     *      transaction before it is evicted
+     * @param transactionTtlMillis how long a branch is kept if its
+     *      termination is never reported
+     */
+    public CorrelationIndex(long sessionTtlMillis, long transactionTtlMillis) {
+        mSessionTtlMillis = sessionTtlMillis;
+        mTransactionTtlMillis = transactionTtlMillis;
+    }
+
+    /**
+     * Registers the state of a registration or call. Must happen before its
+     * first request is sent, so early responses can still be matched.
+     */
+    public void put(String callId, T state) {
+        mByCallId.put(callId, new Session<T>(state, deadline(mSessionTtlMillis)));
+    }
+
+    /**
+     * Binds a transaction to the session of its Call-ID, which also refreshes
+     * the session's TTL.
+     *
+     * @return false if no session is registered under that Call-ID
+     */
+    public boolean addTransaction(Transaction transaction) {
+        String callId = SipHelper.getCallId(transaction);
+        Session<T> session = mByCallId.get(callId);
+        if (session == null) return false;
+        session.mExpiresAt = deadline(mSessionTtlMillis);
+        mByBranch.put(transaction.getBranchId(), new Branch<T>(session,
+                deadline(mTransactionTtlMillis)));
+        return true;
+    }
+
+    public T get(String callId) {
+        Session<T> session = mByCallId.get(callId);
+        return (session != null) ? session.mState : null;
+    }
+
+    /**
+     * Returns the state an event belongs to, or null if it is unknown.
+     */
+    public T get(EventObject event) {
+        Transaction transaction = getTransaction(event);
+        if (transaction != null) {
+            Branch<T> branch = mByBranch.get(transaction.getBranchId());
+            if ((branch != null) && !branch.mSession.mRemoved) {
+                return branch.mSession.mState;
+            }
+        }
+        return get(SipHelper.getCallId(event));
+    }
+
+    public T remove(String callId) {
+        Session<T> session = mByCallId.remove(callId);
+        if (session == null) return null;
+        // its branches go when their transactions terminate or expire
+        session.mRemoved = true;
+        return session.mState;
+    }
+
+    public void onTransactionTerminated(TransactionTerminatedEvent event) {
+        Transaction transaction = getTransaction(event);
+        if (transaction == null) return;
+        mByBranch.remove(transaction.getBranchId());
+    }
+
+    public void onDialogTerminated(DialogTerminatedEvent event) {
+        remove(SipHelper.getCallId(event));
+    }
+
+    public int getSessionCount() {
+        return mByCallId.size();
+    }
+
+    public int getTransactionCount() {
+        return mByBranch.size();
+    }
+
+    /**
+     * Evicts sessions and branches that outlived their TTL.
+     *
+     * @return the number of entries evicted
+     */
+    public int expire() {
+        long now = System.currentTimeMillis();
+        int evicted = 0;
+        for (Map.Entry<String, Session<T>> entry : mByCallId.entrySet()) {
+            Session<T> session = entry.getValue();
+            if ((session.mExpiresAt < now)
+                    && mByCallId.remove(entry.getKey(), session)) {
+                session.mRemoved = true;
+                evicted++;
+            }
+        }
+        for (Map.Entry<String, Branch<T>> entry : mByBranch.entrySet()) {
+            Branch<T> branch = entry.getValue();
+            if ((branch.mExpiresAt < now)
+                    && mByBranch.remove(entry.getKey(), branch)) {
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Runs {@link #expire()} periodically on the given executor.
+     */
+    public void scheduleExpiry(ScheduledExecutorService executor,
+            long periodMillis) {
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expire();
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static Transaction getTransaction(EventObject event) {
+        if (event instanceof ResponseEvent) {
+            return ((ResponseEvent) event).getClientTransaction();
+        } else if (event instanceof TransactionTerminatedEvent) {
+            TransactionTerminatedEvent e = (TransactionTerminatedEvent) event;
+            return e.isServerTransaction()
+                    ? e.getServerTransaction()
+                    : e.getClientTransaction();
+        } else if (event instanceof TimeoutEvent) {
+            TimeoutEvent e = (TimeoutEvent) event;
+            return e.isServerTransaction()
+                    ? e.getServerTransaction()
+                    : e.getClientTransaction();
+        }
+        Object source = event.getSource();
+        if ((source instanceof ClientTransaction)
+                || (source instanceof ServerTransaction)) {
+            return (Transaction) source;
+        }
+        return null;
+    }
+
+    private static long deadline(long ttlMillis) {
+        return System.currentTimeMillis() + ttlMillis;
+    }
+
+    private static class Session<T> {
+        private final T mState;
+        private volatile long mExpiresAt;
+        private volatile boolean mRemoved;
+
+        private Session(T state, long expiresAt) {
+            mState = state;
+            mExpiresAt = expiresAt;
+        }
+    }
+
+    private static class Branch<T> {
+        private final Session<T> mSession;
+        private final long mExpiresAt;
+
+        private Branch(Session<T> session, long expiresAt) {
+            mSession = session;
+            mExpiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.company;
+
+import gov.nist.javax.sip.clientauthutils.AccountManager;
+import gov.nist.javax.sip.clientauthutils.UserCredentials;
+
+import javax.sip.ClientTransaction;
+import javax.sip.address.SipURI;
+import javax.sip.address.URI;
+import javax.sip.header.AuthorizationHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ProxyAuthenticateHeader;
+import javax.sip.header.ProxyAuthorizationHeader;
+import javax.sip.header.WWWAuthenticateHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.text.ParseException;
+import java.util.ListIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-credential cache of digest nonces and hashed credentials, used to put
+ * a preemptive Authorization header on requests to a server that challenged
+ * before. A credential is a user of a realm, and has the nonce of the last
+ * challenge to one of its requests. Each reuse of a nonce sends the next
+ * nonce count, so a registrar keeps accepting it until it declares the nonce
+ * stale; only then does a request go through the 401 round trip again.
+ *
+ * <p>Counts are taken under the lock of the credential, in the order
+ * requests are authorized; the requests then go out without it, so a slow
+ * connect never holds up the other requests of a credential. Requests of
+ * one credential sent from several threads, or over several connections,
+ * may therefore reach the server out of order. A server that insists on
+ * strictly increasing counts refuses the late ones, and the credential
+ * falls back to challenges as below. Callers that need the order kept must
+ * authorize and send the requests of a credential from one thread.
+ *
+ * <p>A challenge to a request that carried the cached nonce, without the
+ * server calling that nonce stale, means it refused the credentials: the
+ * credential is forgotten, and only a challenge to a request without
+ * credentials fills it in again. A realm a host challenged for before is
+ * forgotten for every user when the host now challenges for another one.
+ *
+ * <p>Only MD5 challenges are cached. Passwords are not kept, just the
+ * H(user:realm:password) the digest needs.
+ */
+public class DigestAuthCache {
+    private static final String TAG = DigestAuthCache.class.getSimpleName();
+    private static final boolean DBG = false;
+
+    private final HeaderFactory mHeaderFactory;
+    // request URI host -> realm of the last challenge from it
+    private final ConcurrentHashMap<String, String> mRealms =
+            new ConcurrentHashMap<String, String>();
+    // From user + realm -> current nonce
+    private final ConcurrentHashMap<String, Nonce> mNonces =
+            new ConcurrentHashMap<String, Nonce>();
+    // From user + realm -> credentials
+    private final ConcurrentHashMap<String, Credentials> mCredentials =
+            new ConcurrentHashMap<String, Credentials>();
+
+    private final AtomicLong mChallenges = new AtomicLong();
+    private final AtomicLong mPreemptive = new AtomicLong();
+
+    public DigestAuthCache(HeaderFactory headerFactory) {
+        mHeaderFactory = headerFactory;
+    }
+
+    /**
+     * Records the nonces of a 401 or 407 response and the credentials the
+     * account manager supplies for their realms.
+     */
+    public void learn(Response challenge, ClientTransaction transaction,
+            AccountManager accountManager) {
+        mChallenges.incrementAndGet();
+        Request request = transaction.getRequest();
+        String host = getHost(request.getRequestURI());
+        String user = getFromUser(request);
+        if (user == null) return;
+
+        boolean proxy = (challenge.getStatusCode()
+                == Response.PROXY_AUTHENTICATION_REQUIRED);
+        ListIterator<?> headers = challenge.getHeaders(proxy
+                ? ProxyAuthenticateHeader.NAME : WWWAuthenticateHeader.NAME);
+        while ((headers != null) && headers.hasNext()) {
+            WWWAuthenticateHeader header =
+                    (WWWAuthenticateHeader) headers.next();
+            String algorithm = header.getAlgorithm();
+            if (!"Digest".equalsIgnoreCase(header.getScheme())
+                    || ((algorithm != null)
+                            && !"MD5".equalsIgnoreCase(algorithm))) {
+                continue;
+            }
+            String realm = header.getRealm();
+            String key = user + '\n' + realm;
+            if (!header.isStale() && usedCachedNonce(request, key, realm)) {
+                if (DBG) log("credentials refused for " + key);
+                forget(key);
+                continue;
+            }
+            String previous = (host != null) ? mRealms.put(host, realm) : null;
+            if ((previous != null) && !previous.equals(realm)) {
+                invalidate(previous);
+            }
+
+            UserCredentials credentials =
+                    accountManager.getCredentials(transaction, realm);
+            if (credentials == null) continue;
+            mCredentials.put(key, new Credentials(credentials.getUserName(),
+                    DigestCalculator.ha1(credentials.getUserName(), realm,
+                            credentials.getPassword())));
+            // the retry sent by AuthenticationHelper takes the first count
+            // when it is authorized
+            mNonces.put(key, new Nonce(header.getNonce(), header.getOpaque(),
+                    selectQop(header.getQop()), proxy));
+            if (DBG) log("cached nonce for " + key);
+        }
+    }
+
+    /**
+     * Adds a preemptive Authorization (or Proxy-Authorization) header to the
+     * request if its target challenged its user before, taking the next
+     * nonce count under the lock of the credential. The request is sent
+     * after this returns, without the lock.
+     *
+     * @return true if the header was added
+     */
+    public boolean authorize(Request request) throws ParseException {
+        String key = getKey(request);
+        Nonce nonce = (key != null) ? mNonces.get(key) : null;
+        if (nonce == null) return false;
+        synchronized (nonce) {
+            return authorize(request, key, nonce);
+        }
+    }
+
+    private boolean authorize(Request request, String key, Nonce nonce)
+            throws ParseException {
+        Credentials credentials = mCredentials.get(key);
+        if (credentials == null) return false;
+        String realm = key.substring(key.indexOf('\n') + 1);
+
+        // the retry answering a challenge already carries credentials
+        boolean retry = (request.getHeader(nonce.mProxy
+                ? ProxyAuthorizationHeader.NAME
+                : AuthorizationHeader.NAME) != null);
+        URI uri = request.getRequestURI();
+        AuthorizationHeader authorization = nonce.mProxy
+                ? mHeaderFactory.createProxyAuthorizationHeader("Digest")
+                : mHeaderFactory.createAuthorizationHeader("Digest");
+        authorization.setUsername(credentials.mUserName);
+        authorization.setRealm(realm);
+        authorization.setNonce(nonce.mNonce);
+        authorization.setURI(uri);
+        authorization.setAlgorithm("MD5");
+        if (nonce.mOpaque != null) authorization.setOpaque(nonce.mOpaque);
+
+        String nc = null;
+        String cnonce = null;
+        if (nonce.mQop != null) {
+            int count = ++nonce.mCount;
+            nc = DigestCalculator.nonceCount(count);
+            cnonce = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            authorization.setQop(nonce.mQop);
+            authorization.setNonceCount(count);
+            authorization.setCNonce(cnonce);
+        }
+        authorization.setResponse(DigestCalculator.response(credentials.mHa1,
+                request.getMethod(), uri.toString(), nonce.mNonce, nc, cnonce,
+                nonce.mQop));
+        request.setHeader(authorization);
+        if (!retry) mPreemptive.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Forgets everything cached for a realm, for every user. Done by
+     * {@link #learn} when a host changed its realm.
+     */
+    public void invalidate(String realm) {
+        for (String key : mCredentials.keySet()) {
+            if (key.endsWith('\n' + realm)) forget(key);
+        }
+        for (String key : mNonces.keySet()) {
+            if (key.endsWith('\n' + realm)) mNonces.remove(key);
+        }
+    }
+
+    private void forget(String key) {
+        mNonces.remove(key);
+        mCredentials.remove(key);
+    }
+
+    public long getChallengeCount() {
+        return mChallenges.get();
+    }
+
+    public long getPreemptiveCount() {
+        return mPreemptive.get();
+    }
+
+    /**
+     * @return true if the request was authorized with the nonce currently
+     *      cached for the credential
+     */
+    private boolean usedCachedNonce(Request request, String key,
+            String realm) {
+        Nonce nonce = mNonces.get(key);
+        if (nonce == null) return false;
+        AuthorizationHeader authorization = (AuthorizationHeader)
+                request.getHeader(nonce.mProxy
+                        ? ProxyAuthorizationHeader.NAME
+                        : AuthorizationHeader.NAME);
+        return (authorization != null)
+                && realm.equals(authorization.getRealm())
+                && nonce.mNonce.equals(authorization.getNonce());
+    }
+
+    private static String selectQop(String qop) {
+        if (qop == null) return null;
+        for (String option : qop.split(",")) {
+            if ("auth".equalsIgnoreCase(option.trim())) return "auth";
+        }
+        return null;
+    }
+
+    /**
+     * @return the credential the request is sent with: its From user and the
+     *      realm its target challenged for, or null if it never did
+     */
+    private String getKey(Request request) {
+        String host = getHost(request.getRequestURI());
+        String realm = (host != null) ? mRealms.get(host) : null;
+        if (realm == null) return null;
+        String user = getFromUser(request);
+        return (user != null) ? user + '\n' + realm : null;
+    }
+
+    private static String getHost(URI uri) {
+        return (uri instanceof SipURI) ? ((SipURI) uri).getHost() : null;
+    }
+
+    private static String getFromUser(Request request) {
+        FromHeader from = (FromHeader) request.getHeader(FromHeader.NAME);
+        URI uri = (from != null) ? from.getAddress().getURI() : null;
+        return (uri instanceof SipURI) ? ((SipURI) uri).getUser() : null;
+    }
+
+    private void log(String s) {
+
+    }
+
+    private static class Nonce {
+        private final String mNonce;
+        private final String mOpaque;
+        private final String mQop;
+        private final boolean mProxy;
+        // guarded by this
+        private int mCount;
+
+        private Nonce(String nonce, String opaque, String qop, boolean proxy) {
+            mNonce = nonce;
+            mOpaque = opaque;
+            mQop = qop;
+            mProxy = proxy;
+        }
+    }
+
+    private static class Credentials {
+        private final String mUserName;
+        private final String mHa1;
+
+        private Credentials(String userName, String ha1) {
+            mUserName = userName;
+            mHa1 = ha1;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.company;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * MD5 digest computations of RFC 2617 as used by SIP digest authentication.
+ */
+public final class DigestCalculator {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> MD5 =
+            new ThreadLocal<MessageDigest>() {
+                @Override
+                protected MessageDigest initialValue() {
+                    try {
+                        return MessageDigest.getInstance("MD5");
+                    } catch (NoSuchAlgorithmException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+
+    private DigestCalculator() {
+    }
+
+    public static String md5Hex(String s) {
+        byte[] digest = MD5.get().digest(s.getBytes(StandardCharsets.UTF_8));
+        char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX[(digest[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
+
+    public static String ha1(String user, String realm, String password) {
+        return md5Hex(user + ':' + realm + ':' + password);
+    }
+
+    /**
+     * @param qop "auth" or null for the RFC 2069 compatible form, in which
+     *      case nonceCount and cnonce are ignored
+     */
+    public static String response(String ha1, String method, String uri,
+            String nonce, String nonceCount, String cnonce, String qop) {
+        String ha2 = md5Hex(method + ':' + uri);
+        if (qop == null) {
+            return md5Hex(ha1 + ':' + nonce + ':' + ha2);
+        }
+        return md5Hex(ha1 + ':' + nonce + ':' + nonceCount + ':' + cnonce
+                + ':' + qop + ':' + ha2);
+    }
+
+    /**
+     * Formats a nonce count as the eight hex digits the nc parameter takes.
+     */
+    public static String nonceCount(int count) {
+        String hex = Integer.toHexString(count);
+        return "00000000".substring(hex.length()) + hex;
+    }
+}
@@ -0,0 +1,204 @@
+package com.company;
+
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.Request;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Recognizes retransmitted requests, ACKs in particular, before they reach
+ * the handlers. A request is a duplicate when one with the same Call-ID,
+ * CSeq and top Via branch was seen within the window.
+ *
+ * <p>Requests are remembered in a fixed table of 64-bit entries, four to a
+ * bucket, each packing a fingerprint of the key with the time it was seen,
+ * so both the lookup and the insert are a few atomic reads and at most one
+ * compare-and-set, without locks or allocation. A new key takes the empty,
+ * expired or oldest entry of its bucket; when live entries have to go, the
+ * table is too small for the rate times the window, and
+ * {@link #getEvictedCount} says so.
+ *
+ * <p>Two copies racing through at the same instant may both pass, and a
+ * fingerprint collision may take a new request for a duplicate with a
+ * chance of about 2^-40; both are cheaper than locking every request.
+ */
+public class DuplicateFilter {
+    private static final String TAG = DuplicateFilter.class.getSimpleName();
+    private static final boolean DBG = false;
+
+    private static final int WAYS = 4;
+    // times are kept in ticks of about 16 ms, in the low 24 bits of an entry
+    private static final int TICK_SHIFT = 24;
+    private static final int TIME_BITS = 24;
+    private static final long TIME_MASK = (1L << TIME_BITS) - 1;
+
+    private final AtomicLongArray mEntries;
+    private final int mBucketMask;
+    private final long mWindowTicks;
+    private final long mBaseNanos = System.nanoTime();
+
+    private final AtomicLong mLookups = new AtomicLong();
+    private final AtomicLong mDuplicates = new AtomicLong();
+    private final AtomicLong mEvicted = new AtomicLong();
+
+    /**
+     * @param capacity requests remembered, rounded up to a power of two;
+     *      size it for the request rate times the window
+     * @param windowMillis how long a request is remembered; 32 s, timer H,
+     *      covers every retransmission of a transaction
+     */
+    public DuplicateFilter(int capacity, long windowMillis) {
+        int entries = (capacity > WAYS)
+                ? Integer.highestOneBit(capacity - 1) << 1 : WAYS;
+        int buckets = entries / WAYS;
+        mEntries = new AtomicLongArray(entries);
+        mBucketMask = buckets - 1;
+        mWindowTicks = (TimeUnit.MILLISECONDS.toNanos(windowMillis)
+                >>> TICK_SHIFT) + 1;
+        if (mWindowTicks >= (TIME_MASK >>> 1)) {
+            throw new IllegalArgumentException("window too long: "
+                    + windowMillis);
+        }
+    }
+
+    /**
+     * Remembers a request and tells if it was seen within the window.
+     *
+     * @return true if the request is a retransmission and should be dropped
+     */
+    public boolean isDuplicate(Request request) {
+        mLookups.incrementAndGet();
+        long hash = hash(request);
+        int bucket = (int) hash & mBucketMask;
+        // the bucket index is implied, the high bits make the fingerprint;
+        // never zero, which marks an empty entry
+        long fingerprint = (hash >>> TIME_BITS) | 1;
+        long now = ((System.nanoTime() - mBaseNanos) >>> TICK_SHIFT) & TIME_MASK;
+
+        int base = bucket * WAYS;
+        int victim = base;
+        long victimEntry = 0;
+        long victimAge = -1;
+        for (int i = base; i < base + WAYS; i++) {
+            long entry = mEntries.get(i);
+            long age = (entry == 0) ? Long.MAX_VALUE
+                    : (now - (entry & TIME_MASK)) & TIME_MASK;
+            if ((entry != 0) && ((entry >>> TIME_BITS) == fingerprint)
+                    && (age <= mWindowTicks)) {
+                mDuplicates.incrementAndGet();
+                return true;
+            }
+            if (age > victimAge) {
+                victim = i;
+                victimEntry = entry;
+                victimAge = age;
+            }
+        }
+        long entry = (fingerprint << TIME_BITS) | now;
+        // losing the race only forgets this copy
+        if (mEntries.compareAndSet(victim, victimEntry, entry)
+                && (victimEntry != 0) && (victimAge <= mWindowTicks)) {
+            mEvicted.incrementAndGet();
+            if (DBG) log("evicted a live entry, table too small");
+        }
+        return false;
+    }
+
+    public long getLookupCount() {
+        return mLookups.get();
+    }
+
+    public long getDuplicateCount() {
+        return mDuplicates.get();
+    }
+
+    /**
+     * Returns the share of requests found to be duplicates.
+     */
+    public double getHitRate() {
+        long lookups = mLookups.get();
+        return (lookups > 0) ? (double) mDuplicates.get() / lookups : 0.0;
+    }
+
+    /**
+     * Returns how many requests were forgotten before their window ended,
+     * so their retransmissions were let through.
+     */
+    public long getEvictedCount() {
+        return mEvicted.get();
+    }
+
+    public int getCapacity() {
+        return mEntries.length();
+    }
+
+    /**
+     * Returns the bytes taken by the table, fixed at construction.
+     */
+    public long getMemoryBytes() {
+        return 8L * mEntries.length();
+    }
+
+    /**
+     * Returns how many entries are within their window. Scans the whole
+     * table, so it is meant for statistics, not for every request.
+     */
+    public int getLiveCount() {
+        long now = ((System.nanoTime() - mBaseNanos) >>> TICK_SHIFT) & TIME_MASK;
+        int live = 0;
+        for (int i = 0; i < mEntries.length(); i++) {
+            long entry = mEntries.get(i);
+            if ((entry != 0)
+                    && (((now - (entry & TIME_MASK)) & TIME_MASK) <= mWindowTicks)) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    public String getStatistics() {
+        return String.format("%s: %d requests, %d duplicates (%.2f%%), "
+                        + "%d evicted, %d/%d live, %d KiB",
+                TAG, getLookupCount(), getDuplicateCount(), 100 * getHitRate(),
+                getEvictedCount(), getLiveCount(), getCapacity(),
+                getMemoryBytes() / 1024);
+    }
+
+    private static long hash(Request request) {
+        CallIdHeader callId = (CallIdHeader) request.getHeader(CallIdHeader.NAME);
+        CSeqHeader cseq = (CSeqHeader) request.getHeader(CSeqHeader.NAME);
+        ViaHeader via = (ViaHeader) request.getHeader(ViaHeader.NAME);
+        long h = 0xcbf29ce484222325L;
+        if (callId != null) h = hash(h, callId.getCallId());
+        if (cseq != null) {
+            h = (h ^ cseq.getSeqNumber()) * 0x100000001b3L;
+            // CANCEL shares the number and branch of its INVITE
+            h = hash(h, cseq.getMethod());
+        }
+        if ((via != null) && (via.getBranch() != null)) {
+            h = hash(h, via.getBranch());
+        }
+        // FNV-1a leaves the low bits weak; mix before taking the bucket
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long hash(long h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private void log(String s) {
+
+    }
+}
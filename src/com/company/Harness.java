@@ -0,0 +1,186 @@
+package com.company;
+
+import gov.nist.javax.sip.stack.NioMessageProcessorFactory;
+
+import javax.sip.InvalidArgumentException;
+import javax.sip.SipException;
+import javax.sip.SipFactory;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * What the benchmark and load harnesses have in common: the SDP they offer,
+ * the requests they parse, their stacks, a stand-in peer, heap sampling and
+ * key=value options.
+ *
+ * <p>A harness main must end with System.exit(): the stack's event scanner
+ * thread is not a daemon and keeps the JVM up after the run.
+ */
+final class Harness {
+    static final String HOST = "127.0.0.1";
+
+    static final String SDP = sdp(40000);
+
+    // raw requests as a peer would send them, to parse into RequestEvents
+    static final String INVITE = "INVITE sip:2@127.0.0.1:5060 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 127.0.0.1:15060;branch=z9hG4bK776asdhds;rport\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "To: <sip:2@127.0.0.1:5060>\r\n"
+            + "From: <sip:1@127.0.0.1:15060>;tag=1928301774\r\n"
+            + "Call-ID: a84b4c76e66710@127.0.0.1\r\n"
+            + "CSeq: 314159 INVITE\r\n"
+            + "Contact: <sip:1@127.0.0.1:15060>\r\n"
+            + "Content-Type: application/sdp\r\n"
+            + "Content-Length: " + SDP.length() + "\r\n"
+            + "\r\n"
+            + SDP;
+
+    static final String OPTIONS = "OPTIONS sip:2@127.0.0.1:5060 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 127.0.0.1:15060;branch=z9hG4bKhjhs8ass877;rport\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "To: <sip:2@127.0.0.1:5060>\r\n"
+            + "From: <sip:1@127.0.0.1:15060>;tag=1928301775\r\n"
+            + "Call-ID: a84b4c76e66711@127.0.0.1\r\n"
+            + "CSeq: 63104 OPTIONS\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    private Harness() {
+    }
+
+    /**
+     * Returns a single PCMU audio stream on the loopback address.
+     */
+    static String sdp(int port) {
+        return "v=0\r\n"
+                + "o=- 0 0 IN IP4 " + HOST + "\r\n"
+                + "s=-\r\n"
+                + "c=IN IP4 " + HOST + "\r\n"
+                + "t=0 0\r\n"
+                + "m=audio " + port + " RTP/AVP 0\r\n"
+                + "a=rtpmap:0 PCMU/8000\r\n";
+    }
+
+    /**
+     * Returns the properties harness stacks start from: the given name,
+     * automatic dialogs and the NIO message processor.
+     */
+    static Properties stackProperties(String name) {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", name);
+        properties.setProperty("javax.sip.AUTOMATIC_DIALOG_SUPPORT", "on");
+        properties.setProperty("gov.nist.javax.sip.MESSAGE_PROCESSOR_FACTORY",
+                NioMessageProcessorFactory.class.getCanonicalName());
+        return properties;
+    }
+
+    static SipProvider createProvider(String name, int port, String transport)
+            throws SipException, InvalidArgumentException {
+        return createProvider(stackProperties(name), port, transport);
+    }
+
+    /**
+     * Creates a stack with one provider listening on {@link #HOST}.
+     */
+    static SipProvider createProvider(Properties properties, int port,
+            String transport) throws SipException, InvalidArgumentException {
+        SipStack sipStack = SipFactory.getInstance().createSipStack(properties);
+        return sipStack.createSipProvider(
+                sipStack.createListeningPoint(HOST, port, transport));
+    }
+
+    /**
+     * Starts a StandInServer on {@link #HOST} with its default behaviour.
+     */
+    static StandInServer startStandIn(int port, String transport)
+            throws SipException, InvalidArgumentException, ParseException,
+            java.util.TooManyListenersException {
+        StandInServer.Options options = new StandInServer.Options();
+        options.port = port;
+        options.transports = new String[] {transport};
+        StandInServer server = new StandInServer(options);
+        server.start();
+        return server;
+    }
+
+    /**
+     * Returns the heap in use after a few collections.
+     */
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Command line options of the form key=value. Each is read once,
+     * falling back to a default when not given; what is left over is an
+     * unknown option.
+     */
+    static final class Arguments {
+        private final Map<String, String> mOptions =
+                new LinkedHashMap<String, String>();
+
+        /**
+         * @param from index of the first key=value argument; the ones
+         *      before it are positional
+         */
+        Arguments(String[] args, int from) {
+            for (int i = from; i < args.length; i++) {
+                int eq = args[i].indexOf('=');
+                if (eq < 0) {
+                    throw new IllegalArgumentException("bad option: " + args[i]);
+                }
+                mOptions.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+            }
+        }
+
+        String getString(String key, String defaultValue) {
+            String value = mOptions.remove(key);
+            return (value != null) ? value : defaultValue;
+        }
+
+        int getInt(String key, int defaultValue) {
+            String value = mOptions.remove(key);
+            return (value != null) ? Integer.parseInt(value) : defaultValue;
+        }
+
+        long getLong(String key, long defaultValue) {
+            String value = mOptions.remove(key);
+            return (value != null) ? Long.parseLong(value) : defaultValue;
+        }
+
+        double getDouble(String key, double defaultValue) {
+            String value = mOptions.remove(key);
+            return (value != null) ? Double.parseDouble(value) : defaultValue;
+        }
+
+        boolean getBoolean(String key, boolean defaultValue) {
+            String value = mOptions.remove(key);
+            return (value != null) ? Boolean.parseBoolean(value) : defaultValue;
+        }
+
+        /**
+         * Returns the options not read yet, and forgets them.
+         */
+        Map<String, String> takeRest() {
+            Map<String, String> rest = new LinkedHashMap<String, String>(mOptions);
+            mOptions.clear();
+            return rest;
+        }
+
+        /**
+         * @throws IllegalArgumentException naming the first option not read
+         */
+        void checkAllRead() {
+            if (!mOptions.isEmpty()) {
+                throw new IllegalArgumentException("unknown option: "
+                        + mOptions.keySet().iterator().next());
+            }
+        }
+    }
+}
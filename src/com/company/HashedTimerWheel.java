@@ -0,0 +1,242 @@
+package com.company;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashed timer wheel for large numbers of coarse timeouts, such as
+ * registration refreshes, retry backoff, ring-no-answer and session timers.
+ * Time advances in fixed ticks; a timeout lands in the bucket of its
+ * deadline tick modulo the wheel size, together with the number of full
+ * rounds it still has to wait. Scheduling and cancelling are each a queue
+ * insert that the wheel thread turns into an O(1) link or unlink on its next
+ * tick, and each tick only visits one bucket, so the cost does not grow with
+ * the number of pending timeouts the way a heap's does.
+ *
+ * <p>Timeouts fire on the single wheel thread, up to one tick late. Tasks
+ * must be short and must not block; anything longer should be handed to an
+ * executor with {@link #schedule(Runnable, long, TimeUnit, Executor)}.
+ */
+public class HashedTimerWheel {
+    private static final String TAG = HashedTimerWheel.class.getSimpleName();
+
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+    // a field updater instead of an AtomicInteger per timeout, which adds
+    // up with millions pending
+    private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+            AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "mState");
+
+    private final long mTickNanos;
+    private final Bucket[] mWheel;
+    private final int mMask;
+    private final ConcurrentLinkedQueue<Timeout> mScheduled =
+            new ConcurrentLinkedQueue<Timeout>();
+    private final ConcurrentLinkedQueue<Timeout> mCancelled =
+            new ConcurrentLinkedQueue<Timeout>();
+    private final AtomicLong mPendingCount = new AtomicLong();
+    private final long mStartTime;
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+    private long mTick;
+
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    public HashedTimerWheel(long tickMillis, int wheelSize) {
+        mTickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = Integer.highestOneBit(Math.max(wheelSize - 1, 1)) << 1;
+        mWheel = new Bucket[size];
+        for (int i = 0; i < size; i++) mWheel[i] = new Bucket();
+        mMask = size - 1;
+        mStartTime = System.nanoTime();
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Runs a task once after the given delay.
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (!mRunning) throw new IllegalStateException(TAG + " stopped");
+        Timeout timeout = new Timeout(task,
+                System.nanoTime() - mStartTime + unit.toNanos(delay));
+        mPendingCount.incrementAndGet();
+        mScheduled.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Runs a task on the given executor once after the given delay, keeping
+     * the wheel thread free for other timeouts.
+     */
+    public Timeout schedule(final Runnable task, long delay, TimeUnit unit,
+            final Executor executor) {
+        return schedule(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(task);
+            }
+        }, delay, unit);
+    }
+
+    /**
+     * Returns the number of timeouts that have neither fired nor been
+     * cancelled.
+     */
+    public long getPendingCount() {
+        return mPendingCount.get();
+    }
+
+    /**
+     * Stops the wheel thread. Pending timeouts never fire.
+     */
+    public void stop() throws InterruptedException {
+        mRunning = false;
+        mThread.interrupt();
+        mThread.join();
+    }
+
+    private void work() {
+        while (mRunning) {
+            long deadline = (mTick + 1) * mTickNanos;
+            long sleep = deadline - (System.nanoTime() - mStartTime);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            removeCancelled();
+            transferScheduled();
+            mWheel[(int) (mTick & mMask)].expire(deadline);
+            mTick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = mCancelled.poll()) != null) {
+            // not yet transferred ones are dropped by transferScheduled()
+            if (timeout.mBucket != null) timeout.mBucket.remove(timeout);
+        }
+    }
+
+    private void transferScheduled() {
+        Timeout timeout;
+        while ((timeout = mScheduled.poll()) != null) {
+            if (timeout.mState == CANCELLED) continue;
+            // anything already due goes into the current bucket
+            long ticks = Math.max(timeout.mDeadline / mTickNanos, mTick);
+            timeout.mRounds = (ticks - mTick) / mWheel.length;
+            mWheel[(int) (ticks & mMask)].add(timeout);
+        }
+    }
+
+    /**
+     * Handle of a scheduled task.
+     */
+    public final class Timeout {
+        private final Runnable mTask;
+        private final long mDeadline;
+        // not private, the updater of the outer class must reach it
+        volatile int mState = PENDING;
+        // owned by the wheel thread
+        private long mRounds;
+        private Bucket mBucket;
+        private Timeout mPrevious;
+        private Timeout mNext;
+
+        private Timeout(Runnable task, long deadline) {
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        /**
+         * @return false if the task already ran or was cancelled before
+         */
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) return false;
+            mPendingCount.decrementAndGet();
+            // unlinked on the next tick rather than left for its bucket
+            mCancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return mState == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return mState == EXPIRED;
+        }
+    }
+
+    private final class Bucket {
+        private Timeout mHead;
+        private Timeout mTail;
+
+        private void add(Timeout timeout) {
+            timeout.mBucket = this;
+            timeout.mPrevious = mTail;
+            timeout.mNext = null;
+            if (mTail == null) {
+                mHead = timeout;
+            } else {
+                mTail.mNext = timeout;
+            }
+            mTail = timeout;
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.mPrevious == null) {
+                mHead = timeout.mNext;
+            } else {
+                timeout.mPrevious.mNext = timeout.mNext;
+            }
+            if (timeout.mNext == null) {
+                mTail = timeout.mPrevious;
+            } else {
+                timeout.mNext.mPrevious = timeout.mPrevious;
+            }
+            timeout.mBucket = null;
+            timeout.mPrevious = null;
+            timeout.mNext = null;
+        }
+
+        private void expire(long deadline) {
+            Timeout timeout = mHead;
+            while (timeout != null) {
+                Timeout next = timeout.mNext;
+                if (timeout.mState == CANCELLED) {
+                    remove(timeout);
+                } else if (timeout.mRounds > 0) {
+                    timeout.mRounds--;
+                } else if (timeout.mDeadline <= deadline) {
+                    remove(timeout);
+                    if (STATE.compareAndSet(timeout, PENDING, EXPIRED)) {
+                        mPendingCount.decrementAndGet();
+                        try {
+                            timeout.mTask.run();
+                        } catch (RuntimeException e) {
+                            // one failing task must not stop the wheel
+                        }
+                    }
+                }
+                timeout = next;
+            }
+        }
+    }
+}
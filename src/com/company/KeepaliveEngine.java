@@ -0,0 +1,327 @@
+package com.company;
+
+import gov.nist.javax.sip.IOExceptionEventExt;
+
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.ResponseEvent;
+import javax.sip.SipException;
+import javax.sip.address.SipURI;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.Request;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the flows of registrations alive and notices when they die.
+ *
+ * <p>A flow is the path to one registrar, identified by transport, host and
+ * port; all profiles registered over it share its pings. TCP and TLS flows
+ * get RFC 5626 double-CRLF pings on the existing connection. UDP and
+ * WebSocket flows get OPTIONS: the request is built once per flow and each
+ * ping sends a stateless copy with only branch and CSeq patched, so pings
+ * create no transactions, and carry a preemptive Authorization computed
+ * afresh for each ping. All flows are driven by one timer wheel, which only
+ * hands the pings to an executor, so a slow send cannot hold up the timers
+ * of other flows.
+ *
+ * <p>A flow misses a ping when a CRLF write fails or an OPTIONS has no
+ * response by the next ping; any response counts as alive. A CRLF ping whose
+ * pong does not come back within the pong timeout makes the stack close the
+ * connection and raise an IOExceptionEvent with reason KeepAliveTimeout,
+ * which counts as a miss as well. After a number of misses in a row, or an
+ * IOExceptionEvent for its target, the listener is told for each profile of
+ * the flow, typically to re-register. Pinging goes on, so the flow recovers
+ * once a new connection is up.
+ */
+public class KeepaliveEngine {
+    private static final String TAG = KeepaliveEngine.class.getSimpleName();
+    private static final boolean DBG = false;
+
+    /**
+     * Receives flow failures, on the wheel or listener thread.
+     */
+    public interface Listener {
+        void onFlowFailed(SipURI profile);
+    }
+
+    private final SipHelper mSipHelper;
+    private final HashedTimerWheel mWheel;
+    private final Executor mExecutor;
+    private final long mIntervalMillis;
+    private final int mMaxMissed;
+    private final long mPongTimeoutMillis;
+    private final Listener mListener;
+    private final ConcurrentHashMap<String, Flow> mFlows =
+            new ConcurrentHashMap<String, Flow>();
+    // branch of the outstanding OPTIONS ping -> its flow
+    private final ConcurrentHashMap<String, Flow> mPings =
+            new ConcurrentHashMap<String, Flow>();
+
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mMissed = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+
+    /**
+     * @param executor runs the pings the wheel schedules
+     * @param intervalMillis time between two pings of a flow
+     * @param maxMissed pings missed in a row before a flow counts as failed
+     * @param pongTimeoutMillis time a CRLF ping waits for its pong, or 0 to
+     *         not wait; the stack only reports a missing pong to a
+     *         SipListenerExt
+     */
+    public KeepaliveEngine(SipHelper sipHelper, HashedTimerWheel wheel,
+            Executor executor, long intervalMillis, int maxMissed,
+            long pongTimeoutMillis, Listener listener) {
+        mSipHelper = sipHelper;
+        mWheel = wheel;
+        mExecutor = executor;
+        mIntervalMillis = intervalMillis;
+        mMaxMissed = maxMissed;
+        mPongTimeoutMillis = pongTimeoutMillis;
+        mListener = listener;
+    }
+
+    /**
+     * Starts keeping the flow of a registered profile alive. The first ping
+     * goes out at a random point within one interval.
+     */
+    public void add(SipURI profile) throws SipException {
+        String key = getKey(profile);
+        while (true) {
+            Flow flow = mFlows.get(key);
+            if (flow == null) {
+                Flow created = createFlow(profile);
+                flow = mFlows.putIfAbsent(key, created);
+                if (flow == null) {
+                    flow = created;
+                    synchronized (flow) {
+                        schedule(flow, ThreadLocalRandom.current()
+                                .nextLong(mIntervalMillis));
+                    }
+                }
+            }
+            synchronized (flow) {
+                // a flow that just lost its last profile is replaced
+                if (!flow.mRemoved) {
+                    flow.mProfiles.add(profile);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops pinging for a profile; the flow goes once no profile uses it.
+     */
+    public void remove(SipURI profile) {
+        Flow flow = mFlows.get(getKey(profile));
+        if (flow == null) return;
+        synchronized (flow) {
+            flow.mProfiles.remove(profile);
+            if (flow.mProfiles.isEmpty()) {
+                mFlows.remove(flow.mKey, flow);
+                flow.mRemoved = true;
+                if (flow.mTimeout != null) flow.mTimeout.cancel();
+                if (flow.mPendingBranch != null) {
+                    mPings.remove(flow.mPendingBranch);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the response answered a keepalive
+     */
+    public boolean processResponse(ResponseEvent responseEvent) {
+        if (responseEvent.getClientTransaction() != null) return false;
+        ViaHeader via = (ViaHeader) responseEvent.getResponse()
+                .getHeader(ViaHeader.NAME);
+        String branch = (via != null) ? via.getBranch() : null;
+        Flow flow = (branch != null) ? mPings.remove(branch) : null;
+        if (flow == null) return false;
+        synchronized (flow) {
+            if (branch.equals(flow.mPendingBranch)) {
+                flow.mPendingBranch = null;
+                flow.mMissed = 0;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Fails the flows the stack could not send to, or whose pong it missed.
+     */
+    public void processIOException(IOExceptionEvent ioExceptionEvent) {
+        String transport = ioExceptionEvent.getTransport();
+        String host = ioExceptionEvent.getHost();
+        boolean pongMissed = (ioExceptionEvent instanceof IOExceptionEventExt)
+                && (((IOExceptionEventExt) ioExceptionEvent).getReason()
+                        == IOExceptionEventExt.Reason.KeepAliveTimeout);
+        for (Flow flow : mFlows.values()) {
+            if ((flow.mPort == ioExceptionEvent.getPort())
+                    && flow.mTransport.equalsIgnoreCase(transport)
+                    && (flow.mHost.equalsIgnoreCase(host)
+                            || flow.mAddress.equals(host))) {
+                if (pongMissed) mMissed.incrementAndGet();
+                fail(flow);
+            }
+        }
+    }
+
+    public int getFlowCount() {
+        return mFlows.size();
+    }
+
+    public long getSentCount() {
+        return mSent.get();
+    }
+
+    public long getMissedCount() {
+        return mMissed.get();
+    }
+
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    private Flow createFlow(SipURI profile) throws SipException {
+        String transport = getTransport(profile);
+        String address;
+        try {
+            address = InetAddress.getByName(profile.getHost()).getHostAddress();
+        } catch (UnknownHostException e) {
+            throw new SipException("add(): " + profile.getHost(), e);
+        }
+        // WebSocket has its own ping frames; SIP over it only knows OPTIONS
+        boolean crlf = ListeningPoint.TCP.equalsIgnoreCase(transport)
+                || ListeningPoint.TLS.equalsIgnoreCase(transport);
+        return new Flow(getKey(profile), profile.getHost(), address,
+                getPort(profile, transport), transport,
+                crlf ? null : mSipHelper.createKeepalive(profile),
+                mSipHelper.getIdentifiers().newSequenceNumber());
+    }
+
+    private void schedule(final Flow flow, long delayMillis) {
+        flow.mTimeout = mWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            ping(flow);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // shutting down; the flow is not pinged again
+                    if (DBG) log("keepalive to " + flow.mKey + " rejected");
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void ping(Flow flow) {
+        boolean failed = false;
+        synchronized (flow) {
+            if (flow.mRemoved) return;
+            if (flow.mPendingBranch != null) {
+                mPings.remove(flow.mPendingBranch);
+                flow.mPendingBranch = null;
+                failed = miss(flow);
+            }
+            try {
+                if (flow.mTemplate == null) {
+                    mSipHelper.sendHeartbeat(flow.mAddress, flow.mPort,
+                            flow.mTransport, mPongTimeoutMillis);
+                } else {
+                    String branch = mSipHelper.sendKeepalive(flow.mTemplate,
+                            ++flow.mSequence);
+                    flow.mPendingBranch = branch;
+                    mPings.put(branch, flow);
+                }
+                mSent.incrementAndGet();
+            } catch (SipException e) {
+                if (DBG) log("keepalive to " + flow.mKey + " failed: " + e);
+                failed |= miss(flow);
+            }
+            schedule(flow, mIntervalMillis);
+        }
+        if (failed) fail(flow);
+    }
+
+    /**
+     * @return true if the flow just reached the miss limit
+     */
+    private boolean miss(Flow flow) {
+        mMissed.incrementAndGet();
+        if (++flow.mMissed < mMaxMissed) return false;
+        flow.mMissed = 0;
+        return true;
+    }
+
+    private void fail(Flow flow) {
+        mFailures.incrementAndGet();
+        for (SipURI profile : flow.mProfiles) {
+            mListener.onFlowFailed(profile);
+        }
+    }
+
+    private static String getKey(SipURI profile) {
+        String transport = getTransport(profile);
+        return transport.toLowerCase() + ':' + profile.getHost() + ':'
+                + getPort(profile, transport);
+    }
+
+    private static String getTransport(SipURI profile) {
+        String transport = profile.getTransportParam();
+        return (transport != null) ? transport : ListeningPoint.UDP;
+    }
+
+    private static int getPort(SipURI profile, String transport) {
+        if (profile.getPort() > 0) return profile.getPort();
+        return ListeningPoint.TLS.equalsIgnoreCase(transport)
+                ? ListeningPoint.PORT_5061 : ListeningPoint.PORT_5060;
+    }
+
+    private void log(String s) {
+
+    }
+
+    private static class Flow {
+        private final String mKey;
+        private final String mHost;
+        private final String mAddress;
+        private final int mPort;
+        private final String mTransport;
+        // OPTIONS to send, or null for CRLF pings
+        private final Request mTemplate;
+        private final Set<SipURI> mProfiles =
+                ConcurrentHashMap.<SipURI>newKeySet();
+
+        // guarded by this
+        private long mSequence;
+        private String mPendingBranch;
+        private int mMissed;
+        private boolean mRemoved;
+        private HashedTimerWheel.Timeout mTimeout;
+
+        private Flow(String key, String host, String address, int port,
+                String transport, Request template, long sequence) {
+            mKey = key;
+            mHost = host;
+            mAddress = address;
+            mPort = port;
+            mTransport = transport;
+            mTemplate = template;
+            mSequence = sequence;
+        }
+    }
+}
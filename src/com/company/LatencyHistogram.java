@@ -0,0 +1,122 @@
+package com.company;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent log-linear latency histogram in microseconds. Every power of two
+ * range is split into 16 buckets, which bounds the error of any reported
+ * percentile to about 6%. Recording is a couple of atomic increments and
+ * never allocates.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKET_HALF = 1 << (SUB_BUCKET_BITS - 1);
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS + 2)
+            * SUB_BUCKET_HALF;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void recordNanos(long nanos) {
+        record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void record(long micros) {
+        if (micros < 0) micros = 0;
+        mBuckets.incrementAndGet(indexOf(micros));
+        mCount.incrementAndGet();
+        mSum.addAndGet(micros);
+        long max = mMax.get();
+        while ((micros > max) && !mMax.compareAndSet(max, micros)) {
+            max = mMax.get();
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public double getMean() {
+        long count = mCount.get();
+        return (count == 0) ? 0 : (double) mSum.get() / count;
+    }
+
+    /**
+     * @param percentile in the range 0..100
+     * @return the upper bound in microseconds of the bucket holding the
+     *      given percentile, or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) count += mBuckets.get(i);
+        if (count == 0) return 0;
+
+        long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return Math.min(valueOf(i + 1) - 1, mMax.get());
+            }
+        }
+        return mMax.get();
+    }
+
+    /**
+     * Moves everything recorded so far into the given histogram, leaving this
+     * one empty. Concurrent recordings land in one of the two.
+     */
+    public void drainTo(LatencyHistogram target) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            long n = mBuckets.getAndSet(i, 0);
+            if (n != 0) target.mBuckets.addAndGet(i, n);
+        }
+        target.mCount.addAndGet(mCount.getAndSet(0));
+        target.mSum.addAndGet(mSum.getAndSet(0));
+        long max = mMax.getAndSet(0);
+        long targetMax = target.mMax.get();
+        while ((max > targetMax) && !target.mMax.compareAndSet(targetMax, max)) {
+            targetMax = target.mMax.get();
+        }
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) mBuckets.set(i, 0);
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    /**
+     * Returns a one-line summary of count and percentiles, in milliseconds.
+     */
+    public String summary() {
+        return String.format("n=%d mean=%.2f p50=%.2f p90=%.2f p99=%.2f "
+                        + "p99.9=%.2f max=%.2f ms",
+                getCount(), getMean() / 1000, getPercentile(50) / 1000.0,
+                getPercentile(90) / 1000.0, getPercentile(99) / 1000.0,
+                getPercentile(99.9) / 1000.0, getMax() / 1000.0);
+    }
+
+    private static int indexOf(long value) {
+        if (value < (1 << SUB_BUCKET_BITS)) return (int) value;
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int mantissa = (int) (value >>> shift);
+        return shift * SUB_BUCKET_HALF + mantissa;
+    }
+
+    private static long valueOf(int index) {
+        if (index < (1 << SUB_BUCKET_BITS)) return index;
+        int shift = index / SUB_BUCKET_HALF - 1;
+        long mantissa = index % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return mantissa << shift;
+    }
+}
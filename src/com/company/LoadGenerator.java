@@ -0,0 +1,507 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+import gov.nist.javax.sip.clientauthutils.AccountManager;
+import gov.nist.javax.sip.clientauthutils.UserCredentials;
+
+import javax.sip.*;
+import javax.sip.address.SipURI;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Open-loop SIP load generator built on SipHelper. Simulated user agents
+ * send REGISTERs, place INVITE/ACK/BYE calls, or place calls and CANCEL them
+ * once they ring, on a fixed schedule derived from the target rate, so a
+ * slow server does not lower the offered load. Latency is measured from the
+ * scheduled send time, not the actual one, so queueing inside the generator
+ * is charged to the result; a cancelled call completes with its 487. Every
+ * attempt uses a fresh Call-ID, so it can be correlated before it is sent.
+ * Rates are taken over the measured time the load was offered, and until
+ * the last completion.
+ *
+ * <p>Usage: LoadGenerator host port [mode=register|call|cancel] [rate=100]
+ * [users=1000] [duration=60] [transport=udp] [localPort=15000]
+ * [password=secret] [hold=1000] [threads=4] [standin=false]
+ *
+ * <p>With standin=true an embedded StandInServer is started on host:port,
+ * which must then be a local address. In cancel mode it answers calls
+ * after the hold time, so the CANCEL gets there first.
+ */
+public class LoadGenerator implements SipListener {
+    private final Options mOptions;
+    private final SipStack mSipStack;
+    private final SipProvider mSipProvider;
+    private final SipHelper mSipHelper;
+    private final SipURI[] mProfiles;
+    private final AccountManager mAccountManager;
+
+    private final ScheduledExecutorService mScheduler =
+            Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService mSenders;
+    private final ConcurrentHashMap<String, Attempt> mPending =
+            new ConcurrentHashMap<String, Attempt>();
+    // sends handed to the senders but not made yet
+    private final AtomicInteger mQueued = new AtomicInteger();
+    // established calls whose BYE has not gone out yet
+    private final AtomicInteger mHangUps = new AtomicInteger();
+
+    private final AtomicLong mOffered = new AtomicLong();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mTimeouts = new AtomicLong();
+    private final AtomicLong mSendFailures = new AtomicLong();
+    // cancelled calls answered before the CANCEL got there
+    private final AtomicLong mAnsweredCancels = new AtomicLong();
+    private final AtomicLong mIOExceptions = new AtomicLong();
+    private final AtomicLongArray mErrorsByClass = new AtomicLongArray(7);
+    private final LatencyHistogram mInterval = new LatencyHistogram();
+    private final LatencyHistogram mTotal = new LatencyHistogram();
+
+    private long mStartTime;
+    private long mStopTime;
+    private volatile long mLastCompletionTime;
+    private long mScheduled;
+    private long mLastCompleted;
+
+    private LoadGenerator(Options options) throws SipException,
+            InvalidArgumentException, ParseException,
+            java.util.TooManyListenersException {
+        mOptions = options;
+
+        mSipProvider = Harness.createProvider("im.dlg.sip.load",
+                options.localPort, options.transport);
+        mSipStack = mSipProvider.getSipStack();
+        mSipProvider.addSipListener(this);
+        mSipHelper = new SipHelper(mSipStack, mSipProvider);
+        mSenders = Executors.newFixedThreadPool(options.threads);
+
+        mProfiles = new SipURI[options.users];
+        for (int i = 0; i < options.users; i++) {
+            SipURI profile = new SipUri();
+            profile.setUser("load" + i);
+            profile.setUserPassword(options.password);
+            profile.setHost(options.host);
+            profile.setPort(options.port);
+            profile.setTransportParam(options.transport.toLowerCase());
+            mProfiles[i] = profile;
+        }
+        byte[] sdp = Harness.SDP.getBytes(StandardCharsets.US_ASCII);
+        SessionDescription offer = SessionDescription.parse(sdp, 0, sdp.length);
+        for (SipURI profile : mProfiles) {
+            mSipHelper.setOfferTemplate(profile, offer);
+        }
+
+        mAccountManager = new AccountManager() {
+            @Override
+            public UserCredentials getCredentials(
+                    ClientTransaction transaction, final String realm) {
+                final SipURI uri = (SipURI) transaction.getRequest()
+                        .getRequestURI();
+                final String user = ((SipURI) ((FromHeader) transaction
+                        .getRequest().getHeader(FromHeader.NAME))
+                        .getAddress().getURI()).getUser();
+                return new UserCredentials() {
+                    @Override
+                    public String getUserName() {
+                        return user;
+                    }
+
+                    @Override
+                    public String getPassword() {
+                        return mOptions.password;
+                    }
+
+                    @Override
+                    public String getSipDomain() {
+                        return uri.getHost();
+                    }
+                };
+            }
+        };
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("usage: LoadGenerator host port [key=value...]");
+            System.exit(2);
+        }
+        Options options = Options.parse(args);
+        StandInServer standIn = null;
+        if (options.standIn) {
+            StandInServer.Options standInOptions = new StandInServer.Options();
+            standInOptions.port = options.port;
+            standInOptions.transports = new String[] {options.transport};
+            standInOptions.password = options.password;
+            if ("cancel".equals(options.mode)) {
+                standInOptions.ringDelay = options.hold;
+            }
+            standIn = new StandInServer(standInOptions);
+            standIn.start();
+        }
+        new LoadGenerator(options).run();
+        if (standIn != null) {
+            System.out.println("stand-in: " + standIn.getStatistics());
+            standIn.stop();
+        }
+        System.exit(0);
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println(String.format("%s load at %d/s over %d users for %d s",
+                mOptions.mode, mOptions.rate, mOptions.users,
+                mOptions.duration));
+        mStartTime = System.nanoTime();
+        ScheduledFuture<?> ticks = mScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        }, 0, 1, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> reports = mScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report();
+            }
+        }, 1, 1, TimeUnit.SECONDS);
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(mOptions.duration));
+        // stop offering load, but keep the scheduler for the hang-ups of
+        // calls still being answered
+        ticks.cancel(false);
+        mStopTime = System.nanoTime();
+        reports.cancel(false);
+
+        // let outstanding transactions complete or time out, and the calls
+        // they establish hang up
+        long deadline = System.currentTimeMillis() + 32000 + mOptions.hold;
+        while (((mQueued.get() > 0) || !mPending.isEmpty()
+                || (mHangUps.get() > 0))
+                && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(100);
+        }
+        mScheduler.shutdown();
+        mScheduler.awaitTermination(mOptions.hold + 1000, TimeUnit.MILLISECONDS);
+        mSenders.shutdown();
+        mSenders.awaitTermination(5, TimeUnit.SECONDS);
+        mInterval.drainTo(mTotal);
+        summarize();
+        mSipStack.stop();
+    }
+
+    /**
+     * Issues every send whose scheduled time has passed, regardless of how
+     * many are still outstanding.
+     */
+    private void tick() {
+        long elapsed = System.nanoTime() - mStartTime;
+        long due = elapsed * mOptions.rate / TimeUnit.SECONDS.toNanos(1);
+        while (mScheduled < due) {
+            final long intended = mStartTime
+                    + mScheduled * TimeUnit.SECONDS.toNanos(1) / mOptions.rate;
+            final int user = (int) (mScheduled % mOptions.users);
+            mScheduled++;
+            mOffered.incrementAndGet();
+            mQueued.incrementAndGet();
+            mSenders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        send(user, intended);
+                    } finally {
+                        mQueued.decrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+
+    private void send(int user, long intended) {
+        String tag = mSipHelper.getIdentifiers().newTag();
+        CallIdHeader callIdHeader;
+        try {
+            callIdHeader = mSipHelper.newCallIdHeader();
+        } catch (SipException e) {
+            mSendFailures.incrementAndGet();
+            return;
+        }
+        mPending.put(callIdHeader.getCallId(), new Attempt(intended));
+        try {
+            if ("call".equals(mOptions.mode)
+                    || "cancel".equals(mOptions.mode)) {
+                SipURI callee = mProfiles[(user + 1) % mOptions.users];
+                mSipHelper.sendInvite(mProfiles[user], callee,
+                        mSipHelper.newOffer(mProfiles[user]), tag, null, null,
+                        callIdHeader);
+            } else {
+                mSipHelper.sendRegister(mProfiles[user], tag, 3600,
+                        callIdHeader);
+            }
+        } catch (SipException e) {
+            mPending.remove(callIdHeader.getCallId());
+            mSendFailures.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void processRequest(RequestEvent requestEvent) {
+        String method = requestEvent.getRequest().getMethod();
+        if (Request.ACK.equals(method)) return;
+        try {
+            mSipHelper.sendResponse(requestEvent, Response.OK);
+        } catch (SipException e) {
+            mSendFailures.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void processResponse(ResponseEvent responseEvent) {
+        mSipHelper.getConnectionCoalescer().onResponse(responseEvent);
+        ClientTransaction transaction = responseEvent.getClientTransaction();
+        if (transaction == null) return;
+        Response response = responseEvent.getResponse();
+        int status = response.getStatusCode();
+        String method = ((CSeqHeader) response.getHeader(CSeqHeader.NAME))
+                .getMethod();
+        if (status < 200) {
+            if ((status >= Response.RINGING) && "cancel".equals(mOptions.mode)
+                    && Request.INVITE.equals(method)) {
+                cancel(SipHelper.getCallId(responseEvent), transaction);
+            }
+            return;
+        }
+        if (Request.BYE.equals(method) || Request.CANCEL.equals(method)) {
+            return;
+        }
+
+        String callId = SipHelper.getCallId(responseEvent);
+        Attempt attempt = mPending.remove(callId);
+        if (attempt == null) return;
+
+        if (((status == Response.UNAUTHORIZED)
+                || (status == Response.PROXY_AUTHENTICATION_REQUIRED))
+                && (mOptions.password != null) && !attempt.challenged) {
+            try {
+                attempt.challenged = true;
+                mPending.put(callId, attempt);
+                mSipHelper.handleChallenge(responseEvent, mAccountManager);
+            } catch (SipException e) {
+                mPending.remove(callId);
+                mSendFailures.incrementAndGet();
+            }
+            return;
+        }
+
+        long now = System.nanoTime();
+        long latency = now - attempt.intended;
+        boolean cancelled = (status == Response.REQUEST_TERMINATED)
+                && attempt.cancelled;
+        if ((status >= 300) && !cancelled) {
+            mErrorsByClass.incrementAndGet(status / 100);
+            return;
+        }
+        if (attempt.cancelled && (status < 300)) {
+            // the answer crossed the CANCEL; the call is up and is hung up
+            // at once below
+            mAnsweredCancels.incrementAndGet();
+        } else {
+            mCompleted.incrementAndGet();
+            mLastCompletionTime = now;
+            mInterval.recordNanos(latency);
+        }
+        if (cancelled) return;
+
+        if (Request.INVITE.equals(method)) {
+            final Dialog dialog = responseEvent.getDialog();
+            try {
+                mSipHelper.sendInviteAck(responseEvent, dialog);
+            } catch (SipException e) {
+                mSendFailures.incrementAndGet();
+                return;
+            }
+            mHangUps.incrementAndGet();
+            if (attempt.cancelled) {
+                hangUp(dialog);
+                return;
+            }
+            try {
+                mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        hangUp(dialog);
+                    }
+                }, mOptions.hold, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // answered after the drain deadline; do not leave it up
+                hangUp(dialog);
+            }
+        }
+    }
+
+    /**
+     * Cancels a ringing call, once.
+     */
+    private void cancel(String callId, ClientTransaction invite) {
+        Attempt attempt = mPending.get(callId);
+        if ((attempt == null) || attempt.cancelled) return;
+        attempt.cancelled = true;
+        try {
+            mSipHelper.sendCancel(invite);
+        } catch (SipException e) {
+            // the INVITE completes with its final response regardless
+            mSendFailures.incrementAndGet();
+        }
+    }
+
+    private void hangUp(final Dialog dialog) {
+        Runnable bye = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mSipHelper.sendBye(dialog);
+                } catch (SipException e) {
+                    mSendFailures.incrementAndGet();
+                } finally {
+                    mHangUps.decrementAndGet();
+                }
+            }
+        };
+        try {
+            mSenders.execute(bye);
+        } catch (RejectedExecutionException e) {
+            bye.run();
+        }
+    }
+
+    @Override
+    public void processTimeout(TimeoutEvent timeoutEvent) {
+        mSipHelper.getConnectionCoalescer().onTimeout(timeoutEvent);
+        if (timeoutEvent.isServerTransaction()) return;
+        if (mPending.remove(SipHelper.getCallId(
+                timeoutEvent.getClientTransaction())) != null) {
+            mTimeouts.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void processIOException(IOExceptionEvent ioExceptionEvent) {
+        mSipHelper.getConnectionCoalescer().onIOException(ioExceptionEvent);
+        mIOExceptions.incrementAndGet();
+    }
+
+    @Override
+    public void processTransactionTerminated(
+            TransactionTerminatedEvent transactionTerminatedEvent) {
+    }
+
+    @Override
+    public void processDialogTerminated(
+            DialogTerminatedEvent dialogTerminatedEvent) {
+    }
+
+    private void report() {
+        long completed = mCompleted.get();
+        LatencyHistogram interval = new LatencyHistogram();
+        mInterval.drainTo(interval);
+        System.out.println(String.format(
+                "offered=%d/s achieved=%d/s pending=%d errors=%s %s",
+                mOptions.rate, completed - mLastCompleted, mPending.size(),
+                errors(), interval.summary()));
+        mLastCompleted = completed;
+        interval.drainTo(mTotal);
+    }
+
+    private void summarize() {
+        double offering = (mStopTime - mStartTime) / 1e9;
+        long last = mLastCompletionTime;
+        double completing = (last > mStartTime)
+                ? (last - mStartTime) / 1e9 : offering;
+        System.out.println(String.format(
+                "offered %d (%.1f/s over %.1f s), completed %d (%.1f/s over "
+                        + "%.1f s), errors %s",
+                mOffered.get(), mOffered.get() / offering, offering,
+                mCompleted.get(), mCompleted.get() / completing, completing,
+                errors()));
+        if ("cancel".equals(mOptions.mode)) {
+            System.out.println("answered before the CANCEL "
+                    + mAnsweredCancels.get());
+        }
+        System.out.println("latency " + mTotal.summary());
+        DigestAuthCache auth = mSipHelper.getDigestAuthCache();
+        System.out.println(String.format("auth challenges %d, preemptive %d",
+                auth.getChallengeCount(), auth.getPreemptiveCount()));
+    }
+
+    private String errors() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 3; i < 7; i++) {
+            sb.append(i).append("xx:").append(mErrorsByClass.get(i))
+                    .append(' ');
+        }
+        sb.append("timeout:").append(mTimeouts.get())
+                .append(" io:").append(mIOExceptions.get())
+                .append(" send:").append(mSendFailures.get());
+        return sb.toString();
+    }
+
+    private static class Attempt {
+        private final long intended;
+        private volatile boolean challenged;
+        private volatile boolean cancelled;
+
+        private Attempt(long intended) {
+            this.intended = intended;
+        }
+    }
+
+    private static class Options {
+        private String host;
+        private int port;
+        private String mode = "register";
+        private int rate = 100;
+        private int users = 1000;
+        private int duration = 60;
+        private String transport = ListeningPoint.UDP;
+        private int localPort = 15000;
+        private String password;
+        private int hold = 1000;
+        private int threads = 4;
+        private boolean standIn;
+
+        private static Options parse(String[] args) {
+            Harness.Arguments arguments = new Harness.Arguments(args, 2);
+            Options options = new Options();
+            options.host = args[0];
+            options.port = Integer.parseInt(args[1]);
+            options.mode = arguments.getString("mode", options.mode);
+            options.rate = arguments.getInt("rate", options.rate);
+            options.users = arguments.getInt("users", options.users);
+            options.duration = arguments.getInt("duration", options.duration);
+            options.transport = arguments.getString("transport",
+                    options.transport).toUpperCase();
+            options.localPort = arguments.getInt("localPort",
+                    options.localPort);
+            options.password = arguments.getString("password",
+                    options.password);
+            options.hold = arguments.getInt("hold", options.hold);
+            options.threads = arguments.getInt("threads", options.threads);
+            options.standIn = arguments.getBoolean("standin", options.standIn);
+            arguments.checkAllRead();
+            return options;
+        }
+    }
+}
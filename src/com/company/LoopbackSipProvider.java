@@ -0,0 +1,271 @@
+package com.company;
+
+import javax.sip.*;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.text.ParseException;
+import java.util.TooManyListenersException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SipProvider stand-in that never touches the network: transactions record
+ * what would have been sent and drop it. Lets benchmarks exercise SipHelper's
+ * message construction without a stack or a peer.
+ */
+public class LoopbackSipProvider implements SipProvider {
+    private final ListeningPoint mListeningPoint;
+    private final SipIdentifiers mIdentifiers = new SipIdentifiers();
+    private final HeaderFactory mHeaderFactory;
+    private final AtomicLong mRequestsSent = new AtomicLong();
+    private final AtomicLong mResponsesSent = new AtomicLong();
+    private volatile Object mLastSent;
+
+    public LoopbackSipProvider(String ip, int port, String transport) {
+        mListeningPoint = new LoopbackListeningPoint(ip, port, transport);
+        try {
+            mHeaderFactory = SipFactory.getInstance().createHeaderFactory();
+        } catch (PeerUnavailableException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public long getRequestsSent() {
+        return mRequestsSent.get();
+    }
+
+    public long getResponsesSent() {
+        return mResponsesSent.get();
+    }
+
+    /**
+     * Returns the last request or response handed to a transaction, which
+     * keeps the benchmarked work observable.
+     */
+    public Object getLastSent() {
+        return mLastSent;
+    }
+
+    @Override
+    public void addSipListener(SipListener sipListener)
+            throws TooManyListenersException {
+    }
+
+    @Override
+    public void removeSipListener(SipListener sipListener) {
+    }
+
+    @Override
+    public SipStack getSipStack() {
+        return null;
+    }
+
+    @Override
+    public ListeningPoint getListeningPoint() {
+        return mListeningPoint;
+    }
+
+    @Override
+    public ListeningPoint[] getListeningPoints() {
+        return new ListeningPoint[] {mListeningPoint};
+    }
+
+    @Override
+    public ListeningPoint getListeningPoint(String transport) {
+        return mListeningPoint.getTransport().equalsIgnoreCase(transport)
+                ? mListeningPoint : null;
+    }
+
+    @Override
+    public void setListeningPoint(ListeningPoint listeningPoint)
+            throws ObjectInUseException {
+        throw new ObjectInUseException("loopback provider has one listening point");
+    }
+
+    @Override
+    public void addListeningPoint(ListeningPoint listeningPoint)
+            throws ObjectInUseException {
+        throw new ObjectInUseException("loopback provider has one listening point");
+    }
+
+    @Override
+    public void removeListeningPoint(ListeningPoint listeningPoint)
+            throws ObjectInUseException {
+        throw new ObjectInUseException("loopback provider has one listening point");
+    }
+
+    @Override
+    public CallIdHeader getNewCallId() {
+        // the same generator SipHelper.newCallIdHeader() uses
+        try {
+            return mHeaderFactory.createCallIdHeader(mIdentifiers.newCallId());
+        } catch (ParseException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public ClientTransaction getNewClientTransaction(Request request) {
+        return new LoopbackClientTransaction(request);
+    }
+
+    @Override
+    public ServerTransaction getNewServerTransaction(Request request) {
+        return new LoopbackServerTransaction(request);
+    }
+
+    @Override
+    public void sendRequest(Request request) {
+        mLastSent = request;
+        mRequestsSent.incrementAndGet();
+    }
+
+    @Override
+    public void sendResponse(Response response) {
+        mLastSent = response;
+        mResponsesSent.incrementAndGet();
+    }
+
+    @Override
+    public Dialog getNewDialog(Transaction transaction) throws SipException {
+        throw new SipException("loopback provider has no dialogs");
+    }
+
+    @Override
+    public void setAutomaticDialogSupportEnabled(boolean flag) {
+    }
+
+    private abstract class LoopbackTransaction implements Transaction {
+        private final Request mRequest;
+        private Object mApplicationData;
+        TransactionState mState;
+
+        LoopbackTransaction(Request request, TransactionState state) {
+            mRequest = request;
+            mState = state;
+        }
+
+        @Override
+        public Dialog getDialog() {
+            return null;
+        }
+
+        @Override
+        public TransactionState getState() {
+            return mState;
+        }
+
+        @Override
+        public int getRetransmitTimer() {
+            return 500;
+        }
+
+        @Override
+        public void setRetransmitTimer(int retransmitTimer) {
+        }
+
+        @Override
+        public String getBranchId() {
+            ViaHeader via = (ViaHeader) mRequest.getHeader(ViaHeader.NAME);
+            return (via == null) ? null : via.getBranch();
+        }
+
+        @Override
+        public Request getRequest() {
+            return mRequest;
+        }
+
+        @Override
+        public void setApplicationData(Object applicationData) {
+            mApplicationData = applicationData;
+        }
+
+        @Override
+        public Object getApplicationData() {
+            return mApplicationData;
+        }
+
+        @Override
+        public void terminate() {
+            mState = TransactionState.TERMINATED;
+        }
+    }
+
+    private class LoopbackClientTransaction extends LoopbackTransaction
+            implements ClientTransaction {
+        LoopbackClientTransaction(Request request) {
+            super(request, TransactionState.CALLING);
+        }
+
+        @Override
+        public void sendRequest() {
+            LoopbackSipProvider.this.sendRequest(getRequest());
+        }
+
+        @Override
+        public Request createCancel() throws SipException {
+            throw new SipException("not supported by the loopback provider");
+        }
+
+        @Override
+        public Request createAck() throws SipException {
+            throw new SipException("not supported by the loopback provider");
+        }
+    }
+
+    private class LoopbackServerTransaction extends LoopbackTransaction
+            implements ServerTransaction {
+        LoopbackServerTransaction(Request request) {
+            super(request, TransactionState.PROCEEDING);
+        }
+
+        @Override
+        public void sendResponse(Response response) {
+            LoopbackSipProvider.this.sendResponse(response);
+        }
+
+        @Override
+        public void enableRetransmissionAlerts() {
+        }
+    }
+
+    private static class LoopbackListeningPoint implements ListeningPoint {
+        private final String mIp;
+        private final int mPort;
+        private final String mTransport;
+        private String mSentBy;
+
+        LoopbackListeningPoint(String ip, int port, String transport) {
+            mIp = ip;
+            mPort = port;
+            mTransport = transport;
+        }
+
+        @Override
+        public int getPort() {
+            return mPort;
+        }
+
+        @Override
+        public String getTransport() {
+            return mTransport;
+        }
+
+        @Override
+        public String getIPAddress() {
+            return mIp;
+        }
+
+        @Override
+        public void setSentBy(String sentBy) {
+            mSentBy = sentBy;
+        }
+
+        @Override
+        public String getSentBy() {
+            return (mSentBy != null) ? mSentBy : mIp + ':' + mPort;
+        }
+    }
+}
@@ -4,16 +4,72 @@ import gov.nist.javax.sip.address.SipUri;
 import gov.nist.javax.sip.stack.NioMessageProcessorFactory;
 import org.apache.log4j.BasicConfigurator;
 
+import javax.management.JMException;
 import javax.sip.*;
 import javax.sip.address.SipURI;
-import javax.sip.header.CallIdHeader;
+import javax.sip.message.Request;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.text.ParseException;
 import java.util.Properties;
 import java.util.TooManyListenersException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class Main implements SipListener {
+    private static final int EVENT_QUEUE_CAPACITY = 10000;
+    private static final int REGISTRATION_EXPIRY = 3600;
+    private static final int MAX_REGISTERS_IN_FLIGHT = 100;
+    // initial registrations are spread over this window
+    private static final long REGISTRATION_SPREAD_MS = 10000;
+    private static final long UNREGISTER_TIMEOUT_MS = 5000;
+    private static final long METRICS_SNAPSHOT_MS = 60000;
+    private static final int TRACE_CAPACITY = 8192;
+    private static final long KEEPALIVE_INTERVAL_MS = 30000;
+    private static final int KEEPALIVE_MAX_MISSED = 3;
+    // RFC 5626 section 4.4.1: a flow whose pong is 10 s late has failed
+    private static final long KEEPALIVE_PONG_TIMEOUT_MS = 10000;
+    private static final int TRACE_RAW_CAPACITY = 4096;
+    private static final long RING_TIMEOUT_MS = 60000;
+    // RFC 4028 section 4: the recommended session interval
+    private static final long SESSION_INTERVAL_MS = 1800000;
+    // new requests expected to wait longer are answered with 503, well
+    // before T1 makes their clients retransmit
+    private static final long MAX_ADMISSION_DELAY_MS = 200;
+    private static final int RETRY_AFTER_S = 5;
+    private static final int MAX_CONNECTIONS = 1000;
+    // well above the keepalive interval, pinged connections never idle out
+    private static final long CONNECTION_IDLE_MS = 4 * KEEPALIVE_INTERVAL_MS;
+    // a restart opens at most this many connections to a host at a time
+    private static final int MAX_CONNECTS_PER_HOST = 8;
+    // set to a directory to capture all traffic there for CaptureReplay
+    private static final String CAPTURE_DIR_PROPERTY = "im.dlg.sip.capture";
+    private static final int CAPTURE_CAPACITY = 65536;
+    private static final int CAPTURE_MAX_MESSAGE = 16384;
+    private static final int CAPTURE_SEGMENT_SIZE = 64 << 20;
+    // 64*T1, timer H: no retransmission of a request comes later
+    private static final long DUPLICATE_WINDOW_MS = 32000;
+    private static final int DUPLICATE_CAPACITY = 65536;
+
     private final SipProvider sipProvider;
     private final SipHelper sipHelper;
+    private final SipEventDispatcher eventDispatcher;
+    // runs the sends the timer wheel hands over; a send may wait for its
+    // connection to come up
+    private final ScheduledExecutorService scheduler =
+            Executors.newScheduledThreadPool(2);
+    private final RegistrationManager registrations;
+    private final HashedTimerWheel timerWheel = new HashedTimerWheel(100, 512);
+    private final KeepaliveEngine keepalives;
+    private final CallEngine calls;
+    private final ConnectionManager connections;
+    private final MessageCapture capture;
+    private final DuplicateFilter duplicates = new DuplicateFilter(
+            DUPLICATE_CAPACITY, DUPLICATE_WINDOW_MS);
+    private final MessageTracer tracer = new MessageTracer(TRACE_CAPACITY,
+            TRACE_RAW_CAPACITY, new OutputStreamWriter(System.out));
 
     private Main() throws PeerUnavailableException,
             InvalidArgumentException, TransportNotSupportedException,
@@ -28,18 +84,125 @@ public class Main implements SipListener {
         properties.setProperty("gov.nist.javax.sip.DELIVER_RETRANSMITTED_ACK_TO_LISTENER", "true");
         properties.setProperty("gov.nist.javax.sip.REENTRANT_LISTENER", "false");
         properties.setProperty("gov.nist.javax.sip.MESSAGE_PROCESSOR_FACTORY", NioMessageProcessorFactory.class.getCanonicalName());
-        properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "32");
+        // messages are traced by MessageTracer, off the stack threads
+        properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+        ConnectionManager.configure(properties, MAX_CONNECTIONS,
+                CONNECTION_IDLE_MS);
 
-        SipStack sipStack = SipFactory.getInstance().createSipStack(properties);
+        final SipStack sipStack = SipFactory.getInstance().createSipStack(properties);
 
         ListeningPoint listeningPoint = sipStack.createListeningPoint("127.0.0.1", 14000, "wss");
         sipProvider = sipStack.createSipProvider(listeningPoint);
-        sipProvider.addSipListener(this);
+        // callbacks run on per-Call-ID worker shards, off the stack thread
+        eventDispatcher = new SipEventDispatcher(this,
+                Runtime.getRuntime().availableProcessors(),
+                EVENT_QUEUE_CAPACITY);
+        sipProvider.addSipListener(eventDispatcher);
 
         sipHelper = new SipHelper(sipStack, sipProvider);
+        sipHelper.setSendExecutor(scheduler);
+        try {
+            sipHelper.getMetrics().register("im.dlg.sip");
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        eventDispatcher.setAdmissionController(new AdmissionController(
+                sipHelper, EVENT_QUEUE_CAPACITY / 2, MAX_ADMISSION_DELAY_MS,
+                RETRY_AFTER_S));
+        // retransmitted ACKs are delivered too, see the properties above
+        eventDispatcher.setDuplicateFilter(duplicates);
+        // senders on the workers may wait for these; never queue them
+        // behind the sender
+        eventDispatcher.setConnectionCoalescer(
+                sipHelper.getConnectionCoalescer());
+        eventDispatcher.setResponseFutures(sipHelper.getResponseFutures());
+        sipHelper.getMetrics().scheduleSnapshot(scheduler,
+                METRICS_SNAPSHOT_MS, System.out);
+        connections = new ConnectionManager(sipHelper, MAX_CONNECTS_PER_HOST,
+                CONNECTION_IDLE_MS);
+        scheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                System.out.println(connections.getStatistics());
+                System.out.println(duplicates.getStatistics());
+            }
+        }, METRICS_SNAPSHOT_MS, METRICS_SNAPSHOT_MS, TimeUnit.MILLISECONDS);
+        // registrations are rare enough to trace them all
+        tracer.setSampleRate(Request.REGISTER, 1);
+        sipHelper.setMessageTracer(tracer);
+        capture = createCapture(System.getProperty(CAPTURE_DIR_PROPERTY));
+        sipHelper.setMessageCapture(capture);
+        registrations = new RegistrationManager(sipHelper, timerWheel,
+                scheduler, REGISTRATION_EXPIRY, MAX_REGISTERS_IN_FLIGHT, null);
+        // a dead flow means the registrar cannot reach us, register anew
+        keepalives = new KeepaliveEngine(sipHelper, timerWheel, scheduler,
+                KEEPALIVE_INTERVAL_MS, KEEPALIVE_MAX_MISSED,
+                KEEPALIVE_PONG_TIMEOUT_MS, new KeepaliveEngine.Listener() {
+                    @Override
+                    public void onFlowFailed(SipURI profile) {
+                        registrations.refresh(profile);
+                    }
+                });
+        calls = new CallEngine(sipHelper, timerWheel, scheduler,
+                RING_TIMEOUT_MS, SESSION_INTERVAL_MS, null,
+                new CallEngine.Listener() {
+                    @Override
+                    public void onIncomingCall(CallEngine.Call call) {
+                        System.out.println("incoming call " + call.getCallId());
+                        try {
+                            calls.ring(call);
+                        } catch (SipException e) {
+                            e.printStackTrace();
+                        }
+                    }
+
+                    @Override
+                    public void onRinging(CallEngine.Call call) {
+                        System.out.println("ringing " + call.getCallId());
+                    }
+
+                    @Override
+                    public void onEstablished(CallEngine.Call call) {
+                        System.out.println("established " + call.getCallId());
+                    }
+
+                    @Override
+                    public void onEnded(CallEngine.Call call, int reason) {
+                        System.out.println("ended " + call.getCallId()
+                                + " reason " + reason);
+                    }
+                });
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                try {
+                    registrations.shutdown(UNREGISTER_TIMEOUT_MS);
+                    // the un-REGISTERs are answered, deliver what is queued
+                    eventDispatcher.shutdown();
+                    sipStack.stop();
+                    tracer.shutdown();
+                    if (capture != null) capture.shutdown();
+                    timerWheel.stop();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                scheduler.shutdown();
+            }
+        });
     }
 
-    public void test() throws ParseException {
+    private static MessageCapture createCapture(String directory) {
+        if (directory == null) return null;
+        try {
+            return new MessageCapture(new File(directory), CAPTURE_CAPACITY,
+                    CAPTURE_MAX_MESSAGE, CAPTURE_SEGMENT_SIZE);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    public void test() throws ParseException, SipException {
         SipURI sipURI1 = new SipUri();
         sipURI1.setUser("1");
         sipURI1.setUserPassword("1");
@@ -48,7 +211,10 @@ public class Main implements SipListener {
         sipURI1.setTransportParam("wss");
         sipURI1.setMethodParam("GET");
         sipURI1.setHeader("host", "test-dialog.mastervoice.it:8443");
-        new SIPRegisterThread(sipProvider, sipHelper, sipURI1).start();
+        // both profiles share the connection to the registrar
+        connections.prewarm(sipURI1);
+        registrations.add(sipURI1, REGISTRATION_SPREAD_MS);
+        keepalives.add(sipURI1);
         SipURI sipURI2 = new SipUri();
         sipURI2.setUser("2");
         sipURI2.setUserPassword("2");
@@ -57,7 +223,8 @@ public class Main implements SipListener {
         sipURI2.setTransportParam("wss");
         sipURI2.setMethodParam("GET");
         sipURI2.setHeader("host", "test-dialog.mastervoice.it:8443");
-        new SIPRegisterThread(sipProvider, sipHelper, sipURI2).start();
+        registrations.add(sipURI2, REGISTRATION_SPREAD_MS);
+        keepalives.add(sipURI2);
     }
 
     public static void main(String[] args) throws InvalidArgumentException,
@@ -65,72 +232,73 @@ public class Main implements SipListener {
             PeerUnavailableException, ObjectInUseException {
         try {
             new Main().test();
-        } catch (ParseException e) {
+        } catch (ParseException | SipException e) {
             e.printStackTrace();
         }
     }
 
     @Override
     public void processRequest(RequestEvent requestEvent) {
+        sipHelper.getMetrics().onRequest(requestEvent);
+        tracer.trace(requestEvent.getRequest(), MessageTracer.IN);
+        if (capture != null) {
+            capture.capture(requestEvent.getRequest(), MessageCapture.IN);
+        }
+        if (calls.processRequest(requestEvent)) return;
         System.out.println(requestEvent);
     }
 
     @Override
     public void processResponse(ResponseEvent responseEvent) {
-        System.out.println(responseEvent);
+        tracer.trace(responseEvent.getResponse(), MessageTracer.IN);
+        if (capture != null) {
+            capture.capture(responseEvent.getResponse(), MessageCapture.IN);
+        }
+        // keepalives are stateless, their responses are no retransmissions
+        if (keepalives.processResponse(responseEvent)) return;
+        sipHelper.getMetrics().onResponse(responseEvent);
+        // completed on the stack thread by the dispatcher
+        if (ResponseFutures.isAsync(responseEvent.getClientTransaction())) return;
+        if (connections.processResponse(responseEvent)) return;
+        if (calls.processResponse(responseEvent)) return;
+        registrations.processResponse(responseEvent);
+        System.out.println(registrations.getProfile(responseEvent) + ": "
+                + responseEvent);
     }
 
     @Override
     public void processTimeout(TimeoutEvent timeoutEvent) {
-        System.out.println(timeoutEvent);
+        sipHelper.getMetrics().onTimeout(timeoutEvent);
+        if (!timeoutEvent.isServerTransaction() && ResponseFutures.isAsync(
+                timeoutEvent.getClientTransaction())) return;
+        if (connections.processTimeout(timeoutEvent)) return;
+        if (calls.processTimeout(timeoutEvent)) return;
+        registrations.processTimeout(timeoutEvent);
+        System.out.println(registrations.getProfile(timeoutEvent) + ": "
+                + timeoutEvent);
     }
 
     @Override
     public void processIOException(IOExceptionEvent ioExceptionEvent) {
+        sipHelper.getMetrics().onIOException(ioExceptionEvent);
+        keepalives.processIOException(ioExceptionEvent);
+        connections.processIOException(ioExceptionEvent);
         System.out.println(ioExceptionEvent);
     }
 
     @Override
     public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {
+        sipHelper.getMetrics().onTransactionTerminated(transactionTerminatedEvent);
+        connections.processTransactionTerminated(transactionTerminatedEvent);
+        calls.processTransactionTerminated(transactionTerminatedEvent);
+        registrations.processTransactionTerminated(transactionTerminatedEvent);
         System.out.println(transactionTerminatedEvent);
     }
 
     @Override
     public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+        sipHelper.getMetrics().onDialogTerminated(dialogTerminatedEvent);
+        calls.processDialogTerminated(dialogTerminatedEvent);
         System.out.println(dialogTerminatedEvent);
     }
-
-    private static class SIPRegisterThread extends Thread {
-
-        private final SipProvider sipProvider;
-        private final SipHelper sipHelper;
-        private final SipURI localProfile;
-
-        private SIPRegisterThread(SipProvider sipProvider, SipHelper sipHelper, SipURI localProfile) {
-            this.sipProvider = sipProvider;
-            this.sipHelper = sipHelper;
-            this.localProfile = localProfile;
-        }
-
-        @Override
-        public void run() {
-            CallIdHeader callIdHeader = sipProvider.getNewCallId();
-
-            // uncomment this and it starts working
-//            try {
-//                Thread.sleep((long) (Math.random() * 10000));
-//            } catch (InterruptedException e) {
-//                e.printStackTrace();
-//            }
-
-            try {
-                ClientTransaction mClientTransaction = sipHelper.sendRegister(
-                        localProfile, String.valueOf(Math.random() * 0x100000000L),
-                        3600, callIdHeader);
-            } catch (SipException e) {
-                e.printStackTrace();
-            }
-        }
-    }
 }
-
@@ -0,0 +1,357 @@
+package com.company;
+
+import javax.sip.header.CallIdHeader;
+import javax.sip.message.Message;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Captures every SIP message sent and received, with its time and flow, to
+ * a log of memory-mapped segment files, for replay by {@link CaptureReplay}.
+ *
+ * <p>Like {@link MessageTracer}, the calling thread only copies the encoded
+ * message into a preallocated ring slot; a background thread encodes it to
+ * UTF-8 and appends it to the current segment. The copy is taken before
+ * capture() returns, so the log holds the message as it went on the wire
+ * even when its sender changes it afterwards. When the ring is full, or a
+ * message is longer than a slot, the message is dropped and counted rather
+ * than blocking the stack. A segment that cannot take the next record is
+ * left and a new one mapped.
+ *
+ * <p>Each record is laid out as
+ * <pre>
+ * int    record length, header included; 0 ends the segment
+ * long   time, in microseconds since the epoch
+ * long   flow, a hash of the Call-ID
+ * byte   1 if received, 0 if sent
+ * byte[] message, UTF-8
+ * </pre>
+ */
+public class MessageCapture {
+    private static final String TAG = MessageCapture.class.getSimpleName();
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int HEADER_LENGTH = 4 + 8 + 8 + 1;
+    private static final String SEGMENT_PREFIX = "capture-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    public static final boolean IN = true;
+    public static final boolean OUT = false;
+
+    private final Slot[] mSlots;
+    private final int mMask;
+    private final AtomicLong mHead = new AtomicLong();
+    private volatile long mTail;
+    private final AtomicLong mCaptured = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+
+    // capture times are taken from nanoTime, anchored to the wall clock once
+    private final long mBaseMicros =
+            TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    private final long mBaseNanos = System.nanoTime();
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final CharsetEncoder mEncoder = StandardCharsets.UTF_8.newEncoder();
+    private final ByteBuffer mEncoded;
+    private int mSegmentIndex;
+    private FileChannel mChannel;
+    private MappedByteBuffer mSegment;
+
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+
+    /**
+     * @param directory where the segments are written; a capture already
+     *      there is continued
+     * @param capacity number of ring slots, rounded up to a power of two
+     * @param maxMessageLength characters of the longest message captured
+     * @param segmentSize bytes of each segment file
+     */
+    public MessageCapture(File directory, int capacity, int maxMessageLength,
+            int segmentSize) throws IOException {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mSlots = new Slot[size];
+        for (int i = 0; i < size; i++) mSlots[i] = new Slot(maxMessageLength);
+        mMask = size - 1;
+        mEncoded = ByteBuffer.allocate(HEADER_LENGTH + (int) Math.ceil(
+                maxMessageLength * (double) mEncoder.maxBytesPerChar()));
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create " + directory);
+        }
+        File[] segments = listSegments(directory);
+        mSegmentIndex = (segments.length > 0)
+                ? indexOf(segments[segments.length - 1]) + 1 : 0;
+        openSegment();
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    public long getCapturedCount() {
+        return mCaptured.get();
+    }
+
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Records a message.
+     *
+     * @param incoming {@link #IN} or {@link #OUT}
+     */
+    public void capture(Message message, boolean incoming) {
+        long sequence;
+        do {
+            sequence = mHead.get();
+            if (sequence - mTail >= mSlots.length) {
+                mDropped.incrementAndGet();
+                return;
+            }
+        } while (!mHead.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = mSlots[(int) sequence & mMask];
+        slot.mTimestamp = mBaseMicros
+                + (System.nanoTime() - mBaseNanos) / 1000;
+        CallIdHeader callId = (CallIdHeader) message.getHeader(CallIdHeader.NAME);
+        slot.mFlow = (callId != null) ? getFlow(callId.getCallId()) : 0;
+        slot.mIncoming = incoming;
+        String encoded = message.toString();
+        if (encoded.length() <= slot.mRaw.length) {
+            encoded.getChars(0, encoded.length(), slot.mRaw, 0);
+            slot.mLength = encoded.length();
+        } else {
+            // a truncated message could not be replayed; the writer skips it
+            slot.mLength = -1;
+        }
+        slot.mPublished = sequence;
+    }
+
+    /**
+     * Stops the writer after the messages already recorded are written, and
+     * forces the last segment to disk.
+     */
+    public void shutdown() throws InterruptedException {
+        mRunning = false;
+        mThread.join();
+    }
+
+    /**
+     * Returns the flow of a Call-ID: a 64-bit FNV-1a hash, the same for
+     * every message of a call or registration.
+     */
+    public static long getFlow(String callId) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < callId.length(); i++) {
+            hash ^= callId.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private void drain() {
+        while (true) {
+            long sequence = mTail;
+            Slot slot = mSlots[(int) sequence & mMask];
+            if (slot.mPublished != sequence) {
+                if (!mRunning && (mHead.get() == sequence)) break;
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            boolean encoded = encode(slot);
+            // the slot may be reused as soon as the tail moves on
+            mTail = sequence + 1;
+            if (encoded && append()) {
+                mCaptured.incrementAndGet();
+            } else {
+                mDropped.incrementAndGet();
+            }
+        }
+        closeSegment();
+    }
+
+    private boolean encode(Slot slot) {
+        if (slot.mLength < 0) return false;
+        mEncoded.clear();
+        mEncoded.position(HEADER_LENGTH);
+        mEncoder.reset();
+        CoderResult result = mEncoder.encode(
+                CharBuffer.wrap(slot.mRaw, 0, slot.mLength), mEncoded, true);
+        if (result.isError() || result.isOverflow()) return false;
+        mEncoder.flush(mEncoded);
+        mEncoded.putInt(0, mEncoded.position());
+        mEncoded.putLong(4, slot.mTimestamp);
+        mEncoded.putLong(12, slot.mFlow);
+        mEncoded.put(20, (byte) (slot.mIncoming ? 1 : 0));
+        mEncoded.flip();
+        return true;
+    }
+
+    private boolean append() {
+        int length = mEncoded.remaining();
+        if (length > mSegmentSize) return false;
+        if ((mSegment == null) || (mSegment.remaining() < length)) {
+            closeSegment();
+            try {
+                openSegment();
+            } catch (IOException e) {
+                // retried with the next message
+                return false;
+            }
+        }
+        mSegment.put(mEncoded);
+        return true;
+    }
+
+    private void openSegment() throws IOException {
+        File file = new File(mDirectory, String.format("%s%06d%s",
+                SEGMENT_PREFIX, mSegmentIndex++, SEGMENT_SUFFIX));
+        mChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // the file is zero-filled, so the unwritten rest ends the segment
+        mSegment = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+    }
+
+    private void closeSegment() {
+        if (mSegment == null) return;
+        mSegment.force();
+        mSegment = null;
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            // the mapping stays valid and was forced already
+        }
+    }
+
+    private static File[] listSegments(File directory) {
+        File[] segments = directory.listFiles();
+        if (segments == null) return new File[0];
+        int count = 0;
+        for (File segment : segments) {
+            String name = segment.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                segments[count++] = segment;
+            }
+        }
+        segments = Arrays.copyOf(segments, count);
+        // zero-padded indexes sort by name
+        Arrays.sort(segments);
+        return segments;
+    }
+
+    private static int indexOf(File segment) {
+        String name = segment.getName();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Reads a capture back, record by record, across its segments in order.
+     */
+    public static class Reader implements Closeable {
+        private final File[] mSegments;
+        private int mNext;
+        private FileChannel mChannel;
+        private MappedByteBuffer mSegment;
+        private long mTimestamp;
+        private long mFlow;
+        private boolean mIncoming;
+        private String mMessage;
+
+        public Reader(File directory) {
+            mSegments = listSegments(directory);
+        }
+
+        /**
+         * Moves to the next record.
+         *
+         * @return false at the end of the capture
+         */
+        public boolean next() throws IOException {
+            while (true) {
+                if ((mSegment != null) && (mSegment.remaining() >= HEADER_LENGTH)) {
+                    int length = mSegment.getInt();
+                    if ((length >= HEADER_LENGTH)
+                            && (length - 4 <= mSegment.remaining())) {
+                        mTimestamp = mSegment.getLong();
+                        mFlow = mSegment.getLong();
+                        mIncoming = mSegment.get() != 0;
+                        byte[] message = new byte[length - HEADER_LENGTH];
+                        mSegment.get(message);
+                        mMessage = new String(message, StandardCharsets.UTF_8);
+                        return true;
+                    }
+                }
+                // the rest of this segment is unwritten
+                close();
+                if (mNext >= mSegments.length) return false;
+                mChannel = FileChannel.open(mSegments[mNext++].toPath(),
+                        StandardOpenOption.READ);
+                mSegment = mChannel.map(FileChannel.MapMode.READ_ONLY, 0,
+                        mChannel.size());
+            }
+        }
+
+        /**
+         * Returns the time of the record, in microseconds since the epoch.
+         */
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+
+        public long getFlow() {
+            return mFlow;
+        }
+
+        public boolean isIncoming() {
+            return mIncoming;
+        }
+
+        public String getMessage() {
+            return mMessage;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSegment = null;
+            if (mChannel != null) {
+                mChannel.close();
+                mChannel = null;
+            }
+        }
+    }
+
+    private static class Slot {
+        private volatile long mPublished = -1;
+        private long mTimestamp;
+        private long mFlow;
+        private boolean mIncoming;
+        private final char[] mRaw;
+        private int mLength;
+
+        private Slot(int maxMessageLength) {
+            mRaw = new char[maxMessageLength];
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.company;
+
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.Message;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous SIP message tracer. Sampled messages are copied into a ring
+ * of preallocated slots and formatted and written by a background thread,
+ * so the stack and listener threads only pay for a few field copies.
+ *
+ * <p>Sampling is decided per method and per Call-ID: a Call-ID is either
+ * in or out for all of its messages, so a sampled call is always traced
+ * completely. Call-IDs can also be watched explicitly. Metadata is kept by
+ * reference, since message strings are immutable. Raw messages, when
+ * enabled, are encoded on the calling thread into the slot's own buffer:
+ * the stack and the application keep changing a message after it is
+ * traced, so only a copy shows what was sent or received. When the writer
+ * falls behind, new messages are dropped and counted instead of blocking
+ * the caller.
+ */
+public class MessageTracer {
+    private static final String TAG = MessageTracer.class.getSimpleName();
+    private static final int SAMPLE_SCALE = 1 << 16;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    public static final boolean IN = true;
+    public static final boolean OUT = false;
+
+    private final Slot[] mSlots;
+    private final int mMask;
+    private final int mRawCapacity;
+    private final AtomicLong mHead = new AtomicLong();
+    private volatile long mTail;
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mTraced = new AtomicLong();
+
+    // method -> sample threshold out of SAMPLE_SCALE
+    private final ConcurrentHashMap<String, Integer> mMethodRates =
+            new ConcurrentHashMap<String, Integer>();
+    private volatile int mDefaultRate;
+    private final ConcurrentHashMap<String, Boolean> mWatched =
+            new ConcurrentHashMap<String, Boolean>();
+
+    private final Writer mWriter;
+    private final Thread mThread;
+    private volatile boolean mRunning = true;
+
+    /**
+     * @param capacity number of ring slots, rounded up to a power of two
+     * @param rawCapacity characters of raw message kept per slot, 0 for metadata
+     *      only; longer messages are truncated
+     * @param writer where the background thread writes the trace
+     */
+    public MessageTracer(int capacity, int rawCapacity, Writer writer) {
+        int size = Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1;
+        mSlots = new Slot[size];
+        for (int i = 0; i < size; i++) mSlots[i] = new Slot(rawCapacity);
+        mMask = size - 1;
+        mRawCapacity = rawCapacity;
+        mWriter = writer;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, TAG);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Sets the fraction of Call-IDs traced for methods without a rate of
+     * their own. Responses are sampled by the method of their CSeq.
+     */
+    public void setDefaultSampleRate(double rate) {
+        mDefaultRate = toThreshold(rate);
+    }
+
+    public void setSampleRate(String method, double rate) {
+        mMethodRates.put(method, toThreshold(rate));
+    }
+
+    /**
+     * Traces every message of a Call-ID regardless of sampling.
+     */
+    public void watch(String callId) {
+        mWatched.put(callId, Boolean.TRUE);
+    }
+
+    public void unwatch(String callId) {
+        mWatched.remove(callId);
+    }
+
+    public long getTracedCount() {
+        return mTraced.get();
+    }
+
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+
+    /**
+     * Records a message if it is sampled.
+     *
+     * @param incoming {@link #IN} or {@link #OUT}
+     */
+    public void trace(Message message, boolean incoming) {
+        CSeqHeader cSeq = (CSeqHeader) message.getHeader(CSeqHeader.NAME);
+        CallIdHeader callIdHeader =
+                (CallIdHeader) message.getHeader(CallIdHeader.NAME);
+        if ((cSeq == null) || (callIdHeader == null)) return;
+        String method = cSeq.getMethod();
+        String callId = callIdHeader.getCallId();
+        if (!isSampled(method, callId)) return;
+
+        long sequence;
+        do {
+            sequence = mHead.get();
+            if (sequence - mTail >= mSlots.length) {
+                mDropped.incrementAndGet();
+                return;
+            }
+        } while (!mHead.compareAndSet(sequence, sequence + 1));
+
+        Slot slot = mSlots[(int) sequence & mMask];
+        slot.mTimestamp = System.currentTimeMillis();
+        slot.mIncoming = incoming;
+        slot.mMethod = method;
+        slot.mStatus = (message instanceof Response)
+                ? ((Response) message).getStatusCode() : 0;
+        slot.mSequenceNumber = cSeq.getSeqNumber();
+        slot.mCallId = callId;
+        ViaHeader via = (ViaHeader) message.getHeader(ViaHeader.NAME);
+        slot.mBranch = (via != null) ? via.getBranch() : null;
+        slot.mRawLength = (mRawCapacity > 0) ? copy(message, slot.mRaw) : 0;
+        slot.mPublished = sequence;
+        mTraced.incrementAndGet();
+    }
+
+    /**
+     * Stops the writer after the messages already recorded are written.
+     */
+    public void shutdown() throws InterruptedException {
+        mRunning = false;
+        mThread.join();
+    }
+
+    private boolean isSampled(String method, String callId) {
+        if (!mWatched.isEmpty() && mWatched.containsKey(callId)) return true;
+        Integer methodRate = mMethodRates.get(method);
+        int threshold = (methodRate != null) ? methodRate : mDefaultRate;
+        if (threshold <= 0) return false;
+        if (threshold >= SAMPLE_SCALE) return true;
+        int h = callId.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & (SAMPLE_SCALE - 1)) < threshold;
+    }
+
+    private static int toThreshold(double rate) {
+        return (int) Math.round(Math.max(0, Math.min(1, rate)) * SAMPLE_SCALE);
+    }
+
+    private static int copy(Message message, char[] raw) {
+        // encoded only now that it is known to be sampled, and before its
+        // sender can change it
+        String encoded = message.toString();
+        int length = Math.min(encoded.length(), raw.length);
+        encoded.getChars(0, length, raw, 0);
+        return length;
+    }
+
+    private void drain() {
+        StringBuilder sb = new StringBuilder(256 + mRawCapacity);
+        while (true) {
+            long sequence = mTail;
+            Slot slot = mSlots[(int) sequence & mMask];
+            if (slot.mPublished != sequence) {
+                if (!mRunning && (mHead.get() == sequence)) break;
+                flush();
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+                continue;
+            }
+            sb.setLength(0);
+            format(slot, sb);
+            // the slot may be reused as soon as the tail moves on
+            mTail = sequence + 1;
+            try {
+                mWriter.append(sb);
+            } catch (IOException e) {
+                mDropped.incrementAndGet();
+            }
+        }
+        flush();
+    }
+
+    private void format(Slot slot, StringBuilder sb) {
+        sb.append(slot.mTimestamp).append(slot.mIncoming ? " <- " : " -> ");
+        if (slot.mStatus != 0) {
+            sb.append(slot.mStatus).append(' ');
+        }
+        sb.append(slot.mSequenceNumber).append(' ').append(slot.mMethod)
+                .append(" call-id=").append(slot.mCallId)
+                .append(" branch=").append(slot.mBranch).append('\n');
+        if (slot.mRawLength > 0) {
+            sb.append(slot.mRaw, 0, slot.mRawLength);
+            if (slot.mRaw[slot.mRawLength - 1] != '\n') sb.append('\n');
+        }
+    }
+
+    private void flush() {
+        try {
+            mWriter.flush();
+        } catch (IOException e) {
+            // keep tracing; the next flush may succeed
+        }
+    }
+
+    private static class Slot {
+        private volatile long mPublished = -1;
+        private long mTimestamp;
+        private boolean mIncoming;
+        private String mMethod;
+        private int mStatus;
+        private long mSequenceNumber;
+        private String mCallId;
+        private String mBranch;
+        private final char[] mRaw;
+        private int mRawLength;
+
+        private Slot(int rawCapacity) {
+            mRaw = new char[rawCapacity];
+        }
+    }
+}
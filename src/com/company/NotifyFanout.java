@@ -0,0 +1,535 @@
+package com.company;
+
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.InvalidArgumentException;
+import javax.sip.PeerUnavailableException;
+import javax.sip.ResponseEvent;
+import javax.sip.SipException;
+import javax.sip.SipFactory;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.ContentTypeHeader;
+import javax.sip.header.EventHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.SubscriptionStateHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fans the state of resources out to their subscriber dialogs as NOTIFY.
+ *
+ * <p>Publishing only replaces the state of the resource; each subscriber is
+ * sent the latest state when it can take one. A dialog has at most one
+ * NOTIFY in flight and gets the next no sooner than a minimum interval
+ * after the last, so a burst of updates reaches it as one NOTIFY carrying
+ * the last state. The states skipped that way are counted as coalesced.
+ * Every SUBSCRIBE, initial or refresh, is answered with a NOTIFY of the
+ * current state.
+ *
+ * <p>Event, Content-Type and Subscription-State headers are parsed once and
+ * shared or cloned. Sends run on the executor and rate-limit timers on the
+ * wheel, so publishing to many subscribers costs the publisher one decision
+ * per subscriber. A subscription ends when it expires, when it is
+ * unsubscribed, or when its NOTIFY is answered with 481, times out, fails
+ * with an IO exception or its transaction ends without a final response;
+ * a final NOTIFY is sent in the first two cases.
+ *
+ * <p>A resource is kept only while it has subscribers. A state published to
+ * a resource nobody subscribes to is dropped, and a new subscriber is
+ * notified of the states published from then on.
+ */
+public class NotifyFanout {
+    private static final String TAG = NotifyFanout.class.getSimpleName();
+    private static final boolean DBG = false;
+
+    /**
+     * Told when a subscription has ended, on the listener, wheel or
+     * executor thread.
+     */
+    public interface Listener {
+        void onSubscriptionEnded(String resource, Dialog dialog);
+    }
+
+    private final SipHelper mSipHelper;
+    private final HashedTimerWheel mWheel;
+    private final Executor mExecutor;
+    private final long mMinIntervalNanos;
+    private final Listener mListener;
+    private final HeaderFactory mHeaderFactory;
+    private final SubscriptionStateHeader mActive;
+    private final SubscriptionStateHeader mTerminated;
+
+    private final ConcurrentHashMap<String, Resource> mResources =
+            new ConcurrentHashMap<String, Resource>();
+    // dialog id -> subscription
+    private final ConcurrentHashMap<String, Subscriber> mSubscribers =
+            new ConcurrentHashMap<String, Subscriber>();
+    // parsed once per event package and content type
+    private final ConcurrentHashMap<String, EventHeader> mEventHeaders =
+            new ConcurrentHashMap<String, EventHeader>();
+    private final ConcurrentHashMap<String, ContentTypeHeader> mContentTypes =
+            new ConcurrentHashMap<String, ContentTypeHeader>();
+
+    private final AtomicLong mPublished = new AtomicLong();
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mCoalesced = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+
+    /**
+     * @param minIntervalMillis time between two NOTIFYs to one dialog
+     * @param listener told when subscriptions end, or null
+     */
+    public NotifyFanout(SipHelper sipHelper, HashedTimerWheel wheel,
+            Executor executor, long minIntervalMillis, Listener listener)
+            throws PeerUnavailableException, ParseException {
+        mSipHelper = sipHelper;
+        mWheel = wheel;
+        mExecutor = executor;
+        mMinIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minIntervalMillis);
+        mListener = listener;
+        mHeaderFactory = SipFactory.getInstance().createHeaderFactory();
+        mActive = mHeaderFactory.createSubscriptionStateHeader(
+                SubscriptionStateHeader.ACTIVE);
+        mTerminated = mHeaderFactory.createSubscriptionStateHeader(
+                SubscriptionStateHeader.TERMINATED);
+    }
+
+    /**
+     * Adds or refreshes the subscription of a dialog to a resource, after
+     * its SUBSCRIBE was accepted. An expiry of 0 ends it.
+     *
+     * @param event the event package of the SUBSCRIBE
+     * @param expires seconds the subscription lasts
+     */
+    public void subscribe(String resource, Dialog dialog, String event,
+            int expires) throws ParseException {
+        if (expires <= 0) {
+            unsubscribe(dialog, SubscriptionStateHeader.TIMEOUT);
+            return;
+        }
+        long expiresAt = System.nanoTime() + TimeUnit.SECONDS.toNanos(expires);
+        final Subscriber subscriber = getSubscriber(resource, dialog, event,
+                expiresAt);
+
+        synchronized (subscriber) {
+            if (subscriber.mEnded) return;
+            subscriber.mExpiresAt = expiresAt;
+            if (subscriber.mExpiry != null) subscriber.mExpiry.cancel();
+            subscriber.mExpiry = mWheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    terminate(subscriber, SubscriptionStateHeader.TIMEOUT);
+                }
+            }, expires, TimeUnit.SECONDS, mExecutor);
+            subscriber.mForced = true;
+        }
+        schedule(subscriber);
+    }
+
+    /**
+     * Ends the subscription of a dialog with a final NOTIFY.
+     *
+     * @param reason the reason of the terminated Subscription-State, such
+     *      as {@link SubscriptionStateHeader#NO_RESOURCE}
+     */
+    public void unsubscribe(Dialog dialog, String reason) {
+        Subscriber subscriber = mSubscribers.get(dialog.getDialogId());
+        if (subscriber != null) terminate(subscriber, reason);
+    }
+
+    /**
+     * Replaces the state of a resource. Its subscribers are sent the latest
+     * state as soon as each can take it.
+     *
+     * @param contentType the type of the content, such as
+     *      "application/pidf+xml"
+     */
+    public void publish(String resource, String contentType, Object content)
+            throws ParseException {
+        ContentTypeHeader contentTypeHeader = getContentType(contentType);
+        mPublished.incrementAndGet();
+        Resource target = mResources.get(resource);
+        if (target == null) return;
+        synchronized (target) {
+            if (target.mRemoved) return;
+            target.mState = new State(target.mState.mVersion + 1,
+                    contentTypeHeader, content);
+        }
+        for (Subscriber subscriber : target.mSubscribers) {
+            schedule(subscriber);
+        }
+    }
+
+    /**
+     * @return true if the response answered a NOTIFY of this engine
+     */
+    public boolean processResponse(ResponseEvent responseEvent) {
+        Subscriber subscriber = getSubscriber(
+                responseEvent.getClientTransaction());
+        if (subscriber == null) return false;
+        int status = responseEvent.getResponse().getStatusCode();
+        if (status < 200) return true;
+        if ((status == Response.CALL_OR_TRANSACTION_DOES_NOT_EXIST)
+                || (status == Response.REQUEST_TIMEOUT)) {
+            // the subscriber is gone
+            end(subscriber);
+            return true;
+        }
+        if (status >= 300) mFailures.incrementAndGet();
+        completed(subscriber);
+        return true;
+    }
+
+    /**
+     * @return true if a NOTIFY of this engine timed out
+     */
+    public boolean processTimeout(TimeoutEvent timeoutEvent) {
+        if (timeoutEvent.isServerTransaction()) return false;
+        Subscriber subscriber = getSubscriber(
+                timeoutEvent.getClientTransaction());
+        if (subscriber == null) return false;
+        mFailures.incrementAndGet();
+        end(subscriber);
+        return true;
+    }
+
+    /**
+     * @return true if a NOTIFY of this engine failed to be sent
+     */
+    public boolean processIOException(IOExceptionEvent ioExceptionEvent) {
+        Object source = ioExceptionEvent.getSource();
+        if (!(source instanceof ClientTransaction)) return false;
+        Subscriber subscriber = getSubscriber((ClientTransaction) source);
+        if (subscriber == null) return false;
+        mFailures.incrementAndGet();
+        end(subscriber);
+        return true;
+    }
+
+    /**
+     * Ends a subscription whose NOTIFY transaction ended without a final
+     * response, timeout or IO exception reaching this engine.
+     */
+    public void processTransactionTerminated(TransactionTerminatedEvent event) {
+        if (event.isServerTransaction()) return;
+        ClientTransaction transaction = event.getClientTransaction();
+        Subscriber subscriber = getSubscriber(transaction);
+        if (subscriber == null) return;
+        synchronized (subscriber) {
+            if (!subscriber.mInFlight || !transaction.getBranchId().equals(
+                    subscriber.mInFlightBranch)) {
+                return;
+            }
+        }
+        mFailures.incrementAndGet();
+        end(subscriber);
+    }
+
+    public void processDialogTerminated(DialogTerminatedEvent event) {
+        Subscriber subscriber = mSubscribers.get(
+                event.getDialog().getDialogId());
+        if (subscriber != null) end(subscriber);
+    }
+
+    public int getSubscriberCount() {
+        return mSubscribers.size();
+    }
+
+    /**
+     * Returns the number of resources with subscribers.
+     */
+    public int getResourceCount() {
+        return mResources.size();
+    }
+
+    public long getPublishedCount() {
+        return mPublished.get();
+    }
+
+    public long getSentCount() {
+        return mSent.get();
+    }
+
+    /**
+     * Returns how many states were replaced before their subscriber was sent
+     * them, summed over subscribers.
+     */
+    public long getCoalescedCount() {
+        return mCoalesced.get();
+    }
+
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    private Subscriber getSubscriber(ClientTransaction transaction) {
+        if (transaction == null) return null;
+        String method = ((CSeqHeader) transaction.getRequest()
+                .getHeader(CSeqHeader.NAME)).getMethod();
+        if (!Request.NOTIFY.equals(method)) return null;
+        Dialog dialog = transaction.getDialog();
+        return (dialog != null) ? mSubscribers.get(dialog.getDialogId()) : null;
+    }
+
+    /**
+     * Sends the subscriber the latest state now, or arranges for it to be
+     * sent once its NOTIFY in flight completes or its interval has passed.
+     */
+    private void schedule(final Subscriber subscriber) {
+        synchronized (subscriber) {
+            if (subscriber.mEnded || subscriber.mInFlight
+                    || subscriber.mTimerPending || !subscriber.isOutdated()) {
+                return;
+            }
+            long wait = subscriber.mNextAllowed - System.nanoTime();
+            if (wait > 0) {
+                subscriber.mTimerPending = true;
+                mWheel.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (subscriber) {
+                            subscriber.mTimerPending = false;
+                        }
+                        schedule(subscriber);
+                    }
+                }, wait, TimeUnit.NANOSECONDS, mExecutor);
+                return;
+            }
+            subscriber.mInFlight = true;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                send(subscriber);
+            }
+        });
+    }
+
+    private void send(Subscriber subscriber) {
+        State state;
+        String reason;
+        long remaining;
+        synchronized (subscriber) {
+            state = subscriber.mResource.mState;
+            reason = subscriber.mReason;
+            if (reason != null) subscriber.mFinalSent = true;
+            long skipped = state.mVersion - subscriber.mSentVersion - 1;
+            if (skipped > 0) mCoalesced.addAndGet(skipped);
+            subscriber.mSentVersion = state.mVersion;
+            subscriber.mForced = false;
+            long now = System.nanoTime();
+            subscriber.mNextAllowed = now + mMinIntervalNanos;
+            remaining = subscriber.mExpiresAt - now;
+        }
+        try {
+            SubscriptionStateHeader subscriptionState;
+            if (reason != null) {
+                subscriptionState = (SubscriptionStateHeader) mTerminated.clone();
+                subscriptionState.setReasonCode(reason);
+            } else {
+                subscriptionState = (SubscriptionStateHeader) mActive.clone();
+                subscriptionState.setExpires((int) Math.max(0,
+                        TimeUnit.NANOSECONDS.toSeconds(remaining)));
+            }
+            ClientTransaction transaction = mSipHelper.sendNotify(
+                    subscriber.mDialog, subscriber.mEvent, subscriptionState,
+                    state.mContentType, state.mContent);
+            synchronized (subscriber) {
+                // unless it completed already
+                if (subscriber.mInFlight) {
+                    subscriber.mInFlightBranch = transaction.getBranchId();
+                }
+            }
+            mSent.incrementAndGet();
+        } catch (SipException | ParseException | InvalidArgumentException e) {
+            if (DBG) log("NOTIFY failed: " + e);
+            mFailures.incrementAndGet();
+            end(subscriber);
+        }
+    }
+
+    private void completed(Subscriber subscriber) {
+        boolean terminated;
+        synchronized (subscriber) {
+            subscriber.mInFlight = false;
+            subscriber.mInFlightBranch = null;
+            terminated = subscriber.mFinalSent;
+        }
+        if (terminated) {
+            end(subscriber);
+        } else {
+            // states published, or a termination, while it was in flight
+            schedule(subscriber);
+        }
+    }
+
+    private void terminate(Subscriber subscriber, String reason) {
+        synchronized (subscriber) {
+            if (subscriber.mEnded || (subscriber.mReason != null)) return;
+            subscriber.mReason = reason;
+            if (subscriber.mExpiry != null) subscriber.mExpiry.cancel();
+        }
+        schedule(subscriber);
+    }
+
+    private void end(Subscriber subscriber) {
+        synchronized (subscriber) {
+            if (subscriber.mEnded) return;
+            subscriber.mEnded = true;
+            if (subscriber.mExpiry != null) subscriber.mExpiry.cancel();
+        }
+        mSubscribers.remove(subscriber.mDialog.getDialogId(), subscriber);
+        Resource resource = subscriber.mResource;
+        synchronized (resource) {
+            resource.mSubscribers.remove(subscriber);
+            if (resource.mSubscribers.isEmpty()) {
+                resource.mRemoved = true;
+                mResources.remove(resource.mName, resource);
+            }
+        }
+        if (DBG) log("subscription to " + subscriber.mResource.mName + " ended");
+        if (mListener != null) {
+            mListener.onSubscriptionEnded(subscriber.mResource.mName,
+                    subscriber.mDialog);
+        }
+    }
+
+    /**
+     * Returns the subscription of a dialog, adding it to the resource with
+     * the given expiry if it is new. The expiry is set before the resource
+     * holds it, so a publish racing this never notifies it with expires=0.
+     */
+    private Subscriber getSubscriber(String name, Dialog dialog, String event,
+            long expiresAt) throws ParseException {
+        Subscriber existing = mSubscribers.get(dialog.getDialogId());
+        if (existing != null) return existing;
+        EventHeader eventHeader = getEventHeader(event);
+        while (true) {
+            Resource resource = mResources.get(name);
+            if (resource == null) {
+                Resource created = new Resource(name);
+                resource = mResources.putIfAbsent(name, created);
+                if (resource == null) resource = created;
+            }
+            Subscriber created = new Subscriber(resource, dialog, eventHeader);
+            created.mExpiresAt = expiresAt;
+            synchronized (resource) {
+                // lost a race with the removal of an emptied resource
+                if (resource.mRemoved) continue;
+                existing = mSubscribers.putIfAbsent(dialog.getDialogId(),
+                        created);
+                if (existing != null) return existing;
+                resource.mSubscribers.add(created);
+            }
+            return created;
+        }
+    }
+
+    private EventHeader getEventHeader(String event) throws ParseException {
+        EventHeader header = mEventHeaders.get(event);
+        if (header == null) {
+            header = mHeaderFactory.createEventHeader(event);
+            mEventHeaders.putIfAbsent(event, header);
+        }
+        return header;
+    }
+
+    private ContentTypeHeader getContentType(String contentType)
+            throws ParseException {
+        ContentTypeHeader header = mContentTypes.get(contentType);
+        if (header == null) {
+            int slash = contentType.indexOf('/');
+            if (slash < 0) {
+                throw new ParseException("bad content type: " + contentType, 0);
+            }
+            header = mHeaderFactory.createContentTypeHeader(
+                    contentType.substring(0, slash),
+                    contentType.substring(slash + 1));
+            mContentTypes.putIfAbsent(contentType, header);
+        }
+        return header;
+    }
+
+    private void log(String s) {
+
+    }
+
+    /**
+     * A published state; replaced whole, never changed.
+     */
+    private static final class State {
+        private final long mVersion;
+        private final ContentTypeHeader mContentType;
+        private final Object mContent;
+
+        private State(long version, ContentTypeHeader contentType,
+                Object content) {
+            mVersion = version;
+            mContentType = contentType;
+            mContent = content;
+        }
+    }
+
+    /**
+     * A resource; its state and membership change under its own lock.
+     */
+    private static final class Resource {
+        private final String mName;
+        private volatile State mState = new State(0, null, null);
+        // set once its last subscriber ended; it is no longer in mResources
+        private boolean mRemoved;
+        private final Set<Subscriber> mSubscribers = Collections.newSetFromMap(
+                new ConcurrentHashMap<Subscriber, Boolean>());
+
+        private Resource(String name) {
+            mName = name;
+        }
+    }
+
+    /**
+     * A subscription; guarded by its own lock.
+     */
+    private static final class Subscriber {
+        private final Resource mResource;
+        private final Dialog mDialog;
+        private final EventHeader mEvent;
+        private long mSentVersion;
+        // a NOTIFY is due even without a new state, after a SUBSCRIBE
+        private boolean mForced;
+        private boolean mInFlight;
+        // branch of the NOTIFY in flight, once its send returned
+        private String mInFlightBranch;
+        private boolean mTimerPending;
+        private long mNextAllowed;
+        private long mExpiresAt;
+        private HashedTimerWheel.Timeout mExpiry;
+        // set once a final NOTIFY is due
+        private String mReason;
+        // set once the final NOTIFY went out
+        private boolean mFinalSent;
+        private boolean mEnded;
+
+        private Subscriber(Resource resource, Dialog dialog, EventHeader event) {
+            mResource = resource;
+            mDialog = dialog;
+            mEvent = event;
+        }
+
+        private boolean isOutdated() {
+            if (mFinalSent) return false;
+            return mForced || (mReason != null)
+                    || (mSentVersion != mResource.mState.mVersion);
+        }
+    }
+}
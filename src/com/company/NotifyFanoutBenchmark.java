@@ -0,0 +1,310 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+
+import javax.sip.*;
+import javax.sip.address.SipURI;
+import javax.sip.header.ExpiresHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.text.ParseException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Subscribes thousands of dialogs to a few resources on a notifier in this
+ * process, publishes state changes at a high rate, and reports how many
+ * NOTIFYs the {@link NotifyFanout} sent against how many an engine sending
+ * every state would have, and how stale the state was when it arrived.
+ *
+ * <p>Both stacks run here, so staleness is measured from the time the state
+ * was published to the time its NOTIFY was received. Subscriptions are set
+ * up with a bounded number of SUBSCRIBEs in flight, failed ones are sent
+ * again, and nothing is reported unless every subscriber got subscribed.
+ *
+ * <p>Usage: NotifyFanoutBenchmark [subscribers] [seconds] [updates/s]
+ * [resources] [interval ms] [transport]
+ */
+public class NotifyFanoutBenchmark implements SipListener {
+    private static final int NOTIFIER_PORT = 20000;
+    private static final int SUBSCRIBER_PORT = 20001;
+    private static final String EVENT = "presence";
+    private static final String CONTENT_TYPE = "text/plain";
+    private static final int EXPIRES = 3600;
+    // SUBSCRIBEs in flight; a burst of thousands would overflow the
+    // socket buffers
+    private static final int SUBSCRIBE_WINDOW = 100;
+    private static final long SUBSCRIBE_WAIT_MS = 30000;
+
+    private final SipProvider mNotifierProvider;
+    private final SipHelper mNotifier;
+    private final SipHelper mSubscriber;
+    private final SipURI mNotifierProfile;
+    private final HashedTimerWheel mWheel = new HashedTimerWheel(10, 1024);
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(4);
+    private final ScheduledExecutorService mPublisher =
+            Executors.newSingleThreadScheduledExecutor();
+    private final NotifyFanout mFanout;
+    private final LatencyHistogram mStaleness = new LatencyHistogram();
+    private final AtomicLong mReceived = new AtomicLong();
+    private final Semaphore mSubscribeWindow = new Semaphore(SUBSCRIBE_WINDOW);
+    // branch of a SUBSCRIBE in flight -> its subscriber
+    private final ConcurrentHashMap<String, Integer> mSubscribing =
+            new ConcurrentHashMap<String, Integer>();
+    // subscribers whose SUBSCRIBE failed, to be sent again
+    private final ConcurrentLinkedQueue<Integer> mRetries =
+            new ConcurrentLinkedQueue<Integer>();
+    private final AtomicLong mSubscribeFailures = new AtomicLong();
+
+    private NotifyFanoutBenchmark(String transport, long intervalMillis)
+            throws Exception {
+        mNotifierProvider = createProvider("im.dlg.sip.notifier",
+                NOTIFIER_PORT, transport);
+        mNotifier = new SipHelper(mNotifierProvider.getSipStack(),
+                mNotifierProvider);
+        SipProvider subscriberProvider = createProvider("im.dlg.sip.subscriber",
+                SUBSCRIBER_PORT, transport);
+        mSubscriber = new SipHelper(subscriberProvider.getSipStack(),
+                subscriberProvider);
+        mNotifierProfile = new SipUri();
+        mNotifierProfile.setUser("notifier");
+        mNotifierProfile.setHost(Harness.HOST);
+        mNotifierProfile.setPort(NOTIFIER_PORT);
+        mNotifierProfile.setTransportParam(transport.toLowerCase());
+        mFanout = new NotifyFanout(mNotifier, mWheel, mExecutor, intervalMillis,
+                null);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int subscribers = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        long seconds = (args.length > 1) ? Long.parseLong(args[1]) : 30;
+        int rate = (args.length > 2) ? Integer.parseInt(args[2]) : 1000;
+        int resources = (args.length > 3) ? Integer.parseInt(args[3]) : 10;
+        long interval = (args.length > 4) ? Long.parseLong(args[4]) : 100;
+        String transport = (args.length > 5) ? args[5] : ListeningPoint.UDP;
+
+        boolean ok = new NotifyFanoutBenchmark(transport, interval).run(
+                subscribers, seconds, rate, resources, transport);
+        System.exit(ok ? 0 : 1);
+    }
+
+    private SipProvider createProvider(String name, int port, String transport)
+            throws Exception {
+        SipProvider sipProvider = Harness.createProvider(name, port, transport);
+        sipProvider.addSipListener(this);
+        return sipProvider;
+    }
+
+    /**
+     * @return false if not every subscriber got subscribed, and nothing was
+     *      measured
+     */
+    private boolean run(int subscribers, long seconds, int rate,
+            final int resources, String transport) throws Exception {
+        long deadline = System.currentTimeMillis() + SUBSCRIBE_WAIT_MS;
+        int next = 0;
+        while ((mFanout.getSubscriberCount() < subscribers)
+                && (System.currentTimeMillis() < deadline)) {
+            Integer retry = mRetries.poll();
+            if ((retry == null) && (next == subscribers)) {
+                Thread.sleep(10);
+                continue;
+            }
+            if (!mSubscribeWindow.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                if (retry != null) mRetries.add(retry);
+                continue;
+            }
+            int index = (retry != null) ? retry : next++;
+            try {
+                subscribe(index, resources, transport);
+            } catch (SipException e) {
+                mSubscribeWindow.release();
+                mSubscribeFailures.incrementAndGet();
+                mRetries.add(index);
+            }
+        }
+        int subscribed = mFanout.getSubscriberCount();
+        if (subscribed < subscribers) {
+            System.out.println(String.format("only %d/%d subscribed within "
+                            + "%d ms, %d SUBSCRIBEs failed; not measured",
+                    subscribed, subscribers, SUBSCRIBE_WAIT_MS,
+                    mSubscribeFailures.get()));
+            mWheel.stop();
+            mExecutor.shutdown();
+            return false;
+        }
+        // the initial NOTIFYs are not part of the measurement
+        Thread.sleep(1000);
+
+        mStaleness.reset();
+        long published = mFanout.getPublishedCount();
+        long sent = mFanout.getSentCount();
+        long coalesced = mFanout.getCoalescedCount();
+        long received = mReceived.get();
+        long start = System.nanoTime();
+        long period = Math.max(1, TimeUnit.SECONDS.toMicros(1) / rate);
+        mPublisher.scheduleAtFixedRate(new Runnable() {
+            private long mVersion;
+
+            @Override
+            public void run() {
+                try {
+                    int resource = ThreadLocalRandom.current().nextInt(resources);
+                    mFanout.publish("resource" + resource, CONTENT_TYPE,
+                            ++mVersion + " " + System.nanoTime());
+                } catch (ParseException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        }, 0, period, TimeUnit.MICROSECONDS);
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        mPublisher.shutdownNow();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        published = mFanout.getPublishedCount() - published;
+        sent = mFanout.getSentCount() - sent;
+        coalesced = mFanout.getCoalescedCount() - coalesced;
+        received = mReceived.get() - received;
+
+        // every subscriber of a resource would get each of its states
+        long naive = published * subscribed / resources;
+        System.out.println(String.format(
+                "%d/%d subscribed, %d resources: %.0f updates/s, "
+                        + "%.0f NOTIFY/s sent, %.0f received, "
+                        + "%.1f%% of %d uncoalesced, %d coalesced, %d failures",
+                subscribed, subscribers, resources, published / elapsed,
+                sent / elapsed, received / elapsed,
+                (naive > 0) ? 100.0 * sent / naive : 0.0, naive, coalesced,
+                mFanout.getFailureCount()));
+        System.out.println("staleness " + mStaleness.summary());
+        mWheel.stop();
+        mExecutor.shutdown();
+        return true;
+    }
+
+    private void subscribe(int index, int resources, String transport)
+            throws SipException, ParseException {
+        SipURI caller = new SipUri();
+        caller.setUser("watcher" + index);
+        caller.setHost(Harness.HOST);
+        caller.setPort(SUBSCRIBER_PORT);
+        caller.setTransportParam(transport.toLowerCase());
+        SipURI resource = new SipUri();
+        resource.setUser("resource" + (index % resources));
+        resource.setHost(Harness.HOST);
+        resource.setPort(NOTIFIER_PORT);
+        resource.setTransportParam(transport.toLowerCase());
+        ClientTransaction transaction = mSubscriber.sendSubscribe(caller,
+                resource, EVENT, EXPIRES, mSubscriber.getIdentifiers().newTag(),
+                mSubscriber.newCallIdHeader());
+        mSubscribing.put(transaction.getBranchId(), index);
+    }
+
+    /**
+     * Frees the window slot of a SUBSCRIBE that ended, and sends it again
+     * if it failed.
+     */
+    private void subscribed(ClientTransaction transaction, boolean ok) {
+        if (transaction == null) return;
+        Integer index = mSubscribing.remove(transaction.getBranchId());
+        if (index == null) return;
+        mSubscribeWindow.release();
+        if (!ok) {
+            mSubscribeFailures.incrementAndGet();
+            mRetries.add(index);
+        }
+    }
+
+    @Override
+    public void processRequest(RequestEvent requestEvent) {
+        Request request = requestEvent.getRequest();
+        try {
+            if (Request.SUBSCRIBE.equals(request.getMethod())) {
+                ExpiresHeader expiresHeader =
+                        (ExpiresHeader) request.getHeader(ExpiresHeader.NAME);
+                int expires = (expiresHeader != null)
+                        ? Math.min(expiresHeader.getExpires(), EXPIRES) : EXPIRES;
+                ServerTransaction transaction = mNotifier.sendSubscribeOk(
+                        requestEvent, mNotifierProfile,
+                        mNotifier.getIdentifiers().newTag(), expires);
+                SipURI resource = (SipURI) request.getRequestURI();
+                mFanout.subscribe(resource.getUser(), transaction.getDialog(),
+                        EVENT, expires);
+            } else if (Request.NOTIFY.equals(request.getMethod())) {
+                mSubscriber.sendResponse(requestEvent, Response.OK);
+                Object content = request.getContent();
+                if (content == null) return;
+                String state = (content instanceof byte[])
+                        ? new String((byte[]) content) : content.toString();
+                long published = Long.parseLong(
+                        state.substring(state.indexOf(' ') + 1));
+                mReceived.incrementAndGet();
+                mStaleness.recordNanos(System.nanoTime() - published);
+            }
+        } catch (SipException | ParseException e) {
+            // a lost subscription shows in the subscribed count
+        }
+    }
+
+    @Override
+    public void processResponse(ResponseEvent responseEvent) {
+        if (responseEvent.getSource() == mNotifierProvider) {
+            mFanout.processResponse(responseEvent);
+        } else {
+            mSubscriber.getConnectionCoalescer().onResponse(responseEvent);
+            int status = responseEvent.getResponse().getStatusCode();
+            if (status >= 200) {
+                subscribed(responseEvent.getClientTransaction(), status < 300);
+            }
+        }
+    }
+
+    @Override
+    public void processTimeout(TimeoutEvent timeoutEvent) {
+        if (timeoutEvent.getSource() == mNotifierProvider) {
+            mFanout.processTimeout(timeoutEvent);
+        } else {
+            mSubscriber.getConnectionCoalescer().onTimeout(timeoutEvent);
+            if (!timeoutEvent.isServerTransaction()) {
+                subscribed(timeoutEvent.getClientTransaction(), false);
+            }
+        }
+    }
+
+    @Override
+    public void processIOException(IOExceptionEvent ioExceptionEvent) {
+        // NOTIFYs are matched by their notifier dialogs
+        if (mFanout.processIOException(ioExceptionEvent)) return;
+        mSubscriber.getConnectionCoalescer().onIOException(ioExceptionEvent);
+        Object source = ioExceptionEvent.getSource();
+        if (source instanceof ClientTransaction) {
+            subscribed((ClientTransaction) source, false);
+        }
+    }
+
+    @Override
+    public void processTransactionTerminated(
+            TransactionTerminatedEvent transactionTerminatedEvent) {
+        if (transactionTerminatedEvent.getSource() == mNotifierProvider) {
+            mFanout.processTransactionTerminated(transactionTerminatedEvent);
+        } else if (!transactionTerminatedEvent.isServerTransaction()) {
+            // ended without a final response or timeout
+            subscribed(transactionTerminatedEvent.getClientTransaction(),
+                    false);
+        }
+    }
+
+    @Override
+    public void processDialogTerminated(
+            DialogTerminatedEvent dialogTerminatedEvent) {
+        if (dialogTerminatedEvent.getSource() == mNotifierProvider) {
+            mFanout.processDialogTerminated(dialogTerminatedEvent);
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+
+import javax.sip.*;
+import javax.sip.address.SipURI;
+import javax.sip.header.CallIdHeader;
+import javax.sip.message.Response;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offers REGISTERs at fixed fractions of the capacity of a StandInServer
+ * limited by its worker count and service time, once with admission control
+ * off and once with it on, and reports goodput, the 2xx answered per second,
+ * for each load. Without admission control goodput collapses once the
+ * offered load passes capacity; with it goodput should stay flat at
+ * capacity while the excess is answered with 503.
+ *
+ * <p>Load is open-loop: requests are sent on schedule whether or not the
+ * earlier ones were answered, as independent clients would. Every server
+ * runs on its own port so nothing left over from one round reaches the next.
+ *
+ * <p>Usage: OverloadBenchmark [capacity-per-second] [seconds] [workers]
+ */
+public class OverloadBenchmark {
+    private static final int CLIENT_PORT = 17000;
+    private static final int SERVER_PORT = 17001;
+    private static final long WARMUP_MS = 2000;
+    private static final long TICK_MS = 1;
+    private static final double[] LOADS = {0.5, 1.0, 1.5, 2.0};
+
+    private final SipHelper mSipHelper;
+    private final ExecutorService mSenders = Executors.newFixedThreadPool(4);
+    private final ScheduledExecutorService mScheduler =
+            Executors.newSingleThreadScheduledExecutor();
+    private final ConcurrentHashMap<String, Long> mPending =
+            new ConcurrentHashMap<String, Long>();
+    private final LatencyHistogram mLatency = new LatencyHistogram();
+    private final AtomicLong mAnswered = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mTimeouts = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+
+    private OverloadBenchmark() throws Exception {
+        SipProvider sipProvider = Harness.createProvider("im.dlg.sip.overload",
+                CLIENT_PORT, ListeningPoint.UDP);
+        sipProvider.addSipListener(new Listener());
+        mSipHelper = new SipHelper(sipProvider.getSipStack(), sipProvider);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int capacity = (args.length > 0) ? Integer.parseInt(args[0]) : 1000;
+        long seconds = (args.length > 1) ? Long.parseLong(args[1]) : 10;
+        int workers = (args.length > 2) ? Integer.parseInt(args[2]) : 4;
+
+        OverloadBenchmark benchmark = new OverloadBenchmark();
+        int port = SERVER_PORT;
+        for (boolean admission : new boolean[] {false, true}) {
+            for (double load : LOADS) {
+                benchmark.round(port++, capacity, workers, admission,
+                        (int) (capacity * load), seconds);
+            }
+        }
+        System.exit(0);
+    }
+
+    private void round(int port, int capacity, int workers, boolean admission,
+            int rate, long seconds) throws Exception {
+        StandInServer.Options options = new StandInServer.Options();
+        options.port = port;
+        options.transports = new String[] {ListeningPoint.UDP};
+        options.workers = workers;
+        options.service = TimeUnit.SECONDS.toMicros(workers) / capacity;
+        options.admission = admission;
+        StandInServer server = new StandInServer(options);
+        server.start();
+
+        final SipURI profile = new SipUri();
+        profile.setUser("overload");
+        profile.setHost(Harness.HOST);
+        profile.setPort(port);
+        profile.setTransportParam("udp");
+
+        mPending.clear();
+        ScheduledFuture<?> load = startLoad(profile, rate);
+        Thread.sleep(WARMUP_MS);
+        mLatency.reset();
+        long answered = mAnswered.get();
+        long rejected = mRejected.get();
+        long timeouts = mTimeouts.get();
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        answered = mAnswered.get() - answered;
+        rejected = mRejected.get() - rejected;
+        timeouts = mTimeouts.get() - timeouts;
+        load.cancel(false);
+
+        System.out.println(String.format(
+                "admission %-3s offered %5d/s: goodput %5.0f/s 503 %5.0f/s "
+                        + "timeouts %4d pending %5d %s",
+                admission ? "on" : "off", rate, answered / elapsed,
+                rejected / elapsed, timeouts, mPending.size(),
+                mLatency.summary()));
+        server.stop();
+    }
+
+    /**
+     * Sends at the given rate on a fixed schedule, catching up on ticks the
+     * scheduler ran late.
+     */
+    private ScheduledFuture<?> startLoad(final SipURI profile, final int rate) {
+        final long start = System.nanoTime();
+        return mScheduler.scheduleAtFixedRate(new Runnable() {
+            private long mScheduled;
+
+            @Override
+            public void run() {
+                long due = (System.nanoTime() - start) * rate
+                        / TimeUnit.SECONDS.toNanos(1);
+                while (mScheduled < due) {
+                    final long intended = start + mScheduled
+                            * TimeUnit.SECONDS.toNanos(1) / rate;
+                    mScheduled++;
+                    mSenders.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            send(profile, intended);
+                        }
+                    });
+                }
+            }
+        }, 0, TICK_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void send(SipURI profile, long intended) {
+        try {
+            CallIdHeader callIdHeader = mSipHelper.newCallIdHeader();
+            mPending.put(callIdHeader.getCallId(), intended);
+            mSipHelper.sendRegister(profile,
+                    mSipHelper.getIdentifiers().newTag(), 3600, callIdHeader);
+        } catch (SipException e) {
+            mFailures.incrementAndGet();
+        }
+    }
+
+    private class Listener implements SipListener {
+        @Override
+        public void processRequest(RequestEvent requestEvent) {
+        }
+
+        @Override
+        public void processResponse(ResponseEvent responseEvent) {
+            mSipHelper.getConnectionCoalescer().onResponse(responseEvent);
+            int status = responseEvent.getResponse().getStatusCode();
+            if (status < 200) return;
+            Long intended = mPending.remove(SipHelper.getCallId(responseEvent));
+            if (intended == null) return;
+            if (status < 300) {
+                mAnswered.incrementAndGet();
+                mLatency.recordNanos(System.nanoTime() - intended);
+            } else if (status == Response.SERVICE_UNAVAILABLE) {
+                mRejected.incrementAndGet();
+            } else {
+                mFailures.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+            mSipHelper.getConnectionCoalescer().onTimeout(timeoutEvent);
+            if (timeoutEvent.isServerTransaction()) return;
+            if (mPending.remove(SipHelper.getCallId(
+                    timeoutEvent.getClientTransaction())) != null) {
+                mTimeouts.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void processIOException(IOExceptionEvent ioExceptionEvent) {
+            mSipHelper.getConnectionCoalescer().onIOException(ioExceptionEvent);
+            mFailures.incrementAndGet();
+        }
+
+        @Override
+        public void processTransactionTerminated(
+                TransactionTerminatedEvent transactionTerminatedEvent) {
+        }
+
+        @Override
+        public void processDialogTerminated(
+                DialogTerminatedEvent dialogTerminatedEvent) {
+        }
+    }
+}
@@ -0,0 +1,536 @@
+package com.company;
+
+import gov.nist.javax.sip.clientauthutils.AccountManager;
+
+import javax.sip.ClientTransaction;
+import javax.sip.ResponseEvent;
+import javax.sip.SipException;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.SipURI;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.ExpiresHeader;
+import javax.sip.header.MinExpiresHeader;
+import javax.sip.header.RetryAfterHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.util.ArrayList;
+import java.util.EventObject;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a set of profiles registered from one shared scheduler.
+ *
+ * <p>Each profile keeps its Call-ID and tag for its whole lifetime. Initial
+ * registrations are spread over a start-up window and every refresh fires at
+ * a random point between half and most of the granted expiry, so a restart
+ * does not turn into a burst of REGISTERs every expiry interval after it.
+ * At most a fixed number of REGISTERs are in flight at any time; the rest
+ * wait for a free slot. Failures are retried with jittered exponential
+ * backoff, or after the Retry-After the registrar asked for.
+ *
+ * <p>The SipListener of the provider must feed responses, timeouts and
+ * transaction terminations into this manager. Refresh and retry timers live
+ * on a shared timer wheel and hand the send to an executor, since sending
+ * may block while the connection to the registrar is being set up.
+ */
+public class RegistrationManager {
+    private static final String TAG = RegistrationManager.class.getSimpleName();
+    private static final boolean DBG = false;
+
+    // refreshes go out between these fractions of the granted expiry
+    private static final double MIN_REFRESH = 0.5;
+    private static final double MAX_REFRESH = 0.85;
+    private static final long MIN_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = TimeUnit.MINUTES.toMillis(5);
+    // how long a REGISTER waits before asking again for an in-flight slot
+    private static final long THROTTLE_DELAY_MS = 50;
+    // 64*T1: no transaction outlives this
+    private static final long TRANSACTION_TTL_MS = 64 * 500;
+
+    private final SipHelper mSipHelper;
+    private final HashedTimerWheel mWheel;
+    private final ScheduledExecutorService mExecutor;
+    private final AccountManager mAccountManager;
+    private final int mExpiry;
+    private final int mMaxInFlight;
+    private final Semaphore mInFlight;
+    private final CorrelationIndex<Registration> mIndex;
+    private final ConcurrentHashMap<String, Registration> mRegistrations =
+            new ConcurrentHashMap<String, Registration>();
+    private volatile boolean mShutdown;
+
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mThrottled = new AtomicLong();
+
+    /**
+     * @param wheel holds the refresh and retry timers
+     * @param executor sends the REGISTERs and expires stale index entries
+     * @param expiry the expiry requested for every registration, in seconds
+     * @param maxInFlight how many REGISTERs may await their final response
+     * @param accountManager answers 401 and 407 challenges, or null
+     */
+    public RegistrationManager(SipHelper sipHelper, HashedTimerWheel wheel,
+            ScheduledExecutorService executor, int expiry, int maxInFlight,
+            AccountManager accountManager) {
+        mSipHelper = sipHelper;
+        mWheel = wheel;
+        mExecutor = executor;
+        mExpiry = expiry;
+        mMaxInFlight = maxInFlight;
+        mInFlight = new Semaphore(maxInFlight);
+        mAccountManager = accountManager;
+        // sessions are refreshed by every REGISTER and removed explicitly;
+        // the TTL only catches what was never cleaned up
+        mIndex = new CorrelationIndex<Registration>(4 * Math.max(
+                TimeUnit.SECONDS.toMillis(expiry), MAX_BACKOFF_MS),
+                TRANSACTION_TTL_MS);
+        mIndex.scheduleExpiry(executor, TRANSACTION_TTL_MS);
+    }
+
+    /**
+     * Starts keeping a profile registered. Its first REGISTER goes out at a
+     * random point within the given window.
+     *
+     * @return false if the profile is already managed or the manager is
+     *      shutting down
+     */
+    public boolean add(SipURI profile, long spreadMillis) throws SipException {
+        if (mShutdown) return false;
+        Registration registration = new Registration(profile,
+                mSipHelper.newCallIdHeader(),
+                mSipHelper.getIdentifiers().newTag(), mExpiry);
+        if (mRegistrations.putIfAbsent(profile.toString(), registration)
+                != null) {
+            return false;
+        }
+        mIndex.put(registration.mCallId.getCallId(), registration);
+        synchronized (registration) {
+            schedule(registration, (spreadMillis > 0)
+                    ? ThreadLocalRandom.current().nextLong(spreadMillis) : 0);
+        }
+        return true;
+    }
+
+    /**
+     * Stops refreshing a profile and unregisters it if it is registered.
+     */
+    public boolean remove(SipURI profile) {
+        Registration registration = mRegistrations.remove(profile.toString());
+        if (registration == null) return false;
+        Request request;
+        synchronized (registration) {
+            request = unregister(registration, null);
+        }
+        transmit(registration, request);
+        return true;
+    }
+
+    /**
+     * Re-registers a profile right away, e.g. because the flow it was
+     * registered over failed and the registrar can no longer reach it.
+     *
+     * @return false if the profile is not managed
+     */
+    public boolean refresh(SipURI profile) {
+        Registration registration = mRegistrations.get(profile.toString());
+        if (registration == null) return false;
+        synchronized (registration) {
+            if (registration.mUnregistering || isInFlight(registration)) {
+                return true;
+            }
+            if (registration.mTimer != null) registration.mTimer.cancel();
+            registration.mRegistered = false;
+            schedule(registration, 0);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the profile an event belongs to, or null if it is not one of
+     * the REGISTER transactions of this manager.
+     */
+    public SipURI getProfile(EventObject event) {
+        Registration registration = mIndex.get(event);
+        return (registration != null) ? registration.mProfile : null;
+    }
+
+    /**
+     * @return true if the response belonged to a managed registration
+     */
+    public boolean processResponse(ResponseEvent responseEvent) {
+        Registration registration = mIndex.get(responseEvent);
+        if (registration == null) return false;
+        Response response = responseEvent.getResponse();
+        int status = response.getStatusCode();
+        if (status < 200) return true;
+
+        ClientTransaction retry = null;
+        Request request = null;
+        synchronized (registration) {
+            if (!isTransaction(registration,
+                    responseEvent.getClientTransaction())) {
+                return true;
+            }
+            if (((status == Response.UNAUTHORIZED)
+                    || (status == Response.PROXY_AUTHENTICATION_REQUIRED))
+                    && (mAccountManager != null) && !registration.mChallenged) {
+                registration.mChallenged = true;
+                try {
+                    // recorded before it is sent, so its response finds
+                    // the registration
+                    retry = mSipHelper.createChallengeRetry(responseEvent,
+                            mAccountManager);
+                    registration.mTransaction = retry;
+                    mIndex.addTransaction(retry);
+                } catch (SipException e) {
+                    complete(registration);
+                    fail(registration, 0);
+                }
+            } else {
+                request = processFinalResponse(registration, response, status);
+            }
+        }
+        // the send may block; refreshes of the registration need not wait
+        if (retry != null) sendRetry(registration, retry);
+        transmit(registration, request);
+        return true;
+    }
+
+    // must hold the registration's lock; returns the REGISTER to transmit
+    private Request processFinalResponse(Registration registration,
+            Response response, int status) {
+        boolean unregistered = (registration.mSentExpiry == 0);
+        complete(registration);
+        if (unregistered) {
+            // whatever the outcome, the binding is gone or will expire
+            registration.mRegistered = false;
+            finish(registration);
+        } else if (status / 100 == 2) {
+            registration.mRegistered = true;
+            registration.mFailures = 0;
+            if (registration.mUnregistering) {
+                return send(registration);
+            } else {
+                long granted = TimeUnit.SECONDS.toMillis(
+                        getGrantedExpiry(response, registration.mExpiry));
+                schedule(registration, (long) (granted * ThreadLocalRandom
+                        .current().nextDouble(MIN_REFRESH, MAX_REFRESH)));
+            }
+        } else if ((status == Response.INTERVAL_TOO_BRIEF)
+                && (response.getHeader(MinExpiresHeader.NAME) != null)
+                && !registration.mUnregistering) {
+            registration.mExpiry = ((MinExpiresHeader) response
+                    .getHeader(MinExpiresHeader.NAME)).getExpires();
+            schedule(registration, 0);
+        } else {
+            RetryAfterHeader retryAfter = (RetryAfterHeader)
+                    response.getHeader(RetryAfterHeader.NAME);
+            fail(registration, (retryAfter != null)
+                    ? TimeUnit.SECONDS.toMillis(retryAfter.getRetryAfter())
+                    : 0);
+        }
+        return null;
+    }
+
+    private void sendRetry(Registration registration, ClientTransaction retry) {
+        try {
+            mSipHelper.sendChallengeRetry(retry);
+        } catch (SipException e) {
+            synchronized (registration) {
+                // unless a timeout or a shutdown got to it first
+                if (registration.mTransaction == retry) {
+                    complete(registration);
+                    fail(registration, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends a REGISTER built by {@link #send(Registration)}, outside the
+     * registration's lock as it may wait for a connect. Events that beat
+     * the send take the transaction from their own, see isTransaction().
+     */
+    private void transmit(Registration registration, Request request) {
+        if (request == null) return;
+        ClientTransaction transaction;
+        try {
+            transaction = mSipHelper.sendRequest(request);
+        } catch (SipException e) {
+            synchronized (registration) {
+                if (registration.mSending) {
+                    registration.mSending = false;
+                    mInFlight.release();
+                    fail(registration, 0);
+                }
+            }
+            return;
+        }
+        mSent.incrementAndGet();
+        if (DBG) log("REGISTER " + registration.mProfile + " expiry "
+                + registration.mSentExpiry);
+        synchronized (registration) {
+            isTransaction(registration, transaction);
+        }
+    }
+
+    /**
+     * @return true if the timeout belonged to a managed registration
+     */
+    public boolean processTimeout(TimeoutEvent timeoutEvent) {
+        return abort(mIndex.get(timeoutEvent),
+                timeoutEvent.getClientTransaction());
+    }
+
+    /**
+     * Treats a REGISTER transaction that terminated without a final
+     * response, e.g. after a transport error, as failed.
+     */
+    public void processTransactionTerminated(
+            TransactionTerminatedEvent transactionTerminatedEvent) {
+        if (!transactionTerminatedEvent.isServerTransaction()) {
+            abort(mIndex.get(transactionTerminatedEvent),
+                    transactionTerminatedEvent.getClientTransaction());
+        }
+        mIndex.onTransactionTerminated(transactionTerminatedEvent);
+    }
+
+    /**
+     * Stops all refreshes and unregisters every registered profile with a
+     * wildcard REGISTER, still within the in-flight limit.
+     *
+     * @return how many profiles were still pending when the timeout elapsed
+     */
+    public long shutdown(long timeoutMillis) throws InterruptedException {
+        mShutdown = true;
+        List<Registration> registrations =
+                new ArrayList<Registration>(mRegistrations.values());
+        mRegistrations.clear();
+        CountDownLatch latch = new CountDownLatch(registrations.size());
+        for (Registration registration : registrations) {
+            Request request;
+            synchronized (registration) {
+                request = unregister(registration, latch);
+            }
+            transmit(registration, request);
+        }
+        latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        return latch.getCount();
+    }
+
+    public int size() {
+        return mRegistrations.size();
+    }
+
+    public int getRegisteredCount() {
+        int registered = 0;
+        for (Registration registration : mRegistrations.values()) {
+            if (registration.mRegistered) registered++;
+        }
+        return registered;
+    }
+
+    public int getInFlightCount() {
+        return mMaxInFlight - mInFlight.availablePermits();
+    }
+
+    public long getSentCount() {
+        return mSent.get();
+    }
+
+    public long getFailureCount() {
+        return mFailures.get();
+    }
+
+    /**
+     * Returns how often a REGISTER had to wait for an in-flight slot.
+     */
+    public long getThrottledCount() {
+        return mThrottled.get();
+    }
+
+    // all of the following must hold the registration's lock; those that
+    // return a REGISTER leave it to transmit() after the lock is released
+
+    private Request unregister(Registration registration,
+            CountDownLatch latch) {
+        registration.mLatch = latch;
+        registration.mUnregistering = true;
+        if (registration.mTimer != null) registration.mTimer.cancel();
+        if (isInFlight(registration)) {
+            // decided once its response is in
+            return null;
+        }
+        if (registration.mRegistered) return send(registration);
+        finish(registration);
+        return null;
+    }
+
+    private Request send(final Registration registration) {
+        if (registration.mDone || isInFlight(registration)) return null;
+        if (!registration.mUnregistering
+                && (mShutdown || !mRegistrations.containsKey(
+                        registration.mProfile.toString()))) {
+            return null;
+        }
+        if (!mInFlight.tryAcquire()) {
+            mThrottled.incrementAndGet();
+            schedule(registration, THROTTLE_DELAY_MS
+                    + ThreadLocalRandom.current().nextLong(THROTTLE_DELAY_MS));
+            return null;
+        }
+        int expiry = registration.mUnregistering ? 0 : registration.mExpiry;
+        try {
+            Request request = mSipHelper.createRegister(registration.mProfile,
+                    registration.mTag, expiry, registration.mCallId);
+            registration.mChallenged = false;
+            registration.mSentExpiry = expiry;
+            registration.mSending = true;
+            registration.mSentSequence = ((CSeqHeader) request.getHeader(
+                    CSeqHeader.NAME)).getSeqNumber();
+            return request;
+        } catch (SipException e) {
+            mInFlight.release();
+            fail(registration, 0);
+            return null;
+        }
+    }
+
+    private static boolean isInFlight(Registration registration) {
+        return registration.mSending || (registration.mTransaction != null);
+    }
+
+    /**
+     * Tells whether a transaction is the REGISTER in flight. One still being
+     * sent is recorded by the first of its events or its send to get here.
+     */
+    private boolean isTransaction(Registration registration,
+            ClientTransaction transaction) {
+        if (transaction == null) return false;
+        if (registration.mSending && (((CSeqHeader) transaction.getRequest()
+                .getHeader(CSeqHeader.NAME)).getSeqNumber()
+                == registration.mSentSequence)) {
+            registration.mSending = false;
+            registration.mTransaction = transaction;
+            mIndex.addTransaction(transaction);
+        }
+        return transaction == registration.mTransaction;
+    }
+
+    private boolean abort(Registration registration,
+            ClientTransaction transaction) {
+        if (registration == null) return false;
+        synchronized (registration) {
+            if (isTransaction(registration, transaction)) {
+                complete(registration);
+                fail(registration, 0);
+            }
+        }
+        return true;
+    }
+
+    private void complete(Registration registration) {
+        registration.mTransaction = null;
+        mInFlight.release();
+    }
+
+    private void fail(Registration registration, long retryAfterMillis) {
+        mFailures.incrementAndGet();
+        if (registration.mUnregistering) {
+            finish(registration);
+            return;
+        }
+        registration.mRegistered = false;
+        long delay = retryAfterMillis;
+        if (delay <= 0) {
+            long backoff = Math.min(MAX_BACKOFF_MS, MIN_BACKOFF_MS
+                    << Math.min(registration.mFailures, 20));
+            // full jitter over the upper half keeps retries of a restarted
+            // registrar from arriving in lockstep
+            delay = backoff / 2
+                    + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+        }
+        registration.mFailures++;
+        schedule(registration, delay);
+    }
+
+    private void finish(Registration registration) {
+        registration.mDone = true;
+        mIndex.remove(registration.mCallId.getCallId());
+        // the Call-ID is never used again, whether or not it unregistered
+        mSipHelper.getIdentifiers().releaseSequence(
+                registration.mCallId.getCallId());
+        if (registration.mLatch != null) registration.mLatch.countDown();
+        registration.mLatch = null;
+    }
+
+    private void schedule(final Registration registration, long delayMillis) {
+        registration.mTimer = mWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                Request request;
+                synchronized (registration) {
+                    request = send(registration);
+                }
+                transmit(registration, request);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS, mExecutor);
+    }
+
+    private static int getGrantedExpiry(Response response, int requested) {
+        ListIterator<?> contacts = response.getHeaders(ContactHeader.NAME);
+        while ((contacts != null) && contacts.hasNext()) {
+            int expires = ((ContactHeader) contacts.next()).getExpires();
+            if (expires > 0) return expires;
+        }
+        ExpiresHeader expires =
+                (ExpiresHeader) response.getHeader(ExpiresHeader.NAME);
+        return ((expires != null) && (expires.getExpires() > 0))
+                ? expires.getExpires() : requested;
+    }
+
+    private void log(String s) {
+
+    }
+
+    private static class Registration {
+        private final SipURI mProfile;
+        private final CallIdHeader mCallId;
+        private final String mTag;
+
+        // guarded by this
+        private int mExpiry;
+        private int mSentExpiry;
+        private ClientTransaction mTransaction;
+        // a REGISTER is being sent; its transaction is not recorded yet
+        private boolean mSending;
+        private long mSentSequence;
+        private boolean mChallenged;
+        private volatile boolean mRegistered;
+        private boolean mUnregistering;
+        private boolean mDone;
+        private int mFailures;
+        private HashedTimerWheel.Timeout mTimer;
+        private CountDownLatch mLatch;
+
+        private Registration(SipURI profile, CallIdHeader callId, String tag,
+                int expiry) {
+            mProfile = profile;
+            mCallId = callId;
+            mTag = tag;
+            mExpiry = expiry;
+        }
+    }
+}
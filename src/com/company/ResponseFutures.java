@@ -0,0 +1,293 @@
+package com.company;
+
+import gov.nist.javax.sip.TransactionExt;
+
+import javax.sip.ClientTransaction;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipException;
+import javax.sip.TimeoutEvent;
+import javax.sip.Transaction;
+import javax.sip.TransactionTerminatedEvent;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Completes the futures of the asynchronous SipHelper requests, such as
+ * {@link SipHelper#sendRegisterAsync}, from the listener events of their
+ * client transactions.
+ *
+ * <p>A future completes with the final response of its transaction. A
+ * timeout completes it with a {@link TimeoutException}, an IOExceptionEvent
+ * of its transaction, or towards the address its transaction resolved its
+ * target to, with an {@link IOException}, and a transaction that
+ * ends without either with a {@link SipException}. Provisional responses go
+ * to the optional callback of the request. Both run on the thread that
+ * delivers the event, so dependent stages must not block; use the async
+ * stage methods with an executor for work that does.
+ *
+ * <p>The listener owning the SipProvider must forward responses, timeouts,
+ * IO exceptions and terminated transactions, or have a SipEventDispatcher
+ * forward them on the stack thread. A transaction carries its request in
+ * its application data, so a listener can tell the events of asynchronous
+ * requests with {@link #isAsync} after their futures completed.
+ */
+public class ResponseFutures {
+    private static final String TAG = ResponseFutures.class.getSimpleName();
+    private static final boolean DBG = false;
+
+    /**
+     * Receives the provisional responses of one request.
+     */
+    public interface ProvisionalCallback {
+        void onProvisional(ResponseEvent responseEvent);
+    }
+
+    // branch -> pending request
+    private final ConcurrentHashMap<String, Pending> mPending =
+            new ConcurrentHashMap<String, Pending>();
+    // resolved peer address -> requests pending towards it
+    private final ConcurrentHashMap<InetSocketAddress, Peer> mPeers =
+            new ConcurrentHashMap<InetSocketAddress, Peer>();
+
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+
+    Pending newPending(ProvisionalCallback callback) {
+        return new Pending(callback);
+    }
+
+    /**
+     * Binds a request to its transaction. Must happen before the request is
+     * sent, so an early response is still matched.
+     */
+    void register(ClientTransaction transaction, Pending pending) {
+        pending.mBranch = transaction.getBranchId();
+        transaction.setApplicationData(pending);
+        mPending.put(pending.mBranch, pending);
+        InetSocketAddress address = getPeerAddress(transaction);
+        if (address == null) return;
+        while (true) {
+            Peer peer = mPeers.get(address);
+            if (peer == null) {
+                peer = new Peer();
+                Peer existing = mPeers.putIfAbsent(address, peer);
+                if (existing != null) peer = existing;
+            }
+            synchronized (peer) {
+                // lost a race with the removal of an emptied peer
+                if (peer.mRemoved) continue;
+                peer.mPending.add(pending);
+            }
+            pending.mAddress = address;
+            return;
+        }
+    }
+
+    /**
+     * Fails the request of a transaction whose send failed.
+     */
+    void fail(Pending pending, Throwable cause) {
+        if (pending.mBranch != null) mPending.remove(pending.mBranch, pending);
+        unregister(pending);
+        complete(pending, null, cause);
+    }
+
+    /**
+     * @return true if the transaction was created for an asynchronous
+     *      request, whose events its future consumes
+     */
+    public static boolean isAsync(Transaction transaction) {
+        return (transaction != null)
+                && (transaction.getApplicationData() instanceof Pending);
+    }
+
+    /**
+     * @return true if the response belongs to an asynchronous request
+     */
+    public boolean onResponse(ResponseEvent event) {
+        ClientTransaction transaction = event.getClientTransaction();
+        if (transaction == null) return false;
+        String branch = transaction.getBranchId();
+        if (event.getResponse().getStatusCode() < 200) {
+            Pending pending = mPending.get(branch);
+            if (pending == null) return false;
+            if (pending.mCallback != null) {
+                pending.mCallback.onProvisional(event);
+            }
+            return true;
+        }
+        Pending pending = mPending.remove(branch);
+        if (pending == null) return false;
+        unregister(pending);
+        complete(pending, event, null);
+        return true;
+    }
+
+    /**
+     * @return true if the timeout belongs to an asynchronous request
+     */
+    public boolean onTimeout(TimeoutEvent event) {
+        if (event.isServerTransaction()) return false;
+        Pending pending = mPending.remove(
+                event.getClientTransaction().getBranchId());
+        if (pending == null) return false;
+        unregister(pending);
+        complete(pending, null, new TimeoutException("no response, "
+                + event.getTimeout()));
+        return true;
+    }
+
+    /**
+     * Fails the request of the transaction that raised the event, or, for
+     * an event raised on a connection, every request pending towards its
+     * address.
+     */
+    public void onIOException(IOExceptionEvent event) {
+        Object source = event.getSource();
+        if (source instanceof ClientTransaction) {
+            Pending pending = mPending.remove(
+                    ((ClientTransaction) source).getBranchId());
+            if (pending != null) {
+                unregister(pending);
+                complete(pending, null, newIOException(event));
+            }
+            return;
+        }
+        InetSocketAddress address = getAddress(event.getHost(), event.getPort());
+        if (address == null) return;
+        Peer peer = mPeers.remove(address);
+        if (peer == null) return;
+        Pending[] pendings;
+        synchronized (peer) {
+            peer.mRemoved = true;
+            pendings = peer.mPending.toArray(new Pending[peer.mPending.size()]);
+        }
+        for (Pending pending : pendings) {
+            if (mPending.remove(pending.mBranch, pending)) {
+                complete(pending, null, newIOException(event));
+            }
+        }
+    }
+
+    /**
+     * Fails a request whose transaction ended without a final response or
+     * timeout, so no future is left pending.
+     */
+    public void onTransactionTerminated(TransactionTerminatedEvent event) {
+        if (event.isServerTransaction()) return;
+        Pending pending = mPending.remove(
+                event.getClientTransaction().getBranchId());
+        if (pending == null) return;
+        unregister(pending);
+        complete(pending, null, new SipException("transaction terminated "
+                + "without final response"));
+    }
+
+    public int getPendingCount() {
+        return mPending.size();
+    }
+
+    public long getCompletedCount() {
+        return mCompleted.get();
+    }
+
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    private void unregister(Pending pending) {
+        InetSocketAddress address = pending.mAddress;
+        if (address == null) return;
+        Peer peer = mPeers.get(address);
+        if (peer == null) return;
+        synchronized (peer) {
+            peer.mPending.remove(pending);
+            if (!peer.mPending.isEmpty() || peer.mRemoved) return;
+            peer.mRemoved = true;
+        }
+        mPeers.remove(address, peer);
+    }
+
+    /**
+     * Returns the address the stack resolved the next hop of a transaction
+     * to, or null if it has none yet, as for a request sent on a dialog.
+     */
+    private static InetSocketAddress getPeerAddress(
+            ClientTransaction transaction) {
+        if (!(transaction instanceof TransactionExt)) return null;
+        try {
+            TransactionExt transactionExt = (TransactionExt) transaction;
+            return getAddress(transactionExt.getPeerAddress(),
+                    transactionExt.getPeerPort());
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The stack reports peers by their IP address, so this never queries DNS.
+     */
+    private static InetSocketAddress getAddress(String host, int port) {
+        if ((host == null) || (port <= 0)) return null;
+        try {
+            return new InetSocketAddress(InetAddress.getByName(host), port);
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    private static IOException newIOException(IOExceptionEvent event) {
+        return new IOException("IO exception towards " + event.getHost() + ':'
+                + event.getPort());
+    }
+
+    private void complete(Pending pending, ResponseEvent event,
+            Throwable cause) {
+        if (cause == null) {
+            mCompleted.incrementAndGet();
+            pending.mFuture.complete(event);
+        } else {
+            if (DBG) log("request failed: " + cause);
+            mFailed.incrementAndGet();
+            pending.mFuture.completeExceptionally(cause);
+        }
+    }
+
+    private void log(String s) {
+
+    }
+
+    /**
+     * An asynchronous request waiting for its final response.
+     */
+    static final class Pending {
+        private final CompletableFuture<ResponseEvent> mFuture =
+                new CompletableFuture<ResponseEvent>();
+        private final ProvisionalCallback mCallback;
+        private volatile String mBranch;
+        private volatile InetSocketAddress mAddress;
+
+        private Pending(ProvisionalCallback callback) {
+            mCallback = callback;
+        }
+
+        CompletableFuture<ResponseEvent> getFuture() {
+            return mFuture;
+        }
+    }
+
+    private static class Peer {
+        // guarded by this
+        private final Set<Pending> mPending = new HashSet<Pending>();
+        private boolean mRemoved;
+    }
+}
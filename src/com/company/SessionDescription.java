@@ -0,0 +1,838 @@
+package com.company;
+
+import javax.sip.message.Message;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SDP (RFC 4566) session description, parsed from and encoded to message
+ * content bytes without going through an intermediate String.
+ *
+ * <p>The description is split into its structure (lines, attributes, media
+ * sections) and the few fields that change from one offer to the next: the
+ * origin session id and version, the session-level connection address and
+ * the media ports. Encoding compiles the structure once into fixed byte
+ * segments and afterwards only writes those fields between them, until the
+ * structure is modified again. {@link #copy()} shares the structure and its
+ * compiled segments, so an endpoint can keep one description as its offer
+ * template and patch a cheap copy for every call.
+ *
+ * <p>Instances are not thread-safe. Encoding does not modify a description,
+ * so one that is no longer changed may be encoded and copied concurrently.
+ */
+public class SessionDescription {
+    public static final String CONTENT_TYPE = "application";
+    public static final String CONTENT_SUBTYPE = "sdp";
+
+    public static final String IN = "IN";
+    public static final String IP4 = "IP4";
+    public static final String IP6 = "IP6";
+
+    // fields patched between the compiled segments
+    private static final int SLOT_SESSION_ID = 0;
+    private static final int SLOT_SESSION_VERSION = 1;
+    private static final int SLOT_CONNECTION_ADDRESS = 2;
+    private static final int SLOT_PORT = 3;
+
+    private static final int[] NO_PORTS = new int[0];
+
+    // structure, shared between copies until one of them modifies it
+    private String mOriginUser = "-";
+    private String mOriginNetworkType = IN;
+    private String mOriginAddressType = IP4;
+    private String mOriginAddress;
+    private String mSessionName = "-";
+    private String mConnectionNetworkType;
+    private String mConnectionAddressType;
+    private long mStartTime;
+    private long mStopTime;
+    private List<String> mLines = new ArrayList<String>();
+    private List<String> mAttributes = new ArrayList<String>();
+    private List<Media> mMedia = new ArrayList<Media>();
+    private boolean mShared;
+    private Template mTemplate;
+
+    // patched per offer
+    private long mSessionId;
+    private long mSessionVersion;
+    private String mConnectionAddress;
+    private int[] mPorts = NO_PORTS;
+
+    public SessionDescription(String originAddress) {
+        mOriginAddress = originAddress;
+    }
+
+    private SessionDescription() {
+    }
+
+    /**
+     * Parses the SDP body of a message.
+     *
+     * @return null if the message has no content
+     */
+    public static SessionDescription parse(Message message)
+            throws ParseException {
+        byte[] content = message.getRawContent();
+        return (content != null) ? parse(content, 0, content.length) : null;
+    }
+
+    public static SessionDescription parse(byte[] content, int offset,
+            int length) throws ParseException {
+        SessionDescription sdp = new SessionDescription();
+        Scanner scanner = new Scanner(content, offset);
+        int end = offset + length;
+        boolean origin = false;
+        boolean timing = false;
+        MediaBuilder media = null;
+        List<Media> sections = sdp.mMedia;
+        List<Integer> ports = new ArrayList<Integer>();
+
+        while (scanner.mPosition < end) {
+            int lineEnd = scanner.mPosition;
+            while ((lineEnd < end) && (content[lineEnd] != '\n')) lineEnd++;
+            int next = lineEnd + 1;
+            if ((lineEnd > scanner.mPosition) && (content[lineEnd - 1] == '\r')) {
+                lineEnd--;
+            }
+            if (lineEnd == scanner.mPosition) {
+                scanner.mPosition = next;
+                continue;
+            }
+            if ((lineEnd - scanner.mPosition < 2)
+                    || (content[scanner.mPosition + 1] != '=')) {
+                throw new ParseException("parse(): malformed line",
+                        scanner.mPosition - offset);
+            }
+            char type = (char) content[scanner.mPosition];
+            scanner.mPosition += 2;
+            scanner.mEnd = lineEnd;
+
+            switch (type) {
+                case 'v':
+                    if (scanner.number() != 0) {
+                        throw new ParseException("parse(): version",
+                                scanner.mPosition - offset);
+                    }
+                    break;
+                case 'o':
+                    sdp.mOriginUser = scanner.token();
+                    sdp.mSessionId = scanner.number();
+                    sdp.mSessionVersion = scanner.number();
+                    sdp.mOriginNetworkType = scanner.token();
+                    sdp.mOriginAddressType = scanner.token();
+                    sdp.mOriginAddress = scanner.token();
+                    origin = true;
+                    break;
+                case 's':
+                    sdp.mSessionName = scanner.rest();
+                    break;
+                case 'c':
+                    if (media != null) {
+                        media.mConnection = scanner.rest();
+                    } else {
+                        sdp.mConnectionNetworkType = scanner.token();
+                        sdp.mConnectionAddressType = scanner.token();
+                        sdp.mConnectionAddress = scanner.token();
+                    }
+                    break;
+                case 't':
+                    if ((media == null) && !timing) {
+                        sdp.mStartTime = scanner.number();
+                        sdp.mStopTime = scanner.number();
+                        timing = true;
+                    } else {
+                        sdp.addLine(media, type, scanner.rest());
+                    }
+                    break;
+                case 'a':
+                    if (media != null) {
+                        media.mAttributes.add(scanner.rest());
+                    } else {
+                        sdp.mAttributes.add(scanner.rest());
+                    }
+                    break;
+                case 'm':
+                    if (media != null) sections.add(media.build());
+                    media = new MediaBuilder(scanner.token());
+                    ports.add(scanner.port(media));
+                    media.mProtocol = scanner.token();
+                    while (scanner.hasMore()) media.mFormats.add(scanner.token());
+                    break;
+                default:
+                    sdp.addLine(media, type, scanner.rest());
+                    break;
+            }
+            scanner.mPosition = next;
+        }
+        if (media != null) sections.add(media.build());
+        if (!origin) throw new ParseException("parse(): no origin", 0);
+
+        sdp.mPorts = new int[ports.size()];
+        for (int i = 0; i < sdp.mPorts.length; i++) sdp.mPorts[i] = ports.get(i);
+        return sdp;
+    }
+
+    /**
+     * Returns a copy that shares the structure of this description. Setting
+     * the session id, version, connection address or ports on the copy
+     * keeps the sharing; anything else makes the copy take its own.
+     */
+    public SessionDescription copy() {
+        SessionDescription copy = new SessionDescription();
+        // compiled here so that all copies reuse the same segments
+        getTemplate();
+        mShared = true;
+        copy.mShared = true;
+        copy.mTemplate = mTemplate;
+        copy.mOriginUser = mOriginUser;
+        copy.mOriginNetworkType = mOriginNetworkType;
+        copy.mOriginAddressType = mOriginAddressType;
+        copy.mOriginAddress = mOriginAddress;
+        copy.mSessionName = mSessionName;
+        copy.mConnectionNetworkType = mConnectionNetworkType;
+        copy.mConnectionAddressType = mConnectionAddressType;
+        copy.mStartTime = mStartTime;
+        copy.mStopTime = mStopTime;
+        copy.mLines = mLines;
+        copy.mAttributes = mAttributes;
+        copy.mMedia = mMedia;
+        copy.mSessionId = mSessionId;
+        copy.mSessionVersion = mSessionVersion;
+        copy.mConnectionAddress = mConnectionAddress;
+        copy.mPorts = mPorts.clone();
+        return copy;
+    }
+
+    /**
+     * Encodes the description into a new array of exactly its length.
+     */
+    public byte[] encode() {
+        return getTemplate().render(this);
+    }
+
+    public long getSessionId() {
+        return mSessionId;
+    }
+
+    public void setSessionId(long sessionId) {
+        mSessionId = sessionId;
+    }
+
+    public long getSessionVersion() {
+        return mSessionVersion;
+    }
+
+    /**
+     * RFC 3264 section 8: the version must grow with every modified offer
+     * within a session.
+     */
+    public void setSessionVersion(long sessionVersion) {
+        mSessionVersion = sessionVersion;
+    }
+
+    public String getOriginUser() {
+        return mOriginUser;
+    }
+
+    public String getOriginAddress() {
+        return mOriginAddress;
+    }
+
+    public void setOrigin(String user, String addressType, String address) {
+        modify();
+        mOriginUser = user;
+        mOriginAddressType = addressType;
+        mOriginAddress = address;
+    }
+
+    public String getSessionName() {
+        return mSessionName;
+    }
+
+    public void setSessionName(String sessionName) {
+        modify();
+        mSessionName = sessionName;
+    }
+
+    /**
+     * @return the session-level connection address, or null if only the
+     *      media sections have one
+     */
+    public String getConnectionAddress() {
+        return mConnectionAddress;
+    }
+
+    /**
+     * Sets the session-level connection address, keeping its address type.
+     * Without a connection line yet, an IN IP4 one is added.
+     */
+    public void setConnectionAddress(String address) {
+        if (mConnectionNetworkType == null) {
+            setConnection(IP4, address);
+        } else {
+            mConnectionAddress = address;
+        }
+    }
+
+    public void setConnection(String addressType, String address) {
+        modify();
+        mConnectionNetworkType = IN;
+        mConnectionAddressType = addressType;
+        mConnectionAddress = address;
+    }
+
+    public String getConnectionAddressType() {
+        return mConnectionAddressType;
+    }
+
+    public void setTiming(long startTime, long stopTime) {
+        modify();
+        mStartTime = startTime;
+        mStopTime = stopTime;
+    }
+
+    /**
+     * Returns the session-level attributes as "name" or "name:value".
+     */
+    public List<String> getAttributes() {
+        return Collections.unmodifiableList(mAttributes);
+    }
+
+    /**
+     * @return the value of the first session-level attribute with the given
+     *      name, "" for a flag, or null if there is none
+     */
+    public String getAttribute(String name) {
+        return findAttribute(mAttributes, name);
+    }
+
+    public void addAttribute(String attribute) {
+        modify();
+        mAttributes.add(attribute);
+    }
+
+    public boolean removeAttribute(String name) {
+        modify();
+        for (int i = 0; i < mAttributes.size(); i++) {
+            if (isAttribute(mAttributes.get(i), name)) {
+                mAttributes.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the session-level lines kept verbatim, such as bandwidth or
+     * repeat times, as "x=value".
+     */
+    public List<String> getLines() {
+        return Collections.unmodifiableList(mLines);
+    }
+
+    public void addLine(String line) {
+        modify();
+        mLines.add(line);
+    }
+
+    public int getMediaCount() {
+        return mMedia.size();
+    }
+
+    public Media getMedia(int index) {
+        return mMedia.get(index);
+    }
+
+    /**
+     * @return the index of the first media section of the given type, or -1
+     */
+    public int indexOfMedia(String type) {
+        for (int i = 0; i < mMedia.size(); i++) {
+            if (mMedia.get(i).mType.equals(type)) return i;
+        }
+        return -1;
+    }
+
+    public int addMedia(Media media, int port) {
+        modify();
+        mMedia.add(media);
+        mPorts = Arrays.copyOf(mPorts, mPorts.length + 1);
+        mPorts[mPorts.length - 1] = port;
+        return mPorts.length - 1;
+    }
+
+    public void removeMedia(int index) {
+        modify();
+        mMedia.remove(index);
+        int[] ports = new int[mPorts.length - 1];
+        System.arraycopy(mPorts, 0, ports, 0, index);
+        System.arraycopy(mPorts, index + 1, ports, index, ports.length - index);
+        mPorts = ports;
+    }
+
+    public int getPort(int index) {
+        return mPorts[index];
+    }
+
+    /**
+     * Sets the port of a media section; 0 rejects or disables it.
+     */
+    public void setPort(int index, int port) {
+        mPorts[index] = port;
+    }
+
+    @Override
+    public String toString() {
+        return new String(encode(), StandardCharsets.UTF_8);
+    }
+
+    private void addLine(MediaBuilder media, char type, String value) {
+        String line = type + "=" + value;
+        if (media != null) {
+            media.mLines.add(line);
+        } else {
+            mLines.add(line);
+        }
+    }
+
+    private void modify() {
+        mTemplate = null;
+        if (mShared) {
+            mShared = false;
+            mLines = new ArrayList<String>(mLines);
+            mAttributes = new ArrayList<String>(mAttributes);
+            mMedia = new ArrayList<Media>(mMedia);
+        }
+    }
+
+    private Template getTemplate() {
+        Template template = mTemplate;
+        if (template == null) {
+            Encoder encoder = new Encoder();
+            encode(encoder);
+            template = encoder.compile();
+            mTemplate = template;
+        }
+        return template;
+    }
+
+    private void encode(Encoder encoder) {
+        encoder.put("v=0\r\no=").put(mOriginUser).put(' ');
+        encoder.slot(SLOT_SESSION_ID).put(' ');
+        encoder.slot(SLOT_SESSION_VERSION).put(' ');
+        encoder.put(mOriginNetworkType).put(' ').put(mOriginAddressType)
+                .put(' ').put(mOriginAddress).put("\r\ns=")
+                .put(mSessionName).put("\r\n");
+        encoder.lines(mLines, "iuep", true);
+        if (mConnectionNetworkType != null) {
+            encoder.put("c=").put(mConnectionNetworkType).put(' ')
+                    .put(mConnectionAddressType).put(' ');
+            encoder.slot(SLOT_CONNECTION_ADDRESS).put("\r\n");
+        }
+        encoder.lines(mLines, "b", true);
+        encoder.put("t=").number(mStartTime).put(' ').number(mStopTime)
+                .put("\r\n");
+        encoder.lines(mLines, "iuepb", false);
+        encoder.attributes(mAttributes);
+        for (int i = 0; i < mMedia.size(); i++) {
+            mMedia.get(i).encode(encoder, SLOT_PORT + i);
+        }
+    }
+
+    private static String findAttribute(List<String> attributes, String name) {
+        for (String attribute : attributes) {
+            if (isAttribute(attribute, name)) {
+                return (attribute.length() == name.length())
+                        ? "" : attribute.substring(name.length() + 1);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isAttribute(String attribute, String name) {
+        return attribute.startsWith(name)
+                && ((attribute.length() == name.length())
+                        || (attribute.charAt(name.length()) == ':'));
+    }
+
+    /**
+     * A media section: "m=" line, optional connection line, attributes and
+     * other lines. Immutable, so descriptions can share it; the port is kept
+     * by the description.
+     */
+    public static final class Media {
+        private final String mType;
+        private final int mPortCount;
+        private final String mProtocol;
+        private final List<String> mFormats;
+        private final String mConnection;
+        private final List<String> mAttributes;
+        private final List<String> mLines;
+
+        /**
+         * @param connection the whole value of a media-level connection line,
+         *      such as "IN IP4 192.0.2.1", or null
+         */
+        public Media(String type, String protocol, List<String> formats,
+                String connection, List<String> attributes) {
+            this(type, 0, protocol, formats, connection, attributes,
+                    Collections.<String>emptyList());
+        }
+
+        private Media(String type, int portCount, String protocol,
+                List<String> formats, String connection,
+                List<String> attributes, List<String> lines) {
+            mType = type;
+            mPortCount = portCount;
+            mProtocol = protocol;
+            mFormats = Collections.unmodifiableList(
+                    new ArrayList<String>(formats));
+            mConnection = connection;
+            mAttributes = Collections.unmodifiableList(
+                    new ArrayList<String>(attributes));
+            mLines = Collections.unmodifiableList(new ArrayList<String>(lines));
+        }
+
+        public String getType() {
+            return mType;
+        }
+
+        public String getProtocol() {
+            return mProtocol;
+        }
+
+        public List<String> getFormats() {
+            return mFormats;
+        }
+
+        public String getConnection() {
+            return mConnection;
+        }
+
+        public List<String> getAttributes() {
+            return mAttributes;
+        }
+
+        public String getAttribute(String name) {
+            return findAttribute(mAttributes, name);
+        }
+
+        public List<String> getLines() {
+            return mLines;
+        }
+
+        private void encode(Encoder encoder, int portSlot) {
+            encoder.put("m=").put(mType).put(' ').slot(portSlot);
+            if (mPortCount > 0) encoder.put('/').number(mPortCount);
+            encoder.put(' ').put(mProtocol);
+            for (String format : mFormats) encoder.put(' ').put(format);
+            encoder.put("\r\n");
+            encoder.lines(mLines, "i", true);
+            if (mConnection != null) {
+                encoder.put("c=").put(mConnection).put("\r\n");
+            }
+            encoder.lines(mLines, "i", false);
+            encoder.attributes(mAttributes);
+        }
+    }
+
+    private static class MediaBuilder {
+        private final String mType;
+        private int mPortCount;
+        private String mProtocol;
+        private final List<String> mFormats = new ArrayList<String>();
+        private String mConnection;
+        private final List<String> mAttributes = new ArrayList<String>();
+        private final List<String> mLines = new ArrayList<String>();
+
+        private MediaBuilder(String type) {
+            mType = type;
+        }
+
+        private Media build() {
+            return new Media(mType, mPortCount, mProtocol, mFormats,
+                    mConnection, mAttributes, mLines);
+        }
+    }
+
+    /**
+     * Reads space separated fields of one line, numbers straight from the
+     * bytes.
+     */
+    private static class Scanner {
+        private final byte[] mContent;
+        private final int mOffset;
+        private int mPosition;
+        private int mEnd;
+
+        private Scanner(byte[] content, int offset) {
+            mContent = content;
+            mOffset = offset;
+            mPosition = offset;
+        }
+
+        private boolean hasMore() {
+            skipSpaces();
+            return mPosition < mEnd;
+        }
+
+        private String token() throws ParseException {
+            skipSpaces();
+            int start = mPosition;
+            while ((mPosition < mEnd) && (mContent[mPosition] != ' ')) {
+                mPosition++;
+            }
+            if (start == mPosition) {
+                throw new ParseException("parse(): missing field",
+                        start - mOffset);
+            }
+            return new String(mContent, start, mPosition - start,
+                    StandardCharsets.UTF_8);
+        }
+
+        private String rest() {
+            String rest = new String(mContent, mPosition, mEnd - mPosition,
+                    StandardCharsets.UTF_8);
+            mPosition = mEnd;
+            return rest;
+        }
+
+        /**
+         * Reads an unsigned decimal of up to 64 bits.
+         */
+        private long number() throws ParseException {
+            skipSpaces();
+            int start = mPosition;
+            long value = 0;
+            while ((mPosition < mEnd) && (mContent[mPosition] >= '0')
+                    && (mContent[mPosition] <= '9')) {
+                int digit = mContent[mPosition++] - '0';
+                if (Long.compareUnsigned(value, Long.divideUnsigned(
+                        -1L - digit, 10)) > 0) {
+                    throw new ParseException("parse(): number too large",
+                            start - mOffset);
+                }
+                value = value * 10 + digit;
+            }
+            if ((start == mPosition) || ((mPosition < mEnd)
+                    && (mContent[mPosition] != ' '))) {
+                throw new ParseException("parse(): number", start - mOffset);
+            }
+            return value;
+        }
+
+        /**
+         * Reads "port" or "port/count" of a media line.
+         */
+        private int port(MediaBuilder media) throws ParseException {
+            skipSpaces();
+            int start = mPosition;
+            int port = 0;
+            while ((mPosition < mEnd) && (mContent[mPosition] >= '0')
+                    && (mContent[mPosition] <= '9')) {
+                port = port * 10 + (mContent[mPosition++] - '0');
+                if (port > 0xffff) break;
+            }
+            if ((mPosition < mEnd) && (mContent[mPosition] == '/')) {
+                mPosition++;
+                media.mPortCount = (int) number();
+            }
+            if ((start == mPosition) || (port > 0xffff)) {
+                throw new ParseException("parse(): port", start - mOffset);
+            }
+            return port;
+        }
+
+        private void skipSpaces() {
+            while ((mPosition < mEnd) && (mContent[mPosition] == ' ')) {
+                mPosition++;
+            }
+        }
+    }
+
+    /**
+     * Collects fixed bytes into segments, recording a slot wherever a
+     * patched field goes between them.
+     */
+    private static class Encoder {
+        private byte[] mBuffer = new byte[256];
+        private int mLength;
+        private final List<byte[]> mSegments = new ArrayList<byte[]>();
+        private final List<Integer> mSlots = new ArrayList<Integer>();
+
+        private Encoder put(char c) {
+            ensure(1);
+            mBuffer[mLength++] = (byte) c;
+            return this;
+        }
+
+        private Encoder put(String s) {
+            int length = s.length();
+            ensure(length);
+            for (int i = 0; i < length; i++) {
+                char c = s.charAt(i);
+                if (c >= 0x80) {
+                    byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                    ensure(bytes.length);
+                    System.arraycopy(bytes, 0, mBuffer, mLength, bytes.length);
+                    mLength += bytes.length;
+                    return this;
+                }
+                mBuffer[mLength + i] = (byte) c;
+            }
+            mLength += length;
+            return this;
+        }
+
+        private Encoder number(long value) {
+            ensure(20);
+            mLength = writeNumber(mBuffer, mLength, value);
+            return this;
+        }
+
+        private Encoder slot(int slot) {
+            mSegments.add(Arrays.copyOf(mBuffer, mLength));
+            mSlots.add(slot);
+            mLength = 0;
+            return this;
+        }
+
+        /**
+         * Writes the lines whose type is (or is not) among the given ones.
+         */
+        private void lines(List<String> lines, String types, boolean among) {
+            for (String line : lines) {
+                if ((types.indexOf(line.charAt(0)) >= 0) == among) {
+                    put(line).put("\r\n");
+                }
+            }
+        }
+
+        private void attributes(List<String> attributes) {
+            for (String attribute : attributes) {
+                put("a=").put(attribute).put("\r\n");
+            }
+        }
+
+        private Template compile() {
+            mSegments.add(Arrays.copyOf(mBuffer, mLength));
+            int[] slots = new int[mSlots.size()];
+            for (int i = 0; i < slots.length; i++) slots[i] = mSlots.get(i);
+            return new Template(mSegments.toArray(new byte[mSegments.size()][]),
+                    slots);
+        }
+
+        private void ensure(int length) {
+            if (mLength + length > mBuffer.length) {
+                mBuffer = Arrays.copyOf(mBuffer,
+                        Math.max(mBuffer.length * 2, mLength + length));
+            }
+        }
+    }
+
+    /**
+     * Compiled structure: segments[i] is followed by the field of slots[i],
+     * the last segment by nothing.
+     */
+    private static class Template {
+        private final byte[][] mSegments;
+        private final int[] mSlots;
+        private final int mFixedLength;
+
+        private Template(byte[][] segments, int[] slots) {
+            mSegments = segments;
+            mSlots = slots;
+            int length = 0;
+            for (byte[] segment : segments) length += segment.length;
+            mFixedLength = length;
+        }
+
+        private byte[] render(SessionDescription sdp) {
+            int length = mFixedLength;
+            for (int slot : mSlots) {
+                switch (slot) {
+                    case SLOT_SESSION_ID:
+                        length += digits(sdp.mSessionId);
+                        break;
+                    case SLOT_SESSION_VERSION:
+                        length += digits(sdp.mSessionVersion);
+                        break;
+                    case SLOT_CONNECTION_ADDRESS:
+                        length += sdp.mConnectionAddress.length();
+                        break;
+                    default:
+                        length += digits(sdp.mPorts[slot - SLOT_PORT]);
+                        break;
+                }
+            }
+
+            byte[] content = new byte[length];
+            int position = 0;
+            for (int i = 0; i < mSegments.length; i++) {
+                byte[] segment = mSegments[i];
+                System.arraycopy(segment, 0, content, position, segment.length);
+                position += segment.length;
+                if (i == mSlots.length) break;
+                switch (mSlots[i]) {
+                    case SLOT_SESSION_ID:
+                        position = writeNumber(content, position,
+                                sdp.mSessionId);
+                        break;
+                    case SLOT_SESSION_VERSION:
+                        position = writeNumber(content, position,
+                                sdp.mSessionVersion);
+                        break;
+                    case SLOT_CONNECTION_ADDRESS:
+                        // addresses are ASCII
+                        String address = sdp.mConnectionAddress;
+                        for (int j = 0; j < address.length(); j++) {
+                            content[position++] = (byte) address.charAt(j);
+                        }
+                        break;
+                    default:
+                        position = writeNumber(content, position,
+                                sdp.mPorts[mSlots[i] - SLOT_PORT]);
+                        break;
+                }
+            }
+            return content;
+        }
+    }
+
+    /**
+     * Returns the number of decimal digits of an unsigned value.
+     */
+    private static int digits(long value) {
+        int digits = 1;
+        if (value < 0) {
+            value = Long.divideUnsigned(value, 10);
+            digits++;
+        }
+        while (value >= 10) {
+            value /= 10;
+            digits++;
+        }
+        return digits;
+    }
+
+    /**
+     * Writes an unsigned value in decimal and returns the end position.
+     */
+    private static int writeNumber(byte[] buffer, int position, long value) {
+        int end = position + digits(value);
+        int i = end;
+        if (value < 0) {
+            buffer[--i] = (byte) ('0' + Long.remainderUnsigned(value, 10));
+            value = Long.divideUnsigned(value, 10);
+        }
+        do {
+            buffer[--i] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        return end;
+    }
+}
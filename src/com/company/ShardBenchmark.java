@@ -0,0 +1,208 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+import gov.nist.javax.sip.stack.NioMessageProcessorFactory;
+
+import javax.sip.*;
+import javax.sip.address.SipURI;
+import javax.sip.message.Request;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how OPTIONS throughput scales with the number of stacks in a
+ * SipHelperPool. For each shard count a client pool and a responder pool
+ * with that many shards are started in this process; client shard i keeps a
+ * fixed window of OPTIONS outstanding towards responder shard i, and every
+ * final response immediately triggers the next request. Scaling is the rate
+ * relative to a single stack, so a 1-shard round runs first if the given
+ * counts do not start with one.
+ *
+ * <p>Usage: ShardBenchmark [shard-counts, e.g. 1,2,4,8] [seconds] [window]
+ * [transport]
+ */
+public class ShardBenchmark {
+    private static final String HOST = "127.0.0.1";
+    private static final int CLIENT_BASE_PORT = 16000;
+    private static final int RESPONDER_BASE_PORT = 17000;
+    private static final long WARMUP_MS = 2000;
+
+    private final String mTransport;
+    private final int mWindow;
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private SipHelperPool mClients;
+    private SipHelperPool mResponders;
+    private SipURI[] mCallers;
+    private SipURI[] mCallees;
+
+    private ShardBenchmark(String transport, int window) {
+        mTransport = transport;
+        mWindow = window;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String[] counts = ((args.length > 0) ? args[0] : "1,2,4,8").split(",");
+        if (Integer.parseInt(counts[0].trim()) != 1) {
+            String[] withBaseline = new String[counts.length + 1];
+            withBaseline[0] = "1";
+            System.arraycopy(counts, 0, withBaseline, 1, counts.length);
+            counts = withBaseline;
+        }
+        long seconds = (args.length > 1) ? Long.parseLong(args[1]) : 10;
+        int window = (args.length > 2) ? Integer.parseInt(args[2]) : 64;
+        String transport = (args.length > 3) ? args[3] : ListeningPoint.UDP;
+
+        System.out.println(String.format("%6s %12s %8s %8s  %s", "shards",
+                "ops/s", "scaling", "failed", "latency"));
+        double baseline = 0;
+        for (int round = 0; round < counts.length; round++) {
+            int shards = Integer.parseInt(counts[round].trim());
+            ShardBenchmark benchmark = new ShardBenchmark(transport, window);
+            LatencyHistogram latency = new LatencyHistogram();
+            double rate = benchmark.run(round, shards,
+                    TimeUnit.SECONDS.toMillis(seconds), latency);
+            if (round == 0) baseline = rate;
+            System.out.println(String.format("%6d %12.0f %7.2fx %8d  %s",
+                    shards, rate, rate / baseline, benchmark.mFailures.get(),
+                    latency.summary()));
+        }
+        System.exit(0);
+    }
+
+    private double run(int round, int shards, long millis,
+            LatencyHistogram latency) throws Exception {
+        // stacks keep their names after stop(), every round needs new ones
+        mResponders = new SipHelperPool(properties("responder-" + round), HOST,
+                RESPONDER_BASE_PORT + round * 100, mTransport, shards,
+                new Listener() {
+                    @Override
+                    public void processRequest(RequestEvent requestEvent) {
+                        respond(requestEvent);
+                    }
+                });
+        mClients = new SipHelperPool(properties("client-" + round), HOST,
+                CLIENT_BASE_PORT + round * 100, mTransport, shards,
+                new Listener() {
+                    @Override
+                    public void processResponse(ResponseEvent responseEvent) {
+                        complete(responseEvent);
+                    }
+
+                    @Override
+                    public void processTimeout(TimeoutEvent timeoutEvent) {
+                        mFailures.incrementAndGet();
+                        send(mClients.getShard(timeoutEvent));
+                    }
+                });
+
+        mCallers = new SipURI[shards];
+        mCallees = new SipURI[shards];
+        for (int i = 0; i < shards; i++) {
+            mCallers[i] = createProfile("bench", CLIENT_BASE_PORT + round * 100 + i);
+            mCallees[i] = createProfile("responder",
+                    RESPONDER_BASE_PORT + round * 100 + i);
+        }
+        for (int i = 0; i < shards; i++) {
+            for (int j = 0; j < mWindow; j++) send(i);
+        }
+
+        Thread.sleep(WARMUP_MS);
+        for (int i = 0; i < shards; i++) {
+            mClients.getHelper(i).getMetrics().reset();
+        }
+        long start = System.nanoTime();
+        long completed = mCompleted.get();
+        Thread.sleep(millis);
+        completed = mCompleted.get() - completed;
+        double rate = completed * 1e9 / (System.nanoTime() - start);
+
+        for (int i = 0; i < shards; i++) {
+            mClients.getHelper(i).getMetrics()
+                    .getLatency(Request.OPTIONS, 2).drainTo(latency);
+        }
+        mClients.stop();
+        mResponders.stop();
+        return rate;
+    }
+
+    private void send(int shard) {
+        if (shard < 0) return;
+        SipHelper helper = mClients.getHelper(shard);
+        try {
+            helper.sendOptions(mCallers[shard], mCallees[shard],
+                    helper.getIdentifiers().newTag(), helper.newCallIdHeader());
+        } catch (SipException e) {
+            mFailures.incrementAndGet();
+        }
+    }
+
+    private void complete(ResponseEvent responseEvent) {
+        if (responseEvent.getResponse().getStatusCode() < 200) return;
+        SipHelper helper = mClients.getHelper(responseEvent);
+        if (helper == null) return;
+        helper.getMetrics().onResponse(responseEvent);
+        mCompleted.incrementAndGet();
+        send(mClients.getShard(responseEvent));
+    }
+
+    private void respond(RequestEvent requestEvent) {
+        SipHelper helper = mResponders.getHelper(requestEvent);
+        if (helper == null) return;
+        try {
+            helper.sendResponse(requestEvent, 200);
+        } catch (SipException e) {
+            // the client times out and replaces the request
+        }
+    }
+
+    private Properties properties(String name) {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "im.dlg.sip.shards."
+                + name);
+        properties.setProperty("gov.nist.javax.sip.MESSAGE_PROCESSOR_FACTORY",
+                NioMessageProcessorFactory.class.getCanonicalName());
+        return properties;
+    }
+
+    private SipURI createProfile(String user, int port) throws Exception {
+        SipURI profile = new SipUri();
+        profile.setUser(user);
+        profile.setHost(HOST);
+        profile.setPort(port);
+        profile.setTransportParam(mTransport.toLowerCase());
+        return profile;
+    }
+
+    /**
+     * Ignores every event a role has no use for.
+     */
+    private static class Listener implements SipListener {
+        @Override
+        public void processRequest(RequestEvent requestEvent) {
+        }
+
+        @Override
+        public void processResponse(ResponseEvent responseEvent) {
+        }
+
+        @Override
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+        }
+
+        @Override
+        public void processIOException(IOExceptionEvent ioExceptionEvent) {
+        }
+
+        @Override
+        public void processTransactionTerminated(
+                TransactionTerminatedEvent transactionTerminatedEvent) {
+        }
+
+        @Override
+        public void processDialogTerminated(
+                DialogTerminatedEvent dialogTerminatedEvent) {
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.company;
+
+import gov.nist.javax.sip.DialogTimeoutEvent;
+import gov.nist.javax.sip.SipListenerExt;
+
+import javax.sip.*;
+import java.util.EventObject;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SipListener that hands stack events over to worker threads, sharded by
+ * Call-ID. Events of one call or registration always land on the same
+ * worker and keep their order, while different calls run in parallel, so a
+ * slow handler for one call no longer stalls every other one. Timeouts
+ * follow the Call-ID of their transaction; an IOExceptionEvent raised
+ * outside a transaction has none and is sharded by the host and port of
+ * the peer instead.
+ *
+ * <p>Queues are bounded. When a shard is full the stack thread blocks until
+ * there is room: SIP events cannot be dropped without breaking transactions,
+ * and the stack then pushes back on the network instead. To keep queues
+ * from filling up in the first place, an AdmissionController can turn new
+ * requests away before they are queued.
+ *
+ * <p>A request sent from a worker may wait in the ConnectionCoalescer for a
+ * response that would be queued behind it on the same worker. So the
+ * coalescer, and the ResponseFutures whose stages send the next request,
+ * are fed their events on the stack thread, before the events are queued.
+ *
+ * <p>The dispatcher is a SipListenerExt, as the stack raises a missing
+ * keepalive pong only to one. Dialog timeouts are queued for a listener
+ * that is a SipListenerExt too; for any other listener the dialog is
+ * deleted on the spot, as the stack itself would do.
+ */
+public class SipEventDispatcher implements SipListenerExt {
+    private static final String TAG = SipEventDispatcher.class.getSimpleName();
+    private static final EventObject STOP = new EventObject(TAG);
+
+    private final SipListener mListener;
+    private final BlockingQueue<EventObject>[] mQueues;
+    private final Thread[] mWorkers;
+    private final AtomicIntegerArray mMaxDepths;
+    private final AtomicLong mDispatched = new AtomicLong();
+    private final AtomicLong mBlocked = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    // moving average of the time the listener takes per event
+    private volatile long mServiceNanos;
+    private volatile AdmissionController mAdmission;
+    private volatile DuplicateFilter mDuplicates;
+    private volatile ConnectionCoalescer mCoalescer;
+    private volatile ResponseFutures mFutures;
+
+    @SuppressWarnings("unchecked")
+    public SipEventDispatcher(SipListener listener, int shards,
+            int queueCapacity) {
+        mListener = listener;
+        mQueues = new BlockingQueue[shards];
+        mWorkers = new Thread[shards];
+        mMaxDepths = new AtomicIntegerArray(shards);
+        for (int i = 0; i < shards; i++) {
+            final BlockingQueue<EventObject> queue =
+                    new ArrayBlockingQueue<EventObject>(queueCapacity);
+            mQueues[i] = queue;
+            mWorkers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain(queue);
+                }
+            }, TAG + "-" + i);
+            mWorkers[i].setDaemon(true);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Stops the workers after the events already queued are delivered.
+     */
+    public void shutdown() throws InterruptedException {
+        for (BlockingQueue<EventObject> queue : mQueues) queue.put(STOP);
+        for (Thread worker : mWorkers) worker.join();
+    }
+
+    /**
+     * Lets the given controller decide on requests before they are queued,
+     * or lets every request in with null.
+     */
+    public void setAdmissionController(AdmissionController admission) {
+        mAdmission = admission;
+    }
+
+    /**
+     * Drops the requests the given filter finds to be retransmissions, or
+     * delivers every request with null.
+     */
+    public void setDuplicateFilter(DuplicateFilter duplicates) {
+        mDuplicates = duplicates;
+    }
+
+    /**
+     * Passes responses, timeouts and IO exceptions to the given coalescer
+     * before they are queued, or leaves that to the listener with null.
+     */
+    public void setConnectionCoalescer(ConnectionCoalescer coalescer) {
+        mCoalescer = coalescer;
+    }
+
+    /**
+     * Completes the futures of asynchronous requests before their events
+     * are queued, or leaves that to the listener with null. The events are
+     * queued for the listener all the same.
+     */
+    public void setResponseFutures(ResponseFutures futures) {
+        mFutures = futures;
+    }
+
+    public int getShardCount() {
+        return mQueues.length;
+    }
+
+    public int getQueueDepth(int shard) {
+        return mQueues[shard].size();
+    }
+
+    public int getMaxQueueDepth(int shard) {
+        return mMaxDepths.get(shard);
+    }
+
+    public int getTotalQueueDepth() {
+        int depth = 0;
+        for (BlockingQueue<EventObject> queue : mQueues) depth += queue.size();
+        return depth;
+    }
+
+    /**
+     * Returns the average time the listener spends on one event.
+     */
+    public long getServiceTimeNanos() {
+        return mServiceNanos;
+    }
+
+    public long getDispatchedCount() {
+        return mDispatched.get();
+    }
+
+    /**
+     * Returns how many events found their shard full and held the stack
+     * thread until there was room.
+     */
+    public long getBlockedCount() {
+        return mBlocked.get();
+    }
+
+    /**
+     * Returns how many events made the listener throw.
+     */
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    @Override
+    public void processRequest(RequestEvent requestEvent) {
+        DuplicateFilter duplicates = mDuplicates;
+        if ((duplicates != null)
+                && duplicates.isDuplicate(requestEvent.getRequest())) {
+            return;
+        }
+        int shard = shardOf(SipHelper.getCallId(requestEvent));
+        AdmissionController admission = mAdmission;
+        // the wait ahead of the request is its queue times the service time
+        if ((admission != null) && !admission.admit(requestEvent,
+                mQueues[shard].size(), mServiceNanos)) {
+            return;
+        }
+        dispatch(requestEvent, shard);
+    }
+
+    @Override
+    public void processResponse(ResponseEvent responseEvent) {
+        ConnectionCoalescer coalescer = mCoalescer;
+        if (coalescer != null) coalescer.onResponse(responseEvent);
+        ResponseFutures futures = mFutures;
+        if (futures != null) futures.onResponse(responseEvent);
+        dispatch(responseEvent);
+    }
+
+    @Override
+    public void processTimeout(TimeoutEvent timeoutEvent) {
+        ConnectionCoalescer coalescer = mCoalescer;
+        if (coalescer != null) coalescer.onTimeout(timeoutEvent);
+        ResponseFutures futures = mFutures;
+        if (futures != null) futures.onTimeout(timeoutEvent);
+        dispatch(timeoutEvent);
+    }
+
+    @Override
+    public void processIOException(IOExceptionEvent ioExceptionEvent) {
+        ConnectionCoalescer coalescer = mCoalescer;
+        if (coalescer != null) coalescer.onIOException(ioExceptionEvent);
+        ResponseFutures futures = mFutures;
+        if (futures != null) futures.onIOException(ioExceptionEvent);
+        String callId = SipHelper.getCallId(ioExceptionEvent);
+        // without a transaction there is no Call-ID; keep the errors of one
+        // peer in order rather than piling every one onto shard 0
+        dispatch(ioExceptionEvent, shardOf(!callId.isEmpty() ? callId
+                : ioExceptionEvent.getHost() + ":" + ioExceptionEvent.getPort()));
+    }
+
+    @Override
+    public void processTransactionTerminated(
+            TransactionTerminatedEvent transactionTerminatedEvent) {
+        ResponseFutures futures = mFutures;
+        if (futures != null) {
+            futures.onTransactionTerminated(transactionTerminatedEvent);
+        }
+        dispatch(transactionTerminatedEvent);
+    }
+
+    @Override
+    public void processDialogTerminated(
+            DialogTerminatedEvent dialogTerminatedEvent) {
+        dispatch(dialogTerminatedEvent);
+    }
+
+    @Override
+    public void processDialogTimeout(DialogTimeoutEvent dialogTimeoutEvent) {
+        if (mListener instanceof SipListenerExt) {
+            dispatch(dialogTimeoutEvent);
+        } else {
+            dialogTimeoutEvent.getDialog().delete();
+        }
+    }
+
+    private void dispatch(EventObject event) {
+        dispatch(event, shardOf(SipHelper.getCallId(event)));
+    }
+
+    private void dispatch(EventObject event, int shard) {
+        BlockingQueue<EventObject> queue = mQueues[shard];
+        if (!queue.offer(event)) {
+            mBlocked.incrementAndGet();
+            try {
+                queue.put(event);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        int depth = queue.size();
+        int max = mMaxDepths.get(shard);
+        while ((depth > max) && !mMaxDepths.compareAndSet(shard, max, depth)) {
+            max = mMaxDepths.get(shard);
+        }
+    }
+
+    private int shardOf(String callId) {
+        if ((callId == null) || callId.isEmpty()) return 0;
+        int h = callId.hashCode();
+        // spread the bits, Call-IDs often differ only in their tail
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return (h & 0x7fffffff) % mQueues.length;
+    }
+
+    private void drain(BlockingQueue<EventObject> queue) {
+        while (true) {
+            EventObject event;
+            try {
+                event = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (event == STOP) return;
+            long start = System.nanoTime();
+            try {
+                deliver(event);
+            } catch (RuntimeException e) {
+                // one bad event must not kill the shard
+                mFailed.incrementAndGet();
+            }
+            // racy between workers, but any recent sample will do
+            long service = mServiceNanos;
+            mServiceNanos = service + ((System.nanoTime() - start - service) >> 4);
+            mDispatched.incrementAndGet();
+        }
+    }
+
+    private void deliver(EventObject event) {
+        if (event instanceof RequestEvent) {
+            mListener.processRequest((RequestEvent) event);
+        } else if (event instanceof ResponseEvent) {
+            mListener.processResponse((ResponseEvent) event);
+        } else if (event instanceof TimeoutEvent) {
+            mListener.processTimeout((TimeoutEvent) event);
+        } else if (event instanceof TransactionTerminatedEvent) {
+            mListener.processTransactionTerminated(
+                    (TransactionTerminatedEvent) event);
+        } else if (event instanceof DialogTerminatedEvent) {
+            mListener.processDialogTerminated((DialogTerminatedEvent) event);
+        } else if (event instanceof IOExceptionEvent) {
+            mListener.processIOException((IOExceptionEvent) event);
+        } else if (event instanceof DialogTimeoutEvent) {
+            ((SipListenerExt) mListener).processDialogTimeout(
+                    (DialogTimeoutEvent) event);
+        }
+    }
+}
@@ -16,7 +16,10 @@
 
 package com.company;
 
+import gov.nist.javax.sip.DialogTimeoutEvent;
+import gov.nist.javax.sip.ListeningPointExt;
 import gov.nist.javax.sip.SipStackExt;
+import gov.nist.javax.sip.SipStackImpl;
 import gov.nist.javax.sip.clientauthutils.AccountManager;
 import gov.nist.javax.sip.clientauthutils.AuthenticationHelper;
 import gov.nist.javax.sip.header.To;
@@ -33,10 +36,16 @@ import javax.sip.message.Message;
 import javax.sip.message.MessageFactory;
 import javax.sip.message.Request;
 import javax.sip.message.Response;
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.EventObject;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Helper class for holding SIP stack related classes and for various low-level
@@ -46,12 +55,37 @@ public class SipHelper {
     private static final String TAG = SipHelper.class.getSimpleName();
     private static final boolean DBG = false;
     private static final boolean DBG_PING = false;
+    private static final int MAX_REQUEST_TEMPLATES = 10000;
 
     private SipStack mSipStack;
     private SipProvider mSipProvider;
     private AddressFactory mAddressFactory;
     private HeaderFactory mHeaderFactory;
     private MessageFactory mMessageFactory;
+    private final ConnectionCoalescer mConnectionCoalescer =
+            new ConnectionCoalescer();
+    private final ResponseFutures mResponseFutures = new ResponseFutures();
+    private volatile Executor mSendExecutor;
+    private final SipIdentifiers mIdentifiers = new SipIdentifiers();
+    private final DigestAuthCache mDigestAuthCache;
+    private final SipMetrics mMetrics = new SipMetrics();
+    private volatile MessageTracer mTracer;
+    private volatile MessageCapture mCapture;
+    private final ConcurrentHashMap<AccountManager, AuthenticationHelper>
+            mAuthenticationHelpers =
+                    new ConcurrentHashMap<AccountManager, AuthenticationHelper>();
+
+    // out-of-dialog requests keyed by method, profile(s) and listening
+    // point; every send clones one and only patches Call-ID, CSeq and tag
+    private final ConcurrentHashMap<TemplateKey, Request> mRequestTemplates =
+            new ConcurrentHashMap<TemplateKey, Request>();
+    private volatile ListeningPoint mListeningPoint;
+    // SDP offers keyed like the INVITE templates of their local profile;
+    // every new call copies one and only patches session id, version, ports
+    // and connection address
+    private final ConcurrentHashMap<TemplateKey, SessionDescription>
+            mOfferTemplates =
+                    new ConcurrentHashMap<TemplateKey, SessionDescription>();
 
     public SipHelper(SipStack sipStack, SipProvider sipProvider)
             throws PeerUnavailableException {
@@ -62,6 +96,123 @@ public class SipHelper {
         mAddressFactory = sipFactory.createAddressFactory();
         mHeaderFactory = sipFactory.createHeaderFactory();
         mMessageFactory = sipFactory.createMessageFactory();
+        mDigestAuthCache = new DigestAuthCache(mHeaderFactory);
+    }
+
+    /**
+     * Returns the coalescer that serializes connection setup of the requests
+     * sent by this helper. The SipListener of the provider must feed it
+     * responses, timeouts and IO exceptions.
+     */
+    public ConnectionCoalescer getConnectionCoalescer() {
+        return mConnectionCoalescer;
+    }
+
+    /**
+     * Returns what completes the futures of the asynchronous requests. The
+     * SipListener of the provider must feed it responses, timeouts, IO
+     * exceptions and terminated transactions.
+     */
+    public ResponseFutures getResponseFutures() {
+        return mResponseFutures;
+    }
+
+    /**
+     * Sets where asynchronous requests are sent from when their target is
+     * not connected yet, so waiting for the connect does not hold the
+     * calling thread. Without one they are sent from the calling thread.
+     */
+    public void setSendExecutor(Executor executor) {
+        mSendExecutor = executor;
+    }
+
+    /**
+     * Returns the allocator of tags, Call-IDs, branches and CSeq numbers used
+     * by this helper.
+     */
+    public SipIdentifiers getIdentifiers() {
+        return mIdentifiers;
+    }
+
+    /**
+     * Returns the cache of digest challenges answered so far, which puts
+     * preemptive credentials on later requests to the same server.
+     */
+    public DigestAuthCache getDigestAuthCache() {
+        return mDigestAuthCache;
+    }
+
+    /**
+     * Returns the latency histograms and counters of the requests sent by
+     * this helper. The SipListener of the provider must feed it events.
+     */
+    public SipMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Traces the requests and responses sent by this helper, or nothing if
+     * null.
+     */
+    public void setMessageTracer(MessageTracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * Captures the requests and responses sent by this helper, or nothing if
+     * null.
+     */
+    public void setMessageCapture(MessageCapture capture) {
+        mCapture = capture;
+    }
+
+    public CallIdHeader newCallIdHeader() throws SipException {
+        try {
+            return mHeaderFactory.createCallIdHeader(mIdentifiers.newCallId());
+        } catch (ParseException e) {
+            throw new SipException("newCallIdHeader()", e);
+        }
+    }
+
+    /**
+     * Drops the cached request templates and listening point. Must be called
+     * after listening points are added to or removed from the provider.
+     */
+    public void clearRequestTemplates() {
+        mListeningPoint = null;
+        mRequestTemplates.clear();
+    }
+
+    /**
+     * Sets the SDP offer new calls of a local profile start from. Later
+     * changes to the given description do not affect the template. Like
+     * request templates, it is found again by the same SipURI instance.
+     */
+    public void setOfferTemplate(SipURI localProfile,
+            SessionDescription template) {
+        mOfferTemplates.put(getOfferKey(localProfile), template.copy());
+    }
+
+    /**
+     * Returns a copy of the offer template of a local profile with a new
+     * session id and version, ready for its ports and connection address to
+     * be set.
+     *
+     * @return null if the profile has no template
+     */
+    public SessionDescription newOffer(SipURI localProfile) {
+        SessionDescription template =
+                mOfferTemplates.get(getOfferKey(localProfile));
+        if (template == null) return null;
+        SessionDescription offer = template.copy();
+        long sessionId = ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE;
+        offer.setSessionId(sessionId);
+        offer.setSessionVersion(sessionId);
+        return offer;
+    }
+
+    private static TemplateKey getOfferKey(SipURI localProfile) {
+        return new TemplateKey(Request.INVITE, localProfile, null, null);
     }
 
     private FromHeader createFromHeader(SipURI profile, String tag)
@@ -80,8 +231,8 @@ public class SipHelper {
 
     private CSeqHeader createCSeqHeader(String method)
             throws ParseException, InvalidArgumentException {
-        long sequence = (long) (Math.random() * 10000);
-        return mHeaderFactory.createCSeqHeader(sequence, method);
+        return mHeaderFactory.createCSeqHeader(
+                mIdentifiers.newSequenceNumber(), method);
     }
 
     private MaxForwardsHeader createMaxForwardsHeader()
@@ -95,7 +246,9 @@ public class SipHelper {
     }
 
     private ListeningPoint getListeningPoint() throws SipException {
-        ListeningPoint lp = mSipProvider.getListeningPoint(ListeningPoint.UDP);
+        ListeningPoint lp = mListeningPoint;
+        if (lp != null) return lp;
+        lp = mSipProvider.getListeningPoint(ListeningPoint.UDP);
         if (lp == null) lp = mSipProvider.getListeningPoint(ListeningPoint.TCP);
         if (lp == null) {
             ListeningPoint[] lps = mSipProvider.getListeningPoints();
@@ -104,6 +257,7 @@ public class SipHelper {
         if (lp == null) {
             throw new SipException("no listening point is available");
         }
+        mListeningPoint = lp;
         return lp;
     }
 
@@ -159,52 +313,227 @@ public class SipHelper {
                                 String ip, int port) throws ParseException {
         SipURI uri = mAddressFactory.createSipURI(username, ip);
         uri.setPort(port);
-        uri.setTransportParam(transport);
+        // profiles without a transport leave it to the next hop's rules
+        if (transport != null) uri.setTransportParam(transport);
         return uri;
     }
 
     public ClientTransaction sendOptions(SipURI caller, SipURI callee,
                                          String tag, CallIdHeader callIdHeader) throws SipException {
+        return sendOptions(caller, callee, tag, callIdHeader, null);
+    }
+
+    /**
+     * Like {@link #sendOptions}, but returns a future completed with the
+     * final response instead of throwing, see {@link ResponseFutures}.
+     *
+     * @param callback receives the provisional responses, or null
+     */
+    public CompletableFuture<ResponseEvent> sendOptionsAsync(SipURI caller,
+            SipURI callee, String tag, CallIdHeader callIdHeader,
+            ResponseFutures.ProvisionalCallback callback) {
+        ResponseFutures.Pending pending = mResponseFutures.newPending(callback);
+        try {
+            sendOptions(caller, callee, tag, callIdHeader, pending);
+        } catch (SipException e) {
+            mResponseFutures.fail(pending, e);
+        }
+        return pending.getFuture();
+    }
+
+    private ClientTransaction sendOptions(SipURI caller, SipURI callee,
+            String tag, CallIdHeader callIdHeader,
+            ResponseFutures.Pending pending) throws SipException {
+        return send(createOptions(caller, callee, tag, callIdHeader), pending);
+    }
+
+    /**
+     * Builds an OPTIONS like {@link #sendOptions}, but leaves sending it to
+     * {@link #sendRequest(Request)}, so the caller can record its branch
+     * before any of its events can arrive.
+     */
+    public Request createOptions(SipURI caller, SipURI callee, String tag,
+            CallIdHeader callIdHeader) throws SipException {
         try {
-            Request request = (caller == callee)
+            return (caller == callee)
                     ? createRequest(Request.OPTIONS, caller, tag, callIdHeader)
                     : createRequest(Request.OPTIONS, caller, callee, tag, callIdHeader);
-
-            ClientTransaction clientTransaction =
-                    mSipProvider.getNewClientTransaction(request);
-            clientTransaction.sendRequest();
-            return clientTransaction;
         } catch (Exception e) {
-            throw new SipException("sendOptions()", e);
+            throw new SipException("createOptions()", e);
         }
     }
 
+    /**
+     * Builds the OPTIONS keepalive of a registration flow. Max-Forwards is
+     * 0 so the next hop answers it itself. Every ping sends a copy of it, see
+     * {@link #sendKeepalive(Request, long)}.
+     */
+    public Request createKeepalive(SipURI userProfile) throws SipException {
+        try {
+            CallIdHeader callIdHeader = newCallIdHeader();
+            // unauthorized, each ping needs a nonce count of its own
+            Request request = instantiate(getRequestTemplate(Request.OPTIONS,
+                    userProfile, callIdHeader), mIdentifiers.newTag(),
+                    callIdHeader);
+            ((MaxForwardsHeader) request.getHeader(MaxForwardsHeader.NAME))
+                    .setMaxForwards(0);
+            return request;
+        } catch (ParseException | InvalidArgumentException e) {
+            throw new SipException("createKeepalive()", e);
+        }
+    }
+
+    /**
+     * Sends a copy of a keepalive template statelessly, patching only its
+     * branch and CSeq, and authorizing it if its target challenged before.
+     * The response reaches the listener without a client transaction.
+     *
+     * @return the branch of the ping
+     */
+    public String sendKeepalive(Request template, long sequence)
+            throws SipException {
+        try {
+            Request request = (Request) template.clone();
+            ((CSeqHeader) request.getHeader(CSeqHeader.NAME))
+                    .setSeqNumber(sequence);
+            String branch = mIdentifiers.newBranch();
+            ((ViaHeader) request.getHeader(ViaHeader.NAME)).setBranch(branch);
+            mDigestAuthCache.authorize(request);
+            if (DBG_PING) log("send keepalive: " + request);
+            trace(request);
+            mSipProvider.sendRequest(request);
+            return branch;
+        } catch (ParseException | InvalidArgumentException e) {
+            throw new SipException("sendKeepalive()", e);
+        }
+    }
+
+    /**
+     * Sends an RFC 5626 double-CRLF ping over the existing stream connection
+     * to the given address. With a positive pong timeout the stack waits that
+     * long for the CRLF pong; without it, it closes the connection and raises
+     * an IOExceptionEventExt with reason KeepAliveTimeout, which only reaches
+     * a SipListenerExt. The ping that opens a connection goes unwatched.
+     */
+    public void sendHeartbeat(String address, int port, String transport,
+            long pongTimeoutMillis) throws SipException {
+        ListeningPoint listeningPoint =
+                mSipProvider.getListeningPoint(transport);
+        if (!(listeningPoint instanceof ListeningPointExt)) {
+            throw new SipException("sendHeartbeat(): no " + transport
+                    + " listening point");
+        }
+        boolean watched = watchPong(listeningPoint, address, port,
+                pongTimeoutMillis);
+        try {
+            ((ListeningPointExt) listeningPoint).sendHeartbeat(address, port);
+        } catch (IOException e) {
+            throw new SipException("sendHeartbeat()", e);
+        }
+        // the ping opened the connection, the next one is watched
+        if (!watched) watchPong(listeningPoint, address, port, pongTimeoutMillis);
+    }
+
+    /**
+     * @return false if there is no connection to the address yet
+     */
+    private boolean watchPong(ListeningPoint listeningPoint, String address,
+            int port, long timeoutMillis) {
+        if ((timeoutMillis <= 0) || !(mSipStack instanceof SipStackImpl)) {
+            return true;
+        }
+        return ((SipStackImpl) mSipStack).setKeepAliveTimeout(
+                listeningPoint.getIPAddress(), listeningPoint.getPort(),
+                listeningPoint.getTransport(), address, port, timeoutMillis);
+    }
+
     public ClientTransaction sendRegister(SipURI userProfile, String tag,
                                           int expiry, CallIdHeader callIdHeader) throws SipException {
+        return sendRegister(userProfile, tag, expiry, callIdHeader, null);
+    }
+
+    /**
+     * Like {@link #sendRegister}, but returns a future completed with the
+     * final response instead of throwing, see {@link ResponseFutures}.
+     *
+     * @param callback receives the provisional responses, or null
+     */
+    public CompletableFuture<ResponseEvent> sendRegisterAsync(
+            SipURI userProfile, String tag, int expiry,
+            CallIdHeader callIdHeader,
+            ResponseFutures.ProvisionalCallback callback) {
+        ResponseFutures.Pending pending = mResponseFutures.newPending(callback);
+        try {
+            sendRegister(userProfile, tag, expiry, callIdHeader, pending);
+        } catch (SipException e) {
+            mResponseFutures.fail(pending, e);
+        }
+        return pending.getFuture();
+    }
+
+    private ClientTransaction sendRegister(SipURI userProfile, String tag,
+            int expiry, CallIdHeader callIdHeader,
+            ResponseFutures.Pending pending) throws SipException {
+        return send(createRegister(userProfile, tag, expiry, callIdHeader),
+                pending);
+    }
+
+    /**
+     * Builds a REGISTER like {@link #sendRegister}, but leaves sending it to
+     * {@link #sendRequest(Request)}, so the caller can build it under a lock
+     * and send outside it.
+     */
+    public Request createRegister(SipURI userProfile, String tag, int expiry,
+            CallIdHeader callIdHeader) throws SipException {
         try {
             Request request = createRequest(Request.REGISTER, userProfile, tag, callIdHeader);
             if (expiry == 0) {
                 // remove all previous registrations by wildcard
                 // rfc3261#section-10.2.2
-                request.addHeader(createWildcardContactHeader());
-            } else {
-                request.addHeader(createContactHeader(userProfile));
+                request.setHeader(createWildcardContactHeader());
+                // its CSeq is taken; nothing follows on this Call-ID
+                mIdentifiers.releaseSequence(callIdHeader.getCallId());
             }
             request.addHeader(mHeaderFactory.createExpiresHeader(expiry));
-
-            ClientTransaction clientTransaction =
-                    mSipProvider.getNewClientTransaction(request);
-            clientTransaction.sendRequest();
-            return clientTransaction;
+            return request;
         } catch (ParseException | InvalidArgumentException e) {
-            throw new SipException("sendRegister()", e);
+            throw new SipException("createRegister()", e);
         }
     }
 
+    /**
+     * Sends a request built by one of the create methods in a new client
+     * transaction. This may wait for a connect, see
+     * {@link ConnectionCoalescer#getNewClientTransaction}.
+     */
+    public ClientTransaction sendRequest(Request request) throws SipException {
+        return sendNow(request, null);
+    }
+
     private Request createRequest(String requestType, SipURI userProfile,
                                   String tag, CallIdHeader callIdHeader)
             throws ParseException, SipException, InvalidArgumentException {
-        FromHeader fromHeader = createFromHeader(userProfile, tag);
+        return instantiate(getRequestTemplate(requestType, userProfile,
+                callIdHeader), tag, callIdHeader);
+    }
+
+    private Request getRequestTemplate(String requestType, SipURI userProfile,
+                                       CallIdHeader callIdHeader)
+            throws ParseException, SipException, InvalidArgumentException {
+        TemplateKey key = new TemplateKey(requestType, userProfile, null,
+                getListeningPoint());
+        Request template = mRequestTemplates.get(key);
+        if (template == null) {
+            template = buildRequest(requestType, userProfile, callIdHeader);
+            putRequestTemplate(key, template);
+        }
+        return template;
+    }
+
+    private Request buildRequest(String requestType, SipURI userProfile,
+                                 CallIdHeader callIdHeader)
+            throws ParseException, SipException, InvalidArgumentException {
+        FromHeader fromHeader = createFromHeader(userProfile, null);
         ToHeader toHeader = createToHeader(userProfile);
 
         List<ViaHeader> viaHeaders = createViaHeaders();
@@ -216,27 +545,191 @@ public class SipHelper {
         Header userAgentHeader = mHeaderFactory.createHeader("User-Agent",
                 "im.dlg.sip/0.1");
         request.addHeader(userAgentHeader);
+        if (Request.REGISTER.equals(requestType)) {
+            request.addHeader(createContactHeader(userProfile));
+        }
         return request;
     }
 
+    private void putRequestTemplate(TemplateKey key, Request template) {
+        // profiles come and go with the application; keep the cache bounded
+        if (mRequestTemplates.size() >= MAX_REQUEST_TEMPLATES) {
+            mRequestTemplates.clear();
+        }
+        mRequestTemplates.putIfAbsent(key, template);
+    }
+
+    /**
+     * Clones a request template and fills in the per-request parts. REGISTER
+     * refreshes sharing a Call-ID get increasing CSeq numbers.
+     */
+    private Request instantiate(Request template, String tag,
+                                CallIdHeader callIdHeader)
+            throws ParseException, InvalidArgumentException {
+        Request request = (Request) template.clone();
+        request.setHeader(callIdHeader);
+        FromHeader fromHeader = (FromHeader) request.getHeader(FromHeader.NAME);
+        if (tag != null) fromHeader.setTag(tag);
+        long sequence = Request.REGISTER.equals(request.getMethod())
+                ? mIdentifiers.nextSequenceNumber(callIdHeader.getCallId())
+                : mIdentifiers.newSequenceNumber();
+        ((CSeqHeader) request.getHeader(CSeqHeader.NAME))
+                .setSeqNumber(sequence);
+        ((ViaHeader) request.getHeader(ViaHeader.NAME))
+                .setBranch(mIdentifiers.newBranch());
+        return request;
+    }
+
+    /**
+     * Answers a 401 or 407. Its nonce is cached too, so later requests to
+     * the same realm skip the challenge until the server calls it stale.
+     */
     public ClientTransaction handleChallenge(ResponseEvent responseEvent,
                                              AccountManager accountManager) throws SipException {
+        ClientTransaction ct = createChallengeRetry(responseEvent,
+                accountManager);
+        sendChallengeRetry(ct);
+        return ct;
+    }
+
+    /**
+     * Builds the answer to a 401 or 407 like
+     * {@link #handleChallenge(ResponseEvent, AccountManager)}, but leaves
+     * sending it to {@link #sendChallengeRetry(ClientTransaction)}, so the
+     * caller can record the transaction under a lock and send outside it.
+     */
+    public ClientTransaction createChallengeRetry(ResponseEvent responseEvent,
+            AccountManager accountManager) throws SipException {
         AuthenticationHelper authenticationHelper =
-                ((SipStackExt) mSipStack).getAuthenticationHelper(
-                        accountManager, mHeaderFactory);
+                getAuthenticationHelper(accountManager);
         ClientTransaction tid = responseEvent.getClientTransaction();
+        mDigestAuthCache.learn(responseEvent.getResponse(), tid,
+                accountManager);
         ClientTransaction ct = authenticationHelper.handleChallenge(
                 responseEvent.getResponse(), tid, mSipProvider, 5, true);
+        // the retry goes out with CSeq + 1, later refreshes must follow it
+        Request request = ct.getRequest();
+        mIdentifiers.advanceSequenceNumber(
+                ((CallIdHeader) request.getHeader(CallIdHeader.NAME)).getCallId(),
+                ((CSeqHeader) request.getHeader(CSeqHeader.NAME)).getSeqNumber());
+        return ct;
+    }
+
+    public void sendChallengeRetry(ClientTransaction ct) throws SipException {
         if (DBG) log("send request with challenge response: "
                 + ct.getRequest());
-        ct.sendRequest();
-        return ct;
+        sendAuthorized(ct);
+    }
+
+    /**
+     * Creates the transaction of a request through the connection coalescer
+     * and sends it. An asynchronous request is bound to its future before it
+     * goes out, and handed to the send executor if it may have to wait for
+     * its connection; its failures complete the future instead of being
+     * thrown.
+     *
+     * @return the transaction, or null if an asynchronous request failed or
+     *      was handed to the send executor
+     */
+    private ClientTransaction send(final Request request,
+            final ResponseFutures.Pending pending) throws SipException {
+        if (pending == null) return sendNow(request, null);
+        Executor executor = mSendExecutor;
+        if ((executor == null) || !mConnectionCoalescer.mayWait(request)) {
+            return sendPending(request, pending);
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sendPending(request, pending);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mResponseFutures.fail(pending, e);
+        }
+        return null;
+    }
+
+    private ClientTransaction sendPending(Request request,
+            ResponseFutures.Pending pending) {
+        try {
+            return sendNow(request, pending);
+        } catch (SipException | RuntimeException e) {
+            mResponseFutures.fail(pending, e);
+            return null;
+        }
+    }
+
+    private ClientTransaction sendNow(Request request,
+            ResponseFutures.Pending pending) throws SipException {
+        ClientTransaction clientTransaction =
+                mConnectionCoalescer.getNewClientTransaction(mSipProvider,
+                        request);
+        if (pending != null) mResponseFutures.register(clientTransaction, pending);
+        sendAuthorized(clientTransaction);
+        return clientTransaction;
+    }
+
+    /**
+     * Sends the request of a transaction through the connection coalescer.
+     * Requests to a server that challenged before get their credentials, and
+     * their nonce count right before they go out; the send, which may wait
+     * for a connect, does not hold up other requests of the credential.
+     */
+    private void sendAuthorized(ClientTransaction clientTransaction)
+            throws SipException {
+        try {
+            mDigestAuthCache.authorize(clientTransaction.getRequest());
+        } catch (ParseException e) {
+            throw new SipException("authorize()", e);
+        }
+        beforeSend(clientTransaction);
+        mConnectionCoalescer.sendRequest(clientTransaction);
+    }
+
+    private void beforeSend(ClientTransaction clientTransaction) {
+        mMetrics.onRequest(clientTransaction);
+        trace(clientTransaction.getRequest());
+    }
+
+    private void trace(Message message) {
+        MessageTracer tracer = mTracer;
+        if (tracer != null) tracer.trace(message, MessageTracer.OUT);
+        MessageCapture capture = mCapture;
+        if (capture != null) capture.capture(message, MessageCapture.OUT);
+    }
+
+    private AuthenticationHelper getAuthenticationHelper(
+            AccountManager accountManager) {
+        AuthenticationHelper helper = mAuthenticationHelpers.get(accountManager);
+        if (helper == null) {
+            helper = ((SipStackExt) mSipStack).getAuthenticationHelper(
+                    accountManager, mHeaderFactory);
+            AuthenticationHelper existing =
+                    mAuthenticationHelpers.putIfAbsent(accountManager, helper);
+            if (existing != null) helper = existing;
+        }
+        return helper;
     }
 
     private Request createRequest(String requestType, SipURI caller,
                                   SipURI callee, String tag, CallIdHeader callIdHeader)
             throws ParseException, SipException, InvalidArgumentException {
-        FromHeader fromHeader = createFromHeader(caller, tag);
+        TemplateKey key = new TemplateKey(requestType, caller, callee,
+                getListeningPoint());
+        Request template = mRequestTemplates.get(key);
+        if (template == null) {
+            template = buildRequest(requestType, caller, callee, callIdHeader);
+            putRequestTemplate(key, template);
+        }
+        return instantiate(template, tag, callIdHeader);
+    }
+
+    private Request buildRequest(String requestType, SipURI caller,
+                                 SipURI callee, CallIdHeader callIdHeader)
+            throws ParseException, SipException, InvalidArgumentException {
+        FromHeader fromHeader = createFromHeader(caller, null);
         ToHeader toHeader = createToHeader(callee);
         List<ViaHeader> viaHeaders = createViaHeaders();
         CSeqHeader cSeqHeader = createCSeqHeader(requestType);
@@ -253,6 +746,61 @@ public class SipHelper {
     public ClientTransaction sendInvite(SipURI caller, SipURI callee,
                                         String sessionDescription, String tag, ReferredByHeader referredBy,
                                         String replaces, CallIdHeader callIdHeader) throws SipException {
+        return sendInvite(caller, callee, (Object) sessionDescription, tag,
+                referredBy, replaces, callIdHeader, null);
+    }
+
+    public ClientTransaction sendInvite(SipURI caller, SipURI callee,
+                                        SessionDescription sessionDescription, String tag, ReferredByHeader referredBy,
+                                        String replaces, CallIdHeader callIdHeader) throws SipException {
+        return sendInvite(caller, callee, sessionDescription.encode(), tag,
+                referredBy, replaces, callIdHeader, null);
+    }
+
+    /**
+     * Like {@link #sendInvite}, but returns a future completed with the
+     * final response instead of throwing, see {@link ResponseFutures}. A 2xx
+     * must still be acknowledged with {@link #sendInviteAck}.
+     *
+     * @param callback receives the provisional responses, or null
+     */
+    public CompletableFuture<ResponseEvent> sendInviteAsync(SipURI caller,
+            SipURI callee, String sessionDescription, String tag,
+            ReferredByHeader referredBy, String replaces,
+            CallIdHeader callIdHeader,
+            ResponseFutures.ProvisionalCallback callback) {
+        return sendInviteAsync(caller, callee, (Object) sessionDescription,
+                tag, referredBy, replaces, callIdHeader, callback);
+    }
+
+    public CompletableFuture<ResponseEvent> sendInviteAsync(SipURI caller,
+            SipURI callee, SessionDescription sessionDescription, String tag,
+            ReferredByHeader referredBy, String replaces,
+            CallIdHeader callIdHeader,
+            ResponseFutures.ProvisionalCallback callback) {
+        return sendInviteAsync(caller, callee, sessionDescription.encode(),
+                tag, referredBy, replaces, callIdHeader, callback);
+    }
+
+    private CompletableFuture<ResponseEvent> sendInviteAsync(SipURI caller,
+            SipURI callee, Object sessionDescription, String tag,
+            ReferredByHeader referredBy, String replaces,
+            CallIdHeader callIdHeader,
+            ResponseFutures.ProvisionalCallback callback) {
+        ResponseFutures.Pending pending = mResponseFutures.newPending(callback);
+        try {
+            sendInvite(caller, callee, sessionDescription, tag, referredBy,
+                    replaces, callIdHeader, pending);
+        } catch (SipException e) {
+            mResponseFutures.fail(pending, e);
+        }
+        return pending.getFuture();
+    }
+
+    private ClientTransaction sendInvite(SipURI caller, SipURI callee,
+            Object sessionDescription, String tag, ReferredByHeader referredBy,
+            String replaces, CallIdHeader callIdHeader,
+            ResponseFutures.Pending pending) throws SipException {
         try {
             Request request = createRequest(Request.INVITE, caller, callee, tag, callIdHeader);
             if (referredBy != null) request.addHeader(referredBy);
@@ -262,12 +810,10 @@ public class SipHelper {
             }
             request.setContent(sessionDescription,
                     mHeaderFactory.createContentTypeHeader(
-                            "application", "sdp"));
-            ClientTransaction clientTransaction =
-                    mSipProvider.getNewClientTransaction(request);
+                            SessionDescription.CONTENT_TYPE,
+                            SessionDescription.CONTENT_SUBTYPE));
             if (DBG) log("send INVITE: " + request);
-            clientTransaction.sendRequest();
-            return clientTransaction;
+            return send(request, pending);
         } catch (ParseException | InvalidArgumentException e) {
             throw new SipException("sendInvite()", e);
         }
@@ -275,11 +821,53 @@ public class SipHelper {
 
     public ClientTransaction sendReinvite(Dialog dialog,
                                           String sessionDescription) throws SipException {
+        return sendReinvite(dialog, (Object) sessionDescription, null);
+    }
+
+    public ClientTransaction sendReinvite(Dialog dialog,
+            SessionDescription sessionDescription) throws SipException {
+        return sendReinvite(dialog, sessionDescription.encode(), null);
+    }
+
+    /**
+     * Like {@link #sendReinvite}, but returns a future completed with the
+     * final response instead of throwing, see {@link ResponseFutures}.
+     *
+     * @param callback receives the provisional responses, or null
+     */
+    public CompletableFuture<ResponseEvent> sendReinviteAsync(Dialog dialog,
+            String sessionDescription,
+            ResponseFutures.ProvisionalCallback callback) {
+        return sendReinviteAsync(dialog, (Object) sessionDescription, callback);
+    }
+
+    public CompletableFuture<ResponseEvent> sendReinviteAsync(Dialog dialog,
+            SessionDescription sessionDescription,
+            ResponseFutures.ProvisionalCallback callback) {
+        return sendReinviteAsync(dialog, sessionDescription.encode(), callback);
+    }
+
+    private CompletableFuture<ResponseEvent> sendReinviteAsync(Dialog dialog,
+            Object sessionDescription,
+            ResponseFutures.ProvisionalCallback callback) {
+        ResponseFutures.Pending pending = mResponseFutures.newPending(callback);
+        try {
+            sendReinvite(dialog, sessionDescription, pending);
+        } catch (SipException e) {
+            mResponseFutures.fail(pending, e);
+        }
+        return pending.getFuture();
+    }
+
+    private ClientTransaction sendReinvite(Dialog dialog,
+            Object sessionDescription, ResponseFutures.Pending pending)
+            throws SipException {
         try {
             Request request = dialog.createRequest(Request.INVITE);
             request.setContent(sessionDescription,
                     mHeaderFactory.createContentTypeHeader(
-                            "application", "sdp"));
+                            SessionDescription.CONTENT_TYPE,
+                            SessionDescription.CONTENT_SUBTYPE));
 
             // Adding rport argument in the request could fix some SIP servers
             // in resolving the initiator's NAT port mapping for relaying the
@@ -291,6 +879,10 @@ public class SipHelper {
             ClientTransaction clientTransaction =
                     mSipProvider.getNewClientTransaction(request);
             if (DBG) log("send RE-INVITE: " + request);
+            beforeSend(clientTransaction);
+            if (pending != null) {
+                mResponseFutures.register(clientTransaction, pending);
+            }
             dialog.sendRequest(clientTransaction);
             return clientTransaction;
         } catch (ParseException | InvalidArgumentException e) {
@@ -314,9 +906,21 @@ public class SipHelper {
      */
     public ServerTransaction sendRinging(RequestEvent event, String tag)
             throws SipException {
+        return sendRinging(event, null, tag);
+    }
+
+    /**
+     * @param event the INVITE request event
+     * @param inviteTransaction the transaction already created for it, or
+     *      null to create it now
+     */
+    public ServerTransaction sendRinging(RequestEvent event,
+            ServerTransaction inviteTransaction, String tag)
+            throws SipException {
         try {
             Request request = event.getRequest();
-            ServerTransaction transaction = getServerTransaction(event);
+            ServerTransaction transaction = (inviteTransaction != null)
+                    ? inviteTransaction : getServerTransaction(event);
 
             Response response = mMessageFactory.createResponse(Response.RINGING,
                     request);
@@ -325,6 +929,7 @@ public class SipHelper {
             toHeader.setTag(tag);
             response.addHeader(toHeader);
             if (DBG) log("send RINGING: " + response);
+            trace(response);
             transaction.sendResponse(response);
             return transaction;
         } catch (ParseException | InvalidArgumentException e) {
@@ -338,6 +943,23 @@ public class SipHelper {
     public ServerTransaction sendInviteOk(RequestEvent event,
                                           SipURI localProfile, String sessionDescription,
                                           ServerTransaction inviteTransaction) throws SipException {
+        return sendInviteOk(event, localProfile, (Object) sessionDescription,
+                inviteTransaction);
+    }
+
+    /**
+     * @param event the INVITE request event
+     */
+    public ServerTransaction sendInviteOk(RequestEvent event,
+            SipURI localProfile, SessionDescription sessionDescription,
+            ServerTransaction inviteTransaction) throws SipException {
+        return sendInviteOk(event, localProfile, sessionDescription.encode(),
+                inviteTransaction);
+    }
+
+    private ServerTransaction sendInviteOk(RequestEvent event,
+            SipURI localProfile, Object sessionDescription,
+            ServerTransaction inviteTransaction) throws SipException {
         try {
             Request request = event.getRequest();
             Response response = mMessageFactory.createResponse(Response.OK,
@@ -345,7 +967,8 @@ public class SipHelper {
             response.addHeader(createContactHeader(localProfile));
             response.setContent(sessionDescription,
                     mHeaderFactory.createContentTypeHeader(
-                            "application", "sdp"));
+                            SessionDescription.CONTENT_TYPE,
+                            SessionDescription.CONTENT_SUBTYPE));
 
             if (inviteTransaction == null) {
                 inviteTransaction = getServerTransaction(event);
@@ -353,6 +976,7 @@ public class SipHelper {
 
             if (inviteTransaction.getState() != TransactionState.COMPLETED) {
                 if (DBG) log("send OK: " + response);
+                trace(response);
                 inviteTransaction.sendResponse(response);
             }
 
@@ -369,6 +993,25 @@ public class SipHelper {
                                           SipURI localProfile, String sessionDescription,
                                           ServerTransaction inviteTransaction, String externalIp,
                                           int externalPort) throws SipException {
+        return sendInviteOk(event, localProfile, (Object) sessionDescription,
+                inviteTransaction, externalIp, externalPort);
+    }
+
+    /**
+     * @param event the INVITE request event
+     */
+    public ServerTransaction sendInviteOk(RequestEvent event,
+            SipURI localProfile, SessionDescription sessionDescription,
+            ServerTransaction inviteTransaction, String externalIp,
+            int externalPort) throws SipException {
+        return sendInviteOk(event, localProfile, sessionDescription.encode(),
+                inviteTransaction, externalIp, externalPort);
+    }
+
+    private ServerTransaction sendInviteOk(RequestEvent event,
+            SipURI localProfile, Object sessionDescription,
+            ServerTransaction inviteTransaction, String externalIp,
+            int externalPort) throws SipException {
         try {
             Request request = event.getRequest();
             Response response = mMessageFactory.createResponse(Response.OK,
@@ -377,7 +1020,8 @@ public class SipHelper {
                     externalPort));
             response.setContent(sessionDescription,
                     mHeaderFactory.createContentTypeHeader(
-                            "application", "sdp"));
+                            SessionDescription.CONTENT_TYPE,
+                            SessionDescription.CONTENT_SUBTYPE));
 
             if (inviteTransaction == null) {
                 inviteTransaction = getServerTransaction(event);
@@ -385,6 +1029,7 @@ public class SipHelper {
 
             if (inviteTransaction.getState() != TransactionState.COMPLETED) {
                 if (DBG) log("send OK: " + response);
+                trace(response);
                 inviteTransaction.sendResponse(response);
             }
 
@@ -407,6 +1052,7 @@ public class SipHelper {
 
             if (inviteTransaction.getState() != TransactionState.COMPLETED) {
                 if (DBG) log("send BUSY HERE: " + response);
+                trace(response);
                 inviteTransaction.sendResponse(response);
             }
         } catch (ParseException | InvalidArgumentException e) {
@@ -425,36 +1071,71 @@ public class SipHelper {
                     .getSeqNumber();
             Request ack = dialog.createAck(cseq);
             if (DBG) log("send ACK: " + ack);
+            trace(ack);
             dialog.sendAck(ack);
         } catch (InvalidArgumentException e) {
             throw new SipException("sendInviteAck()", e);
         }
     }
 
-    public void sendBye(Dialog dialog) throws SipException {
+    public ClientTransaction sendBye(Dialog dialog) throws SipException {
         Request byeRequest = dialog.createRequest(Request.BYE);
         if (DBG) log("send BYE: " + byeRequest);
-        dialog.sendRequest(mSipProvider.getNewClientTransaction(byeRequest));
+        ClientTransaction clientTransaction =
+                mSipProvider.getNewClientTransaction(byeRequest);
+        beforeSend(clientTransaction);
+        dialog.sendRequest(clientTransaction);
+        return clientTransaction;
     }
 
     public void sendCancel(ClientTransaction inviteTransaction)
             throws SipException {
         Request cancelRequest = inviteTransaction.createCancel();
         if (DBG) log("send CANCEL: " + cancelRequest);
-        mSipProvider.getNewClientTransaction(cancelRequest).sendRequest();
+        ClientTransaction clientTransaction =
+                mSipProvider.getNewClientTransaction(cancelRequest);
+        beforeSend(clientTransaction);
+        clientTransaction.sendRequest();
     }
 
     public void sendResponse(RequestEvent event, int responseCode)
             throws SipException {
+        sendResponse(event, responseCode, -1);
+    }
+
+    /**
+     * @param transaction the transaction already created for the request
+     */
+    public void sendResponse(RequestEvent event, ServerTransaction transaction,
+            int responseCode) throws SipException {
+        sendResponse(event, transaction, responseCode, -1);
+    }
+
+    /**
+     * @param retryAfter seconds for a Retry-After header, or -1 for none
+     */
+    public void sendResponse(RequestEvent event, int responseCode,
+            int retryAfter) throws SipException {
+        sendResponse(event, null, responseCode, retryAfter);
+    }
+
+    private void sendResponse(RequestEvent event, ServerTransaction transaction,
+            int responseCode, int retryAfter) throws SipException {
         try {
             Request request = event.getRequest();
             Response response = mMessageFactory.createResponse(
                     responseCode, request);
+            if (retryAfter >= 0) {
+                response.addHeader(
+                        mHeaderFactory.createRetryAfterHeader(retryAfter));
+            }
             if (DBG && (!Request.OPTIONS.equals(request.getMethod())
                     || DBG_PING)) {
                 log("send response: " + response);
             }
-            getServerTransaction(event).sendResponse(response);
+            trace(response);
+            if (transaction == null) transaction = getServerTransaction(event);
+            transaction.sendResponse(response);
         } catch (ParseException | InvalidArgumentException e) {
             throw new SipException("sendResponse()", e);
         }
@@ -473,18 +1154,95 @@ public class SipHelper {
             request.addHeader(mHeaderFactory.createEventHeader(
                     ReferencesHeader.REFER));
             if (DBG) log("send NOTIFY: " + request);
-            dialog.sendRequest(mSipProvider.getNewClientTransaction(request));
+            ClientTransaction clientTransaction =
+                    mSipProvider.getNewClientTransaction(request);
+            beforeSend(clientTransaction);
+            dialog.sendRequest(clientTransaction);
         } catch (ParseException e) {
             throw new SipException("sendReferNotify()", e);
         }
     }
 
+    /**
+     * Sends a SUBSCRIBE for an event package, opening a subscription dialog
+     * with the first NOTIFY or the 2xx.
+     */
+    public ClientTransaction sendSubscribe(SipURI caller, SipURI callee,
+            String event, int expires, String tag, CallIdHeader callIdHeader)
+            throws SipException {
+        try {
+            Request request = createRequest(Request.SUBSCRIBE, caller, callee,
+                    tag, callIdHeader);
+            request.addHeader(mHeaderFactory.createEventHeader(event));
+            request.addHeader(mHeaderFactory.createExpiresHeader(expires));
+            if (DBG) log("send SUBSCRIBE: " + request);
+            return send(request, null);
+        } catch (ParseException | InvalidArgumentException e) {
+            throw new SipException("sendSubscribe()", e);
+        }
+    }
+
+    /**
+     * Accepts a SUBSCRIBE, opening or refreshing its subscription dialog.
+     *
+     * @param event the SUBSCRIBE request event
+     * @param expires seconds granted, at most those requested
+     * @return the transaction, whose dialog is the subscription
+     */
+    public ServerTransaction sendSubscribeOk(RequestEvent event,
+            SipURI localProfile, String tag, int expires) throws SipException {
+        try {
+            Request request = event.getRequest();
+            Response response = mMessageFactory.createResponse(Response.OK,
+                    request);
+            ToHeader toHeader = (ToHeader) response.getHeader(ToHeader.NAME);
+            if (toHeader.getTag() == null) toHeader.setTag(tag);
+            response.addHeader(createContactHeader(localProfile));
+            response.addHeader(mHeaderFactory.createExpiresHeader(expires));
+            ServerTransaction transaction = getServerTransaction(event);
+            if (DBG) log("send SUBSCRIBE OK: " + response);
+            trace(response);
+            transaction.sendResponse(response);
+            return transaction;
+        } catch (ParseException | InvalidArgumentException e) {
+            throw new SipException("sendSubscribeOk()", e);
+        }
+    }
+
+    /**
+     * Sends a NOTIFY within a subscription dialog. The headers are added as
+     * given rather than copied, so the ones that do not change can be built
+     * once and shared by every NOTIFY; they must not be modified afterwards.
+     *
+     * @param content the body, or null for none
+     */
+    public ClientTransaction sendNotify(Dialog dialog, EventHeader event,
+            SubscriptionStateHeader subscriptionState,
+            ContentTypeHeader contentType, Object content)
+            throws SipException {
+        try {
+            Request request = dialog.createRequest(Request.NOTIFY);
+            request.addHeader(event);
+            request.addHeader(subscriptionState);
+            if (content != null) request.setContent(content, contentType);
+            ClientTransaction clientTransaction =
+                    mSipProvider.getNewClientTransaction(request);
+            if (DBG) log("send NOTIFY: " + request);
+            beforeSend(clientTransaction);
+            dialog.sendRequest(clientTransaction);
+            return clientTransaction;
+        } catch (ParseException e) {
+            throw new SipException("sendNotify()", e);
+        }
+    }
+
     public void sendInviteRequestTerminated(Request inviteRequest,
             ServerTransaction inviteTransaction) throws SipException {
         try {
             Response response = mMessageFactory.createResponse(
                     Response.REQUEST_TERMINATED, inviteRequest);
             if (DBG) log("send response: " + response);
+            trace(response);
             inviteTransaction.sendResponse(response);
         } catch (ParseException | InvalidArgumentException e) {
             throw new SipException("sendInviteRequestTerminated()", e);
@@ -505,6 +1263,10 @@ public class SipHelper {
         return ((To) header).getUserAtHostPort();
     }
 
+    /**
+     * Returns the Call-ID an event belongs to, or "" when it carries none,
+     * as an IOExceptionEvent raised outside a transaction does.
+     */
     public static String getCallId(EventObject event) {
         if (event == null) return null;
         if (event instanceof RequestEvent) {
@@ -512,8 +1274,14 @@ public class SipHelper {
         } else if (event instanceof ResponseEvent) {
             return getCallId(((ResponseEvent) event).getResponse());
         } else if (event instanceof DialogTerminatedEvent) {
-            Dialog dialog = ((DialogTerminatedEvent) event).getDialog();
             return getCallId(((DialogTerminatedEvent) event).getDialog());
+        } else if (event instanceof DialogTimeoutEvent) {
+            return getCallId(((DialogTimeoutEvent) event).getDialog());
+        } else if (event instanceof TimeoutEvent) {
+            TimeoutEvent e = (TimeoutEvent) event;
+            return getCallId(e.isServerTransaction()
+                    ? e.getServerTransaction()
+                    : e.getClientTransaction());
         } else if (event instanceof TransactionTerminatedEvent) {
             TransactionTerminatedEvent e = (TransactionTerminatedEvent) event;
             return getCallId(e.isServerTransaction()
@@ -548,4 +1316,47 @@ public class SipHelper {
     private void log(String s) {
 
     }
+
+    /**
+     * Identifies a request template by method, the profiles it was built
+     * for and the listening point its Via and Contact came from, or an
+     * offer template by its profile alone. Profiles are compared by
+     * identity, so a lookup encodes nothing; a profile must
+     * not be changed once requests were sent for it, pass a new SipURI
+     * instead.
+     */
+    private static final class TemplateKey {
+        private final String mMethod;
+        private final SipURI mCaller;
+        private final SipURI mCallee;
+        private final ListeningPoint mListeningPoint;
+        private final int mHash;
+
+        private TemplateKey(String method, SipURI caller, SipURI callee,
+                ListeningPoint listeningPoint) {
+            mMethod = method;
+            mCaller = caller;
+            mCallee = callee;
+            mListeningPoint = listeningPoint;
+            int hash = method.hashCode();
+            hash = 31 * hash + System.identityHashCode(caller);
+            hash = 31 * hash + System.identityHashCode(callee);
+            mHash = 31 * hash + System.identityHashCode(listeningPoint);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof TemplateKey)) return false;
+            TemplateKey other = (TemplateKey) o;
+            return (mCaller == other.mCaller) && (mCallee == other.mCallee)
+                    && (mListeningPoint == other.mListeningPoint)
+                    && mMethod.equals(other.mMethod);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+    }
 }
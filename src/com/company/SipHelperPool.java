@@ -0,0 +1,148 @@
+package com.company;
+
+import gov.nist.javax.sip.DialogExt;
+
+import javax.sip.Dialog;
+import javax.sip.InvalidArgumentException;
+import javax.sip.ListeningPoint;
+import javax.sip.ObjectInUseException;
+import javax.sip.PeerUnavailableException;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TransportNotSupportedException;
+import java.util.EventObject;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TooManyListenersException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs several independent SipStacks, one per port of a consecutive range,
+ * each with its own provider and SipHelper, so signaling is not funneled
+ * through the threads and locks of a single stack.
+ *
+ * <p>New registrations and calls are spread over the shards, either round
+ * robin or by a stable key such as the profile. Everything that follows
+ * must go through the shard that created the transaction or dialog: stacks
+ * share no state, so a dialog only exists in one of them. The pool finds
+ * that shard from the provider an event or dialog belongs to.
+ */
+public class SipHelperPool {
+    private static final String TAG = SipHelperPool.class.getSimpleName();
+
+    private final SipStack[] mStacks;
+    private final SipProvider[] mProviders;
+    private final SipHelper[] mHelpers;
+    // written only while starting, read-only afterwards
+    private final Map<SipProvider, Integer> mByProvider =
+            new IdentityHashMap<SipProvider, Integer>();
+    private final AtomicInteger mNext = new AtomicInteger();
+
+    /**
+     * Starts the shards. Shard i listens on basePort + i and runs a stack
+     * named after the STACK_NAME of the given properties with "-i"
+     * appended; all other properties are shared. If a shard fails to start,
+     * the ones already started are stopped again.
+     *
+     * @param listener receives the events of every shard
+     */
+    public SipHelperPool(Properties properties, String host, int basePort,
+            String transport, int shards, SipListener listener)
+            throws PeerUnavailableException, TransportNotSupportedException,
+            InvalidArgumentException, ObjectInUseException,
+            TooManyListenersException {
+        mStacks = new SipStack[shards];
+        mProviders = new SipProvider[shards];
+        mHelpers = new SipHelper[shards];
+        String name = properties.getProperty("javax.sip.STACK_NAME", TAG);
+        boolean started = false;
+        try {
+            for (int i = 0; i < shards; i++) {
+                Properties shardProperties = new Properties();
+                shardProperties.putAll(properties);
+                // SipFactory hands out the existing stack for a known name
+                shardProperties.setProperty("javax.sip.STACK_NAME",
+                        name + "-" + i);
+                mStacks[i] = SipFactory.getInstance()
+                        .createSipStack(shardProperties);
+                ListeningPoint listeningPoint = mStacks[i].createListeningPoint(
+                        host, basePort + i, transport);
+                mProviders[i] = mStacks[i].createSipProvider(listeningPoint);
+                mProviders[i].addSipListener(listener);
+                mHelpers[i] = new SipHelper(mStacks[i], mProviders[i]);
+                mByProvider.put(mProviders[i], i);
+            }
+            started = true;
+        } finally {
+            // nobody gets a pool to stop the ports already bound
+            if (!started) stop();
+        }
+    }
+
+    public int getShardCount() {
+        return mHelpers.length;
+    }
+
+    public SipHelper getHelper(int shard) {
+        return mHelpers[shard];
+    }
+
+    public SipProvider getProvider(int shard) {
+        return mProviders[shard];
+    }
+
+    /**
+     * Returns the shard for the next new registration or call, round robin.
+     */
+    public SipHelper next() {
+        return mHelpers[(mNext.getAndIncrement() & 0x7fffffff)
+                % mHelpers.length];
+    }
+
+    /**
+     * Returns the shard a key such as a profile always maps to, so that
+     * e.g. refreshes of one registration keep using one stack.
+     */
+    public SipHelper getHelper(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return mHelpers[(h & 0x7fffffff) % mHelpers.length];
+    }
+
+    /**
+     * Returns the index of the shard that delivered a listener event, or -1
+     * if it did not come from this pool.
+     */
+    public int getShard(EventObject event) {
+        Integer shard = mByProvider.get(event.getSource());
+        return (shard != null) ? shard : -1;
+    }
+
+    /**
+     * Returns the shard that delivered a listener event, which is the one
+     * that must send anything in response to it.
+     */
+    public SipHelper getHelper(EventObject event) {
+        int shard = getShard(event);
+        return (shard >= 0) ? mHelpers[shard] : null;
+    }
+
+    /**
+     * Returns the shard owning a dialog.
+     */
+    public SipHelper getHelper(Dialog dialog) {
+        Integer shard = mByProvider.get(((DialogExt) dialog).getSipProvider());
+        return (shard != null) ? mHelpers[shard] : null;
+    }
+
+    public void stop() {
+        for (SipStack stack : mStacks) {
+            if (stack != null) stack.stop();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.company;
+
+import java.security.SecureRandom;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates From-tags, Call-IDs, Via branches and CSeq numbers for one stack
+ * instance without a shared Random.
+ *
+ * <p>Identifiers come from a 64-bit sequence that threads take in blocks, so
+ * the common path touches only thread-local state. Each sequence number is
+ * scrambled with a bijective mix keyed by a per-instance secret: identifiers
+ * look random on the wire but can never repeat within the instance. Call-IDs
+ * also carry the instance nonce to stay unique across instances.
+ *
+ * <p>CSeq numbers of registrations are kept per Call-ID and only ever
+ * increase, as RFC 3261 section 10.2 requires for refreshes. A counter is
+ * released when its registration ends, and one left unused for longer than
+ * the sequence TTL is forgotten: a registrar has dropped its binding by then,
+ * and may restart the count, so the counters of registrations that were
+ * abandoned without unregistering do not pile up.
+ */
+public class SipIdentifiers {
+    private static final String BRANCH_MAGIC_COOKIE = "z9hG4bK";
+    private static final int BLOCK_SIZE = 1024;
+    // RFC 3261 section 8.1.1.5: the initial CSeq must be less than 2**31
+    private static final int MAX_INITIAL_SEQUENCE = 1 << 16;
+    // above the longest registration interval in use
+    private static final long DEFAULT_SEQUENCE_TTL_MS = TimeUnit.HOURS.toMillis(2);
+
+    private final AtomicLong mNextBlock = new AtomicLong();
+    private final ThreadLocal<long[]> mBlock = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            // { next, limit }
+            return new long[2];
+        }
+    };
+    private final long mSecret;
+    private final String mInstance;
+    private final ConcurrentHashMap<String, Sequence> mSequences =
+            new ConcurrentHashMap<String, Sequence>();
+    private volatile long mSequenceTtlNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_SEQUENCE_TTL_MS);
+    // System.nanoTime() of the next sweep for unused counters
+    private final AtomicLong mNextSweep = new AtomicLong(System.nanoTime());
+
+    public SipIdentifiers() {
+        SecureRandom random = new SecureRandom();
+        mSecret = random.nextLong();
+        mInstance = Long.toHexString(random.nextLong());
+    }
+
+    public String newTag() {
+        return Long.toHexString(mix(nextId()));
+    }
+
+    public String newCallId() {
+        return Long.toHexString(mix(nextId())) + '-' + mInstance;
+    }
+
+    public String newBranch() {
+        return BRANCH_MAGIC_COOKIE + Long.toHexString(mix(nextId()));
+    }
+
+    /**
+     * Returns a fresh initial CSeq number for a request outside a dialog.
+     */
+    public long newSequenceNumber() {
+        return ThreadLocalRandom.current().nextInt(1, MAX_INITIAL_SEQUENCE);
+    }
+
+    /**
+     * Sets how long a CSeq counter is kept without being used; must exceed
+     * the longest registration interval.
+     */
+    public void setSequenceTtl(long ttlMillis) {
+        mSequenceTtlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    /**
+     * Returns the next CSeq number of the registration or dialog with the
+     * given Call-ID, starting from a random initial value.
+     */
+    public long nextSequenceNumber(String callId) {
+        long now = System.nanoTime();
+        Sequence sequence = mSequences.get(callId);
+        if (sequence == null) {
+            sweep(now);
+            Sequence created = new Sequence(newSequenceNumber(), now);
+            sequence = mSequences.putIfAbsent(callId, created);
+            if (sequence == null) return created.get();
+        }
+        sequence.mLastUsed = now;
+        return sequence.incrementAndGet();
+    }
+
+    /**
+     * Moves the CSeq counter of a Call-ID up to a number sent outside of
+     * {@link #nextSequenceNumber(String)}, e.g. by an authentication retry.
+     * Call-IDs without a counter are left alone.
+     */
+    public void advanceSequenceNumber(String callId, long sequence) {
+        Sequence counter = mSequences.get(callId);
+        if (counter == null) return;
+        long current = counter.get();
+        while ((current < sequence) && !counter.compareAndSet(current, sequence)) {
+            current = counter.get();
+        }
+    }
+
+    /**
+     * Forgets the CSeq counter of a Call-ID once its registration or dialog
+     * has ended.
+     */
+    public void releaseSequence(String callId) {
+        mSequences.remove(callId);
+    }
+
+    public int getSequenceCount() {
+        return mSequences.size();
+    }
+
+    /**
+     * Forgets the counters unused for longer than the TTL, at most four
+     * times per TTL, on the thread that creates a counter.
+     */
+    private void sweep(long now) {
+        long next = mNextSweep.get();
+        if ((now - next < 0) || !mNextSweep.compareAndSet(next,
+                now + mSequenceTtlNanos / 4)) {
+            return;
+        }
+        long ttl = mSequenceTtlNanos;
+        for (Map.Entry<String, Sequence> entry : mSequences.entrySet()) {
+            Sequence sequence = entry.getValue();
+            if (now - sequence.mLastUsed > ttl) {
+                mSequences.remove(entry.getKey(), sequence);
+            }
+        }
+    }
+
+    private long nextId() {
+        long[] block = mBlock.get();
+        if (block[0] == block[1]) {
+            long start = mNextBlock.getAndIncrement() * BLOCK_SIZE;
+            block[0] = start;
+            block[1] = start + BLOCK_SIZE;
+        }
+        return block[0]++;
+    }
+
+    /**
+     * Bijective 64-bit finalizer (splitmix64), so distinct ids never map to
+     * the same value.
+     */
+    private long mix(long id) {
+        long z = id ^ mSecret;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static class Sequence extends AtomicLong {
+        // System.nanoTime() of the last number taken
+        private volatile long mLastUsed;
+
+        private Sequence(long initialValue, long lastUsed) {
+            super(initialValue);
+            mLastUsed = lastUsed;
+        }
+    }
+}
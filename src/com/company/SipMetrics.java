@@ -0,0 +1,283 @@
+package com.company;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.sip.ClientTransaction;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.message.Request;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and counters of client transactions, cheap enough to
+ * stay on in production.
+ *
+ * <p>Round-trip times are kept per method and response class, so INVITE 1xx
+ * is INVITE-to-ringing and INVITE 2xx INVITE-to-answer; only the first
+ * provisional response after 100 Trying is counted. Start times live in a
+ * fixed table indexed by the hash of the transaction branch, each slot
+ * packing that hash with the start time into one atomic long. Recording
+ * therefore neither allocates nor locks. A transaction whose slot was taken
+ * over by a later one before its response arrived is counted as unmatched.
+ */
+public class SipMetrics implements SipMetricsMBean {
+    private static final String[] METHODS = {
+            Request.REGISTER, Request.INVITE, Request.BYE, Request.CANCEL,
+            Request.OPTIONS, Request.NOTIFY, "other"
+    };
+    private static final int OTHER = METHODS.length - 1;
+    private static final int RESPONSE_CLASSES = 6;
+    private static final int DEFAULT_SLOTS = 1 << 16;
+
+    // low word of a slot: start time in microseconds, 31 bits, which wraps
+    // after 35 minutes, far beyond any transaction
+    private static final long TIME_MASK = 0x7fffffffL;
+    private static final long PROVISIONAL_SEEN = 0x80000000L;
+
+    private final long mBase = System.nanoTime();
+    private final AtomicLongArray mSlots;
+    private final int mSlotMask;
+    private final LatencyHistogram[] mLatencies =
+            new LatencyHistogram[METHODS.length * RESPONSE_CLASSES];
+
+    private final AtomicLongArray mRequests = new AtomicLongArray(METHODS.length);
+    private final AtomicLongArray mReceived = new AtomicLongArray(METHODS.length);
+    private final AtomicLongArray mTimeouts = new AtomicLongArray(METHODS.length);
+    private final AtomicLong mIOExceptions = new AtomicLong();
+    private final AtomicLong mTransactionsTerminated = new AtomicLong();
+    private final AtomicLong mDialogsTerminated = new AtomicLong();
+    private final AtomicLong mRetransmissions = new AtomicLong();
+    private final AtomicLong mUnmatched = new AtomicLong();
+
+    public SipMetrics() {
+        this(DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param slots size of the start time table, rounded up to a power of
+     *      two; should comfortably exceed the transactions in flight
+     */
+    public SipMetrics(int slots) {
+        int size = Integer.highestOneBit(Math.max(slots - 1, 1)) << 1;
+        mSlots = new AtomicLongArray(size);
+        mSlotMask = size - 1;
+        for (int i = 0; i < mLatencies.length; i++) {
+            mLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Registers this instance with the platform MBean server.
+     */
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName(
+                "com.company:type=SipMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer()
+                .registerMBean(this, objectName);
+        return objectName;
+    }
+
+    /**
+     * Writes a snapshot to the given stream periodically.
+     */
+    public ScheduledFuture<?> scheduleSnapshot(
+            ScheduledExecutorService executor, long periodMillis,
+            final PrintStream out) {
+        return executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                out.print(getSnapshot());
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts timing a client transaction. Call before it is sent, so even
+     * the fastest response finds its start time.
+     */
+    public void onRequest(ClientTransaction transaction) {
+        mRequests.incrementAndGet(methodIndex(
+                transaction.getRequest().getMethod()));
+        int hash = transaction.getBranchId().hashCode();
+        mSlots.set(hash & mSlotMask, ((long) hash << 32) | now());
+    }
+
+    public void onRequest(RequestEvent requestEvent) {
+        mReceived.incrementAndGet(methodIndex(
+                requestEvent.getRequest().getMethod()));
+    }
+
+    public void onResponse(ResponseEvent responseEvent) {
+        ClientTransaction transaction = responseEvent.getClientTransaction();
+        if (transaction == null) {
+            // a final response retransmitted after its transaction ended
+            mRetransmissions.incrementAndGet();
+            return;
+        }
+        int status = responseEvent.getResponse().getStatusCode();
+        if (status == 100) return;
+
+        int hash = transaction.getBranchId().hashCode();
+        int slot = hash & mSlotMask;
+        long value = mSlots.get(slot);
+        if ((value == 0) || ((int) (value >>> 32) != hash)) {
+            mUnmatched.incrementAndGet();
+            return;
+        }
+        if (status < 200) {
+            if (((value & PROVISIONAL_SEEN) != 0)
+                    || !mSlots.compareAndSet(slot, value,
+                            value | PROVISIONAL_SEEN)) {
+                return;
+            }
+        } else if (!mSlots.compareAndSet(slot, value, 0)) {
+            return;
+        }
+        long micros = (now() - value) & TIME_MASK;
+        int classIndex = Math.min(status / 100, RESPONSE_CLASSES) - 1;
+        mLatencies[methodIndex(transaction.getRequest().getMethod())
+                * RESPONSE_CLASSES + classIndex].record(micros);
+    }
+
+    public void onTimeout(TimeoutEvent timeoutEvent) {
+        ClientTransaction transaction = timeoutEvent.getClientTransaction();
+        if (timeoutEvent.isServerTransaction() || (transaction == null)) {
+            mTimeouts.incrementAndGet(OTHER);
+            return;
+        }
+        mTimeouts.incrementAndGet(methodIndex(
+                transaction.getRequest().getMethod()));
+        int hash = transaction.getBranchId().hashCode();
+        int slot = hash & mSlotMask;
+        long value = mSlots.get(slot);
+        if ((int) (value >>> 32) == hash) mSlots.compareAndSet(slot, value, 0);
+    }
+
+    public void onIOException(IOExceptionEvent ioExceptionEvent) {
+        mIOExceptions.incrementAndGet();
+    }
+
+    public void onTransactionTerminated(
+            TransactionTerminatedEvent transactionTerminatedEvent) {
+        mTransactionsTerminated.incrementAndGet();
+    }
+
+    public void onDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+        mDialogsTerminated.incrementAndGet();
+    }
+
+    public LatencyHistogram getLatency(String method, int responseClass) {
+        return mLatencies[methodIndex(method) * RESPONSE_CLASSES
+                + responseClass - 1];
+    }
+
+    @Override
+    public long getRequestCount() {
+        return sum(mRequests);
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return sum(mTimeouts);
+    }
+
+    @Override
+    public long getIOExceptionCount() {
+        return mIOExceptions.get();
+    }
+
+    @Override
+    public long getTransactionTerminatedCount() {
+        return mTransactionsTerminated.get();
+    }
+
+    @Override
+    public long getDialogTerminatedCount() {
+        return mDialogsTerminated.get();
+    }
+
+    @Override
+    public long getRetransmissionCount() {
+        return mRetransmissions.get();
+    }
+
+    @Override
+    public long getUnmatchedCount() {
+        return mUnmatched.get();
+    }
+
+    @Override
+    public double getLatencyMillis(String method, int responseClass,
+            double percentile) {
+        return getLatency(method, responseClass).getPercentile(percentile)
+                / 1000.0;
+    }
+
+    @Override
+    public String getSnapshot() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("sent %d received %d timeouts %d io %d "
+                        + "terminated %d dialogs %d retransmissions %d "
+                        + "unmatched %d%n",
+                getRequestCount(), sum(mReceived), getTimeoutCount(),
+                getIOExceptionCount(), getTransactionTerminatedCount(),
+                getDialogTerminatedCount(), getRetransmissionCount(),
+                getUnmatchedCount()));
+        for (int m = 0; m < METHODS.length; m++) {
+            for (int c = 0; c < RESPONSE_CLASSES; c++) {
+                LatencyHistogram latency = mLatencies[m * RESPONSE_CLASSES + c];
+                if (latency.getCount() == 0) continue;
+                sb.append(String.format("%-8s %dxx %s%n", METHODS[m], c + 1,
+                        latency.summary()));
+            }
+            if (mTimeouts.get(m) != 0) {
+                sb.append(String.format("%-8s timeouts %d%n", METHODS[m],
+                        mTimeouts.get(m)));
+            }
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram latency : mLatencies) latency.reset();
+        for (int i = 0; i < METHODS.length; i++) {
+            mRequests.set(i, 0);
+            mReceived.set(i, 0);
+            mTimeouts.set(i, 0);
+        }
+        mIOExceptions.set(0);
+        mTransactionsTerminated.set(0);
+        mDialogsTerminated.set(0);
+        mRetransmissions.set(0);
+        mUnmatched.set(0);
+    }
+
+    private long now() {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - mBase)
+                & TIME_MASK;
+    }
+
+    private static int methodIndex(String method) {
+        for (int i = 0; i < OTHER; i++) {
+            if (METHODS[i].equals(method)) return i;
+        }
+        return OTHER;
+    }
+
+    private static long sum(AtomicLongArray counters) {
+        long sum = 0;
+        for (int i = 0; i < counters.length(); i++) sum += counters.get(i);
+        return sum;
+    }
+}
@@ -0,0 +1,32 @@
+package com.company;
+
+/**
+ * JMX view of {@link SipMetrics}. Latencies are in milliseconds.
+ */
+public interface SipMetricsMBean {
+    long getRequestCount();
+
+    long getTimeoutCount();
+
+    long getIOExceptionCount();
+
+    long getTransactionTerminatedCount();
+
+    long getDialogTerminatedCount();
+
+    long getRetransmissionCount();
+
+    long getUnmatchedCount();
+
+    String getSnapshot();
+
+    /**
+     * @param method a SIP method name
+     * @param responseClass 1 to 6
+     * @param percentile in the range 0..100
+     */
+    double getLatencyMillis(String method, int responseClass,
+            double percentile);
+
+    void reset();
+}
@@ -0,0 +1,541 @@
+package com.company;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+import gov.nist.javax.sip.SipStackExt;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.address.SipUri;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+import javax.sip.*;
+import javax.sip.address.SipURI;
+import javax.sip.header.CallIdHeader;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Long-running soak test against a StandInServer in this process. Users go
+ * through register, refresh and unregister over and over, and short calls
+ * are placed and hung up, on a stack configured like Main's, with automatic
+ * dialog support. Every sample period it records the heap left after the
+ * last collection, the live dialogs and transactions of the stack, the CSeq
+ * counters and pending futures of SipHelper, live threads, threads started,
+ * and collector pauses.
+ *
+ * <p>After the warmup, each tracked quantity is fitted with a least-squares
+ * line over time. The run fails, with exit status 1, when the slope of any
+ * of them exceeds its limit: steady churn should leave nothing behind, so
+ * a steady climb is a leak even when it is too slow to notice in a day.
+ * Threads are tracked by the total ever started, whose slope is the rate
+ * threads are created at; a pool that replaces its threads keeps the live
+ * count flat while it churns. Heap is taken after collection, so garbage
+ * not yet collected does not count as growth. The run also fails when a
+ * collection after the warmup took longer than the pause limit; pause
+ * times come from the collector notifications and, for concurrent
+ * collectors, include concurrent phases.
+ *
+ * <p>Usage: SoakTest [duration=3600] [users=1000] [registerRate=50]
+ * [callRate=10] [hold=2000] [sample=10] [warmup=120] [transport=udp]
+ * [heapSlope=16] [dialogSlope=10] [transactionSlope=10] [threadSlope=1]
+ * [maxPause=500]
+ *
+ * <p>Durations are in seconds, hold and pauses in milliseconds, rates per
+ * second and slopes per hour, heap in MiB.
+ */
+public class SoakTest implements SipListener {
+    private static final int SERVER_PORT = 21000;
+    private static final int CLIENT_PORT = 21001;
+    private static final int EXPIRY = 3600;
+    private static final int UDP_THREADS = 4;
+
+    // the quantities sampled; each has a slope limit, NaN for none
+    private static final String[] METRICS = {"heap MiB", "dialogs",
+            "client transactions", "server transactions", "threads started",
+            "sequences", "pending"};
+    private static final int HEAP = 0;
+    private static final int DIALOGS = 1;
+    private static final int CLIENT_TRANSACTIONS = 2;
+    private static final int SERVER_TRANSACTIONS = 3;
+    private static final int THREADS = 4;
+    private static final int SEQUENCES = 5;
+    private static final int PENDING = 6;
+
+    private final Options mOptions;
+    private final SipStack mSipStack;
+    private final SipHelper mSipHelper;
+    private final User[] mUsers;
+    private final double[] mLimits = new double[METRICS.length];
+
+    private final ScheduledExecutorService mScheduler =
+            Executors.newScheduledThreadPool(2);
+    private final List<double[]> mSamples = new ArrayList<double[]>();
+    private final List<Double> mSampleHours = new ArrayList<Double>();
+
+    private final AtomicLong mRegisters = new AtomicLong();
+    private final AtomicLong mCalls = new AtomicLong();
+    private final AtomicLong mFailures = new AtomicLong();
+    private final AtomicLong mSkipped = new AtomicLong();
+    // collector pauses since the last sample
+    private final LatencyHistogram mPauses = new LatencyHistogram();
+    // longest collector pause after the warmup, guarded by mSamples
+    private long mMaxPauseMicros;
+
+    private long mStartNanos;
+    private int mNextRegister;
+    private int mNextCall;
+    private long mLastStartedThreads;
+    private long mLastGcCount;
+    private long mLastGcMillis;
+
+    private SoakTest(Options options) throws Exception {
+        mOptions = options;
+
+        Properties properties = Harness.stackProperties("im.dlg.sip.soak");
+        properties.setProperty("gov.nist.javax.sip.DELIVER_RETRANSMITTED_ACK_TO_LISTENER", "true");
+        // without a pool, the UDP processor starts a thread per message and
+        // the thread creation rate would only measure the load
+        properties.setProperty("gov.nist.javax.sip.THREAD_POOL_SIZE",
+                Integer.toString(UDP_THREADS));
+        SipProvider sipProvider = Harness.createProvider(properties,
+                CLIENT_PORT, options.transport);
+        mSipStack = sipProvider.getSipStack();
+        sipProvider.addSipListener(this);
+        mSipHelper = new SipHelper(mSipStack, sipProvider);
+        mSipHelper.setSendExecutor(mScheduler);
+
+        byte[] sdp = Harness.SDP.getBytes(StandardCharsets.US_ASCII);
+        SessionDescription offer = SessionDescription.parse(sdp, 0, sdp.length);
+        mUsers = new User[options.users];
+        for (int i = 0; i < options.users; i++) {
+            SipURI profile = new SipUri();
+            profile.setUser("soak" + i);
+            profile.setHost(Harness.HOST);
+            profile.setPort(SERVER_PORT);
+            profile.setTransportParam(options.transport.toLowerCase());
+            mSipHelper.setOfferTemplate(profile, offer);
+            mUsers[i] = new User(profile);
+        }
+
+        mLimits[HEAP] = options.heapSlope;
+        mLimits[DIALOGS] = options.dialogSlope;
+        mLimits[CLIENT_TRANSACTIONS] = options.transactionSlope;
+        mLimits[SERVER_TRANSACTIONS] = options.transactionSlope;
+        mLimits[THREADS] = options.threadSlope;
+        // per registration and call state kept by SipHelper
+        mLimits[SEQUENCES] = options.dialogSlope;
+        mLimits[PENDING] = options.transactionSlope;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        StandInServer.Options serverOptions = new StandInServer.Options();
+        serverOptions.port = SERVER_PORT;
+        serverOptions.transports = new String[] {options.transport};
+        // threads it starts count against the thread creation rate as well
+        serverOptions.stackThreads = UDP_THREADS;
+        StandInServer server = new StandInServer(serverOptions);
+        server.start();
+
+        boolean passed = new SoakTest(options).run();
+        System.out.println("stand-in: " + server.getStatistics());
+        server.stop();
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run() throws InterruptedException {
+        System.out.println(String.format("soak for %d s: %d users, %d "
+                        + "registers/s, %d calls/s, sampled every %d s",
+                mOptions.duration, mOptions.users, mOptions.registerRate,
+                mOptions.callRate, mOptions.sample));
+        watchCollectors();
+        mStartNanos = System.nanoTime();
+        mLastStartedThreads = ManagementFactory.getThreadMXBean()
+                .getTotalStartedThreadCount();
+        mLastGcCount = getGcCount();
+        mLastGcMillis = getGcMillis();
+
+        if (mOptions.registerRate > 0) {
+            mScheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    register(mUsers[mNextRegister++ % mUsers.length]);
+                }
+            }, 0, TimeUnit.SECONDS.toMicros(1) / mOptions.registerRate,
+                    TimeUnit.MICROSECONDS);
+        }
+        if (mOptions.callRate > 0) {
+            mScheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    int caller = mNextCall++ % mUsers.length;
+                    call(mUsers[caller], mUsers[(caller + 1) % mUsers.length]);
+                }
+            }, 0, TimeUnit.SECONDS.toMicros(1) / mOptions.callRate,
+                    TimeUnit.MICROSECONDS);
+        }
+        mScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, mOptions.sample, mOptions.sample, TimeUnit.SECONDS);
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(mOptions.duration));
+        mScheduler.shutdownNow();
+        mScheduler.awaitTermination(5, TimeUnit.SECONDS);
+        mSipStack.stop();
+        return verdict();
+    }
+
+    /**
+     * Moves a user one step on: registers with a new Call-ID, refreshes, or
+     * unregisters, which releases the Call-ID.
+     */
+    private void register(final User user) {
+        if (!user.mBusy.compareAndSet(false, true)) {
+            mSkipped.incrementAndGet();
+            return;
+        }
+        try {
+            if (user.mCallId == null) {
+                user.mCallId = mSipHelper.newCallIdHeader();
+                user.mTag = mSipHelper.getIdentifiers().newTag();
+            }
+        } catch (SipException e) {
+            mFailures.incrementAndGet();
+            user.mBusy.set(false);
+            return;
+        }
+        final boolean unregister = user.mRefreshed;
+        mSipHelper.sendRegisterAsync(user.mProfile, user.mTag,
+                unregister ? 0 : EXPIRY, user.mCallId, null)
+                .whenComplete(new BiConsumer<ResponseEvent, Throwable>() {
+                    @Override
+                    public void accept(ResponseEvent response, Throwable e) {
+                        mRegisters.incrementAndGet();
+                        if ((e != null) || (response.getResponse()
+                                .getStatusCode() >= 300)) {
+                            mFailures.incrementAndGet();
+                        }
+                        // a failed step is not retried, the user moves on
+                        if (unregister) {
+                            user.mCallId = null;
+                            user.mRegistered = false;
+                            user.mRefreshed = false;
+                        } else if (user.mRegistered) {
+                            user.mRefreshed = true;
+                        } else {
+                            user.mRegistered = true;
+                        }
+                        user.mBusy.set(false);
+                    }
+                });
+    }
+
+    /**
+     * Places a call, acknowledges the answer and hangs up after the hold
+     * time.
+     */
+    private void call(User caller, User callee) {
+        CallIdHeader callIdHeader;
+        try {
+            callIdHeader = mSipHelper.newCallIdHeader();
+        } catch (SipException e) {
+            mFailures.incrementAndGet();
+            return;
+        }
+        CompletableFuture<ResponseEvent> answer = mSipHelper.sendInviteAsync(
+                caller.mProfile, callee.mProfile,
+                mSipHelper.newOffer(caller.mProfile),
+                mSipHelper.getIdentifiers().newTag(), null, null, callIdHeader,
+                null);
+        answer.whenComplete(new BiConsumer<ResponseEvent, Throwable>() {
+            @Override
+            public void accept(ResponseEvent response, Throwable e) {
+                mCalls.incrementAndGet();
+                if ((e != null) || (response.getResponse()
+                        .getStatusCode() >= 300)) {
+                    mFailures.incrementAndGet();
+                    return;
+                }
+                final Dialog dialog = response.getDialog();
+                try {
+                    mSipHelper.sendInviteAck(response, dialog);
+                } catch (SipException ack) {
+                    mFailures.incrementAndGet();
+                    return;
+                }
+                mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            mSipHelper.sendBye(dialog);
+                        } catch (SipException bye) {
+                            mFailures.incrementAndGet();
+                        }
+                    }
+                }, mOptions.hold, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    private void sample() {
+        double[] values = new double[METRICS.length];
+        values[HEAP] = getHeapAfterGc() / (1024.0 * 1024.0);
+        values[DIALOGS] = ((SipStackExt) mSipStack).getDialogs().size();
+        SipStackImpl stack = (SipStackImpl) mSipStack;
+        values[CLIENT_TRANSACTIONS] = stack.getClientTransactionTableSize();
+        values[SERVER_TRANSACTIONS] = stack.getServerTransactionTableSize();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long started = threads.getTotalStartedThreadCount();
+        values[THREADS] = started;
+        values[SEQUENCES] = mSipHelper.getIdentifiers().getSequenceCount();
+        values[PENDING] = mSipHelper.getResponseFutures().getPendingCount();
+        double hours = (System.nanoTime() - mStartNanos) / 3.6e12;
+
+        long gcCount = getGcCount();
+        long gcMillis = getGcMillis();
+        LatencyHistogram pauses = new LatencyHistogram();
+        mPauses.drainTo(pauses);
+        System.out.println(String.format("%6.0f s heap=%.1fMiB dialogs=%.0f "
+                        + "transactions=%.0f/%.0f threads=%d (+%d started) "
+                        + "sequences=%.0f pending=%.0f gc=%d in %d ms, "
+                        + "max pause %d ms, registers=%d calls=%d failures=%d "
+                        + "skipped=%d",
+                hours * 3600, values[HEAP], values[DIALOGS],
+                values[CLIENT_TRANSACTIONS], values[SERVER_TRANSACTIONS],
+                threads.getThreadCount(), started - mLastStartedThreads,
+                values[SEQUENCES], values[PENDING], gcCount - mLastGcCount,
+                gcMillis - mLastGcMillis, pauses.getMax() / 1000,
+                mRegisters.get(), mCalls.get(), mFailures.get(),
+                mSkipped.get()));
+        mLastStartedThreads = started;
+        mLastGcCount = gcCount;
+        mLastGcMillis = gcMillis;
+
+        if (hours * 3600 < mOptions.warmup) return;
+        synchronized (mSamples) {
+            mSamples.add(values);
+            mSampleHours.add(hours);
+            mMaxPauseMicros = Math.max(mMaxPauseMicros, pauses.getMax());
+        }
+    }
+
+    /**
+     * Fits a line to each quantity sampled after the warmup.
+     *
+     * @return false if any grew faster than its limit
+     */
+    private boolean verdict() {
+        synchronized (mSamples) {
+            if (mSamples.size() < 3) {
+                System.out.println("FAILED: too few samples after the warmup");
+                return false;
+            }
+            boolean passed = true;
+            for (int metric = 0; metric < METRICS.length; metric++) {
+                double slope = slope(metric);
+                boolean exceeded = !Double.isNaN(mLimits[metric])
+                        && (slope > mLimits[metric]);
+                System.out.println(String.format("%-20s %+10.2f/h, limit %s%s",
+                        METRICS[metric], slope, mLimits[metric],
+                        exceeded ? "  EXCEEDED" : ""));
+                passed &= !exceeded;
+            }
+            long maxPause = mMaxPauseMicros / 1000;
+            boolean exceeded = maxPause > mOptions.maxPause;
+            System.out.println(String.format("%-20s %10d ms, limit %d%s",
+                    "max pause", maxPause, mOptions.maxPause,
+                    exceeded ? "  EXCEEDED" : ""));
+            passed &= !exceeded;
+            System.out.println(passed ? "PASSED" : "FAILED");
+            return passed;
+        }
+    }
+
+    private double slope(int metric) {
+        int n = mSamples.size();
+        double meanX = 0;
+        double meanY = 0;
+        for (int i = 0; i < n; i++) {
+            meanX += mSampleHours.get(i) / n;
+            meanY += mSamples.get(i)[metric] / n;
+        }
+        double covariance = 0;
+        double variance = 0;
+        for (int i = 0; i < n; i++) {
+            double dx = mSampleHours.get(i) - meanX;
+            covariance += dx * (mSamples.get(i)[metric] - meanY);
+            variance += dx * dx;
+        }
+        return (variance > 0) ? covariance / variance : 0.0;
+    }
+
+    /**
+     * Records the duration of every collection into the pause histogram.
+     */
+    private void watchCollectors() {
+        NotificationListener listener = new NotificationListener() {
+            @Override
+            public void handleNotification(Notification notification,
+                    Object handback) {
+                if (!GarbageCollectionNotificationInfo
+                        .GARBAGE_COLLECTION_NOTIFICATION
+                        .equals(notification.getType())) {
+                    return;
+                }
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from(
+                                (CompositeData) notification.getUserData());
+                mPauses.record(TimeUnit.MILLISECONDS.toMicros(
+                        info.getGcInfo().getDuration()));
+            }
+        };
+        for (GarbageCollectorMXBean gc
+                : ManagementFactory.getGarbageCollectorMXBeans()) {
+            if (gc instanceof NotificationEmitter) {
+                ((NotificationEmitter) gc).addNotificationListener(listener,
+                        null, null);
+            }
+        }
+    }
+
+    private static long getHeapAfterGc() {
+        long used = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() != MemoryType.HEAP) continue;
+            // null until the pool was first collected
+            MemoryUsage usage = pool.getCollectionUsage();
+            used += (usage != null) ? usage.getUsed() : pool.getUsage().getUsed();
+        }
+        return used;
+    }
+
+    private static long getGcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc
+                : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long getGcMillis() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc
+                : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return time;
+    }
+
+    @Override
+    public void processRequest(RequestEvent requestEvent) {
+    }
+
+    @Override
+    public void processResponse(ResponseEvent responseEvent) {
+        mSipHelper.getConnectionCoalescer().onResponse(responseEvent);
+        mSipHelper.getResponseFutures().onResponse(responseEvent);
+    }
+
+    @Override
+    public void processTimeout(TimeoutEvent timeoutEvent) {
+        mSipHelper.getConnectionCoalescer().onTimeout(timeoutEvent);
+        mSipHelper.getResponseFutures().onTimeout(timeoutEvent);
+    }
+
+    @Override
+    public void processIOException(IOExceptionEvent ioExceptionEvent) {
+        mSipHelper.getConnectionCoalescer().onIOException(ioExceptionEvent);
+        mSipHelper.getResponseFutures().onIOException(ioExceptionEvent);
+    }
+
+    @Override
+    public void processTransactionTerminated(
+            TransactionTerminatedEvent transactionTerminatedEvent) {
+        mSipHelper.getResponseFutures()
+                .onTransactionTerminated(transactionTerminatedEvent);
+    }
+
+    @Override
+    public void processDialogTerminated(
+            DialogTerminatedEvent dialogTerminatedEvent) {
+    }
+
+    /**
+     * A registering user; stepped by one registration at a time.
+     */
+    private static class User {
+        private final SipURI mProfile;
+        private final AtomicBoolean mBusy = new AtomicBoolean();
+        private volatile CallIdHeader mCallId;
+        private volatile String mTag;
+        private volatile boolean mRegistered;
+        private volatile boolean mRefreshed;
+
+        private User(SipURI profile) {
+            mProfile = profile;
+        }
+    }
+
+    private static class Options {
+        private int duration = 3600;
+        private int users = 1000;
+        private int registerRate = 50;
+        private int callRate = 10;
+        private int hold = 2000;
+        private int sample = 10;
+        private int warmup = 120;
+        private String transport = ListeningPoint.UDP;
+        private double heapSlope = 16;
+        private double dialogSlope = 10;
+        private double transactionSlope = 10;
+        private double threadSlope = 1;
+        private int maxPause = 500;
+
+        private static Options parse(String[] args) {
+            Harness.Arguments arguments = new Harness.Arguments(args, 0);
+            Options options = new Options();
+            options.duration = arguments.getInt("duration", options.duration);
+            options.users = arguments.getInt("users", options.users);
+            options.registerRate = arguments.getInt("registerRate",
+                    options.registerRate);
+            options.callRate = arguments.getInt("callRate", options.callRate);
+            options.hold = arguments.getInt("hold", options.hold);
+            options.sample = arguments.getInt("sample", options.sample);
+            options.warmup = arguments.getInt("warmup", options.warmup);
+            options.transport = arguments.getString("transport",
+                    options.transport).toUpperCase();
+            options.heapSlope = arguments.getDouble("heapSlope",
+                    options.heapSlope);
+            options.dialogSlope = arguments.getDouble("dialogSlope",
+                    options.dialogSlope);
+            options.transactionSlope = arguments.getDouble("transactionSlope",
+                    options.transactionSlope);
+            options.threadSlope = arguments.getDouble("threadSlope",
+                    options.threadSlope);
+            options.maxPause = arguments.getInt("maxPause", options.maxPause);
+            arguments.checkAllRead();
+            return options;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+import gov.nist.javax.sip.stack.NioMessageProcessorFactory;
+
+import javax.sip.*;
+import javax.sip.address.SipURI;
+import javax.sip.header.CallIdHeader;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Finds the fastest stack properties for a workload: creates a client stack
+ * for every combination of the swept properties in turn, drives the same
+ * closed-loop REGISTER load from it against a StandInServer for a fixed
+ * time, and reports throughput, p99 latency and the heap held by the stack,
+ * best first. Rerun it after upgrading jain-sip-ri.
+ *
+ * <p>Every argument naming a stack property, that is containing a dot,
+ * replaces the values swept for it, or adds the property to the sweep; "-"
+ * leaves the property unset so the stack default is measured too. Without
+ * such arguments the properties set in Main are swept against the thread
+ * pool and NIO settings.
+ *
+ * <p>Usage: StackConfigSweep [seconds=5] [concurrency=100] [transport=tcp]
+ * [property=value,value...]
+ */
+public class StackConfigSweep {
+    private static final int SERVER_PORT = 16000;
+    // every run binds a port of its own, clear of the last run's sockets
+    private static final int CLIENT_PORT = 16001;
+    private static final long WARMUP_MS = 2000;
+    private static final long DRAIN_MS = 1000;
+    private static final String UNSET = "-";
+
+    private final Options mOptions;
+    private final ExecutorService mSenders = Executors.newFixedThreadPool(4);
+    private final List<Result> mResults = new ArrayList<Result>();
+
+    private StackConfigSweep(Options options) {
+        mOptions = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+
+        StandInServer server = Harness.startStandIn(SERVER_PORT,
+                options.transport);
+
+        new StackConfigSweep(options).run();
+        server.stop();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        List<Map<String, String>> combinations = combine(mOptions.sweep);
+        System.out.println(String.format(
+                "%d combinations, %d s each, %d in flight over %s",
+                combinations.size(), mOptions.seconds, mOptions.concurrency,
+                mOptions.transport));
+        for (int i = 0; i < combinations.size(); i++) {
+            Result result = measure(i, combinations.get(i));
+            System.out.println(result);
+            mResults.add(result);
+        }
+
+        Collections.sort(mResults, new Comparator<Result>() {
+            @Override
+            public int compare(Result a, Result b) {
+                return Double.compare(b.mThroughput, a.mThroughput);
+            }
+        });
+        System.out.println();
+        System.out.println("best first:");
+        for (Result result : mResults) System.out.println(result);
+    }
+
+    private Result measure(int run, Map<String, String> combination)
+            throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "im.dlg.sip.sweep." + run);
+        File log = File.createTempFile("sweep", ".log");
+        log.deleteOnExit();
+        properties.setProperty("gov.nist.javax.sip.DEBUG_LOG", log.getPath());
+        properties.setProperty("gov.nist.javax.sip.SERVER_LOG", log.getPath());
+        for (Map.Entry<String, String> entry : combination.entrySet()) {
+            if (!UNSET.equals(entry.getValue())) {
+                properties.setProperty(entry.getKey(), entry.getValue());
+            }
+        }
+
+        long heap = Harness.usedHeap();
+        SipProvider sipProvider = Harness.createProvider(properties,
+                CLIENT_PORT + run, mOptions.transport);
+        SipStack sipStack = sipProvider.getSipStack();
+        Workload workload = new Workload(new SipHelper(sipStack, sipProvider));
+        sipProvider.addSipListener(workload);
+
+        for (int i = 0; i < mOptions.concurrency; i++) workload.next();
+        Thread.sleep(WARMUP_MS);
+        workload.mLatency.reset();
+        long completed = workload.mCompleted.get();
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(mOptions.seconds));
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        completed = workload.mCompleted.get() - completed;
+        // the stack and what is in flight in it, while still loaded
+        long held = Harness.usedHeap() - heap;
+        workload.mStopped = true;
+        Thread.sleep(DRAIN_MS);
+        sipStack.stop();
+
+        return new Result(combination, completed / elapsed,
+                workload.mLatency.getPercentile(99) / 1000.0, held,
+                workload.mFailures.get());
+    }
+
+    /**
+     * Returns every combination of the swept values, the first property
+     * varying slowest.
+     */
+    private static List<Map<String, String>> combine(
+            Map<String, String[]> sweep) {
+        List<Map<String, String>> combinations =
+                new ArrayList<Map<String, String>>();
+        combinations.add(new LinkedHashMap<String, String>());
+        for (Map.Entry<String, String[]> entry : sweep.entrySet()) {
+            List<Map<String, String>> next =
+                    new ArrayList<Map<String, String>>();
+            for (Map<String, String> combination : combinations) {
+                for (String value : entry.getValue()) {
+                    Map<String, String> extended =
+                            new LinkedHashMap<String, String>(combination);
+                    extended.put(entry.getKey(), value);
+                    next.add(extended);
+                }
+            }
+            combinations = next;
+        }
+        return combinations;
+    }
+
+    /**
+     * Keeps a fixed number of REGISTERs in flight, each with a fresh Call-ID,
+     * sending the next one as soon as one completes.
+     */
+    private class Workload implements SipListener {
+        private final SipHelper mSipHelper;
+        private final SipURI mProfile = new SipUri();
+        private final ConcurrentHashMap<String, Long> mPending =
+                new ConcurrentHashMap<String, Long>();
+        private final LatencyHistogram mLatency = new LatencyHistogram();
+        private final AtomicLong mCompleted = new AtomicLong();
+        private final AtomicLong mFailures = new AtomicLong();
+        private volatile boolean mStopped;
+
+        private Workload(SipHelper sipHelper) throws Exception {
+            mSipHelper = sipHelper;
+            mProfile.setUser("sweep");
+            mProfile.setHost(Harness.HOST);
+            mProfile.setPort(SERVER_PORT);
+            mProfile.setTransportParam(mOptions.transport.toLowerCase());
+        }
+
+        private void next() {
+            if (mStopped) return;
+            mSenders.execute(new Runnable() {
+                @Override
+                public void run() {
+                    send();
+                }
+            });
+        }
+
+        private void send() {
+            try {
+                CallIdHeader callIdHeader = mSipHelper.newCallIdHeader();
+                mPending.put(callIdHeader.getCallId(), System.nanoTime());
+                mSipHelper.sendRegister(mProfile,
+                        mSipHelper.getIdentifiers().newTag(), 3600,
+                        callIdHeader);
+            } catch (SipException e) {
+                mFailures.incrementAndGet();
+                next();
+            }
+        }
+
+        @Override
+        public void processRequest(RequestEvent requestEvent) {
+        }
+
+        @Override
+        public void processResponse(ResponseEvent responseEvent) {
+            mSipHelper.getConnectionCoalescer().onResponse(responseEvent);
+            int status = responseEvent.getResponse().getStatusCode();
+            if (status < 200) return;
+            Long sent = mPending.remove(SipHelper.getCallId(responseEvent));
+            if (sent == null) return;
+            if (status < 300) {
+                mCompleted.incrementAndGet();
+                mLatency.recordNanos(System.nanoTime() - sent);
+            } else {
+                mFailures.incrementAndGet();
+            }
+            next();
+        }
+
+        @Override
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+            mSipHelper.getConnectionCoalescer().onTimeout(timeoutEvent);
+            if (timeoutEvent.isServerTransaction()) return;
+            if (mPending.remove(SipHelper.getCallId(
+                    timeoutEvent.getClientTransaction())) != null) {
+                mFailures.incrementAndGet();
+                next();
+            }
+        }
+
+        @Override
+        public void processIOException(IOExceptionEvent ioExceptionEvent) {
+            mSipHelper.getConnectionCoalescer().onIOException(ioExceptionEvent);
+            mFailures.incrementAndGet();
+        }
+
+        @Override
+        public void processTransactionTerminated(
+                TransactionTerminatedEvent transactionTerminatedEvent) {
+        }
+
+        @Override
+        public void processDialogTerminated(
+                DialogTerminatedEvent dialogTerminatedEvent) {
+        }
+    }
+
+    private static class Result {
+        private final Map<String, String> mCombination;
+        private final double mThroughput;
+        private final double mP99Millis;
+        private final long mHeap;
+        private final long mFailures;
+
+        private Result(Map<String, String> combination, double throughput,
+                double p99Millis, long heap, long failures) {
+            mCombination = combination;
+            mThroughput = throughput;
+            mP99Millis = p99Millis;
+            mHeap = heap;
+            mFailures = failures;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format(
+                    "%8.0f/s p99 %7.2f ms heap %6d KB failed %5d ",
+                    mThroughput, mP99Millis, mHeap / 1024, mFailures));
+            for (Map.Entry<String, String> entry : mCombination.entrySet()) {
+                String key = entry.getKey();
+                String value = entry.getValue();
+                sb.append(' ').append(key.substring(key.lastIndexOf('.') + 1))
+                        .append('=')
+                        .append(value.substring(value.lastIndexOf('.') + 1));
+            }
+            return sb.toString();
+        }
+    }
+
+    private static class Options {
+        private long seconds = 5;
+        private int concurrency = 100;
+        private String transport = ListeningPoint.TCP;
+        // property -> values to try, in order
+        private final Map<String, String[]> sweep =
+                new LinkedHashMap<String, String[]>();
+
+        private Options() {
+            sweep.put("gov.nist.javax.sip.REENTRANT_LISTENER",
+                    new String[] {"false", "true"});
+            sweep.put("gov.nist.javax.sip.MESSAGE_PROCESSOR_FACTORY",
+                    new String[] {NioMessageProcessorFactory.class
+                            .getCanonicalName(), UNSET});
+            sweep.put("javax.sip.AUTOMATIC_DIALOG_SUPPORT",
+                    new String[] {"on", "off"});
+            sweep.put("gov.nist.javax.sip.TRACE_LEVEL",
+                    new String[] {"0", "32"});
+            sweep.put("gov.nist.javax.sip.THREAD_POOL_SIZE",
+                    new String[] {UNSET, "4", "16"});
+            sweep.put("gov.nist.javax.sip.NIO_BLOCKING_MODE",
+                    new String[] {"NONBLOCKING", "BLOCKING"});
+        }
+
+        private static Options parse(String[] args) {
+            Harness.Arguments arguments = new Harness.Arguments(args, 0);
+            Options options = new Options();
+            options.seconds = arguments.getLong("seconds", options.seconds);
+            options.concurrency = arguments.getInt("concurrency",
+                    options.concurrency);
+            options.transport = arguments.getString("transport",
+                    options.transport);
+            for (Map.Entry<String, String> entry
+                    : arguments.takeRest().entrySet()) {
+                if (entry.getKey().indexOf('.') < 0) {
+                    throw new IllegalArgumentException("unknown option: "
+                            + entry.getKey());
+                }
+                options.sweep.put(entry.getKey(), entry.getValue().split(","));
+            }
+            return options;
+        }
+    }
+}
@@ -0,0 +1,515 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+
+import javax.sip.*;
+import javax.sip.address.SipURI;
+import javax.sip.header.AuthorizationHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.ExpiresHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.WWWAuthenticateHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ListIterator;
+import java.util.Properties;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Embedded registrar and UAS on the same JAIN-SIP stack, listening on
+ * localhost, so benchmarks and the load generator can measure client
+ * overhead without an external server.
+ *
+ * <p>REGISTER is answered with a 401 digest challenge (when a password is
+ * configured) and 200 OK once authorized; nonces stay valid for a configured
+ * lifetime and may be reused with nonce counts not used before. INVITE is
+ * answered with 180 then 200, CANCEL with 200 and 487, BYE, OPTIONS and
+ * NOTIFY with 200. Every response can be delayed, and incoming requests dropped at a
+ * configured rate to simulate loss.
+ *
+ * <p>Each request can be made to take a fixed service time, and handed to a
+ * fixed number of workers instead of the stack threads, which caps the
+ * capacity of the server for overload tests; admission control then sheds
+ * new requests beyond it with 503.
+ *
+ * <p>Usage: StandInServer [port=5060] [wsPort=5062] [transports=udp,tcp,ws]
+ * [password=secret] [realm=standin] [delay=0] [ringDelay=0] [loss=0.0]
+ * [nonceTtl=300] [workers=0] [service=0] [admission=false] [maxDelay=200]
+ * [stackThreads=0]
+ */
+public class StandInServer implements SipListener {
+    private static final String TAG = StandInServer.class.getSimpleName();
+    private static final boolean DBG = false;
+    private static final int QUEUE_CAPACITY = 10000;
+    private static final int RETRY_AFTER = 5;
+
+    private static final String SDP = Harness.sdp(41000);
+
+    private final Options mOptions;
+    private SipStack mSipStack;
+    private SipProvider mSipProvider;
+    private SipHelper mSipHelper;
+    private HeaderFactory mHeaderFactory;
+    private MessageFactory mMessageFactory;
+    private SipURI mProfile;
+    private SessionDescription mAnswer;
+    private SipEventDispatcher mDispatcher;
+    private AdmissionController mAdmission;
+
+    private final ScheduledExecutorService mScheduler =
+            Executors.newScheduledThreadPool(2);
+    private final ConcurrentHashMap<String, Nonce> mNonces =
+            new ConcurrentHashMap<String, Nonce>();
+    // Call-ID -> INVITE transaction that is ringing and not yet answered
+    private final ConcurrentHashMap<String, ServerTransaction> mRinging =
+            new ConcurrentHashMap<String, ServerTransaction>();
+
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private final AtomicLong mChallenges = new AtomicLong();
+    private final AtomicLong mRegistrations = new AtomicLong();
+    private final AtomicLong mCalls = new AtomicLong();
+
+    public StandInServer(Options options) {
+        mOptions = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        StandInServer server = new StandInServer(Options.parse(args));
+        server.start();
+        System.out.println(TAG + " listening on 127.0.0.1:"
+                + server.mOptions.port);
+        while (true) {
+            Thread.sleep(10000);
+            System.out.println(server.getStatistics());
+        }
+    }
+
+    public void start() throws SipException, InvalidArgumentException,
+            ParseException, java.util.TooManyListenersException {
+        Properties properties =
+                Harness.stackProperties("im.dlg.sip.standin." + mOptions.port);
+        if (mOptions.stackThreads > 0) {
+            properties.setProperty("gov.nist.javax.sip.THREAD_POOL_SIZE",
+                    Integer.toString(mOptions.stackThreads));
+        }
+        mSipStack = SipFactory.getInstance().createSipStack(properties);
+
+        for (String transport : mOptions.transports) {
+            int port = transport.equalsIgnoreCase("ws") ? mOptions.wsPort
+                    : mOptions.port;
+            ListeningPoint listeningPoint = mSipStack.createListeningPoint(
+                    Harness.HOST, port, transport);
+            if (mSipProvider == null) {
+                mSipProvider = mSipStack.createSipProvider(listeningPoint);
+            } else {
+                mSipProvider.addListeningPoint(listeningPoint);
+            }
+        }
+        mSipHelper = new SipHelper(mSipStack, mSipProvider);
+        SipListener listener = this;
+        if (mOptions.workers > 0) {
+            mDispatcher = new SipEventDispatcher(this, mOptions.workers,
+                    QUEUE_CAPACITY);
+            if (mOptions.admission) {
+                mAdmission = new AdmissionController(mSipHelper,
+                        QUEUE_CAPACITY / 2, mOptions.maxDelay, RETRY_AFTER);
+                mDispatcher.setAdmissionController(mAdmission);
+            }
+            listener = mDispatcher;
+        }
+        mSipProvider.addSipListener(listener);
+
+        SipFactory sipFactory = SipFactory.getInstance();
+        mHeaderFactory = sipFactory.createHeaderFactory();
+        mMessageFactory = sipFactory.createMessageFactory();
+
+        mProfile = new SipUri();
+        mProfile.setUser("standin");
+        mProfile.setHost("127.0.0.1");
+        mProfile.setPort(mOptions.port);
+        // the Contact of answers carries it, and must not be left out
+        mProfile.setTransportParam(mOptions.transports[0].toLowerCase());
+        byte[] sdp = SDP.getBytes(StandardCharsets.US_ASCII);
+        mAnswer = SessionDescription.parse(sdp, 0, sdp.length);
+
+        mScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                purgeNonces();
+            }
+        }, mOptions.nonceTtl, mOptions.nonceTtl, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stops the stack, then waits for the dispatcher to deliver the events
+     * already queued, so no worker outlives the server.
+     */
+    public void stop() {
+        mSipStack.stop();
+        if (mDispatcher != null) {
+            try {
+                mDispatcher.shutdown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        mScheduler.shutdownNow();
+    }
+
+    public int getPort() {
+        return mOptions.port;
+    }
+
+    public String getStatistics() {
+        return String.format("requests=%d dropped=%d challenges=%d "
+                        + "registrations=%d calls=%d rejected=%d",
+                mRequests.get(), mDropped.get(), mChallenges.get(),
+                mRegistrations.get(), mCalls.get(),
+                (mAdmission != null) ? mAdmission.getRejectedCount() : 0);
+    }
+
+    @Override
+    public void processRequest(RequestEvent requestEvent) {
+        mRequests.incrementAndGet();
+        if (mOptions.service > 0) work(mOptions.service);
+        if ((mOptions.loss > 0)
+                && (ThreadLocalRandom.current().nextDouble() < mOptions.loss)) {
+            mDropped.incrementAndGet();
+            return;
+        }
+
+        Request request = requestEvent.getRequest();
+        String method = request.getMethod();
+        try {
+            if (Request.ACK.equals(method)) {
+                return;
+            } else if (Request.REGISTER.equals(method)) {
+                processRegister(requestEvent);
+            } else if (Request.INVITE.equals(method)) {
+                processInvite(requestEvent);
+            } else if (Request.CANCEL.equals(method)) {
+                processCancel(requestEvent);
+            } else if (Request.BYE.equals(method)
+                    || Request.OPTIONS.equals(method)
+                    || Request.NOTIFY.equals(method)) {
+                respond(requestEvent, Response.OK);
+            } else {
+                respond(requestEvent, Response.METHOD_NOT_ALLOWED);
+            }
+        } catch (SipException | ParseException | InvalidArgumentException e) {
+            if (DBG) log("processRequest(): " + e);
+        }
+    }
+
+    private void processRegister(final RequestEvent event)
+            throws SipException, ParseException, InvalidArgumentException {
+        final Request request = event.getRequest();
+        boolean authorized;
+        try {
+            authorized = (mOptions.password == null) || isAuthorized(request);
+        } catch (ParseException e) {
+            // a malformed Authorization is rejected, not challenged again
+            respond(event, Response.BAD_REQUEST);
+            return;
+        }
+        final ServerTransaction transaction =
+                mSipHelper.getServerTransaction(event);
+
+        final Response response;
+        if (!authorized) {
+            mChallenges.incrementAndGet();
+            response = mMessageFactory.createResponse(Response.UNAUTHORIZED,
+                    request);
+            response.addHeader(createChallenge(isStale(request)));
+        } else {
+            mRegistrations.incrementAndGet();
+            response = mMessageFactory.createResponse(Response.OK, request);
+            ListIterator<?> contacts = request.getHeaders(ContactHeader.NAME);
+            while ((contacts != null) && contacts.hasNext()) {
+                response.addHeader((ContactHeader) contacts.next());
+            }
+            ExpiresHeader expires = request.getExpires();
+            if (expires != null) response.setExpires(expires);
+        }
+
+        schedule(new SipTask() {
+            @Override
+            public void run() throws SipException, InvalidArgumentException {
+                transaction.sendResponse(response);
+            }
+        }, mOptions.delay);
+    }
+
+    private void processInvite(final RequestEvent event) throws SipException {
+        mCalls.incrementAndGet();
+        final ServerTransaction transaction =
+                mSipHelper.getServerTransaction(event);
+        final String callId = SipHelper.getCallId(event);
+        final String tag = mSipHelper.getIdentifiers().newTag();
+
+        mRinging.put(callId, transaction);
+        schedule(new SipTask() {
+            @Override
+            public void run() throws SipException {
+                if (!mRinging.containsKey(callId)) return;
+                mSipHelper.sendRinging(event, transaction, tag);
+                schedule(new SipTask() {
+                    @Override
+                    public void run() throws SipException {
+                        // a CANCEL may have removed it meanwhile
+                        if (mRinging.remove(callId) != null) {
+                            mSipHelper.sendInviteOk(event, mProfile, mAnswer,
+                                    transaction);
+                        }
+                    }
+                }, mOptions.ringDelay);
+            }
+        }, mOptions.delay);
+    }
+
+    private void processCancel(RequestEvent event) throws SipException {
+        respond(event, Response.OK);
+        ServerTransaction inviteTransaction =
+                mRinging.remove(SipHelper.getCallId(event));
+        if (inviteTransaction != null) {
+            mSipHelper.sendInviteRequestTerminated(
+                    inviteTransaction.getRequest(), inviteTransaction);
+        }
+    }
+
+    private void respond(final RequestEvent event, final int status)
+            throws SipException {
+        final ServerTransaction transaction =
+                mSipHelper.getServerTransaction(event);
+        schedule(new SipTask() {
+            @Override
+            public void run() throws SipException, InvalidArgumentException,
+                    ParseException {
+                transaction.sendResponse(mMessageFactory.createResponse(
+                        status, event.getRequest()));
+            }
+        }, mOptions.delay);
+    }
+
+    private WWWAuthenticateHeader createChallenge(boolean stale)
+            throws ParseException {
+        String nonce = Long.toHexString(ThreadLocalRandom.current().nextLong())
+                + Long.toHexString(System.nanoTime());
+        mNonces.put(nonce, new Nonce(System.currentTimeMillis()));
+        return mHeaderFactory.createWWWAuthenticateHeader("Digest realm=\""
+                + mOptions.realm + "\", nonce=\"" + nonce
+                + "\", algorithm=MD5, qop=\"auth\""
+                + (stale ? ", stale=true" : ""));
+    }
+
+    private boolean isStale(Request request) {
+        AuthorizationHeader authorization =
+                (AuthorizationHeader) request.getHeader(AuthorizationHeader.NAME);
+        return (authorization != null)
+                && !mNonces.containsKey(authorization.getNonce());
+    }
+
+    /**
+     * @throws ParseException if the Authorization carries a malformed nonce
+     *      count
+     */
+    private boolean isAuthorized(Request request) throws ParseException {
+        AuthorizationHeader authorization =
+                (AuthorizationHeader) request.getHeader(AuthorizationHeader.NAME);
+        if (authorization == null) return false;
+
+        String nonce = authorization.getNonce();
+        Nonce state = mNonces.get(nonce);
+        if (state == null) return false;
+        if (System.currentTimeMillis() - state.mIssued
+                > TimeUnit.SECONDS.toMillis(mOptions.nonceTtl)) {
+            mNonces.remove(nonce);
+            return false;
+        }
+
+        String qop = authorization.getQop();
+        String nc = authorization.getParameter("nc");
+        if ((qop != null) && (nc == null)) return false;
+        if (qop != null) {
+            long count;
+            try {
+                count = Long.parseLong(nc, 16);
+            } catch (NumberFormatException e) {
+                throw new ParseException("bad nonce count: " + nc, 0);
+            }
+            if (!state.use(count)) return false;
+        }
+
+        String ha1 = DigestCalculator.ha1(authorization.getUsername(),
+                mOptions.realm, mOptions.password);
+        String expected = DigestCalculator.response(ha1, request.getMethod(),
+                authorization.getURI().toString(), nonce, nc,
+                authorization.getCNonce(), qop);
+        return expected.equals(authorization.getResponse());
+    }
+
+    private void purgeNonces() {
+        long oldest = System.currentTimeMillis()
+                - TimeUnit.SECONDS.toMillis(mOptions.nonceTtl);
+        for (Map.Entry<String, Nonce> entry : mNonces.entrySet()) {
+            if (entry.getValue().mIssued < oldest) {
+                mNonces.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Holds the thread for the given time, standing in for real request
+     * handling.
+     */
+    private static void work(long micros) {
+        long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(micros);
+        long left;
+        while ((left = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    private interface SipTask {
+        void run() throws Exception;
+    }
+
+    private void schedule(final SipTask task, long delayMillis) {
+        Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (Exception e) {
+                    if (DBG) log("response failed: " + e);
+                }
+            }
+        };
+        if (delayMillis <= 0) {
+            runnable.run();
+        } else {
+            mScheduler.schedule(runnable, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void processResponse(ResponseEvent responseEvent) {
+    }
+
+    @Override
+    public void processTimeout(TimeoutEvent timeoutEvent) {
+    }
+
+    @Override
+    public void processIOException(IOExceptionEvent ioExceptionEvent) {
+    }
+
+    @Override
+    public void processTransactionTerminated(
+            TransactionTerminatedEvent transactionTerminatedEvent) {
+    }
+
+    @Override
+    public void processDialogTerminated(
+            DialogTerminatedEvent dialogTerminatedEvent) {
+    }
+
+    private void log(String s) {
+
+    }
+
+    /**
+     * The nonce counts a client used. The stack hands requests to its
+     * threads in parallel, so counts sent in order may be checked out of
+     * order: any count is accepted once, as long as it is within the last
+     * 64 of the highest seen.
+     */
+    private static class Nonce {
+        private final long mIssued;
+        // guarded by this
+        private long mHighest;
+        // bit i set: mHighest - i was used
+        private long mUsed;
+
+        private Nonce(long issued) {
+            mIssued = issued;
+        }
+
+        /**
+         * @return false if the count was used before, or is too old to tell
+         */
+        private synchronized boolean use(long count) {
+            if (count <= 0) return false;
+            if (count > mHighest) {
+                long shift = count - mHighest;
+                mUsed = (shift < Long.SIZE) ? (mUsed << shift) | 1 : 1;
+                mHighest = count;
+                return true;
+            }
+            long age = mHighest - count;
+            if (age >= Long.SIZE) return false;
+            long bit = 1L << age;
+            if ((mUsed & bit) != 0) return false;
+            mUsed |= bit;
+            return true;
+        }
+    }
+
+    public static class Options {
+        public int port = 5060;
+        public int wsPort = 5062;
+        public String[] transports = {"udp", "tcp", "ws"};
+        public String password;
+        public String realm = "standin";
+        public long delay;
+        public long ringDelay;
+        public double loss;
+        public long nonceTtl = 300;
+        // 0 handles requests on the stack threads
+        public int workers;
+        // time spent on every request, in microseconds
+        public long service;
+        public boolean admission;
+        public long maxDelay = 200;
+        // stack threads processing incoming messages; 0 for the stack's
+        // default, a new thread for every UDP message
+        public int stackThreads;
+
+        public static Options parse(String[] args) {
+            Harness.Arguments arguments = new Harness.Arguments(args, 0);
+            Options options = new Options();
+            options.port = arguments.getInt("port", options.port);
+            options.wsPort = arguments.getInt("wsPort", options.wsPort);
+            String transports = arguments.getString("transports", null);
+            if (transports != null) options.transports = transports.split(",");
+            options.password = arguments.getString("password",
+                    options.password);
+            options.realm = arguments.getString("realm", options.realm);
+            options.delay = arguments.getLong("delay", options.delay);
+            options.ringDelay = arguments.getLong("ringDelay",
+                    options.ringDelay);
+            options.loss = arguments.getDouble("loss", options.loss);
+            options.nonceTtl = arguments.getLong("nonceTtl", options.nonceTtl);
+            options.workers = arguments.getInt("workers", options.workers);
+            options.service = arguments.getLong("service", options.service);
+            options.admission = arguments.getBoolean("admission",
+                    options.admission);
+            options.maxDelay = arguments.getLong("maxDelay", options.maxDelay);
+            options.stackThreads = arguments.getInt("stackThreads",
+                    options.stackThreads);
+            arguments.checkAllRead();
+            return options;
+        }
+    }
+}
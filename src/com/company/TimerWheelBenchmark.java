@@ -0,0 +1,131 @@
+package com.company;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares HashedTimerWheel with ScheduledThreadPoolExecutor at registration
+ * scale: inserting and cancelling a large number of long timers, the heap
+ * they occupy, and how late short timers fire. TimerWheelJmh measures the
+ * cost of rescheduling one timer while all of them are pending.
+ *
+ * <p>Usage: TimerWheelBenchmark [pending]
+ */
+public class TimerWheelBenchmark {
+    private static final Runnable NOOP = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+    private static final long LONG_DELAY_MS = TimeUnit.HOURS.toMillis(1);
+    private static final int ACCURACY_TIMERS = 100000;
+    private static final long ACCURACY_SPREAD_MS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int pending = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+
+        System.out.println(String.format("%d pending timers", pending));
+        runWheel(pending);
+        runExecutor(pending);
+        System.exit(0);
+    }
+
+    private static void runWheel(int pending) throws Exception {
+        HashedTimerWheel wheel = new HashedTimerWheel(10, 4096);
+        HashedTimerWheel.Timeout[] timeouts =
+                new HashedTimerWheel.Timeout[pending];
+
+        long heap = Harness.usedHeap();
+        long start = System.nanoTime();
+        for (int i = 0; i < pending; i++) {
+            timeouts[i] = wheel.schedule(NOOP, longDelay(),
+                    TimeUnit.MILLISECONDS);
+        }
+        long insert = System.nanoTime() - start;
+        // let the wheel thread link them in before measuring
+        Thread.sleep(100);
+        printBulk("wheel", "insert", pending,
+                insert, Harness.usedHeap() - heap);
+
+        start = System.nanoTime();
+        for (HashedTimerWheel.Timeout timeout : timeouts) timeout.cancel();
+        printBulk("wheel", "cancel", pending, System.nanoTime() - start, 0);
+
+        final LatencyHistogram lateness = new LatencyHistogram();
+        final CountDownLatch fired = new CountDownLatch(ACCURACY_TIMERS);
+        for (int i = 0; i < ACCURACY_TIMERS; i++) {
+            final long delay = ThreadLocalRandom.current()
+                    .nextLong(ACCURACY_SPREAD_MS);
+            final long due = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(delay);
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    lateness.recordNanos(System.nanoTime() - due);
+                    fired.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        fired.await();
+        System.out.println("wheel lateness " + lateness.summary());
+        wheel.stop();
+    }
+
+    private static void runExecutor(int pending) throws Exception {
+        ScheduledThreadPoolExecutor executor =
+                new ScheduledThreadPoolExecutor(1);
+        // otherwise cancelled tasks stay queued until their deadline
+        executor.setRemoveOnCancelPolicy(true);
+        ScheduledFuture<?>[] futures = new ScheduledFuture<?>[pending];
+
+        long heap = Harness.usedHeap();
+        long start = System.nanoTime();
+        for (int i = 0; i < pending; i++) {
+            futures[i] = executor.schedule(NOOP, longDelay(),
+                    TimeUnit.MILLISECONDS);
+        }
+        long insert = System.nanoTime() - start;
+        printBulk("executor", "insert", pending,
+                insert, Harness.usedHeap() - heap);
+
+        start = System.nanoTime();
+        for (ScheduledFuture<?> future : futures) future.cancel(false);
+        printBulk("executor", "cancel", pending, System.nanoTime() - start, 0);
+
+        final LatencyHistogram lateness = new LatencyHistogram();
+        final CountDownLatch fired = new CountDownLatch(ACCURACY_TIMERS);
+        for (int i = 0; i < ACCURACY_TIMERS; i++) {
+            final long delay = ThreadLocalRandom.current()
+                    .nextLong(ACCURACY_SPREAD_MS);
+            final long due = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(delay);
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    lateness.recordNanos(System.nanoTime() - due);
+                    fired.countDown();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+        fired.await();
+        System.out.println("executor lateness " + lateness.summary());
+        executor.shutdownNow();
+    }
+
+    private static long longDelay() {
+        return LONG_DELAY_MS
+                + ThreadLocalRandom.current().nextLong(LONG_DELAY_MS);
+    }
+
+    private static void printBulk(String name, String operation, int count,
+            long nanos, long bytes) {
+        System.out.println(String.format("%s %s: %.0f ns/timer%s", name,
+                operation, (double) nanos / count, (bytes > 0)
+                        ? String.format(", %.0f bytes/timer",
+                                (double) bytes / count)
+                        : ""));
+    }
+}
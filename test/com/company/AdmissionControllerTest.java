@@ -0,0 +1,114 @@
+package com.company;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.SipFactory;
+import javax.sip.header.RetryAfterHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControllerTest {
+    private static final int MAX_DEPTH = 10;
+    private static final long MAX_DELAY_MS = 200;
+    private static final int RETRY_AFTER = 5;
+
+    private LoopbackSipProvider mProvider;
+    private AdmissionController mAdmission;
+
+    @Before
+    public void setUp() throws Exception {
+        mProvider = new LoopbackSipProvider("127.0.0.1", 15060,
+                ListeningPoint.UDP);
+        mAdmission = new AdmissionController(new SipHelper(null, mProvider),
+                MAX_DEPTH, MAX_DELAY_MS, RETRY_AFTER);
+    }
+
+    private RequestEvent request(String method, String toTag)
+            throws Exception {
+        MessageFactory messageFactory = SipFactory.getInstance()
+                .createMessageFactory();
+        Request request = messageFactory.createRequest(method
+                + " sip:2@127.0.0.1:5060 SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:15060;branch=z9hG4bK1\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "To: <sip:2@127.0.0.1:5060>"
+                + ((toTag != null) ? ";tag=" + toTag : "") + "\r\n"
+                + "From: <sip:1@127.0.0.1:15060>;tag=a\r\n"
+                + "Call-ID: c1\r\n"
+                + "CSeq: 1 " + method + "\r\n"
+                + "Content-Length: 0\r\n"
+                + "\r\n");
+        return new RequestEvent(mProvider, null, null, request);
+    }
+
+    private void assertRejected(String method, int depth, long serviceNanos)
+            throws Exception {
+        long sent = mProvider.getResponsesSent();
+        assertFalse(mAdmission.admit(request(method, null), depth,
+                serviceNanos));
+        assertEquals(sent + 1, mProvider.getResponsesSent());
+        Response response = (Response) mProvider.getLastSent();
+        assertEquals(Response.SERVICE_UNAVAILABLE, response.getStatusCode());
+        int retryAfter = ((RetryAfterHeader) response
+                .getHeader(RetryAfterHeader.NAME)).getRetryAfter();
+        // spread over up to twice the base
+        assertTrue(retryAfter >= RETRY_AFTER);
+        assertTrue(retryAfter <= 2 * RETRY_AFTER);
+    }
+
+    @Test
+    public void admitsNewRequestsBelowThresholds() throws Exception {
+        long serviceNanos = TimeUnit.MILLISECONDS.toNanos(1);
+        assertTrue(mAdmission.admit(request(Request.INVITE, null),
+                MAX_DEPTH - 1, serviceNanos));
+        assertTrue(mAdmission.admit(request(Request.REGISTER, null),
+                MAX_DEPTH - 1, serviceNanos));
+        assertEquals(2, mAdmission.getAdmittedCount());
+        assertEquals(0, mAdmission.getRejectedCount());
+        assertEquals(0, mProvider.getResponsesSent());
+    }
+
+    @Test
+    public void rejectsNewRequestsOverQueueDepth() throws Exception {
+        assertRejected(Request.INVITE, MAX_DEPTH, 0);
+        assertRejected(Request.REGISTER, MAX_DEPTH, 0);
+        assertEquals(2, mAdmission.getRejectedCount());
+        assertEquals(0, mAdmission.getRejectFailureCount());
+    }
+
+    @Test
+    public void rejectsNewRequestsOverDelay() throws Exception {
+        // 5 queued at 50 ms each wait 250 ms
+        long serviceNanos = TimeUnit.MILLISECONDS.toNanos(50);
+        assertRejected(Request.INVITE, 5, serviceNanos);
+        assertRejected(Request.REGISTER, 5, serviceNanos);
+        assertEquals(2, mAdmission.getRejectedCount());
+    }
+
+    @Test
+    public void admitsRequestsFinishingAcceptedWork() throws Exception {
+        long serviceNanos = TimeUnit.MILLISECONDS.toNanos(50);
+        assertTrue(mAdmission.admit(request(Request.ACK, "b"),
+                10 * MAX_DEPTH, serviceNanos));
+        assertTrue(mAdmission.admit(request(Request.BYE, "b"),
+                10 * MAX_DEPTH, serviceNanos));
+        // a CANCEL carries the To of its INVITE, without a tag
+        assertTrue(mAdmission.admit(request(Request.CANCEL, null),
+                10 * MAX_DEPTH, serviceNanos));
+        // a re-INVITE is within its dialog
+        assertTrue(mAdmission.admit(request(Request.INVITE, "b"),
+                10 * MAX_DEPTH, serviceNanos));
+        assertEquals(4, mAdmission.getAdmittedCount());
+        assertEquals(0, mAdmission.getRejectedCount());
+        assertEquals(0, mProvider.getResponsesSent());
+    }
+}
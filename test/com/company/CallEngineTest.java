@@ -0,0 +1,501 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sip.ClientTransaction;
+import javax.sip.Dialog;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.ObjectInUseException;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipException;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionAlreadyExistsException;
+import javax.sip.Transaction;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.TransactionUnavailableException;
+import javax.sip.TransportAlreadySupportedException;
+import javax.sip.address.SipURI;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.TooManyListenersException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CallEngineTest {
+    private static final int CALLER_PORT = 22800;
+    private static final int CALLEE_PORT = 22801;
+    // T1 of every transaction, so Timers B and H run out in 64 * T1
+    private static final int T1_MS = 20;
+    private static final long RING_TIMEOUT_MS = 10000;
+    private static final long WAIT_MS = 5000;
+
+    private static final int ANSWER_NONE = 0;
+    private static final int ANSWER_RING = 1;
+    private static final int ANSWER_OK = 2;
+
+    private final HashedTimerWheel mWheel = new HashedTimerWheel(10, 64);
+    private final ScheduledExecutorService mExecutor =
+            Executors.newScheduledThreadPool(2);
+    // call events of each side, such as "ringing" or "ended 2"
+    private final BlockingQueue<String> mCallerEvents =
+            new LinkedBlockingQueue<String>();
+    private final BlockingQueue<String> mCalleeEvents =
+            new LinkedBlockingQueue<String>();
+    private final AtomicInteger mReinvites = new AtomicInteger();
+    private volatile int mAnswer = ANSWER_OK;
+    private volatile boolean mHangupWhenRinging;
+    private SipStack mCallerStack;
+    private SipStack mCalleeStack;
+    private SipHelper mCallerHelper;
+    private CallEngine mCaller;
+    private CallEngine mCallee;
+    private SipURI mCallerProfile;
+    private SipURI mCalleeProfile;
+    private SessionDescription mOffer;
+
+    @Before
+    public void setUp() throws Exception {
+        byte[] sdp = Harness.SDP.getBytes(StandardCharsets.US_ASCII);
+        mOffer = SessionDescription.parse(sdp, 0, sdp.length);
+        mCallerProfile = newUri("caller", CALLER_PORT);
+        mCalleeProfile = newUri("callee", CALLEE_PORT);
+    }
+
+    /**
+     * Starts both ends, refreshing established calls at the given interval
+     * or never with 0.
+     */
+    private void start(long sessionIntervalMillis) throws Exception {
+        mCallerStack = createStack("im.dlg.sip.engine.caller");
+        SipProvider caller = mCallerStack.createSipProvider(
+                mCallerStack.createListeningPoint(Harness.HOST, CALLER_PORT,
+                        ListeningPoint.TCP));
+        mCallerHelper = new SipHelper(mCallerStack,
+                new ShortTimerProvider(caller));
+        mCaller = new CallEngine(mCallerHelper, mWheel, mExecutor,
+                RING_TIMEOUT_MS, sessionIntervalMillis, null,
+                new Recorder(mCallerEvents) {
+                    @Override
+                    public void onRinging(CallEngine.Call call) {
+                        super.onRinging(call);
+                        if (mHangupWhenRinging) mCaller.hangup(call);
+                    }
+                });
+        caller.addSipListener(new Forwarder(mCaller, mCallerHelper));
+
+        mCalleeStack = createStack("im.dlg.sip.engine.callee");
+        SipProvider callee = mCalleeStack.createSipProvider(
+                mCalleeStack.createListeningPoint(Harness.HOST, CALLEE_PORT,
+                        ListeningPoint.TCP));
+        SipHelper calleeHelper = new SipHelper(mCalleeStack,
+                new ShortTimerProvider(callee));
+        mCallee = new CallEngine(calleeHelper, mWheel, mExecutor,
+                RING_TIMEOUT_MS, sessionIntervalMillis, null,
+                new Recorder(mCalleeEvents) {
+                    @Override
+                    public void onIncomingCall(CallEngine.Call call) {
+                        super.onIncomingCall(call);
+                        try {
+                            if (mAnswer >= ANSWER_RING) mCallee.ring(call);
+                            if (mAnswer >= ANSWER_OK) {
+                                mCallee.answer(call, mOffer.copy());
+                            }
+                        } catch (SipException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                });
+        callee.addSipListener(new Forwarder(mCallee, calleeHelper) {
+            @Override
+            public void processRequest(RequestEvent requestEvent) {
+                Request request = requestEvent.getRequest();
+                if (Request.INVITE.equals(request.getMethod())
+                        && (((ToHeader) request.getHeader(ToHeader.NAME))
+                                .getTag() != null)) {
+                    mReinvites.incrementAndGet();
+                }
+                super.processRequest(requestEvent);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mWheel.stop();
+        mExecutor.shutdownNow();
+        if (mCallerStack != null) mCallerStack.stop();
+        if (mCalleeStack != null) mCalleeStack.stop();
+    }
+
+    /**
+     * The default TCP processor keeps the messages of a connection in order,
+     * which the crossing of a 200 and a CANCEL relies on.
+     */
+    private static SipStack createStack(String name) throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", name);
+        properties.setProperty("javax.sip.AUTOMATIC_DIALOG_SUPPORT", "on");
+        return SipFactory.getInstance().createSipStack(properties);
+    }
+
+    private static SipURI newUri(String user, int port) throws ParseException {
+        SipURI uri = new SipUri();
+        uri.setUser(user);
+        uri.setHost(Harness.HOST);
+        uri.setPort(port);
+        uri.setTransportParam("tcp");
+        return uri;
+    }
+
+    private static void expect(BlockingQueue<String> events, String event)
+            throws InterruptedException {
+        assertEquals(event, events.poll(WAIT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void cancelsRingingCallWith487() throws Exception {
+        start(0);
+        mAnswer = ANSWER_RING;
+        CallEngine.Call call = mCaller.call(mCallerProfile, mCalleeProfile,
+                mOffer);
+        expect(mCalleeEvents, "incoming");
+        expect(mCallerEvents, "ringing");
+
+        mCaller.hangup(call);
+        expect(mCalleeEvents, "ended " + CallEngine.END_CANCELLED);
+        expect(mCallerEvents, "ended " + CallEngine.END_HANGUP);
+        assertEquals(Response.REQUEST_TERMINATED, call.getStatus());
+        assertEquals(1, mCallee.getCancelledCount());
+        assertEquals(0, mCaller.getActiveCount());
+        assertEquals(0, mCallee.getActiveCount());
+    }
+
+    @Test
+    public void hangsUpAnswerThatCrossedTheCancel() throws Exception {
+        start(0);
+        // the 200 follows the 180 at once, ahead of the CANCEL the 180
+        // makes the caller send
+        mHangupWhenRinging = true;
+        mCaller.call(mCallerProfile, mCalleeProfile, mOffer);
+        expect(mCallerEvents, "ringing");
+        expect(mCallerEvents, "ended " + CallEngine.END_HANGUP);
+        expect(mCalleeEvents, "incoming");
+        expect(mCalleeEvents, "established");
+        expect(mCalleeEvents, "ended " + CallEngine.END_REMOTE_HANGUP);
+        assertEquals(0, mCaller.getEstablishedCount());
+        assertNull(mCallerEvents.poll());
+    }
+
+    @Test
+    public void refreshesEstablishedCallWithReinvite() throws Exception {
+        long interval = 1000;
+        start(interval);
+        CallEngine.Call call = mCaller.call(mCallerProfile, mCalleeProfile,
+                mOffer);
+        expect(mCallerEvents, "ringing");
+        expect(mCallerEvents, "established");
+        expect(mCalleeEvents, "incoming");
+        expect(mCalleeEvents, "established");
+
+        // the callee hangs up a call that goes an interval without refresh
+        Thread.sleep(3 * interval);
+        assertNull(mCallerEvents.poll());
+        assertNull(mCalleeEvents.poll());
+        assertTrue(String.valueOf(mReinvites.get()), mReinvites.get() >= 4);
+
+        mCaller.hangup(call);
+        expect(mCallerEvents, "ended " + CallEngine.END_HANGUP);
+        expect(mCalleeEvents, "ended " + CallEngine.END_REMOTE_HANGUP);
+    }
+
+    @Test
+    public void endsCallWhoseInviteTimesOut() throws Exception {
+        start(0);
+        SilentServer server = new SilentServer();
+        server.start();
+        try {
+            mCaller.call(mCallerProfile, newUri("nobody", server.getPort()),
+                    mOffer);
+            expect(mCallerEvents, "ended " + CallEngine.END_TIMEOUT);
+            assertEquals(0, mCaller.getActiveCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void hangsUpAnswerThatIsNeverAcknowledged() throws Exception {
+        start(0);
+        // an INVITE the caller engine does not know; nobody acknowledges
+        // the 200
+        CallIdHeader callIdHeader = mCallerHelper.newCallIdHeader();
+        mCallerHelper.sendInvite(mCallerProfile, mCalleeProfile, mOffer,
+                mCallerHelper.getIdentifiers().newTag(), null, null,
+                callIdHeader);
+        expect(mCalleeEvents, "incoming");
+        expect(mCalleeEvents, "ended " + CallEngine.END_TIMEOUT);
+        assertEquals(0, mCallee.getEstablishedCount());
+        assertEquals(0, mCallee.getActiveCount());
+    }
+
+    /**
+     * Records the call events of one side.
+     */
+    private static class Recorder implements CallEngine.Listener {
+        private final BlockingQueue<String> mEvents;
+
+        private Recorder(BlockingQueue<String> events) {
+            mEvents = events;
+        }
+
+        @Override
+        public void onIncomingCall(CallEngine.Call call) {
+            mEvents.add("incoming");
+        }
+
+        @Override
+        public void onRinging(CallEngine.Call call) {
+            mEvents.add("ringing");
+        }
+
+        @Override
+        public void onEstablished(CallEngine.Call call) {
+            mEvents.add("established");
+        }
+
+        @Override
+        public void onEnded(CallEngine.Call call, int reason) {
+            mEvents.add("ended " + reason);
+        }
+    }
+
+    /**
+     * Feeds the events of one provider into its engine and its coalescer.
+     */
+    private static class Forwarder implements SipListener {
+        private final CallEngine mEngine;
+        private final SipHelper mSipHelper;
+
+        private Forwarder(CallEngine engine, SipHelper sipHelper) {
+            mEngine = engine;
+            mSipHelper = sipHelper;
+        }
+
+        @Override
+        public void processRequest(RequestEvent requestEvent) {
+            mEngine.processRequest(requestEvent);
+        }
+
+        @Override
+        public void processResponse(ResponseEvent responseEvent) {
+            mSipHelper.getConnectionCoalescer().onResponse(responseEvent);
+            mEngine.processResponse(responseEvent);
+        }
+
+        @Override
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+            mSipHelper.getConnectionCoalescer().onTimeout(timeoutEvent);
+            mEngine.processTimeout(timeoutEvent);
+        }
+
+        @Override
+        public void processIOException(IOExceptionEvent ioExceptionEvent) {
+            mSipHelper.getConnectionCoalescer().onIOException(ioExceptionEvent);
+        }
+
+        @Override
+        public void processTransactionTerminated(
+                TransactionTerminatedEvent transactionTerminatedEvent) {
+            mEngine.processTransactionTerminated(transactionTerminatedEvent);
+        }
+
+        @Override
+        public void processDialogTerminated(
+                DialogTerminatedEvent dialogTerminatedEvent) {
+            mEngine.processDialogTerminated(dialogTerminatedEvent);
+        }
+    }
+
+    /**
+     * Stream endpoint that accepts connections and never answers.
+     */
+    private static class SilentServer extends Thread {
+        private final ServerSocket mServerSocket;
+        private final List<Socket> mSockets = new ArrayList<Socket>();
+
+        private SilentServer() throws IOException {
+            super("SilentServer");
+            setDaemon(true);
+            mServerSocket = new ServerSocket(0, 16,
+                    InetAddress.getByName(Harness.HOST));
+        }
+
+        private int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        private void close() throws IOException {
+            mServerSocket.close();
+            synchronized (mSockets) {
+                for (Socket socket : mSockets) socket.close();
+            }
+        }
+
+        @Override
+        public void run() {
+            byte[] buffer = new byte[4096];
+            try {
+                Socket socket = mServerSocket.accept();
+                synchronized (mSockets) {
+                    mSockets.add(socket);
+                }
+                InputStream in = socket.getInputStream();
+                while (in.read(buffer) >= 0) {
+                    // requests are swallowed
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+    /**
+     * Gives every transaction of a provider the test's T1.
+     */
+    private static class ShortTimerProvider implements SipProvider {
+        private final SipProvider mProvider;
+
+        private ShortTimerProvider(SipProvider provider) {
+            mProvider = provider;
+        }
+
+        private static <T extends Transaction> T shorten(T transaction) {
+            try {
+                transaction.setRetransmitTimer(T1_MS);
+            } catch (IllegalStateException e) {
+                // already running on the stack's T1
+            }
+            return transaction;
+        }
+
+        @Override
+        public ClientTransaction getNewClientTransaction(Request request)
+                throws TransactionUnavailableException {
+            return shorten(mProvider.getNewClientTransaction(request));
+        }
+
+        @Override
+        public ServerTransaction getNewServerTransaction(Request request)
+                throws TransactionAlreadyExistsException,
+                TransactionUnavailableException {
+            return shorten(mProvider.getNewServerTransaction(request));
+        }
+
+        @Override
+        public void addSipListener(SipListener sipListener)
+                throws TooManyListenersException {
+            mProvider.addSipListener(sipListener);
+        }
+
+        @Override
+        public void removeSipListener(SipListener sipListener) {
+            mProvider.removeSipListener(sipListener);
+        }
+
+        @Override
+        public SipStack getSipStack() {
+            return mProvider.getSipStack();
+        }
+
+        @Override
+        public ListeningPoint getListeningPoint() {
+            return mProvider.getListeningPoint();
+        }
+
+        @Override
+        public ListeningPoint[] getListeningPoints() {
+            return mProvider.getListeningPoints();
+        }
+
+        @Override
+        public void setListeningPoint(ListeningPoint listeningPoint)
+                throws ObjectInUseException {
+            mProvider.setListeningPoint(listeningPoint);
+        }
+
+        @Override
+        public void addListeningPoint(ListeningPoint listeningPoint)
+                throws ObjectInUseException,
+                TransportAlreadySupportedException {
+            mProvider.addListeningPoint(listeningPoint);
+        }
+
+        @Override
+        public ListeningPoint getListeningPoint(String transport) {
+            return mProvider.getListeningPoint(transport);
+        }
+
+        @Override
+        public void removeListeningPoint(ListeningPoint listeningPoint)
+                throws ObjectInUseException {
+            mProvider.removeListeningPoint(listeningPoint);
+        }
+
+        @Override
+        public CallIdHeader getNewCallId() {
+            return mProvider.getNewCallId();
+        }
+
+        @Override
+        public void sendRequest(Request request) throws SipException {
+            mProvider.sendRequest(request);
+        }
+
+        @Override
+        public void sendResponse(Response response) throws SipException {
+            mProvider.sendResponse(response);
+        }
+
+        @Override
+        public Dialog getNewDialog(Transaction transaction)
+                throws SipException {
+            return mProvider.getNewDialog(transaction);
+        }
+
+        @Override
+        public void setAutomaticDialogSupportEnabled(boolean flag) {
+            mProvider.setAutomaticDialogSupportEnabled(flag);
+        }
+    }
+}
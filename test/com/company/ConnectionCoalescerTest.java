@@ -0,0 +1,537 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+import gov.nist.javax.sip.clientauthutils.AccountManager;
+import gov.nist.javax.sip.clientauthutils.UserCredentials;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sip.ClientTransaction;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipException;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.SipURI;
+import javax.sip.header.FromHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ConnectionCoalescerTest {
+    private static final int PORT = 22200;
+    // nothing listens here, so connects are refused
+    private static final int DEAD_PORT = 22201;
+    private static final int REGISTRAR_PORT = 22202;
+    private static final int CLIENT_PORT = 22203;
+    private static final long CONNECT_TIMEOUT_MS = 5000;
+
+    private final ConnectionCoalescer mCoalescer =
+            new ConnectionCoalescer(CONNECT_TIMEOUT_MS);
+    private final AtomicInteger mOk = new AtomicInteger();
+    private SipStack mSipStack;
+    private SipProvider mSipProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "im.dlg.sip.coalescer");
+        mSipStack = SipFactory.getInstance().createSipStack(properties);
+        mSipProvider = mSipStack.createSipProvider(
+                mSipStack.createListeningPoint("127.0.0.1", PORT,
+                        ListeningPoint.TCP));
+        mSipProvider.addSipListener(new SipListener() {
+            @Override
+            public void processRequest(RequestEvent requestEvent) {
+            }
+
+            @Override
+            public void processResponse(ResponseEvent responseEvent) {
+                mCoalescer.onResponse(responseEvent);
+                if (responseEvent.getResponse().getStatusCode() == Response.OK) {
+                    mOk.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void processTimeout(TimeoutEvent timeoutEvent) {
+                mCoalescer.onTimeout(timeoutEvent);
+            }
+
+            @Override
+            public void processIOException(IOExceptionEvent ioExceptionEvent) {
+                mCoalescer.onIOException(ioExceptionEvent);
+            }
+
+            @Override
+            public void processTransactionTerminated(
+                    TransactionTerminatedEvent transactionTerminatedEvent) {
+            }
+
+            @Override
+            public void processDialogTerminated(
+                    DialogTerminatedEvent dialogTerminatedEvent) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mSipStack.stop();
+    }
+
+    private Request newRequest(String host, String branch) throws Exception {
+        return newRequest(host, DEAD_PORT, branch);
+    }
+
+    private Request newRequest(String host, int port, String branch)
+            throws Exception {
+        return SipFactory.getInstance().createMessageFactory().createRequest(
+                "OPTIONS sip:2@" + host + ":" + port + ";transport=tcp SIP/2.0\r\n"
+                + "Via: SIP/2.0/TCP 127.0.0.1:" + PORT + ";branch=z9hG4bK"
+                        + branch + "\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "To: <sip:2@" + host + ":" + port + ">\r\n"
+                + "From: <sip:1@127.0.0.1:" + PORT + ">;tag=1\r\n"
+                + "Call-ID: " + branch + "\r\n"
+                + "CSeq: 1 OPTIONS\r\n"
+                + "Content-Length: 0\r\n"
+                + "\r\n");
+    }
+
+    @Test
+    public void keysTargetsByResolvedAddress() throws Exception {
+        assertEquals(mCoalescer.getTarget(newRequest("127.0.0.1", "a")),
+                mCoalescer.getTarget(newRequest("localhost", "b")));
+    }
+
+    @Test
+    public void coalescesConcurrentRegistersOntoOneConnect() throws Exception {
+        final int senders = 300;
+        StandInServer.Options options = new StandInServer.Options();
+        options.port = REGISTRAR_PORT;
+        options.transports = new String[] {ListeningPoint.TCP};
+        options.password = "secret";
+        StandInServer server = new StandInServer(options);
+        server.start();
+        CountingProxy proxy = new CountingProxy(REGISTRAR_PORT);
+        proxy.start();
+        SipProvider provider = Harness.createProvider("im.dlg.sip.registers",
+                CLIENT_PORT, ListeningPoint.TCP);
+        try {
+            final SipHelper sipHelper = new SipHelper(provider.getSipStack(),
+                    provider);
+            final Set<String> registered = Collections.newSetFromMap(
+                    new ConcurrentHashMap<String, Boolean>());
+            final AtomicInteger refused = new AtomicInteger();
+            provider.addSipListener(
+                    new RegisterListener(sipHelper, registered, refused));
+
+            final int port = proxy.getPort();
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger failed = new AtomicInteger();
+            Thread[] threads = new Thread[senders];
+            for (int i = 0; i < senders; i++) {
+                final String user = "user" + i;
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            SipURI profile = new SipUri();
+                            profile.setUser(user);
+                            profile.setHost(Harness.HOST);
+                            profile.setPort(port);
+                            profile.setTransportParam("tcp");
+                            start.await();
+                            sipHelper.sendRegister(profile,
+                                    sipHelper.getIdentifiers().newTag(), 3600,
+                                    sipHelper.newCallIdHeader());
+                        } catch (Exception e) {
+                            failed.incrementAndGet();
+                        }
+                    }
+                });
+                threads[i].start();
+            }
+            start.countDown();
+            for (Thread thread : threads) thread.join();
+
+            long deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MS);
+            while ((registered.size() + refused.get() < senders)
+                    && (System.nanoTime() < deadline)) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, failed.get());
+            assertEquals(0, refused.get());
+            assertEquals(senders, registered.size());
+            assertEquals(1, proxy.getConnectionCount());
+            // the others were held back until the registrar answered
+            assertEquals(1, proxy.getUnansweredCount());
+            ConnectionCoalescer coalescer = sipHelper.getConnectionCoalescer();
+            assertEquals(1, coalescer.getConnectionCount());
+            assertEquals(1, coalescer.getHandshakeLatency().getCount());
+        } finally {
+            provider.getSipStack().stop();
+            proxy.close();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void dropsConnectionsIdleForTheStackIdleTime() throws Exception {
+        CountingServer server = new CountingServer();
+        server.start();
+        try {
+            mCoalescer.setIdleTimeout(200);
+            Request request = newRequest("127.0.0.1", server.getPort(), "i");
+            assertTrue(mCoalescer.mayWait(request));
+            mCoalescer.sendRequest(mCoalescer.getNewClientTransaction(
+                    mSipProvider, request));
+            long deadline = System.nanoTime()
+                    + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MS);
+            while ((mOk.get() < 1) && (System.nanoTime() < deadline)) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, mOk.get());
+            assertFalse(mCoalescer.mayWait(request));
+
+            Thread.sleep(300);
+            assertTrue(mCoalescer.mayWait(request));
+            assertEquals(0, mCoalescer.getConnectionCount());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void failsFastWhileTargetIsUnreachable() throws Exception {
+        try {
+            mCoalescer.sendRequest(mCoalescer.getNewClientTransaction(
+                    mSipProvider, newRequest("127.0.0.1", "c")));
+        } catch (SipException e) {
+            // the refused connect may surface here or as an IOExceptionEvent
+        }
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MS);
+        while ((mCoalescer.getConnectionCount() > 0)
+                && (System.nanoTime() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, mCoalescer.getConnectionCount());
+
+        // the same target by name, now refused without a connect attempt
+        long start = System.nanoTime();
+        try {
+            mCoalescer.getNewClientTransaction(mSipProvider,
+                    newRequest("localhost", "d"));
+            fail("sent to an unreachable target");
+        } catch (SipException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("unreachable"));
+        }
+        assertTrue(System.nanoTime() - start
+                < TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MS / 10));
+    }
+
+    /**
+     * Answers the challenges to REGISTERs sent through a SipHelper, and
+     * collects the Call-IDs of those that ended registered or refused.
+     */
+    private static class RegisterListener implements SipListener {
+        private final SipHelper mSipHelper;
+        private final Set<String> mRegistered;
+        private final AtomicInteger mRefused;
+        private final AccountManager mAccountManager = new AccountManager() {
+            @Override
+            public UserCredentials getCredentials(
+                    ClientTransaction transaction, String realm) {
+                final String user = ((SipURI) ((FromHeader) transaction
+                        .getRequest().getHeader(FromHeader.NAME))
+                        .getAddress().getURI()).getUser();
+                return new UserCredentials() {
+                    @Override
+                    public String getUserName() {
+                        return user;
+                    }
+
+                    @Override
+                    public String getPassword() {
+                        return "secret";
+                    }
+
+                    @Override
+                    public String getSipDomain() {
+                        return Harness.HOST;
+                    }
+                };
+            }
+        };
+
+        private RegisterListener(SipHelper sipHelper, Set<String> registered,
+                AtomicInteger refused) {
+            mSipHelper = sipHelper;
+            mRegistered = registered;
+            mRefused = refused;
+        }
+
+        @Override
+        public void processRequest(RequestEvent requestEvent) {
+        }
+
+        @Override
+        public void processResponse(ResponseEvent responseEvent) {
+            mSipHelper.getConnectionCoalescer().onResponse(responseEvent);
+            int status = responseEvent.getResponse().getStatusCode();
+            if (status < 200) return;
+            if (status == Response.UNAUTHORIZED) {
+                try {
+                    mSipHelper.handleChallenge(responseEvent, mAccountManager);
+                    return;
+                } catch (SipException e) {
+                    // counted as refused below
+                }
+            }
+            String callId = SipHelper.getCallId(responseEvent);
+            if (status == Response.OK) {
+                mRegistered.add(callId);
+            } else {
+                mRefused.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+            mSipHelper.getConnectionCoalescer().onTimeout(timeoutEvent);
+            mRefused.incrementAndGet();
+        }
+
+        @Override
+        public void processIOException(IOExceptionEvent ioExceptionEvent) {
+            mSipHelper.getConnectionCoalescer().onIOException(ioExceptionEvent);
+        }
+
+        @Override
+        public void processTransactionTerminated(
+                TransactionTerminatedEvent transactionTerminatedEvent) {
+        }
+
+        @Override
+        public void processDialogTerminated(
+                DialogTerminatedEvent dialogTerminatedEvent) {
+        }
+    }
+
+    /**
+     * Forwards stream connections to a local port, and counts the
+     * connections it accepts and the requests forwarded before the first
+     * byte came back.
+     */
+    private static class CountingProxy extends Thread {
+        private static final byte[] REQUEST_LINE_END =
+                "SIP/2.0\r\n".getBytes(StandardCharsets.US_ASCII);
+
+        private final ServerSocket mServerSocket;
+        private final int mTargetPort;
+        private final AtomicInteger mConnections = new AtomicInteger();
+        private final AtomicInteger mUnanswered = new AtomicInteger();
+        private volatile boolean mAnswered;
+
+        private CountingProxy(int targetPort) throws IOException {
+            super("CountingProxy");
+            setDaemon(true);
+            mTargetPort = targetPort;
+            mServerSocket = new ServerSocket(0, 1024,
+                    InetAddress.getByName(Harness.HOST));
+        }
+
+        private int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        private int getConnectionCount() {
+            return mConnections.get();
+        }
+
+        /**
+         * Returns the number of requests forwarded to the target before it
+         * sent anything back.
+         */
+        private int getUnansweredCount() {
+            return mUnanswered.get();
+        }
+
+        private void close() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    Socket socket = mServerSocket.accept();
+                    mConnections.incrementAndGet();
+                    Socket target = new Socket(Harness.HOST, mTargetPort);
+                    pipe(socket, target, true);
+                    pipe(target, socket, false);
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void count(byte[] buffer, int length) {
+            for (int i = 0; i + REQUEST_LINE_END.length <= length; i++) {
+                int j = 0;
+                while ((j < REQUEST_LINE_END.length)
+                        && (buffer[i + j] == REQUEST_LINE_END[j])) {
+                    j++;
+                }
+                if (j == REQUEST_LINE_END.length) mUnanswered.incrementAndGet();
+            }
+        }
+
+        private void pipe(final Socket from, final Socket to,
+                final boolean requests) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    byte[] buffer = new byte[8192];
+                    try {
+                        InputStream in = from.getInputStream();
+                        OutputStream out = to.getOutputStream();
+                        int n;
+                        while ((n = in.read(buffer)) >= 0) {
+                            if (!requests) {
+                                mAnswered = true;
+                            } else if (!mAnswered) {
+                                count(buffer, n);
+                            }
+                            out.write(buffer, 0, n);
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        // either side closed
+                    }
+                    try {
+                        from.close();
+                        to.close();
+                    } catch (IOException e) {
+                        // already closed
+                    }
+                }
+            }, "CountingProxy-pipe");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stream endpoint that answers each request with 200 OK echoing the
+     * transaction headers, and counts the connections it accepts.
+     */
+    private static class CountingServer extends Thread {
+        private final ServerSocket mServerSocket;
+        private final AtomicInteger mConnections = new AtomicInteger();
+
+        private CountingServer() throws IOException {
+            super("CountingServer");
+            setDaemon(true);
+            mServerSocket = new ServerSocket(0, 1024,
+                    InetAddress.getByName("127.0.0.1"));
+        }
+
+        private int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        private int getConnectionCount() {
+            return mConnections.get();
+        }
+
+        private void close() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    final Socket socket = mServerSocket.accept();
+                    mConnections.incrementAndGet();
+                    Thread handler = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }, "CountingServer-" + mConnections.get());
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(
+                        socket.getInputStream(), StandardCharsets.UTF_8));
+                OutputStream out = socket.getOutputStream();
+                StringBuilder response = new StringBuilder();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.isEmpty()) {
+                        if (response.length() == 0) continue; // keepalive
+                        response.insert(0, "SIP/2.0 200 OK\r\n");
+                        response.append("Content-Length: 0\r\n\r\n");
+                        out.write(response.toString().getBytes(
+                                StandardCharsets.UTF_8));
+                        out.flush();
+                        response.setLength(0);
+                        continue;
+                    }
+                    String name = line.substring(0,
+                            Math.max(line.indexOf(':'), 0)).trim();
+                    if (name.equalsIgnoreCase("Via")
+                            || name.equalsIgnoreCase("From")
+                            || name.equalsIgnoreCase("Call-ID")
+                            || name.equalsIgnoreCase("CSeq")) {
+                        response.append(line).append("\r\n");
+                    } else if (name.equalsIgnoreCase("To")) {
+                        response.append(line).append(";tag=counting\r\n");
+                    }
+                }
+            } catch (IOException e) {
+                // connection closed by the stack
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipException;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.SipURI;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConnectionManagerTest {
+    private static final int SERVER_PORT = 22900;
+    private static final int CLIENT_PORT = 22901;
+    // nobody listens here
+    private static final int CLOSED_PORT = 22902;
+    private static final long WAIT_MS = 5000;
+
+    private StandInServer mServer;
+    private SipProvider mSipProvider;
+    private ConnectionManager mConnections;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = Harness.startStandIn(SERVER_PORT, ListeningPoint.TCP);
+        mSipProvider = Harness.createProvider("im.dlg.sip.prewarm",
+                CLIENT_PORT, ListeningPoint.TCP);
+        final SipHelper sipHelper = new SipHelper(mSipProvider.getSipStack(),
+                mSipProvider);
+        mConnections = new ConnectionManager(sipHelper, 0);
+        mSipProvider.addSipListener(new SipListener() {
+            @Override
+            public void processRequest(RequestEvent requestEvent) {
+            }
+
+            @Override
+            public void processResponse(ResponseEvent responseEvent) {
+                sipHelper.getConnectionCoalescer().onResponse(responseEvent);
+                mConnections.processResponse(responseEvent);
+            }
+
+            @Override
+            public void processTimeout(TimeoutEvent timeoutEvent) {
+                sipHelper.getConnectionCoalescer().onTimeout(timeoutEvent);
+                mConnections.processTimeout(timeoutEvent);
+            }
+
+            @Override
+            public void processIOException(IOExceptionEvent ioExceptionEvent) {
+                sipHelper.getConnectionCoalescer()
+                        .onIOException(ioExceptionEvent);
+                mConnections.processIOException(ioExceptionEvent);
+            }
+
+            @Override
+            public void processTransactionTerminated(
+                    TransactionTerminatedEvent transactionTerminatedEvent) {
+                mConnections.processTransactionTerminated(
+                        transactionTerminatedEvent);
+            }
+
+            @Override
+            public void processDialogTerminated(
+                    DialogTerminatedEvent dialogTerminatedEvent) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSipProvider.getSipStack().stop();
+        mServer.stop();
+    }
+
+    private static SipURI newUri(int port) throws ParseException {
+        SipURI uri = new SipUri();
+        uri.setUser("prewarm");
+        uri.setHost(Harness.HOST);
+        uri.setPort(port);
+        uri.setTransportParam("tcp");
+        return uri;
+    }
+
+    private void awaitSettled() throws InterruptedException {
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+        while ((mConnections.getPrewarmedCount()
+                        + mConnections.getPrewarmFailureCount() == 0)
+                && (System.nanoTime() < deadline)) {
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void prewarmsReachableTarget() throws Exception {
+        mConnections.prewarm(newUri(SERVER_PORT));
+        awaitSettled();
+        assertEquals(1, mConnections.getPrewarmedCount());
+        assertEquals(0, mConnections.getPrewarmFailureCount());
+        assertEquals(0, mConnections.getPendingPrewarmCount());
+    }
+
+    @Test
+    public void forgetsPrewarmOfUnreachableTarget() throws Exception {
+        try {
+            mConnections.prewarm(newUri(CLOSED_PORT));
+        } catch (SipException e) {
+            // refused right away
+        }
+        awaitSettled();
+        assertEquals(0, mConnections.getPrewarmedCount());
+        assertEquals(1, mConnections.getPrewarmFailureCount());
+        assertEquals(0, mConnections.getPendingPrewarmCount());
+    }
+}
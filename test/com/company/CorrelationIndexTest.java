@@ -0,0 +1,124 @@
+package com.company;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sip.ClientTransaction;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.message.Request;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class CorrelationIndexTest {
+    private static final int PORT = 22000;
+    // nothing listens here, so every request runs into timer B or F
+    private static final int DEAD_PORT = 22001;
+    // timer B and F fire after 64 * T1
+    private static final int T1_MILLIS = 10;
+
+    private final BlockingQueue<TimeoutEvent> mTimeouts =
+            new LinkedBlockingQueue<TimeoutEvent>();
+    private SipStack mSipStack;
+    private SipProvider mSipProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "im.dlg.sip.test");
+        mSipStack = SipFactory.getInstance().createSipStack(properties);
+        mSipProvider = mSipStack.createSipProvider(
+                mSipStack.createListeningPoint("127.0.0.1", PORT,
+                        ListeningPoint.UDP));
+        mSipProvider.addSipListener(new SipListener() {
+            @Override
+            public void processRequest(RequestEvent requestEvent) {
+            }
+
+            @Override
+            public void processResponse(ResponseEvent responseEvent) {
+            }
+
+            @Override
+            public void processTimeout(TimeoutEvent timeoutEvent) {
+                mTimeouts.add(timeoutEvent);
+            }
+
+            @Override
+            public void processIOException(IOExceptionEvent ioExceptionEvent) {
+            }
+
+            @Override
+            public void processTransactionTerminated(
+                    TransactionTerminatedEvent transactionTerminatedEvent) {
+            }
+
+            @Override
+            public void processDialogTerminated(
+                    DialogTerminatedEvent dialogTerminatedEvent) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mSipStack.stop();
+    }
+
+    private Request request(String method, String callId) throws Exception {
+        return SipFactory.getInstance().createMessageFactory().createRequest(
+                method + " sip:2@127.0.0.1:" + DEAD_PORT + " SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:" + PORT + ";branch=z9hG4bK"
+                        + callId + "\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "To: <sip:2@127.0.0.1:" + DEAD_PORT + ">\r\n"
+                + "From: <sip:1@127.0.0.1:" + PORT + ">;tag=1\r\n"
+                + "Call-ID: " + callId + "\r\n"
+                + "CSeq: 1 " + method + "\r\n"
+                + "Contact: <sip:1@127.0.0.1:" + PORT + ">\r\n"
+                + "Content-Length: 0\r\n"
+                + "\r\n");
+    }
+
+    private TimeoutEvent timeOut(String method, String callId,
+            CorrelationIndex<String> index) throws Exception {
+        ClientTransaction transaction = mSipProvider.getNewClientTransaction(
+                request(method, callId));
+        transaction.setRetransmitTimer(T1_MILLIS);
+        index.addTransaction(transaction);
+        transaction.sendRequest();
+        TimeoutEvent timeoutEvent = mTimeouts.poll(10, TimeUnit.SECONDS);
+        assertNotNull(method + " never timed out", timeoutEvent);
+        return timeoutEvent;
+    }
+
+    @Test
+    public void resolvesTimerBTimeout() throws Exception {
+        CorrelationIndex<String> index = new CorrelationIndex<String>(60000, 60000);
+        index.put("invite", "call");
+        assertEquals("call", index.get(timeOut(Request.INVITE, "invite", index)));
+    }
+
+    @Test
+    public void resolvesTimerFTimeout() throws Exception {
+        CorrelationIndex<String> index = new CorrelationIndex<String>(60000, 60000);
+        index.put("register", "registration");
+        assertEquals("registration",
+                index.get(timeOut(Request.REGISTER, "register", index)));
+    }
+}
@@ -0,0 +1,362 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+import gov.nist.javax.sip.clientauthutils.AccountManager;
+import gov.nist.javax.sip.clientauthutils.UserCredentials;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sip.ClientTransaction;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipException;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.SipURI;
+import javax.sip.header.AuthorizationHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.WWWAuthenticateHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class DigestAuthCacheTest {
+    private static final String REALM = "standin";
+    private static final String PASSWORD = "secret";
+    private static final int SERVER_PORT = 22600;
+    private static final int CLIENT_PORT = 22601;
+
+    private MessageFactory mMessageFactory;
+    private HeaderFactory mHeaderFactory;
+    private LoopbackSipProvider mProvider;
+    private DigestAuthCache mCache;
+    private final AccountManager mAccountManager = new AccountManager() {
+        @Override
+        public UserCredentials getCredentials(ClientTransaction transaction,
+                String realm) {
+            return new UserCredentials() {
+                @Override
+                public String getUserName() {
+                    return "alice";
+                }
+
+                @Override
+                public String getPassword() {
+                    return PASSWORD;
+                }
+
+                @Override
+                public String getSipDomain() {
+                    return "127.0.0.1";
+                }
+            };
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        mMessageFactory = sipFactory.createMessageFactory();
+        mHeaderFactory = sipFactory.createHeaderFactory();
+        mProvider = new LoopbackSipProvider("127.0.0.1", 15060,
+                ListeningPoint.UDP);
+        mCache = new DigestAuthCache(mHeaderFactory);
+    }
+
+    private Request register(long cseq) throws Exception {
+        return register("alice", cseq);
+    }
+
+    private Request register(String user, long cseq) throws Exception {
+        return mMessageFactory.createRequest("REGISTER sip:127.0.0.1:5060 SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:15060;branch=z9hG4bK" + cseq + "\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "To: <sip:" + user + "@127.0.0.1:5060>\r\n"
+                + "From: <sip:" + user + "@127.0.0.1:5060>;tag=a\r\n"
+                + "Call-ID: c1\r\n"
+                + "CSeq: " + cseq + " REGISTER\r\n"
+                + "Content-Length: 0\r\n"
+                + "\r\n");
+    }
+
+    private void challenge(String nonce) throws Exception {
+        challenge(register(1), nonce, false);
+    }
+
+    private void challenge(Request request, String nonce, boolean stale)
+            throws Exception {
+        Response response = mMessageFactory.createResponse(
+                Response.UNAUTHORIZED, request);
+        WWWAuthenticateHeader header =
+                mHeaderFactory.createWWWAuthenticateHeader("Digest");
+        header.setRealm(REALM);
+        header.setNonce(nonce);
+        header.setQop("auth");
+        header.setAlgorithm("MD5");
+        header.setStale(stale);
+        response.addHeader(header);
+        mCache.learn(response, mProvider.getNewClientTransaction(request),
+                mAccountManager);
+    }
+
+    @Test
+    public void calculatesRfc2617Example() {
+        String ha1 = DigestCalculator.ha1("Mufasa", "testrealm@host.com",
+                "Circle Of Life");
+        assertEquals("6629fae49393a05397450978507c4ef1",
+                DigestCalculator.response(ha1, "GET", "/dir/index.html",
+                        "dcd98b7102dd2f0e8b11d0f600bfb0c093", "00000001",
+                        "0a4f113b", "auth"));
+        assertEquals("0000002a", DigestCalculator.nonceCount(42));
+    }
+
+    @Test
+    public void authorizesNothingBeforeChallenge() throws Exception {
+        assertFalse(mCache.authorize(register(2)));
+    }
+
+    @Test
+    public void countsNonceUses() throws Exception {
+        challenge("n1");
+        for (int nc = 1; nc <= 3; nc++) {
+            Request request = register(nc);
+            assertTrue(mCache.authorize(request));
+            AuthorizationHeader authorization = (AuthorizationHeader)
+                    request.getHeader(AuthorizationHeader.NAME);
+            assertNotNull(authorization);
+            assertEquals(nc, authorization.getNonceCount());
+            assertEquals("n1", authorization.getNonce());
+            assertEquals(DigestCalculator.response(
+                    DigestCalculator.ha1("alice", REALM, PASSWORD), "REGISTER",
+                    "sip:127.0.0.1:5060", "n1",
+                    DigestCalculator.nonceCount(nc), authorization.getCNonce(),
+                    "auth"), authorization.getResponse());
+        }
+        assertEquals(3, mCache.getPreemptiveCount());
+    }
+
+    @Test
+    public void newNonceRestartsCount() throws Exception {
+        challenge("n1");
+        mCache.authorize(register(2));
+        challenge("n2");
+        Request request = register(3);
+        assertTrue(mCache.authorize(request));
+        AuthorizationHeader authorization = (AuthorizationHeader)
+                request.getHeader(AuthorizationHeader.NAME);
+        assertEquals("n2", authorization.getNonce());
+        assertEquals(1, authorization.getNonceCount());
+    }
+
+    @Test
+    public void keepsNonceAndCountPerUser() throws Exception {
+        challenge("n1");
+        challenge(register("bob", 1), "n2", false);
+        for (int nc = 1; nc <= 2; nc++) {
+            Request alice = register("alice", nc + 1);
+            Request bob = register("bob", nc + 1);
+            assertTrue(mCache.authorize(alice));
+            assertTrue(mCache.authorize(bob));
+            AuthorizationHeader authorization = (AuthorizationHeader)
+                    alice.getHeader(AuthorizationHeader.NAME);
+            assertEquals("n1", authorization.getNonce());
+            assertEquals(nc, authorization.getNonceCount());
+            authorization = (AuthorizationHeader)
+                    bob.getHeader(AuthorizationHeader.NAME);
+            assertEquals("n2", authorization.getNonce());
+            assertEquals(nc, authorization.getNonceCount());
+        }
+    }
+
+    @Test
+    public void countsTheChallengeRetry() throws Exception {
+        challenge("n1");
+        // AuthenticationHelper's retry carries nc=1 of its own
+        Request retry = register(2);
+        retry.setHeader(mHeaderFactory.createAuthorizationHeader(
+                "Digest username=\"alice\", realm=\"" + REALM
+                        + "\", nonce=\"n1\", uri=\"sip:127.0.0.1:5060\", "
+                        + "response=\"0\", qop=auth, nc=00000001, cnonce=\"c\""));
+        Request request = register(3);
+        assertTrue(mCache.authorize(request));
+        assertTrue(mCache.authorize(retry));
+        assertEquals(2, ((AuthorizationHeader)
+                retry.getHeader(AuthorizationHeader.NAME)).getNonceCount());
+        assertEquals(1, mCache.getPreemptiveCount());
+    }
+
+    @Test
+    public void invalidatedRealmIsNotAuthorized() throws Exception {
+        challenge("n1");
+        mCache.invalidate(REALM);
+        assertFalse(mCache.authorize(register(2)));
+    }
+
+    @Test
+    public void refusedCredentialsAreForgotten() throws Exception {
+        challenge("n1");
+        Request request = register(2);
+        assertTrue(mCache.authorize(request));
+        challenge(register("bob", 1), "n4", false);
+        challenge(request, "n2", false);
+        assertFalse(mCache.authorize(register(3)));
+        // other users of the realm keep theirs
+        assertTrue(mCache.authorize(register("bob", 2)));
+        // a challenge to a request without credentials fills it in again
+        challenge("n3");
+        assertTrue(mCache.authorize(register(4)));
+    }
+
+    @Test
+    public void staleNonceIsReplaced() throws Exception {
+        challenge("n1");
+        Request request = register(2);
+        assertTrue(mCache.authorize(request));
+        challenge(request, "n2", true);
+        request = register(3);
+        assertTrue(mCache.authorize(request));
+        assertEquals("n2", ((AuthorizationHeader)
+                request.getHeader(AuthorizationHeader.NAME)).getNonce());
+    }
+
+    @Test
+    public void serverAcceptsEveryConcurrentNonceCount() throws Exception {
+        final int users = 4;
+        final int threadsPerUser = 4;
+        final int registers = 25;
+
+        StandInServer.Options options = new StandInServer.Options();
+        options.port = SERVER_PORT;
+        options.transports = new String[] {ListeningPoint.TCP};
+        options.password = PASSWORD;
+        StandInServer server = new StandInServer(options);
+        server.start();
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "im.dlg.sip.digest");
+        SipStack sipStack = SipFactory.getInstance().createSipStack(properties);
+        try {
+            SipProvider provider = sipStack.createSipProvider(
+                    sipStack.createListeningPoint("127.0.0.1", CLIENT_PORT,
+                            ListeningPoint.TCP));
+            final SipHelper sipHelper = new SipHelper(sipStack, provider);
+            final AtomicInteger challenges = new AtomicInteger();
+            final AtomicInteger refusals = new AtomicInteger();
+            final Semaphore registered = new Semaphore(0);
+            provider.addSipListener(new SipListener() {
+                @Override
+                public void processRequest(RequestEvent requestEvent) {
+                }
+
+                @Override
+                public void processResponse(ResponseEvent responseEvent) {
+                    sipHelper.getConnectionCoalescer().onResponse(responseEvent);
+                    int status = responseEvent.getResponse().getStatusCode();
+                    if (status == Response.OK) {
+                        registered.release();
+                    } else if (status == Response.UNAUTHORIZED) {
+                        challenges.incrementAndGet();
+                        try {
+                            sipHelper.handleChallenge(responseEvent,
+                                    mAccountManager);
+                        } catch (SipException e) {
+                            refusals.incrementAndGet();
+                        }
+                    } else {
+                        refusals.incrementAndGet();
+                    }
+                }
+
+                @Override
+                public void processTimeout(TimeoutEvent timeoutEvent) {
+                    sipHelper.getConnectionCoalescer().onTimeout(timeoutEvent);
+                    refusals.incrementAndGet();
+                }
+
+                @Override
+                public void processIOException(IOExceptionEvent ioExceptionEvent) {
+                    sipHelper.getConnectionCoalescer()
+                            .onIOException(ioExceptionEvent);
+                }
+
+                @Override
+                public void processTransactionTerminated(
+                        TransactionTerminatedEvent transactionTerminatedEvent) {
+                }
+
+                @Override
+                public void processDialogTerminated(
+                        DialogTerminatedEvent dialogTerminatedEvent) {
+                }
+            });
+
+            // one challenge per user fills in its nonce
+            final SipURI[] profiles = new SipURI[users];
+            for (int i = 0; i < users; i++) {
+                profiles[i] = new SipUri();
+                profiles[i].setUser("user" + i);
+                profiles[i].setHost("127.0.0.1");
+                profiles[i].setPort(SERVER_PORT);
+                profiles[i].setTransportParam("tcp");
+                sipHelper.sendRegister(profiles[i],
+                        sipHelper.getIdentifiers().newTag(), 3600,
+                        sipHelper.newCallIdHeader());
+                assertTrue(registered.tryAcquire(5, TimeUnit.SECONDS));
+            }
+            assertEquals(users, challenges.get());
+
+            // then every thread of a user reuses the same nonce at once
+            ExecutorService executor =
+                    Executors.newFixedThreadPool(users * threadsPerUser);
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for (int i = 0; i < users * threadsPerUser; i++) {
+                final SipURI profile = profiles[i % users];
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        CallIdHeader callId = sipHelper.newCallIdHeader();
+                        String tag = sipHelper.getIdentifiers().newTag();
+                        for (int j = 0; j < registers; j++) {
+                            sipHelper.sendRegister(profile, tag, 3600, callId);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) future.get();
+            executor.shutdown();
+
+            // counts go out without the lock; one overtaken by more than the
+            // server's window is challenged afresh and retried, so only the
+            // outcome is fixed, not the number of challenges
+            assertTrue(registered.tryAcquire(users * threadsPerUser * registers,
+                    10, TimeUnit.SECONDS));
+            assertEquals(0, refusals.get());
+        } finally {
+            sipStack.stop();
+            server.stop();
+        }
+    }
+}
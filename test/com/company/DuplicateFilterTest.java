@@ -0,0 +1,76 @@
+package com.company;
+
+import org.junit.Test;
+
+import javax.sip.SipFactory;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DuplicateFilterTest {
+    private static Request request(String method, long cseq, String branch,
+            String callId) throws Exception {
+        MessageFactory messageFactory = SipFactory.getInstance()
+                .createMessageFactory();
+        return messageFactory.createRequest(method
+                + " sip:2@127.0.0.1:5060 SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:15060;branch=" + branch + "\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "To: <sip:2@127.0.0.1:5060>;tag=b\r\n"
+                + "From: <sip:1@127.0.0.1:15060>;tag=a\r\n"
+                + "Call-ID: " + callId + "\r\n"
+                + "CSeq: " + cseq + " " + method + "\r\n"
+                + "Content-Length: 0\r\n"
+                + "\r\n");
+    }
+
+    @Test
+    public void dropsRetransmissionWithinWindow() throws Exception {
+        DuplicateFilter filter = new DuplicateFilter(1024, 32000);
+        assertFalse(filter.isDuplicate(request("ACK", 1, "z9hG4bK1", "c1")));
+        assertTrue(filter.isDuplicate(request("ACK", 1, "z9hG4bK1", "c1")));
+        assertEquals(2, filter.getLookupCount());
+        assertEquals(1, filter.getDuplicateCount());
+        assertEquals(0.5, filter.getHitRate(), 0.0);
+        assertEquals(1, filter.getLiveCount());
+    }
+
+    @Test
+    public void tellsKeysApart() throws Exception {
+        DuplicateFilter filter = new DuplicateFilter(1024, 32000);
+        assertFalse(filter.isDuplicate(request("INVITE", 1, "z9hG4bK1", "c1")));
+        // CANCEL shares Call-ID, number and branch with its INVITE
+        assertFalse(filter.isDuplicate(request("CANCEL", 1, "z9hG4bK1", "c1")));
+        assertFalse(filter.isDuplicate(request("INVITE", 2, "z9hG4bK1", "c1")));
+        assertFalse(filter.isDuplicate(request("INVITE", 1, "z9hG4bK2", "c1")));
+        assertFalse(filter.isDuplicate(request("INVITE", 1, "z9hG4bK1", "c2")));
+        assertEquals(0, filter.getDuplicateCount());
+    }
+
+    @Test
+    public void forgetsAfterWindow() throws Exception {
+        // the window is rounded up to whole ticks of about 16 ms
+        DuplicateFilter filter = new DuplicateFilter(1024, 1);
+        assertFalse(filter.isDuplicate(request("ACK", 1, "z9hG4bK1", "c1")));
+        Thread.sleep(100);
+        assertFalse(filter.isDuplicate(request("ACK", 1, "z9hG4bK1", "c1")));
+        assertEquals(0, filter.getDuplicateCount());
+    }
+
+    @Test
+    public void countsLiveEvictionsWhenFull() throws Exception {
+        // one bucket of four entries
+        DuplicateFilter filter = new DuplicateFilter(4, 32000);
+        assertEquals(4, filter.getCapacity());
+        assertEquals(32, filter.getMemoryBytes());
+        for (int i = 0; i < 5; i++) {
+            assertFalse(filter.isDuplicate(request("ACK", 1, "z9hG4bK" + i,
+                    "c1")));
+        }
+        assertEquals(1, filter.getEvictedCount());
+        assertEquals(4, filter.getLiveCount());
+    }
+}
@@ -0,0 +1,95 @@
+package com.company;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HashedTimerWheelTest {
+    private static final long TICK_MS = 10;
+
+    // a small wheel, so delays of several rounds are covered
+    private final HashedTimerWheel mWheel = new HashedTimerWheel(TICK_MS, 8);
+
+    @After
+    public void tearDown() throws InterruptedException {
+        mWheel.stop();
+    }
+
+    @Test
+    public void firesNoEarlierThanItsDelay() throws InterruptedException {
+        final CountDownLatch fired = new CountDownLatch(1);
+        final AtomicLong firedAt = new AtomicLong();
+        long start = System.nanoTime();
+        mWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                firedAt.set(System.nanoTime());
+                fired.countDown();
+            }
+        }, 250, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(firedAt.get() - start);
+        // 25 ticks, more than three rounds of the 8 buckets
+        assertTrue("fired after " + elapsed + " ms", elapsed >= 250);
+        assertEquals(0, mWheel.getPendingCount());
+    }
+
+    @Test
+    public void cancelledTimeoutNeverFires() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        HashedTimerWheel.Timeout timeout = mWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        assertEquals(0, mWheel.getPendingCount());
+        Thread.sleep(150);
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void firedTimeoutCannotBeCancelled() throws InterruptedException {
+        final CountDownLatch fired = new CountDownLatch(1);
+        HashedTimerWheel.Timeout timeout = mWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                fired.countDown();
+            }
+        }, 0, TimeUnit.MILLISECONDS);
+
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+        assertTrue(timeout.isExpired());
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void firesEveryTimeout()
+            throws InterruptedException {
+        final int count = 1000;
+        final CountDownLatch fired = new CountDownLatch(count);
+        for (int i = 0; i < count; i++) {
+            mWheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    fired.countDown();
+                }
+            }, i % 200, TimeUnit.MILLISECONDS);
+        }
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        assertEquals(0, mWheel.getPendingCount());
+    }
+}
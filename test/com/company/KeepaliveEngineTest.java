@@ -0,0 +1,182 @@
+package com.company;
+
+import gov.nist.javax.sip.DialogTimeoutEvent;
+import gov.nist.javax.sip.SipListenerExt;
+import gov.nist.javax.sip.address.SipUri;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.SipURI;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class KeepaliveEngineTest {
+    private static final int CLIENT_PORT = 23000;
+    // accepts pings and never answers them
+    private static final int SILENT_PORT = 23001;
+    private static final long INTERVAL_MS = 100;
+    private static final int MAX_MISSED = 3;
+    private static final long WAIT_MS = 5000;
+
+    private final List<SipURI> mFailed = new CopyOnWriteArrayList<SipURI>();
+    private final HashedTimerWheel mWheel = new HashedTimerWheel(10, 256);
+    private SipProvider mSipProvider;
+    private KeepaliveEngine mEngine;
+    private DatagramSocket mSilentUdp;
+    private ServerSocket mSilentTcp;
+    private volatile Socket mAccepted;
+
+    @After
+    public void tearDown() throws Exception {
+        mWheel.stop();
+        if (mSipProvider != null) mSipProvider.getSipStack().stop();
+        if (mSilentUdp != null) mSilentUdp.close();
+        if (mSilentTcp != null) mSilentTcp.close();
+        if (mAccepted != null) mAccepted.close();
+    }
+
+    private void start(String transport, long pongTimeoutMillis)
+            throws Exception {
+        mSipProvider = Harness.createProvider("im.dlg.sip.keepalive",
+                CLIENT_PORT, transport);
+        SipHelper sipHelper = new SipHelper(mSipProvider.getSipStack(),
+                mSipProvider);
+        mEngine = new KeepaliveEngine(sipHelper, mWheel, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, INTERVAL_MS, MAX_MISSED, pongTimeoutMillis,
+                new KeepaliveEngine.Listener() {
+                    @Override
+                    public void onFlowFailed(SipURI profile) {
+                        mFailed.add(profile);
+                    }
+                });
+        // the stack reports a missing pong to a SipListenerExt only
+        mSipProvider.addSipListener(new SipListenerExt() {
+            @Override
+            public void processRequest(RequestEvent requestEvent) {
+            }
+
+            @Override
+            public void processResponse(ResponseEvent responseEvent) {
+                mEngine.processResponse(responseEvent);
+            }
+
+            @Override
+            public void processTimeout(TimeoutEvent timeoutEvent) {
+            }
+
+            @Override
+            public void processIOException(IOExceptionEvent ioExceptionEvent) {
+                mEngine.processIOException(ioExceptionEvent);
+            }
+
+            @Override
+            public void processTransactionTerminated(
+                    TransactionTerminatedEvent transactionTerminatedEvent) {
+            }
+
+            @Override
+            public void processDialogTerminated(
+                    DialogTerminatedEvent dialogTerminatedEvent) {
+            }
+
+            @Override
+            public void processDialogTimeout(
+                    DialogTimeoutEvent dialogTimeoutEvent) {
+            }
+        });
+    }
+
+    private static SipURI newProfile(String transport) throws ParseException {
+        SipURI uri = new SipUri();
+        uri.setUser("keepalive");
+        uri.setHost(Harness.HOST);
+        uri.setPort(SILENT_PORT);
+        uri.setTransportParam(transport);
+        return uri;
+    }
+
+    private void awaitFailure() throws InterruptedException {
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+        while (mFailed.isEmpty() && (System.nanoTime() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertFalse("no flow failed", mFailed.isEmpty());
+    }
+
+    @Test
+    public void failsOptionsFlowToPeerThatNeverAnswers() throws Exception {
+        mSilentUdp = new DatagramSocket(SILENT_PORT,
+                InetAddress.getByName(Harness.HOST));
+        start(ListeningPoint.UDP, 0);
+        SipURI profile = newProfile("udp");
+        mEngine.add(profile);
+
+        mSilentUdp.setSoTimeout((int) WAIT_MS);
+        DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+        mSilentUdp.receive(packet);
+        assertTrue(new String(packet.getData(), 0, packet.getLength(),
+                StandardCharsets.UTF_8).startsWith("OPTIONS "));
+
+        awaitFailure();
+        assertEquals(profile, mFailed.get(0));
+        assertTrue(mEngine.getMissedCount() >= MAX_MISSED);
+        // the ping after the last miss was sent, and those before each miss
+        assertTrue(mEngine.getSentCount() > MAX_MISSED);
+        assertTrue(mEngine.getFailureCount() >= 1);
+        // pinging goes on after the failure
+        assertEquals(1, mEngine.getFlowCount());
+    }
+
+    @Test
+    public void failsCrlfFlowWhosePongNeverComes() throws Exception {
+        mSilentTcp = new ServerSocket(SILENT_PORT, 1,
+                InetAddress.getByName(Harness.HOST));
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mAccepted = mSilentTcp.accept();
+                } catch (java.io.IOException e) {
+                    // closed by tearDown
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        // writes to the silent peer succeed, only the pong timeout fails it
+        start(ListeningPoint.TCP, INTERVAL_MS / 2);
+        SipURI profile = newProfile("tcp");
+        mEngine.add(profile);
+
+        awaitFailure();
+        assertEquals(profile, mFailed.get(0));
+        assertTrue(mEngine.getMissedCount() >= 1);
+        assertTrue(mEngine.getSentCount() >= 2);
+    }
+}
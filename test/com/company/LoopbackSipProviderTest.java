@@ -0,0 +1,21 @@
+package com.company;
+
+import org.junit.Test;
+
+import javax.sip.ListeningPoint;
+import javax.sip.header.CallIdHeader;
+
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class LoopbackSipProviderTest {
+    @Test
+    public void generatesDistinctCallIds() {
+        LoopbackSipProvider provider = new LoopbackSipProvider("127.0.0.1",
+                15060, ListeningPoint.UDP);
+        CallIdHeader first = provider.getNewCallId();
+        CallIdHeader second = provider.getNewCallId();
+        assertNotNull(first.getCallId());
+        assertNotEquals(first.getCallId(), second.getCallId());
+    }
+}
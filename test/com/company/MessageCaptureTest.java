@@ -0,0 +1,79 @@
+package com.company;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.sip.SipFactory;
+import javax.sip.header.CSeqHeader;
+import javax.sip.message.Message;
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageCaptureTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static Message options() throws Exception {
+        return SipFactory.getInstance().createMessageFactory()
+                .createRequest(Harness.OPTIONS);
+    }
+
+    @Test
+    public void readsBackWhatItCaptured() throws Exception {
+        File directory = mFolder.newFolder();
+        MessageCapture capture = new MessageCapture(directory, 16, 4096, 65536);
+        Message message = options();
+        capture.capture(message, MessageCapture.IN);
+        capture.capture(message, MessageCapture.OUT);
+        capture.shutdown();
+        assertEquals(2, capture.getCapturedCount());
+
+        MessageCapture.Reader reader = new MessageCapture.Reader(directory);
+        try {
+            assertTrue(reader.next());
+            assertTrue(reader.isIncoming());
+            assertEquals(message.toString(), reader.getMessage());
+            assertEquals(MessageCapture.getFlow("a84b4c76e66711@127.0.0.1"),
+                    reader.getFlow());
+            assertTrue(reader.next());
+            assertFalse(reader.isIncoming());
+            assertFalse(reader.next());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void keepsMessageAsCaptured() throws Exception {
+        File directory = mFolder.newFolder();
+        MessageCapture capture = new MessageCapture(directory, 16, 4096, 65536);
+        Message message = options();
+        String captured = message.toString();
+        capture.capture(message, MessageCapture.OUT);
+        // as the stack does when it sends the next request of the dialog
+        ((CSeqHeader) message.getHeader(CSeqHeader.NAME)).setSeqNumber(63105);
+        capture.shutdown();
+
+        MessageCapture.Reader reader = new MessageCapture.Reader(directory);
+        try {
+            assertTrue(reader.next());
+            assertEquals(captured, reader.getMessage());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void dropsMessagesLongerThanTheLimit() throws Exception {
+        MessageCapture capture = new MessageCapture(mFolder.newFolder(), 16,
+                16, 65536);
+        capture.capture(options(), MessageCapture.OUT);
+        capture.shutdown();
+        assertEquals(0, capture.getCapturedCount());
+        assertEquals(1, capture.getDroppedCount());
+    }
+}
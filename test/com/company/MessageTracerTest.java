@@ -0,0 +1,56 @@
+package com.company;
+
+import org.junit.Test;
+
+import javax.sip.SipFactory;
+import javax.sip.header.CSeqHeader;
+import javax.sip.message.Message;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageTracerTest {
+    private static Message options() throws Exception {
+        return SipFactory.getInstance().createMessageFactory()
+                .createRequest(Harness.OPTIONS);
+    }
+
+    @Test
+    public void writesRawMessage() throws Exception {
+        StringWriter writer = new StringWriter();
+        MessageTracer tracer = new MessageTracer(16, 4096, writer);
+        tracer.setDefaultSampleRate(1);
+        Message message = options();
+        tracer.trace(message, MessageTracer.OUT);
+        tracer.shutdown();
+        String trace = writer.toString();
+        assertTrue(trace, trace.contains(" -> 63104 OPTIONS call-id="
+                + "a84b4c76e66711@127.0.0.1 branch=z9hG4bKhjhs8ass877\n"));
+        assertTrue(trace, trace.endsWith(message.toString()));
+    }
+
+    @Test
+    public void keepsMessageAsTraced() throws Exception {
+        StringWriter writer = new StringWriter();
+        MessageTracer tracer = new MessageTracer(16, 4096, writer);
+        tracer.setDefaultSampleRate(1);
+        Message message = options();
+        String traced = message.toString();
+        tracer.trace(message, MessageTracer.OUT);
+        // as the stack does when it sends the next request of the dialog
+        ((CSeqHeader) message.getHeader(CSeqHeader.NAME)).setSeqNumber(63105);
+        tracer.shutdown();
+        assertTrue(writer.toString(), writer.toString().endsWith(traced));
+    }
+
+    @Test
+    public void skipsUnsampledCallIds() throws Exception {
+        StringWriter writer = new StringWriter();
+        MessageTracer tracer = new MessageTracer(16, 4096, writer);
+        tracer.trace(options(), MessageTracer.IN);
+        tracer.shutdown();
+        assertEquals(0, tracer.getTracedCount());
+        assertEquals("", writer.toString());
+    }
+}
@@ -0,0 +1,313 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sip.Dialog;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.ServerTransaction;
+import javax.sip.SipException;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.SipURI;
+import javax.sip.header.SubscriptionStateHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.text.ParseException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NotifyFanoutTest {
+    private static final int NOTIFIER_PORT = 22700;
+    private static final int SUBSCRIBER_PORT = 22701;
+    private static final String EVENT = "presence";
+    private static final String RESOURCE = "resource";
+    private static final long INTERVAL_MS = 100;
+    private static final long WAIT_MS = 5000;
+
+    private final HashedTimerWheel mWheel = new HashedTimerWheel(10, 64);
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(2);
+    // Call-ID -> content of the last NOTIFY received
+    private final ConcurrentHashMap<String, String> mReceived =
+            new ConcurrentHashMap<String, String>();
+    // Call-ID -> Subscription-State of the last NOTIFY received
+    private final ConcurrentHashMap<String, String> mStates =
+            new ConcurrentHashMap<String, String>();
+    private final AtomicInteger mEnded = new AtomicInteger();
+    // while set, the watcher answers NOTIFYs only once it is counted down
+    private volatile CountDownLatch mHold;
+    // the watcher answers NOTIFYs with 481
+    private volatile boolean mRefuse;
+    // notifier side dialog of the last subscription
+    private volatile Dialog mDialog;
+    private SipProvider mNotifierProvider;
+    private SipProvider mSubscriberProvider;
+    private SipHelper mSubscriber;
+    private NotifyFanout mFanout;
+    private SipURI mNotifierProfile;
+
+    @Before
+    public void setUp() throws Exception {
+        mNotifierProvider = Harness.createProvider("im.dlg.sip.notifier",
+                NOTIFIER_PORT, ListeningPoint.TCP);
+        final SipHelper notifier = new SipHelper(
+                mNotifierProvider.getSipStack(), mNotifierProvider);
+        mNotifierProfile = newUri("notifier", NOTIFIER_PORT);
+        mFanout = new NotifyFanout(notifier, mWheel, mExecutor, INTERVAL_MS,
+                new NotifyFanout.Listener() {
+                    @Override
+                    public void onSubscriptionEnded(String resource,
+                            Dialog dialog) {
+                        mEnded.incrementAndGet();
+                    }
+                });
+        mNotifierProvider.addSipListener(new SipListener() {
+            @Override
+            public void processRequest(RequestEvent requestEvent) {
+                try {
+                    ServerTransaction transaction = notifier.sendSubscribeOk(
+                            requestEvent, mNotifierProfile,
+                            notifier.getIdentifiers().newTag(), 3600);
+                    mDialog = transaction.getDialog();
+                    mFanout.subscribe(RESOURCE, mDialog, EVENT, 3600);
+                } catch (SipException | ParseException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+
+            @Override
+            public void processResponse(ResponseEvent responseEvent) {
+                mFanout.processResponse(responseEvent);
+            }
+
+            @Override
+            public void processTimeout(TimeoutEvent timeoutEvent) {
+                mFanout.processTimeout(timeoutEvent);
+            }
+
+            @Override
+            public void processIOException(IOExceptionEvent ioExceptionEvent) {
+                mFanout.processIOException(ioExceptionEvent);
+            }
+
+            @Override
+            public void processTransactionTerminated(
+                    TransactionTerminatedEvent transactionTerminatedEvent) {
+                mFanout.processTransactionTerminated(
+                        transactionTerminatedEvent);
+            }
+
+            @Override
+            public void processDialogTerminated(
+                    DialogTerminatedEvent dialogTerminatedEvent) {
+                mFanout.processDialogTerminated(dialogTerminatedEvent);
+            }
+        });
+
+        mSubscriberProvider = Harness.createProvider("im.dlg.sip.watcher",
+                SUBSCRIBER_PORT, ListeningPoint.TCP);
+        mSubscriber = new SipHelper(mSubscriberProvider.getSipStack(),
+                mSubscriberProvider);
+        mSubscriberProvider.addSipListener(new SipListener() {
+            @Override
+            public void processRequest(RequestEvent requestEvent) {
+                Request request = requestEvent.getRequest();
+                SubscriptionStateHeader state = (SubscriptionStateHeader)
+                        request.getHeader(SubscriptionStateHeader.NAME);
+                if (state != null) {
+                    mStates.put(SipHelper.getCallId(requestEvent),
+                            state.getState());
+                }
+                try {
+                    CountDownLatch hold = mHold;
+                    if (hold != null) hold.await();
+                    mSubscriber.sendResponse(requestEvent, mRefuse
+                            ? Response.CALL_OR_TRANSACTION_DOES_NOT_EXIST
+                            : Response.OK);
+                } catch (SipException | InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                Object content = request.getContent();
+                if (content == null) return;
+                mReceived.put(SipHelper.getCallId(requestEvent),
+                        (content instanceof byte[])
+                                ? new String((byte[]) content)
+                                : content.toString());
+            }
+
+            @Override
+            public void processResponse(ResponseEvent responseEvent) {
+                mSubscriber.getConnectionCoalescer().onResponse(responseEvent);
+            }
+
+            @Override
+            public void processTimeout(TimeoutEvent timeoutEvent) {
+                mSubscriber.getConnectionCoalescer().onTimeout(timeoutEvent);
+            }
+
+            @Override
+            public void processIOException(IOExceptionEvent ioExceptionEvent) {
+                mSubscriber.getConnectionCoalescer()
+                        .onIOException(ioExceptionEvent);
+            }
+
+            @Override
+            public void processTransactionTerminated(
+                    TransactionTerminatedEvent transactionTerminatedEvent) {
+            }
+
+            @Override
+            public void processDialogTerminated(
+                    DialogTerminatedEvent dialogTerminatedEvent) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mWheel.stop();
+        mExecutor.shutdownNow();
+        mSubscriberProvider.getSipStack().stop();
+        mNotifierProvider.getSipStack().stop();
+    }
+
+    private static SipURI newUri(String user, int port)
+            throws ParseException {
+        SipURI uri = new SipUri();
+        uri.setUser(user);
+        uri.setHost(Harness.HOST);
+        uri.setPort(port);
+        uri.setTransportParam("tcp");
+        return uri;
+    }
+
+    private void subscribe(int watchers) throws Exception {
+        for (int i = 0; i < watchers; i++) {
+            mSubscriber.sendSubscribe(newUri("watcher" + i, SUBSCRIBER_PORT),
+                    newUri(RESOURCE, NOTIFIER_PORT), EVENT, 3600,
+                    mSubscriber.getIdentifiers().newTag(),
+                    mSubscriber.newCallIdHeader());
+        }
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+        while ((mFanout.getSubscriberCount() < watchers)
+                && (System.nanoTime() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertEquals(watchers, mFanout.getSubscriberCount());
+    }
+
+    private boolean allReceived(int watchers, String state) {
+        if (mReceived.size() < watchers) return false;
+        for (String received : mReceived.values()) {
+            if (!state.equals(received)) return false;
+        }
+        return true;
+    }
+
+    @Test
+    public void sendsEverySubscriberTheLatestState() throws Exception {
+        int watchers = 3;
+        int states = 20;
+        subscribe(watchers);
+        for (int i = 1; i <= states; i++) {
+            mFanout.publish(RESOURCE, "text/plain", Integer.toString(i));
+        }
+        String last = Integer.toString(states);
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+        while (!allReceived(watchers, last)
+                && (System.nanoTime() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertTrue(mReceived.toString(), allReceived(watchers, last));
+        // a burst reaches each subscriber as few NOTIFYs, not one per state
+        assertTrue(mFanout.getCoalescedCount() > 0);
+        assertTrue(mFanout.getSentCount() < watchers * (states + 1));
+        assertEquals(0, mFanout.getFailureCount());
+    }
+
+    @Test
+    public void dropsTheResourceWithItsLastSubscriber() throws Exception {
+        subscribe(1);
+        assertEquals(1, mFanout.getResourceCount());
+        mFanout.subscribe(RESOURCE, mDialog, EVENT, 0);
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+        while ((mEnded.get() < 1) && (System.nanoTime() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mEnded.get());
+        assertEquals(0, mFanout.getSubscriberCount());
+        assertEquals(0, mFanout.getResourceCount());
+
+        // a state nobody subscribes to is not kept
+        mFanout.publish(RESOURCE, "text/plain", "1");
+        assertEquals(0, mFanout.getResourceCount());
+    }
+
+    @Test
+    public void endsSubscriptionWhoseNotifyIsRefused() throws Exception {
+        subscribe(1);
+        mFanout.publish(RESOURCE, "text/plain", "1");
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+        while (!allReceived(1, "1") && (System.nanoTime() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertTrue(allReceived(1, "1"));
+
+        // the watcher forgot the subscription
+        mRefuse = true;
+        mFanout.publish(RESOURCE, "text/plain", "2");
+        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+        while ((mEnded.get() < 1) && (System.nanoTime() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mEnded.get());
+        assertEquals(0, mFanout.getSubscriberCount());
+        assertEquals(0, mFanout.getResourceCount());
+    }
+
+    @Test
+    public void sendsFinalNotifyAfterTheOneInFlight() throws Exception {
+        CountDownLatch hold = new CountDownLatch(1);
+        mHold = hold;
+        subscribe(1);
+        // the initial NOTIFY is held unanswered by the watcher
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+        while (mStates.isEmpty() && (System.nanoTime() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertEquals(SubscriptionStateHeader.ACTIVE.toLowerCase(),
+                mStates.values().iterator().next().toLowerCase());
+
+        mFanout.unsubscribe(mDialog, SubscriptionStateHeader.NO_RESOURCE);
+        mHold = null;
+        hold.countDown();
+        deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+        while ((mEnded.get() < 1) && (System.nanoTime() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mEnded.get());
+        assertEquals(SubscriptionStateHeader.TERMINATED.toLowerCase(),
+                mStates.values().iterator().next().toLowerCase());
+        assertEquals(0, mFanout.getSubscriberCount());
+    }
+}
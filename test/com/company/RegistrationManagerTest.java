@@ -0,0 +1,141 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+import gov.nist.javax.sip.clientauthutils.AccountManager;
+import gov.nist.javax.sip.clientauthutils.UserCredentials;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sip.ClientTransaction;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.SipURI;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RegistrationManagerTest {
+    private static final int SERVER_PORT = 22500;
+    private static final int CLIENT_PORT = 22501;
+
+    private StandInServer mServer;
+    private SipStack mSipStack;
+    private HashedTimerWheel mWheel;
+    private ScheduledExecutorService mExecutor;
+    private RegistrationManager mRegistrations;
+
+    @Before
+    public void setUp() throws Exception {
+        StandInServer.Options options = new StandInServer.Options();
+        options.port = SERVER_PORT;
+        options.transports = new String[] {ListeningPoint.UDP};
+        options.password = "secret";
+        mServer = new StandInServer(options);
+        mServer.start();
+
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "im.dlg.sip.registrations");
+        mSipStack = SipFactory.getInstance().createSipStack(properties);
+        SipProvider provider = mSipStack.createSipProvider(
+                mSipStack.createListeningPoint("127.0.0.1", CLIENT_PORT,
+                        ListeningPoint.UDP));
+        mWheel = new HashedTimerWheel(10, 256);
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mRegistrations = new RegistrationManager(
+                new SipHelper(mSipStack, provider), mWheel, mExecutor, 3600,
+                10, new AccountManager() {
+            @Override
+            public UserCredentials getCredentials(
+                    ClientTransaction transaction, String realm) {
+                return new UserCredentials() {
+                    @Override
+                    public String getUserName() {
+                        return "alice";
+                    }
+
+                    @Override
+                    public String getPassword() {
+                        return "secret";
+                    }
+
+                    @Override
+                    public String getSipDomain() {
+                        return "127.0.0.1";
+                    }
+                };
+            }
+        });
+        provider.addSipListener(new SipListener() {
+            @Override
+            public void processRequest(RequestEvent requestEvent) {
+            }
+
+            @Override
+            public void processResponse(ResponseEvent responseEvent) {
+                mRegistrations.processResponse(responseEvent);
+            }
+
+            @Override
+            public void processTimeout(TimeoutEvent timeoutEvent) {
+                mRegistrations.processTimeout(timeoutEvent);
+            }
+
+            @Override
+            public void processIOException(IOExceptionEvent ioExceptionEvent) {
+            }
+
+            @Override
+            public void processTransactionTerminated(
+                    TransactionTerminatedEvent transactionTerminatedEvent) {
+                mRegistrations.processTransactionTerminated(
+                        transactionTerminatedEvent);
+            }
+
+            @Override
+            public void processDialogTerminated(
+                    DialogTerminatedEvent dialogTerminatedEvent) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mSipStack.stop();
+        mServer.stop();
+        mWheel.stop();
+        mExecutor.shutdownNow();
+    }
+
+    @Test
+    public void registersThroughChallenge() throws Exception {
+        SipURI profile = new SipUri();
+        profile.setUser("alice");
+        profile.setHost("127.0.0.1");
+        profile.setPort(SERVER_PORT);
+        profile.setTransportParam("udp");
+        assertTrue(mRegistrations.add(profile, 0));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((mRegistrations.getRegisteredCount() == 0)
+                && (System.currentTimeMillis() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mRegistrations.getRegisteredCount());
+        assertEquals(0, mRegistrations.getFailureCount());
+        // the retry carried over the permit of the challenged REGISTER
+        assertEquals(0, mRegistrations.getInFlightCount());
+    }
+}
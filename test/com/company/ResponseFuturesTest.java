@@ -0,0 +1,108 @@
+package com.company;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.sip.ClientTransaction;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.SipFactory;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.message.Request;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ResponseFuturesTest {
+    private static final int PORT = 22100;
+
+    // one stack for all tests: NIST sets up its UDP processor on a thread
+    // of its own, and stopping a stack before that ran fails
+    private static SipStack sSipStack;
+    private static SipProvider sSipProvider;
+    private final ResponseFutures mFutures = new ResponseFutures();
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "im.dlg.sip.futures");
+        sSipStack = SipFactory.getInstance().createSipStack(properties);
+        sSipProvider = sSipStack.createSipProvider(
+                sSipStack.createListeningPoint("127.0.0.1", PORT,
+                        ListeningPoint.UDP));
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        sSipStack.stop();
+    }
+
+    private ClientTransaction newTransaction(String host, int port,
+            String branch) throws Exception {
+        Request request = SipFactory.getInstance().createMessageFactory()
+                .createRequest("OPTIONS sip:2@" + host + ":" + port + " SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:" + PORT + ";branch=z9hG4bK"
+                        + branch + "\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "To: <sip:2@" + host + ":" + port + ">\r\n"
+                + "From: <sip:1@127.0.0.1:" + PORT + ">;tag=1\r\n"
+                + "Call-ID: " + branch + "\r\n"
+                + "CSeq: 1 OPTIONS\r\n"
+                + "Content-Length: 0\r\n"
+                + "\r\n");
+        return sSipProvider.getNewClientTransaction(request);
+    }
+
+    private ResponseFutures.Pending register(ClientTransaction transaction) {
+        ResponseFutures.Pending pending = mFutures.newPending(null);
+        mFutures.register(transaction, pending);
+        return pending;
+    }
+
+    private ResponseFutures.Pending register(String host, int port,
+            String branch) throws Exception {
+        return register(newTransaction(host, port, branch));
+    }
+
+    private static void assertFailedWithIOException(
+            ResponseFutures.Pending pending) throws Exception {
+        try {
+            pending.getFuture().get();
+            fail("future completed");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void failsRequestsTowardsResolvedAddress() throws Exception {
+        // a host name resolves to the address the stack reports
+        ResponseFutures.Pending named = register("localhost", 22101, "a");
+        ResponseFutures.Pending numeric = register("127.0.0.1", 22101, "b");
+        ResponseFutures.Pending other = register("127.0.0.1", 22102, "c");
+        mFutures.onIOException(new IOExceptionEvent(sSipProvider, "127.0.0.1",
+                22101, ListeningPoint.UDP));
+        assertFailedWithIOException(named);
+        assertFailedWithIOException(numeric);
+        assertFalse(other.getFuture().isDone());
+        assertEquals(1, mFutures.getPendingCount());
+    }
+
+    @Test
+    public void failsOnlyTheRaisingTransaction() throws Exception {
+        ClientTransaction transaction = newTransaction("127.0.0.1", 22101, "d");
+        ResponseFutures.Pending pending = register(transaction);
+        ResponseFutures.Pending sibling = register("127.0.0.1", 22101, "e");
+        mFutures.onIOException(new IOExceptionEvent(transaction, "127.0.0.1",
+                22101, ListeningPoint.UDP));
+        assertFailedWithIOException(pending);
+        assertFalse(sibling.getFuture().isDone());
+    }
+}
@@ -0,0 +1,95 @@
+package com.company;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SessionDescriptionTest {
+    private static final String SDP = "v=0\r\n"
+            + "o=- 20518 0 IN IP4 203.0.113.1\r\n"
+            + "s=-\r\n"
+            + "c=IN IP4 203.0.113.1\r\n"
+            + "t=0 0\r\n"
+            + "a=sendrecv\r\n"
+            + "m=audio 54400 RTP/AVP 0 8 101\r\n"
+            + "a=rtpmap:0 PCMU/8000\r\n"
+            + "a=rtpmap:101 telephone-event/8000\r\n"
+            + "m=video 0 RTP/AVP 96\r\n";
+
+    private static SessionDescription parse(String sdp) throws ParseException {
+        byte[] content = sdp.getBytes(StandardCharsets.US_ASCII);
+        return SessionDescription.parse(content, 0, content.length);
+    }
+
+    @Test
+    public void parsesFields() throws ParseException {
+        SessionDescription sdp = parse(SDP);
+        assertEquals(20518, sdp.getSessionId());
+        assertEquals(0, sdp.getSessionVersion());
+        assertEquals("203.0.113.1", sdp.getOriginAddress());
+        assertEquals("203.0.113.1", sdp.getConnectionAddress());
+        assertEquals("", sdp.getAttribute("sendrecv"));
+        assertEquals(2, sdp.getMediaCount());
+        assertEquals(54400, sdp.getPort(0));
+        assertEquals(0, sdp.getPort(1));
+        SessionDescription.Media audio = sdp.getMedia(0);
+        assertEquals("audio", audio.getType());
+        assertEquals("RTP/AVP", audio.getProtocol());
+        assertEquals(3, audio.getFormats().size());
+        // the first of several attributes of the same name
+        assertEquals("0 PCMU/8000", audio.getAttribute("rtpmap"));
+        assertEquals(2, audio.getAttributes().size());
+        assertEquals(1, sdp.indexOfMedia("video"));
+        assertNull(sdp.getAttribute("inactive"));
+    }
+
+    @Test
+    public void encodesWhatItParsed() throws ParseException {
+        assertEquals(SDP, parse(SDP).toString());
+    }
+
+    @Test
+    public void acceptsBareLineFeeds() throws ParseException {
+        assertEquals(SDP, parse(SDP.replace("\r\n", "\n")).toString());
+    }
+
+    @Test
+    public void copyPatchesOnlyItsOwnFields() throws ParseException {
+        SessionDescription template = parse(SDP);
+        SessionDescription copy = template.copy();
+        copy.setSessionVersion(1);
+        copy.setPort(0, 40002);
+        copy.setConnectionAddress("198.51.100.7");
+
+        assertEquals(SDP.replace("20518 0", "20518 1")
+                        .replace("54400", "40002")
+                        .replace("c=IN IP4 203.0.113.1", "c=IN IP4 198.51.100.7"),
+                copy.toString());
+        assertEquals(SDP, template.toString());
+    }
+
+    @Test
+    public void structuralChangeOnCopyLeavesTemplateAlone()
+            throws ParseException {
+        SessionDescription template = parse(SDP);
+        SessionDescription copy = template.copy();
+        copy.addAttribute("ptime:20");
+        assertEquals("20", copy.getAttribute("ptime"));
+        assertNull(template.getAttribute("ptime"));
+        assertEquals(SDP, template.toString());
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsMissingOrigin() throws ParseException {
+        parse("v=0\r\ns=-\r\nt=0 0\r\n");
+    }
+
+    @Test(expected = ParseException.class)
+    public void rejectsMalformedLine() throws ParseException {
+        parse("v=0\r\nbogus\r\n");
+    }
+}
@@ -0,0 +1,182 @@
+package com.company;
+
+import org.junit.Test;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.header.CSeqHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SipEventDispatcherTest {
+    private static final long WAIT_MS = 5000;
+
+    private static RequestEvent request(long cseq, String callId)
+            throws Exception {
+        MessageFactory messageFactory = SipFactory.getInstance()
+                .createMessageFactory();
+        Request request = messageFactory.createRequest(
+                "OPTIONS sip:2@127.0.0.1:5060 SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:15060;branch=z9hG4bK" + cseq
+                        + callId + "\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "To: <sip:2@127.0.0.1:5060>\r\n"
+                + "From: <sip:1@127.0.0.1:15060>;tag=a\r\n"
+                + "Call-ID: " + callId + "\r\n"
+                + "CSeq: " + cseq + " OPTIONS\r\n"
+                + "Content-Length: 0\r\n"
+                + "\r\n");
+        return new RequestEvent(SipEventDispatcherTest.class, null, null,
+                request);
+    }
+
+    @Test
+    public void keepsOrderPerCallId() throws Exception {
+        final int calls = 20;
+        final int requests = 50;
+        final Map<String, List<Long>> sequences =
+                new ConcurrentHashMap<String, List<Long>>();
+        final Map<String, String> threads =
+                new ConcurrentHashMap<String, String>();
+        final Map<String, Boolean> moved =
+                new ConcurrentHashMap<String, Boolean>();
+        SipEventDispatcher dispatcher = new SipEventDispatcher(new Recorder() {
+            @Override
+            public void processRequest(RequestEvent requestEvent) {
+                String callId = SipHelper.getCallId(requestEvent);
+                long cseq = ((CSeqHeader) requestEvent.getRequest()
+                        .getHeader(CSeqHeader.NAME)).getSeqNumber();
+                // only this Call-ID's worker touches its list
+                List<Long> list = sequences.get(callId);
+                if (list == null) {
+                    list = new ArrayList<Long>();
+                    sequences.put(callId, list);
+                }
+                list.add(cseq);
+                String thread = Thread.currentThread().getName();
+                String first = threads.putIfAbsent(callId, thread);
+                if ((first != null) && !first.equals(thread)) {
+                    moved.put(callId, true);
+                }
+            }
+        }, 4, requests * calls);
+
+        for (int j = 1; j <= requests; j++) {
+            for (int i = 0; i < calls; i++) {
+                dispatcher.processRequest(request(j, "call" + i));
+            }
+        }
+        dispatcher.shutdown();
+
+        assertEquals(calls * requests, dispatcher.getDispatchedCount());
+        assertEquals(0, dispatcher.getFailedCount());
+        assertEquals(calls, sequences.size());
+        for (List<Long> list : sequences.values()) {
+            assertEquals(requests, list.size());
+            for (int j = 0; j < requests; j++) {
+                assertEquals(j + 1, list.get(j).longValue());
+            }
+        }
+        assertTrue(moved.isEmpty());
+        // 20 Call-IDs spread over more than one of the 4 shards
+        assertTrue(new HashSet<String>(threads.values()).size() > 1);
+    }
+
+    @Test
+    public void blocksStackThreadWhileShardIsFull() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final SipEventDispatcher dispatcher = new SipEventDispatcher(
+                new Recorder() {
+                    @Override
+                    public void processRequest(RequestEvent requestEvent) {
+                        started.countDown();
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }, 1, 2);
+
+        // the worker holds the first, the next two fill the queue
+        dispatcher.processRequest(request(1, "c"));
+        assertTrue(started.await(WAIT_MS, TimeUnit.MILLISECONDS));
+        dispatcher.processRequest(request(2, "c"));
+        dispatcher.processRequest(request(3, "c"));
+        assertEquals(2, dispatcher.getQueueDepth(0));
+        assertEquals(2, dispatcher.getTotalQueueDepth());
+        assertEquals(0, dispatcher.getBlockedCount());
+
+        final RequestEvent fourth = request(4, "c");
+        Thread stack = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatcher.processRequest(fourth);
+            }
+        });
+        stack.start();
+        long deadline = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(WAIT_MS);
+        while ((stack.getState() != Thread.State.WAITING)
+                && (System.nanoTime() < deadline)) {
+            Thread.sleep(10);
+        }
+        assertEquals(Thread.State.WAITING, stack.getState());
+        assertEquals(1, dispatcher.getBlockedCount());
+        assertEquals(2, dispatcher.getQueueDepth(0));
+
+        release.countDown();
+        stack.join(WAIT_MS);
+        assertFalse(stack.isAlive());
+        dispatcher.shutdown();
+        assertEquals(4, dispatcher.getDispatchedCount());
+        assertEquals(0, dispatcher.getTotalQueueDepth());
+        assertEquals(2, dispatcher.getMaxQueueDepth(0));
+    }
+
+    private static class Recorder implements SipListener {
+        @Override
+        public void processRequest(RequestEvent requestEvent) {
+        }
+
+        @Override
+        public void processResponse(ResponseEvent responseEvent) {
+        }
+
+        @Override
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+        }
+
+        @Override
+        public void processIOException(IOExceptionEvent ioExceptionEvent) {
+        }
+
+        @Override
+        public void processTransactionTerminated(
+                TransactionTerminatedEvent transactionTerminatedEvent) {
+        }
+
+        @Override
+        public void processDialogTerminated(
+                DialogTerminatedEvent dialogTerminatedEvent) {
+        }
+    }
+}
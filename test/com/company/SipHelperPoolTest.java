@@ -0,0 +1,161 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.InvalidArgumentException;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipException;
+import javax.sip.SipListener;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.SipURI;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.text.ParseException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SipHelperPoolTest {
+    private static final int BASE_PORT = 23100;
+    private static final int FAILING_BASE_PORT = 23110;
+    private static final long WAIT_MS = 5000;
+
+    private SipHelperPool mPool;
+
+    @After
+    public void tearDown() {
+        if (mPool != null) mPool.stop();
+    }
+
+    private static SipURI newProfile(String user, int port)
+            throws ParseException {
+        SipURI uri = new SipUri();
+        uri.setUser(user);
+        uri.setHost(Harness.HOST);
+        uri.setPort(port);
+        return uri;
+    }
+
+    @Test
+    public void mapsEventsBackToTheShardOfTheirDialog() throws Exception {
+        final SipURI callee = newProfile("callee", BASE_PORT);
+        final SipURI caller = newProfile("caller", BASE_PORT + 1);
+        final AtomicReference<SipHelper> answeringHelper =
+                new AtomicReference<SipHelper>();
+        final AtomicReference<SipHelper> dialogHelper =
+                new AtomicReference<SipHelper>();
+        final AtomicReference<SipHelper> responseHelper =
+                new AtomicReference<SipHelper>();
+        final AtomicReference<SipHelper> callerDialogHelper =
+                new AtomicReference<SipHelper>();
+        final CountDownLatch answered = new CountDownLatch(1);
+        mPool = new SipHelperPool(Harness.stackProperties("im.dlg.sip.pool"),
+                Harness.HOST, BASE_PORT, ListeningPoint.UDP, 2,
+                new Listener() {
+                    @Override
+                    public void processRequest(RequestEvent requestEvent) {
+                        if (!Request.INVITE.equals(
+                                requestEvent.getRequest().getMethod())) {
+                            return;
+                        }
+                        SipHelper helper = mPool.getHelper(requestEvent);
+                        answeringHelper.set(helper);
+                        try {
+                            dialogHelper.set(mPool.getHelper(helper
+                                    .sendInviteOk(requestEvent, callee,
+                                            Harness.SDP, null)
+                                    .getDialog()));
+                        } catch (SipException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+
+                    @Override
+                    public void processResponse(ResponseEvent responseEvent) {
+                        if (responseEvent.getResponse().getStatusCode()
+                                != Response.OK) {
+                            return;
+                        }
+                        responseHelper.set(mPool.getHelper(responseEvent));
+                        callerDialogHelper.set(mPool.getHelper(
+                                responseEvent.getDialog()));
+                        answered.countDown();
+                    }
+                });
+
+        // shard 1 calls shard 0
+        SipHelper callerHelper = mPool.getHelper(1);
+        callerHelper.sendInvite(caller, callee, Harness.SDP,
+                callerHelper.getIdentifiers().newTag(), null, null,
+                callerHelper.newCallIdHeader());
+        assertTrue(answered.await(WAIT_MS, TimeUnit.MILLISECONDS));
+
+        assertSame(mPool.getHelper(0), answeringHelper.get());
+        assertSame(mPool.getHelper(0), dialogHelper.get());
+        assertSame(mPool.getHelper(1), responseHelper.get());
+        assertSame(mPool.getHelper(1), callerDialogHelper.get());
+    }
+
+    @Test
+    public void stopsStartedShardsWhenOneFails() throws Exception {
+        InetAddress host = InetAddress.getByName(Harness.HOST);
+        // the second shard cannot bind
+        DatagramSocket taken = new DatagramSocket(FAILING_BASE_PORT + 1, host);
+        try {
+            new SipHelperPool(Harness.stackProperties("im.dlg.sip.pool.fail"),
+                    Harness.HOST, FAILING_BASE_PORT, ListeningPoint.UDP, 2,
+                    new Listener());
+            fail("second shard started on a port in use");
+        } catch (InvalidArgumentException e) {
+            // expected
+        } finally {
+            taken.close();
+        }
+        // the first shard let go of its port
+        DatagramSocket first = new DatagramSocket(FAILING_BASE_PORT, host);
+        assertEquals(FAILING_BASE_PORT, first.getLocalPort());
+        first.close();
+    }
+
+    private static class Listener implements SipListener {
+        @Override
+        public void processRequest(RequestEvent requestEvent) {
+        }
+
+        @Override
+        public void processResponse(ResponseEvent responseEvent) {
+        }
+
+        @Override
+        public void processTimeout(TimeoutEvent timeoutEvent) {
+        }
+
+        @Override
+        public void processIOException(IOExceptionEvent ioExceptionEvent) {
+        }
+
+        @Override
+        public void processTransactionTerminated(
+                TransactionTerminatedEvent transactionTerminatedEvent) {
+        }
+
+        @Override
+        public void processDialogTerminated(
+                DialogTerminatedEvent dialogTerminatedEvent) {
+        }
+    }
+}
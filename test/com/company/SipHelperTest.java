@@ -0,0 +1,126 @@
+package com.company;
+
+import gov.nist.javax.sip.address.SipUri;
+import gov.nist.javax.sip.clientauthutils.AccountManager;
+import gov.nist.javax.sip.clientauthutils.UserCredentials;
+import org.junit.Test;
+
+import javax.sip.ClientTransaction;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.SipFactory;
+import javax.sip.Timeout;
+import javax.sip.TimeoutEvent;
+import javax.sip.address.SipURI;
+import javax.sip.header.AuthorizationHeader;
+import javax.sip.header.WWWAuthenticateHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SipHelperTest {
+    private static final String OPTIONS = "OPTIONS sip:2@127.0.0.1:5060 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 127.0.0.1:15060;branch=z9hG4bK1\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "To: <sip:2@127.0.0.1:5060>\r\n"
+            + "From: <sip:1@127.0.0.1:15060>;tag=1\r\n"
+            + "Call-ID: timeout@127.0.0.1\r\n"
+            + "CSeq: 1 OPTIONS\r\n"
+            + "Content-Length: 0\r\n"
+            + "\r\n";
+
+    @Test
+    public void resolvesCallIdOfTimeout() throws Exception {
+        LoopbackSipProvider provider = new LoopbackSipProvider("127.0.0.1",
+                15060, ListeningPoint.UDP);
+        Request request = SipFactory.getInstance().createMessageFactory()
+                .createRequest(OPTIONS);
+        ClientTransaction transaction = provider.getNewClientTransaction(request);
+        assertEquals("timeout@127.0.0.1", SipHelper.getCallId(
+                new TimeoutEvent(provider, transaction, Timeout.TRANSACTION)));
+    }
+
+    @Test
+    public void ioExceptionOutsideTransactionHasNoCallId() {
+        LoopbackSipProvider provider = new LoopbackSipProvider("127.0.0.1",
+                15060, ListeningPoint.UDP);
+        assertEquals("", SipHelper.getCallId(new IOExceptionEvent(provider,
+                "127.0.0.1", 5060, ListeningPoint.UDP)));
+    }
+
+    @Test
+    public void findsOfferTemplateByProfileInstance() throws Exception {
+        SipHelper helper = new SipHelper(null, new LoopbackSipProvider(
+                "127.0.0.1", 15060, ListeningPoint.UDP));
+        SipURI profile = new SipUri();
+        profile.setUser("alice");
+        profile.setHost("127.0.0.1");
+        byte[] sdp = Harness.SDP.getBytes(StandardCharsets.US_ASCII);
+        helper.setOfferTemplate(profile,
+                SessionDescription.parse(sdp, 0, sdp.length));
+
+        SessionDescription offer = helper.newOffer(profile);
+        assertEquals(Harness.HOST, offer.getOriginAddress());
+        // an equal profile is a different one, as with request templates
+        assertNull(helper.newOffer((SipURI) profile.clone()));
+    }
+
+    @Test
+    public void authorizesEveryKeepaliveAfresh() throws Exception {
+        LoopbackSipProvider provider = new LoopbackSipProvider("127.0.0.1",
+                15060, ListeningPoint.UDP);
+        SipHelper helper = new SipHelper(null, provider);
+        SipURI profile = new SipUri();
+        profile.setUser("alice");
+        profile.setHost("127.0.0.1");
+        profile.setPort(5060);
+
+        Request options = helper.sendOptions(profile, profile, "a",
+                helper.newCallIdHeader()).getRequest();
+        Response challenge = SipFactory.getInstance().createMessageFactory()
+                .createResponse(Response.UNAUTHORIZED, options);
+        WWWAuthenticateHeader header = SipFactory.getInstance()
+                .createHeaderFactory().createWWWAuthenticateHeader("Digest");
+        header.setRealm("standin");
+        header.setNonce("n1");
+        header.setQop("auth");
+        challenge.addHeader(header);
+        helper.getDigestAuthCache().learn(challenge,
+                provider.getNewClientTransaction(options),
+                new AccountManager() {
+            @Override
+            public UserCredentials getCredentials(
+                    ClientTransaction transaction, String realm) {
+                return new UserCredentials() {
+                    @Override
+                    public String getUserName() {
+                        return "alice";
+                    }
+
+                    @Override
+                    public String getPassword() {
+                        return "secret";
+                    }
+
+                    @Override
+                    public String getSipDomain() {
+                        return "127.0.0.1";
+                    }
+                };
+            }
+        });
+
+        Request template = helper.createKeepalive(profile);
+        assertNull(template.getHeader(AuthorizationHeader.NAME));
+        for (int nc = 1; nc <= 2; nc++) {
+            helper.sendKeepalive(template, nc);
+            AuthorizationHeader authorization = (AuthorizationHeader)
+                    ((Request) provider.getLastSent())
+                            .getHeader(AuthorizationHeader.NAME);
+            assertEquals(nc, authorization.getNonceCount());
+        }
+    }
+}
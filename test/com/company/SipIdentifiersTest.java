@@ -0,0 +1,49 @@
+package com.company;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SipIdentifiersTest {
+    @Test
+    public void sequenceIncreasesPerCallId() {
+        SipIdentifiers identifiers = new SipIdentifiers();
+        long first = identifiers.nextSequenceNumber("a");
+        assertTrue(first > 0);
+        assertEquals(first + 1, identifiers.nextSequenceNumber("a"));
+        identifiers.advanceSequenceNumber("a", first + 5);
+        assertEquals(first + 6, identifiers.nextSequenceNumber("a"));
+        assertEquals(1, identifiers.getSequenceCount());
+    }
+
+    @Test
+    public void releasesSequence() {
+        SipIdentifiers identifiers = new SipIdentifiers();
+        identifiers.nextSequenceNumber("a");
+        identifiers.releaseSequence("a");
+        assertEquals(0, identifiers.getSequenceCount());
+    }
+
+    @Test
+    public void forgetsUnusedSequences() throws Exception {
+        SipIdentifiers identifiers = new SipIdentifiers();
+        identifiers.setSequenceTtl(20);
+        identifiers.nextSequenceNumber("a");
+        identifiers.nextSequenceNumber("b");
+        Thread.sleep(50);
+        identifiers.nextSequenceNumber("b");
+        // a new counter sweeps the ones unused past the TTL
+        identifiers.nextSequenceNumber("c");
+        assertEquals(2, identifiers.getSequenceCount());
+    }
+
+    @Test
+    public void identifiersDoNotRepeat() {
+        SipIdentifiers identifiers = new SipIdentifiers();
+        assertNotEquals(identifiers.newCallId(), identifiers.newCallId());
+        assertNotEquals(identifiers.newBranch(), identifiers.newBranch());
+        assertTrue(identifiers.newBranch().startsWith("z9hG4bK"));
+    }
+}
@@ -0,0 +1,166 @@
+package com.company;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.header.WWWAuthenticateHeader;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+public class StandInServerTest {
+    private static final int SERVER_PORT = 22300;
+    private static final int CLIENT_PORT = 22301;
+
+    private final BlockingQueue<Response> mResponses =
+            new LinkedBlockingQueue<Response>();
+    private StandInServer mServer;
+    private SipStack mSipStack;
+    private SipProvider mSipProvider;
+
+    @Before
+    public void setUp() throws Exception {
+        StandInServer.Options options = new StandInServer.Options();
+        options.port = SERVER_PORT;
+        options.transports = new String[] {ListeningPoint.UDP};
+        options.password = "secret";
+        mServer = new StandInServer(options);
+        mServer.start();
+
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "im.dlg.sip.client");
+        mSipStack = SipFactory.getInstance().createSipStack(properties);
+        mSipProvider = mSipStack.createSipProvider(
+                mSipStack.createListeningPoint("127.0.0.1", CLIENT_PORT,
+                        ListeningPoint.UDP));
+        mSipProvider.addSipListener(new SipListener() {
+            @Override
+            public void processRequest(RequestEvent requestEvent) {
+            }
+
+            @Override
+            public void processResponse(ResponseEvent responseEvent) {
+                mResponses.add(responseEvent.getResponse());
+            }
+
+            @Override
+            public void processTimeout(TimeoutEvent timeoutEvent) {
+            }
+
+            @Override
+            public void processIOException(IOExceptionEvent ioExceptionEvent) {
+            }
+
+            @Override
+            public void processTransactionTerminated(
+                    TransactionTerminatedEvent transactionTerminatedEvent) {
+            }
+
+            @Override
+            public void processDialogTerminated(
+                    DialogTerminatedEvent dialogTerminatedEvent) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mSipStack.stop();
+        mServer.stop();
+    }
+
+    private Response register(long cseq, String authorization)
+            throws Exception {
+        Request request = SipFactory.getInstance().createMessageFactory()
+                .createRequest("REGISTER sip:127.0.0.1:" + SERVER_PORT + " SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:" + CLIENT_PORT + ";branch=z9hG4bK"
+                        + cseq + "\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "To: <sip:alice@127.0.0.1:" + SERVER_PORT + ">\r\n"
+                + "From: <sip:alice@127.0.0.1:" + SERVER_PORT + ">;tag=a\r\n"
+                + "Call-ID: standin-test\r\n"
+                + "CSeq: " + cseq + " REGISTER\r\n"
+                + "Contact: <sip:alice@127.0.0.1:" + CLIENT_PORT + ">\r\n"
+                + ((authorization != null)
+                        ? "Authorization: " + authorization + "\r\n" : "")
+                + "Content-Length: 0\r\n"
+                + "\r\n");
+        mSipProvider.getNewClientTransaction(request).sendRequest();
+        Response response = mResponses.poll(5, TimeUnit.SECONDS);
+        assertNotNull("no response", response);
+        return response;
+    }
+
+    @Test
+    public void rejectsMalformedNonceCount() throws Exception {
+        Response challenge = register(1, null);
+        assertEquals(Response.UNAUTHORIZED, challenge.getStatusCode());
+        String nonce = ((WWWAuthenticateHeader) challenge.getHeader(
+                WWWAuthenticateHeader.NAME)).getNonce();
+        Response response = register(2, "Digest username=\"alice\", "
+                + "realm=\"standin\", nonce=\"" + nonce + "\", "
+                + "uri=\"sip:127.0.0.1:" + SERVER_PORT + "\", "
+                + "response=\"00000000000000000000000000000000\", "
+                + "qop=auth, nc=zzzzzzzz, cnonce=\"c\"");
+        assertEquals(Response.BAD_REQUEST, response.getStatusCode());
+    }
+
+    private String authorization(String nonce, int nc) {
+        String uri = "sip:127.0.0.1:" + SERVER_PORT;
+        String count = DigestCalculator.nonceCount(nc);
+        return "Digest username=\"alice\", realm=\"standin\", nonce=\""
+                + nonce + "\", uri=\"" + uri + "\", response=\""
+                + DigestCalculator.response(DigestCalculator.ha1("alice",
+                        "standin", "secret"), Request.REGISTER, uri, nonce,
+                        count, "c", "auth")
+                + "\", qop=auth, nc=" + count + ", cnonce=\"c\"";
+    }
+
+    @Test
+    public void acceptsEachNonceCountOnceInAnyOrder() throws Exception {
+        Response challenge = register(1, null);
+        String nonce = ((WWWAuthenticateHeader) challenge.getHeader(
+                WWWAuthenticateHeader.NAME)).getNonce();
+        assertEquals(Response.OK,
+                register(2, authorization(nonce, 2)).getStatusCode());
+        // overtaken by nc=2, still unused
+        assertEquals(Response.OK,
+                register(3, authorization(nonce, 1)).getStatusCode());
+        assertEquals(Response.UNAUTHORIZED,
+                register(4, authorization(nonce, 2)).getStatusCode());
+    }
+
+    @Test
+    public void stopEndsDispatcherWorkers() throws Exception {
+        StandInServer.Options options = new StandInServer.Options();
+        options.port = SERVER_PORT + 2;
+        options.transports = new String[] {ListeningPoint.UDP};
+        options.workers = 2;
+        StandInServer server = new StandInServer(options);
+        server.start();
+        server.stop();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName(), thread.getName().startsWith(
+                    SipEventDispatcher.class.getSimpleName()));
+        }
+    }
+}